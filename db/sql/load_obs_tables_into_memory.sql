@@ -3,6 +3,17 @@ DELIMITER $$
 DROP PROCEDURE IF EXISTS `resource_index`.`load_obs_tables_into_memory`$$
 
 CREATE DEFINER=`optra`@`%` PROCEDURE `load_obs_tables_into_memory`()
+BEGIN
+	CALL load_obs_tables_into_memory_incremental(TRUE);
+END$$
+
+--
+-- Same as load_obs_tables_into_memory, called with load_mappings false by the incremental 
+-- synchronization of the map table (obs.map.sync.incremental). 
+--
+DROP PROCEDURE IF EXISTS `resource_index`.`load_obs_tables_into_memory_incremental`$$
+
+CREATE DEFINER=`optra`@`%` PROCEDURE `load_obs_tables_into_memory_incremental`(IN load_mappings TINYINT(1))
 BEGIN
     -- 
     -- LOAD only the necessary part of obr_term and stuff it into memory.
@@ -20,7 +31,10 @@ BEGIN
 	
 	--
 	-- LOAD obr_map and stuff it into memory.
+	-- When load_mappings is false, obr_map_mem and obr_mapping_type_mem are kept: they are updated
+	-- with the changes of obs_map by the incremental synchronization of the mappings.
 	-- 
+	IF load_mappings THEN
 	DROP TABLE IF EXISTS `resource_index`.`obr_map_mem`;	
 	
 	CREATE TABLE `obr_map_mem` (
@@ -56,6 +70,7 @@ BEGIN
 	ALTER TABLE `obr_map_mem` DROP COLUMN mapping_type;
 	ALTER TABLE `obr_map_mem` CHANGE COLUMN 
 	mapping_type_id mapping_type TINYint(1) unsigned NOT NULL;
+	END IF;
                 
         -- 
 	-- LOAD obs_relation and stuff it into memory.
@@ -4,10 +4,13 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -15,6 +18,8 @@ import java.sql.Statement;
 import java.util.HashSet;
 
 import org.apache.log4j.Logger;
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
+import org.ncbo.stanford.obr.enumeration.WorkflowStatusEnum;
 import org.ncbo.stanford.obr.util.MessageUtils;
 import org.ncbo.stanford.obr.util.helper.StringHelper;
 
@@ -28,7 +33,12 @@ import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
  * 
  * The creation of a Table open a set of prepared statements that are used to query the table.
  * These prepared statements are closed when the tool is destructed.
- * All the subclasses of this class share the same DB connexion.
+ * All the subclasses of this class share the same DB connexion, except the resource specific
+ * tables created from a thread that opened its own resource connection 
+ * (see {@link #openResourceConnection()}).
+ * The connections are taken from a {@link ConnectionPool} (property obr.jdbc.pool.size), and validated 
+ * before reuse. The generic statements are opened for one call only: the statement of a query is closed
+ * with its ResultSet.
  * 
  * ParametersBean to connect to the MySQL server should be in a String[3] array such as:
  * {"jdbc:mysql://ncbo-db2.stanford.edu:3306/obs-schema-name","login","password"}   
@@ -52,12 +62,21 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	private static final String DATABASE_JDBC_DRIVER = MessageUtils.getMessage("obr.jdbc.driver");
 	private static final String DATABASE_USER = MessageUtils.getMessage("obr.jdbc.username");
 	private static final String DATABASE_PASSWORD = MessageUtils.getMessage("obr.jdbc.password");
+	
+	// Pool of the DB connections (by default, as many connections as needed by the workflow)
+	private static final ConnectionPool connectionPool = new ConnectionPool(DATABASE_JDBC_DRIVER, 
+			DATABASE_CONNECTION_STRING, DATABASE_USER, DATABASE_PASSWORD, 
+			getIntegerProperty("obr.jdbc.pool.size", getRequiredConnectionPoolSize()), 1000L * getIntegerProperty("obr.jdbc.pool.wait.timeout", 600));
 	private String tableSQLName;
 	
 	protected String resourceID;
 	
 	private static Connection tableConnection;
-	private static Statement tableStatement; 
+	// Connection bound to the thread processing a resource (null when not processing resources in parallel)
+	private static final ThreadLocal<Connection> resourceConnection = new ThreadLocal<Connection>();
+	
+	// True if the table is specific to one resource and uses the resource connection of its thread
+	private boolean resourceTable = false;
 	
 	private PreparedStatement numberOfEntryStatement; 
 	
@@ -66,6 +85,9 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	private static File sqlLogFile;
 	
 	protected static final HashSet<String> EMPTY_SET = new HashSet<String>();
+	
+	// Resolver of the local ids used to populate the annotation tables
+	protected static final LocalIdResolver localIdResolver = LocalIdResolver.getInstance();
 		
 	/**
 	 * Construct a new Table object and the corresponding DB table if does not exists.
@@ -74,6 +96,7 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	public AbstractObrDao(String resourceID, String suffix){		 
 		this.createConnection();
 		this.resourceID = resourceID;
+		this.resourceTable = resourceID.length() > 0 && resourceConnection.get() != null;
 		this.tableSQLName = OBR_PREFIX + resourceID.toLowerCase() + suffix ;
 		if(!this.exist(this.getTableSQLName())){
 			try{
@@ -110,17 +133,83 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	
 	private void createConnection(){
 		if(tableConnection == null){
-			try{
-				Class.forName(DATABASE_JDBC_DRIVER).newInstance();
-						
-				tableConnection = DriverManager.getConnection(DATABASE_CONNECTION_STRING, DATABASE_USER, DATABASE_PASSWORD);
-			}
-			catch(Exception e){
-				logger.error("** PROBLEM ** Cannot create connection to database " + DATABASE_CONNECTION_STRING, e);
-			}
+			tableConnection = newConnection();
+		}
+	}
+	
+	private static Connection newConnection(){
+		try{
+			return connectionPool.getConnection();
+		}
+		catch(Exception e){
+			logger.error("** PROBLEM ** Cannot create connection to database " + DATABASE_CONNECTION_STRING, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Opens a new DB connection bound to the current thread. All the resource specific tables
+	 * created afterwards in this thread use this connection instead of the shared one, and all the 
+	 * generic statements executed in this thread go through it. 
+	 * Used to process several resources in parallel.
+	 */
+	public static void openResourceConnection(){
+		resourceConnection.set(newConnection());
+	}
+	
+	/**
+	 * Gives back to the pool the DB connection bound to the current thread by {@link #openResourceConnection()}.
+	 */
+	public static void closeResourceConnection(){
+		Connection connection = resourceConnection.get();
+		resourceConnection.remove();
+		if(connection != null){
+			connectionPool.releaseConnection(connection);
 		}
 	}
 	
+	/**
+	 * Unbinds the DB connection opened by {@link #openResourceConnection()} from the current thread without closing it.
+	 * The processing of the resource can then continue in another thread with {@link #attachResourceConnection(Connection)}
+	 * (the prepared statements of the resource tables belong to this connection).
+	 * 
+	 * @return the connection of the current thread
+	 */
+	public static Connection detachResourceConnection(){
+		Connection connection = resourceConnection.get();
+		resourceConnection.remove();
+		return connection;
+	}
+	
+	/**
+	 * Binds to the current thread a DB connection detached from another thread by {@link #detachResourceConnection()}.
+	 * It must be closed by {@link #closeResourceConnection()}.
+	 */
+	public static void attachResourceConnection(Connection connection){
+		resourceConnection.set(connection);
+	}
+	
+	/**
+	 * Returns the connection to use for generic statements in the current thread.
+	 */
+	private static Connection getConnection(){
+		Connection connection = resourceConnection.get();
+		if(connection != null){
+			return connection;
+		}
+		return tableConnection;
+	}
+	
+	/**
+	 * Returns the connection used for the prepared statements of this table.
+	 */
+	private Connection getStatementConnection(){
+		if(this.resourceTable){
+			return getConnection();
+		}
+		return tableConnection;
+	}
+	
 	protected void openPreparedStatements() {
 		this.openNumberOfEntryStatement();
 	}
@@ -170,9 +259,112 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	public static Connection getTableConnection() {
 		return tableConnection;
 	}
+	
+	/**
+	 * Returns a description of the use of the DB connection pool 
+	 * (active and idle connections, time spent waiting for a connection).
+	 */
+	public static String getConnectionPoolStatistics() {
+		return connectionPool.getStatistics();
+	}
+	
+	/**
+	 * Returns the number of DB connections needed by the workflow: the connection shared by the tables, and 
+	 * the connection held by each resource processed at the same time (obr.workflow.parallelism, or with the 
+	 * pipelined workflow the resources being updated, waiting in the pipeline and being indexed). 
+	 * Each resource being indexed also borrows up to 3 connections for the concurrent loads of a stage 
+	 * and one connection per expansion thread (obr.expansion.threads).
+	 */
+	public static int getRequiredConnectionPoolSize() {
+		int nbResource;
+		int nbIndexedResource;
+		if(Boolean.parseBoolean(MessageUtils.getMessage("obr.workflow.pipelined"))){
+			nbIndexedResource = Math.max(1, getIntegerProperty("obr.workflow.index.parallelism", 1));
+			nbResource = Math.max(1, getIntegerProperty("obr.workflow.fetch.parallelism", 1)) 
+					+ Math.max(1, getIntegerProperty("obr.workflow.pipeline.capacity", 1)) + nbIndexedResource;
+		}else{
+			nbIndexedResource = Math.max(1, getIntegerProperty("obr.workflow.parallelism", 1));
+			nbResource = nbIndexedResource;
+		}
+		int expansionThreads = getIntegerProperty("obr.expansion.threads", Runtime.getRuntime().availableProcessors());
+		return 1 + nbResource + nbIndexedResource * (3 + expansionThreads);
+	}
+	
+	/**
+	 * Checks that the DB connection pool is large enough for the workflow (see {@link #getRequiredConnectionPoolSize()}).
+	 * 
+	 * @return false (and logs an error) if obr.jdbc.pool.size is smaller than the required number of connections.
+	 */
+	public static boolean checkConnectionPoolSize() {
+		int minSize = getRequiredConnectionPoolSize();
+		if(connectionPool.getMaxSize() < minSize){
+			logger.error("** PROBLEM ** The DB connection pool (obr.jdbc.pool.size=" + connectionPool.getMaxSize() 
+					+ ") is smaller than the " + minSize + " connections needed by the workflow. Threads may wait for a connection until the timeout.");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the integer value of the given property or the default value if not specified.
+	 */
+	protected static int getIntegerProperty(String property, int defaultValue){
+		try{
+			return Integer.parseInt(MessageUtils.getMessage(property).trim());
+		}catch (Exception e) {
+			return defaultValue;
+		}
+	}
 
-	public static Statement getTableStatement() {
-		return tableStatement;
+	/**
+	 * Returns the condition selecting the annotations waiting for a stage of the workflow: the annotations with 
+	 * the given workflow_status, or if fromElementID is not negative, the annotations of the elements between 
+	 * the watermarks fromElementID (exclusive) and toElementID (inclusive).
+	 * 
+	 * @param alias alias of the annotation table followed by a dot, or an empty string
+	 */
+	protected static String pendingCondition(String alias, WorkflowStatusEnum status, long fromElementID, long toElementID){
+		StringBuffer conditionb = new StringBuffer();
+		if(fromElementID < 0){
+			conditionb.append(alias);
+			conditionb.append("workflow_status = ");
+			conditionb.append(status.getStatus());
+		}else{
+			conditionb.append(alias);
+			conditionb.append("element_id > ");
+			conditionb.append(fromElementID);
+			conditionb.append(" AND ");
+			conditionb.append(alias);
+			conditionb.append("element_id <= ");
+			conditionb.append(toElementID);
+		}
+		return conditionb.toString();
+	}
+	
+	/**
+	 * Adds to the given counter the numbers of annotations by ontology returned by the given query: 
+	 * the ontology_id in the first column, then the number of annotations of each of the given counter columns.
+	 * The counter is marked incomplete if a problem occurs.
+	 * 
+	 * @param sign 1 to add the numbers of annotations, -1 to subtract them
+	 */
+	protected void countStatistics(String query, OntologyStatisticsCounter counter, int[] columns, int sign){
+		try {
+			ResultSet rSet = this.executeSQLQuery(query);
+			while(rSet.next()){
+				for(int i = 0; i < columns.length; i++){
+					counter.add(columns[i], rSet.getInt(1), sign * rSet.getLong(i + 2));
+				}
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			this.countStatistics(query, counter, columns, sign);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot count the annotations by ontology from " + this.getTableSQLName() + ", statistics will be computed again.", e);
+			counter.setIncomplete();
+		}
 	}
 
 	public static File getSqlLogFile() {
@@ -194,9 +386,10 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	 */
 	protected long executeSQLUpdate(String query) throws SQLException {
 		long nbRow;
+		Statement statement;
 		try{
-			tableStatement = tableConnection.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
-			nbRow = tableStatement.executeUpdate(query);
+			statement = getConnection().createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
+			nbRow = statement.executeUpdate(query);
 			try{
 				if(AbstractObrDao.sqlLogFile != null){
 					AbstractObrDao.sqlLogBuffer.write(query);
@@ -209,11 +402,11 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 			}
 		}
 		catch (CommunicationsException e) {
-			reOpenConnectionIfClosed();
-			tableStatement = tableConnection.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
-			nbRow = tableStatement.executeUpdate(query);
+			validateConnections();
+			statement = getConnection().createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
+			nbRow = statement.executeUpdate(query);
 		}
-		tableStatement.close();
+		statement.close();
 		return nbRow;
 	}
 	
@@ -223,13 +416,14 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	protected long executeWithStoreProcedure(String tableName, String query, boolean disableKeys) throws SQLException {
 		long nbRow=0;
 		try{
-			 CallableStatement callableStatement = tableConnection.prepareCall("CALL common_batch_insert(?,?, ?, ?)");
+			 CallableStatement callableStatement = getConnection().prepareCall("CALL common_batch_insert(?,?, ?, ?)");
 			 callableStatement.setString(1, tableName);
 			 callableStatement.setString(2, query);
 			 callableStatement.setBoolean(3, disableKeys);
 			 callableStatement.registerOutParameter(4, java.sql.Types.BIGINT);
 			 callableStatement.execute();
 			 nbRow = callableStatement.getLong(4);			  
+			 callableStatement.close();
 			 
 			try{
 				if(AbstractObrDao.sqlLogFile != null){
@@ -243,7 +437,7 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 			}
 		}
 		catch (CommunicationsException e) {
-			reOpenConnectionIfClosed();			 
+			validateConnections();			 
 		}		 
 		return nbRow;
 	}
@@ -254,13 +448,29 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	 * 
 	 */
 	public void callLoadObsSlaveTablesIntoMemoryProcedure() throws SQLException{	 
+		this.callLoadObsSlaveTablesIntoMemoryProcedure("CALL load_obs_tables_into_memory();");
+	}
+	
+	/**
+	 * Call the store procedure load_obs_tables_into_memory_incremental, used with the incremental 
+	 * synchronization of the map table (obs.map.sync.incremental).
+	 * 
+	 * @param loadMappings if false, the memory map tables are kept (they are updated by the incremental
+	 * synchronization of the map table)
+	 */
+	public void callLoadObsSlaveTablesIntoMemoryProcedure(boolean loadMappings) throws SQLException{	 
+		this.callLoadObsSlaveTablesIntoMemoryProcedure("CALL load_obs_tables_into_memory_incremental(" + loadMappings + ");");
+	}
+	
+	private void callLoadObsSlaveTablesIntoMemoryProcedure(String callQuery) throws SQLException{	 
 		try{
-			 CallableStatement callableStatement = tableConnection.prepareCall("CALL load_obs_tables_into_memory();");
+			 CallableStatement callableStatement = getConnection().prepareCall(callQuery);
 			 callableStatement.execute();  
+			 callableStatement.close();
 			 
 			try{
 				if(AbstractObrDao.sqlLogFile != null){
-					AbstractObrDao.sqlLogBuffer.write("call load_obs_tables_into_memory();");
+					AbstractObrDao.sqlLogBuffer.write(callQuery);
 					AbstractObrDao.sqlLogBuffer.newLine();
 					AbstractObrDao.sqlLogBuffer.flush();
 				}
@@ -296,8 +506,9 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 			} 
 			callSPQuery.append(" );");
 			  
-			CallableStatement callableStatement = tableConnection.prepareCall(callSPQuery.toString());
+			CallableStatement callableStatement = getConnection().prepareCall(callSPQuery.toString());
 			callableStatement.execute();  
+			callableStatement.close();
 			 
 			try{
 				if(AbstractObrDao.sqlLogFile != null){
@@ -341,7 +552,7 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 			}
 		}
 		catch (CommunicationsException e) {
-			reOpenConnectionIfClosed();
+			validateConnections();
 			// Re-calling the execution will generate a MySQLNonTransientConnectionException
 			// Those exceptions are catched in each functions to re-execute the query correctly.
 			nbRow = stmt.executeUpdate();
@@ -365,7 +576,7 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 			}
 		}
 		catch (CommunicationsException e) {
-			reOpenConnectionIfClosed();
+			validateConnections();
 			// Re-calling the execution will generate a MySQLNonTransientConnectionException
 			// Those exceptions are catched in each functions to re-execute the query correctly.
 			nbRow = stmt.executeBatch();
@@ -385,47 +596,97 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	}
 	
 	/**
-	 * Executes a given SQL query as String using a generic statement. As it returns a ResultSet,
-	 * this statement needs to be explicitly closed after the processing of the ResultSet with function
-	 * {see closeTableStatement()}.
+	 * Executes a given SQL query as String using a new generic statement. 
+	 * The statement is closed when the returned ResultSet is closed.
 	 */
 	protected ResultSet executeSQLQuery(String query) throws SQLException {
+		Statement statement;
 		ResultSet rSet;
 		try{
-			tableStatement = tableConnection.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
-			rSet = tableStatement.executeQuery(query);
+			statement = getConnection().createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
+			rSet = statement.executeQuery(query);
 		}
 		catch (CommunicationsException e) {
-			reOpenConnectionIfClosed();
-			tableStatement = tableConnection.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
-			rSet = tableStatement.executeQuery(query);
+			validateConnections();
+			statement = getConnection().createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
+			rSet = statement.executeQuery(query);
 		}	
 		//logger.info("query: " + query);
-		return rSet;
+		return closingResultSet(rSet, statement, null);
 	}
 	
 	/**
 	 * Executes a given SQL query as String using a generic statement. 
 	 * Fetch resultset row by row (cf. MySQL JDBC driver doc).
-	 * As it returns a ResultSet, this statement needs to be explicitly closed after the processing of the ResultSet with function
-	 * {see closeTableStatement()}.
-	 * Attention, no other use of the connection must be done before the generic table statement to be closed. 
+	 * As a streaming ResultSet blocks its connection until it is closed, the query is executed 
+	 * with a connection of the pool dedicated to this ResultSet: the statement is closed and the connection
+	 * given back to the pool when the returned ResultSet is closed. 
 	 */
 	protected ResultSet executeSQLQueryWithFetching(String query) throws SQLException {
-		ResultSet rSet;
+		Connection connection = connectionPool.getConnection();
 		try{
-			tableStatement = tableConnection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-			tableStatement.setFetchSize(Integer.MIN_VALUE);
-			rSet = tableStatement.executeQuery(query);
+			Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(Integer.MIN_VALUE);
+			ResultSet rSet = statement.executeQuery(query);
+			//logger.info("query: " + query);
+			return closingResultSet(rSet, statement, connection);
+		}
+		catch (SQLException e) {
+			connectionPool.invalidateConnection(connection);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns a view of the given ResultSet which closes its statement, and gives back its connection 
+	 * to the pool if not null, when it is closed.
+	 */
+	private static ResultSet closingResultSet(ResultSet rSet, Statement statement, Connection connection){
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), 
+				new Class[]{ResultSet.class}, new ClosingResultSetHandler(rSet, statement, connection));
+	}
+	
+	private static class ClosingResultSetHandler implements InvocationHandler {
+		
+		private ResultSet rSet;
+		private Statement statement;
+		private Connection connection;
+		private boolean closed = false;
+		
+		ClosingResultSetHandler(ResultSet rSet, Statement statement, Connection connection) {
+			this.rSet = rSet;
+			this.statement = statement;
+			this.connection = connection;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if("close".equals(method.getName()) && method.getParameterTypes().length == 0){
+				this.close();
+				return null;
+			}
+			try{
+				return method.invoke(this.rSet, args);
+			}
+			catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+		
+		private void close() throws SQLException {
+			if(this.closed){
+				return;
+			}
+			this.closed = true;
+			try{
+				this.rSet.close();
+				this.statement.close();
+			}
+			finally{
+				if(this.connection != null){
+					connectionPool.releaseConnection(this.connection);
+				}
+			}
 		}
-		catch (CommunicationsException e) {
-			reOpenConnectionIfClosed();
-			tableStatement = tableConnection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-			tableStatement.setFetchSize(Integer.MIN_VALUE);
-			rSet = tableStatement.executeQuery(query);
-		}	
-		//logger.info("query: " + query);
-		return rSet;
 	}
 	
 	/**
@@ -438,7 +699,7 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 			rSet = stmt.executeQuery();
 		}
 		catch (CommunicationsException e) {
-			reOpenConnectionIfClosed();
+			validateConnections();
 			// Re-calling the execution will generate a MySQLNonTransientConnectionException
 			// Those exceptions are catched in each functions to re-execute the query correctly.
 			rSet = stmt.executeQuery();
@@ -451,7 +712,7 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	 */
 	protected PreparedStatement prepareSQLStatement(String query){
 		try {
-			return tableConnection.prepareStatement(query);
+			return this.getStatementConnection().prepareStatement(query);
 		}
 		catch (SQLException e) {
 			logger.error("** PROBLEM ** Cannot open prepared statement for query: "+query+" of the table "+ this.getTableSQLName() +". Null returned.", e);
@@ -460,21 +721,25 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	}
 	
 	/**
-	 * Explicitly closes the generic statement of the Table.
+	 * Replaces the DB connections of the current thread which do not answer to a validation query anymore
+	 * by new connections of the pool. The prepared statements of the replaced connections are reopened 
+	 * by the DAOs when they get a MySQLNonTransientConnectionException.
 	 */
-	protected void closeTableGenericStatement() throws SQLException {
-		tableStatement.close();
-	}
-		
-	/**
-	 * Reopens the DB connection if closed and reopens all the prepared statement for all instances of sub-classes.
-	 */
-	private static void reOpenConnectionIfClosed(){
+	private static synchronized void validateConnections(){
 		try{
-			if (tableConnection.isClosed()){
-				tableConnection = DriverManager.getConnection(DATABASE_CONNECTION_STRING, DATABASE_USER, DATABASE_PASSWORD);
+			if (!ConnectionPool.isValid(tableConnection)){
+				if(tableConnection != null){
+					connectionPool.invalidateConnection(tableConnection);
+				}
+				tableConnection = connectionPool.getConnection();
 				logger.info("\t[SQL Connection just reopenned.]");
 			}
+			Connection connection = resourceConnection.get();
+			if (connection != null && !ConnectionPool.isValid(connection)){
+				connectionPool.invalidateConnection(connection);
+				resourceConnection.set(connectionPool.getConnection());
+				logger.info("\t[SQL resource connection just reopenned.]");
+			}
 		}
 		catch(SQLException e){
 			logger.error("** PROBLEM ** Cannot create connection to database " + DATABASE_CONNECTION_STRING, e);
@@ -487,8 +752,8 @@ public abstract class AbstractObrDao implements DaoFactory, StringHelper{
 	private boolean exist(String tableName) {
 		boolean exist;
 		try{
-			DatabaseMetaData dmd = tableConnection.getMetaData();
-			ResultSet tables = dmd.getTables(tableConnection.getCatalog(), null, tableName, null);
+			DatabaseMetaData dmd = getConnection().getMetaData();
+			ResultSet tables = dmd.getTables(getConnection().getCatalog(), null, tableName, null);
 			exist = tables.next();
 			tables.close();
 		}
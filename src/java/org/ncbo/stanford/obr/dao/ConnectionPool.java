@@ -0,0 +1,245 @@
+package org.ncbo.stanford.obr.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class is a bounded pool of DB connections used by {@link AbstractObrDao}.
+ * A connection taken from the pool is validated with a query before being returned, so a connection
+ * closed by the server (e.g. after wait_timeout) is replaced by a new one.
+ * When all the connections are in use, the caller waits until one is released.
+ *
+ * The pool keeps metrics on its use: active and idle connections, number of borrows and
+ * time spent waiting for a connection.
+ */
+public class ConnectionPool {
+
+	// Logger for this class
+	private static Logger logger = Logger.getLogger(ConnectionPool.class);
+
+	private static final String VALIDATION_QUERY = "SELECT 1";
+
+	private String url;
+	private String user;
+	private String password;
+	private int maxSize;
+	private long waitTimeout;
+
+	// Connections available in the pool (most recently released first)
+	private LinkedList<Connection> idleConnections = new LinkedList<Connection>();
+	private int nbActive = 0;
+
+	// Metrics
+	private long nbBorrow = 0;
+	private long nbWait = 0;
+	private long totalWaitTime = 0;
+	private long maxWaitTime = 0;
+	private long nbInvalid = 0;
+
+	/**
+	 * @param driver JDBC driver class name
+	 * @param url JDBC url of the database
+	 * @param user
+	 * @param password
+	 * @param maxSize maximum number of connections opened at the same time
+	 * @param waitTimeout maximum time (in ms) to wait for a connection
+	 */
+	public ConnectionPool(String driver, String url, String user, String password, int maxSize, long waitTimeout) {
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.maxSize = Math.max(1, maxSize);
+		this.waitTimeout = waitTimeout;
+		try{
+			Class.forName(driver).newInstance();
+		}
+		catch (Exception e) {
+			logger.error("** PROBLEM ** Cannot load JDBC driver " + driver, e);
+		}
+	}
+
+	/**
+	 * Returns a valid connection, opening a new one if no idle connection is available and
+	 * the pool is not full, or waiting for a connection to be released otherwise.
+	 * The connection must be given back with {@link #releaseConnection(Connection)}.
+	 *
+	 * @throws SQLException if no connection can be opened or none is released before the wait timeout
+	 */
+	public Connection getConnection() throws SQLException {
+		Connection connection = null;
+		synchronized (this) {
+			long waitStart = System.currentTimeMillis();
+			boolean waited = false;
+			while(this.idleConnections.isEmpty() && this.nbActive >= this.maxSize){
+				long remaining = this.waitTimeout - (System.currentTimeMillis() - waitStart);
+				if(remaining <= 0){
+					throw new SQLException("Timeout waiting for a DB connection (" + this.getStatistics() + ")");
+				}
+				waited = true;
+				try{
+					this.wait(remaining);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a DB connection.");
+				}
+			}
+			if(waited){
+				long waitTime = System.currentTimeMillis() - waitStart;
+				this.nbWait++;
+				this.totalWaitTime += waitTime;
+				this.maxWaitTime = Math.max(this.maxWaitTime, waitTime);
+			}
+			if(!this.idleConnections.isEmpty()){
+				connection = this.idleConnections.removeFirst();
+			}
+			this.nbActive++;
+			this.nbBorrow++;
+		}
+		// Validation and opening done outside of the lock
+		try{
+			if(connection != null && !isValid(connection)){
+				synchronized (this) {
+					this.nbInvalid++;
+				}
+				closeQuietly(connection);
+				connection = null;
+			}
+			if(connection == null){
+				connection = DriverManager.getConnection(this.url, this.user, this.password);
+			}
+		}
+		catch (SQLException e) {
+			this.discard();
+			throw e;
+		}
+		return connection;
+	}
+
+	/**
+	 * Gives back a connection taken from the pool.
+	 */
+	public void releaseConnection(Connection connection) {
+		boolean closed;
+		try{
+			closed = connection.isClosed();
+		}
+		catch (SQLException e) {
+			closed = true;
+		}
+		synchronized (this) {
+			this.nbActive--;
+			if(!closed){
+				this.idleConnections.addFirst(connection);
+			}
+			this.notify();
+		}
+	}
+
+	/**
+	 * Closes a connection taken from the pool which is not usable anymore.
+	 */
+	public void invalidateConnection(Connection connection) {
+		closeQuietly(connection);
+		synchronized (this) {
+			this.nbInvalid++;
+		}
+		this.discard();
+	}
+
+	/**
+	 * Returns true if the given connection is open and answers to the validation query.
+	 */
+	public static boolean isValid(Connection connection) {
+		if(connection == null){
+			return false;
+		}
+		Statement statement = null;
+		try{
+			if(connection.isClosed()){
+				return false;
+			}
+			statement = connection.createStatement();
+			statement.execute(VALIDATION_QUERY);
+			return true;
+		}
+		catch (SQLException e) {
+			return false;
+		}
+		finally{
+			if(statement != null){
+				try{
+					statement.close();
+				}
+				catch (SQLException e) {
+					// The connection is not usable
+				}
+			}
+		}
+	}
+
+	private synchronized void discard() {
+		this.nbActive--;
+		this.notify();
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try{
+			connection.close();
+		}
+		catch (SQLException e) {
+			// Already closed by the server
+		}
+	}
+
+	public synchronized int getNumberOfActiveConnections() {
+		return this.nbActive;
+	}
+
+	public synchronized int getNumberOfIdleConnections() {
+		return this.idleConnections.size();
+	}
+
+	/**
+	 * Returns the total time (in ms) spent waiting for a connection.
+	 */
+	public synchronized long getTotalWaitTime() {
+		return this.totalWaitTime;
+	}
+
+	/**
+	 * Returns the maximum number of connections opened at the same time.
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * Returns a description of the use of the pool.
+	 */
+	public synchronized String getStatistics() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("active: ");
+		sb.append(this.nbActive);
+		sb.append(", idle: ");
+		sb.append(this.idleConnections.size());
+		sb.append(", max: ");
+		sb.append(this.maxSize);
+		sb.append(", borrowed: ");
+		sb.append(this.nbBorrow);
+		sb.append(", waits: ");
+		sb.append(this.nbWait);
+		sb.append(", total wait time: ");
+		sb.append(this.totalWaitTime);
+		sb.append(" ms, max wait time: ");
+		sb.append(this.maxWaitTime);
+		sb.append(" ms, invalid connections: ");
+		sb.append(this.nbInvalid);
+		return sb.toString();
+	}
+}
@@ -3,8 +3,11 @@ package org.ncbo.stanford.obr.dao;
 import org.ncbo.stanford.obr.dao.context.ContexDao;
 import org.ncbo.stanford.obr.dao.dictionary.DictionaryDao;
 import org.ncbo.stanford.obr.dao.execution.ExecutionDao;
+import org.ncbo.stanford.obr.dao.execution.WorkflowStageDao;
+import org.ncbo.stanford.obr.dao.execution.WorkflowWatermarkDao;
 import org.ncbo.stanford.obr.dao.obs.concept.ConceptDao;
 import org.ncbo.stanford.obr.dao.obs.map.MapDao;
+import org.ncbo.stanford.obr.dao.obs.map.MapPartitionDao;
 import org.ncbo.stanford.obr.dao.obs.ontology.OntologyDao;
 import org.ncbo.stanford.obr.dao.obs.relation.RelationDao;
 import org.ncbo.stanford.obr.dao.obs.semantic.LSemanticTypeDao;
@@ -41,6 +44,9 @@ public interface DaoFactory {
 	/** Singleton data access object for mapping table. */
 	public static final MapDao mapDao = MapDao.getInstance();
 	
+	/** Singleton data access object for mapping partition table. */
+	public static final MapPartitionDao mapPartitionDao = MapPartitionDao.getInstance();
+	
 	/** Singleton data access object for relation table. */
 	public static final RelationDao relationDao = RelationDao.getInstance();
 	
@@ -64,5 +70,11 @@ public interface DaoFactory {
 	
 	/** Singleton data access object for obr execution table. */
 	public static final ExecutionDao executionDao = ExecutionDao.getInstance();
+	
+	/** Singleton data access object for obr workflow stage table. */
+	public static final WorkflowStageDao workflowStageDao = WorkflowStageDao.getInstance();
+	
+	/** Singleton data access object for obr workflow watermark table. */
+	public static final WorkflowWatermarkDao workflowWatermarkDao = WorkflowWatermarkDao.getInstance();
 
 }
@@ -0,0 +1,234 @@
+package org.ncbo.stanford.obr.dao;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+import org.ncbo.stanford.obr.util.MessageUtils;
+import org.ncbo.stanford.obr.util.StringIntHashMap;
+
+/**
+ * This class resolves the local ids used by the resource access tools (local_concept_id, context name,
+ * local_element_id) into the ids of the OBR tables, so that the annotation tables are populated with
+ * resolved ids instead of sub queries on the concept, context and element tables for each row.
+ *
+ * <p>The concept ids and the context ids are loaded into compact in-memory maps the first time they are used.
+ * The element ids are kept in a LRU cache, the other ones being read from the element table of the resource.
+ * All the maps share the memory budget given by the property obr.resolver.memory.budget (in MB):
+ * if the concept ids do not fit in 3/4 of the budget, the missing concepts are read from the concept table.
+ *
+ * <p>The resolver must be cleared with {@link #clear()} when the OBS slave tables are populated.
+ */
+public class LocalIdResolver implements DaoFactory {
+
+	// Logger for this class
+	private static Logger logger = Logger.getLogger(LocalIdResolver.class);
+
+	// Value returned by the maps for an unknown key
+	private static final int UNKNOWN_ID = -2;
+	// Estimated size in bytes of an entry of the element cache in addition of its key
+	private static final int ELEMENT_ENTRY_OVERHEAD = 48;
+
+	private long conceptBudget;
+	private long elementBudget;
+
+	// local_concept_id -> id (-1 for a concept not in the concept table)
+	private StringIntHashMap conceptIDs = null;
+	// True if all the concepts have been loaded
+	private boolean allConceptsLoaded = false;
+	// context name -> id
+	private StringIntHashMap contextIDs = null;
+	// resourceID + tab + local_element_id -> id, in access order
+	private LinkedHashMap<String, Integer> elementIDs = new LinkedHashMap<String, Integer>(1024, 0.75f, true);
+	private long elementBytes = 0;
+
+	// Metrics
+	private long conceptHits = 0;
+	private long conceptMisses = 0;
+	private long contextHits = 0;
+	private long contextMisses = 0;
+	private long elementHits = 0;
+	private long elementMisses = 0;
+
+	/**
+	 * Reads the id of an element in the element table of a resource.
+	 */
+	public interface ElementIDLookup {
+
+		/**
+		 * Returns the id of the element with the given local_element_id, -1 if there is no such element.
+		 */
+		int getElementID(String localElementID);
+	}
+
+	private LocalIdResolver() {
+		long budget = 256;
+		try{
+			budget = Long.parseLong(MessageUtils.getMessage("obr.resolver.memory.budget").trim());
+		}catch (Exception e) {
+			// default budget
+		}
+		budget = budget * 1024 * 1024;
+		this.conceptBudget = budget / 4 * 3;
+		this.elementBudget = budget - this.conceptBudget;
+	}
+
+	private static class LocalIdResolverHolder {
+		private final static LocalIdResolver LOCAL_ID_RESOLVER_INSTANCE = new LocalIdResolver();
+	}
+
+	/**
+	 * Returns a LocalIdResolver object by creating one if a singleton not already exists.
+	 */
+	public static LocalIdResolver getInstance(){
+		return LocalIdResolverHolder.LOCAL_ID_RESOLVER_INSTANCE;
+	}
+
+	/**
+	 * Returns the id of the concept with the given local_concept_id, -1 if there is no such concept.
+	 */
+	public int getConceptID(String localConceptID){
+		synchronized (this) {
+			if(this.conceptIDs == null){
+				this.loadConceptIDs();
+			}
+			int conceptID = this.conceptIDs.get(localConceptID, UNKNOWN_ID);
+			if(conceptID != UNKNOWN_ID){
+				this.conceptHits++;
+				return conceptID;
+			}
+			this.conceptMisses++;
+			if(this.allConceptsLoaded){
+				return -1;
+			}
+		}
+		int conceptID = conceptDao.getConceptID(localConceptID);
+		synchronized (this) {
+			if(this.conceptIDs.getMemorySize() + StringIntHashMap.getEntryMemorySize(localConceptID) < this.conceptBudget){
+				this.conceptIDs.put(localConceptID, conceptID);
+			}
+		}
+		return conceptID;
+	}
+
+	/**
+	 * Returns the id of the context with the given name, -1 if there is no such context.
+	 */
+	public int getContextID(String contextName){
+		synchronized (this) {
+			if(this.contextIDs == null){
+				this.contextIDs = new StringIntHashMap(256);
+				contextTableDao.loadContextIDs(this.contextIDs);
+			}
+			int contextID = this.contextIDs.get(contextName, UNKNOWN_ID);
+			if(contextID != UNKNOWN_ID){
+				this.contextHits++;
+				return contextID;
+			}
+			this.contextMisses++;
+		}
+		// The context may have been added after the loading of the contexts
+		int contextID = contextTableDao.getContextIDByContextName(contextName);
+		if(contextID != -1){
+			synchronized (this) {
+				this.contextIDs.put(contextName, contextID);
+			}
+		}
+		return contextID;
+	}
+
+	/**
+	 * Returns the id of the element of the given resource with the given local_element_id,
+	 * -1 if there is no such element. The element is read with the given lookup if it is not in the cache.
+	 */
+	public int getElementID(String resourceID, String localElementID, ElementIDLookup lookup){
+		String key = resourceID + "\t" + localElementID;
+		synchronized (this) {
+			Integer elementID = this.elementIDs.get(key);
+			if(elementID != null){
+				this.elementHits++;
+				return elementID;
+			}
+			this.elementMisses++;
+		}
+		// Unknown elements are not cached as they may be added later
+		int elementID = lookup.getElementID(localElementID);
+		if(elementID != -1){
+			synchronized (this) {
+				if(this.elementIDs.put(key, elementID) == null){
+					this.elementBytes += StringIntHashMap.getEntryMemorySize(key) + ELEMENT_ENTRY_OVERHEAD;
+				}
+				// Removes the least recently used elements
+				Iterator<String> keys = this.elementIDs.keySet().iterator();
+				while(this.elementBytes > this.elementBudget && keys.hasNext()){
+					this.elementBytes -= StringIntHashMap.getEntryMemorySize(keys.next()) + ELEMENT_ENTRY_OVERHEAD;
+					keys.remove();
+				}
+			}
+		}
+		return elementID;
+	}
+
+	/**
+	 * Removes the elements of the given resource from the cache.
+	 */
+	public synchronized void clearElementIDs(String resourceID){
+		String prefix = resourceID + "\t";
+		Iterator<String> keys = this.elementIDs.keySet().iterator();
+		while(keys.hasNext()){
+			String key = keys.next();
+			if(key.startsWith(prefix)){
+				this.elementBytes -= StringIntHashMap.getEntryMemorySize(key) + ELEMENT_ENTRY_OVERHEAD;
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * Releases all the ids. They are loaded again when they are used.
+	 */
+	public synchronized void clear(){
+		this.conceptIDs = null;
+		this.allConceptsLoaded = false;
+		this.contextIDs = null;
+		this.elementIDs.clear();
+		this.elementBytes = 0;
+	}
+
+	private void loadConceptIDs(){
+		long start = System.currentTimeMillis();
+		this.conceptIDs = new StringIntHashMap(1024 * 1024);
+		this.allConceptsLoaded = conceptDao.loadConceptIDs(this.conceptIDs, this.conceptBudget);
+		logger.info("\t" + this.conceptIDs.size() + " concept ids loaded in memory (" + (this.conceptIDs.getMemorySize() / (1024 * 1024))
+				+ " MB" + (this.allConceptsLoaded ? "" : ", memory budget reached") + ") in " + (System.currentTimeMillis() - start) + " ms.");
+	}
+
+	/**
+	 * Returns a description of the use of the resolver (number of ids in memory, hits and misses).
+	 */
+	public synchronized String getStatistics() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("concepts: ");
+		sb.append(this.conceptIDs == null ? 0 : this.conceptIDs.size());
+		sb.append(this.allConceptsLoaded ? " (all)" : "");
+		sb.append(", hits: ");
+		sb.append(this.conceptHits);
+		sb.append(", misses: ");
+		sb.append(this.conceptMisses);
+		sb.append(" - contexts: ");
+		sb.append(this.contextIDs == null ? 0 : this.contextIDs.size());
+		sb.append(", hits: ");
+		sb.append(this.contextHits);
+		sb.append(", misses: ");
+		sb.append(this.contextMisses);
+		sb.append(" - elements: ");
+		sb.append(this.elementIDs.size());
+		sb.append(" (");
+		sb.append(this.elementBytes / 1024);
+		sb.append(" KB), hits: ");
+		sb.append(this.elementHits);
+		sb.append(", misses: ");
+		sb.append(this.elementMisses);
+		return sb.toString();
+	}
+}
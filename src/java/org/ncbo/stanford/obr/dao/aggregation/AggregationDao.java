@@ -1,5 +1,9 @@
 package org.ncbo.stanford.obr.dao.aggregation;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -11,13 +15,21 @@ import obs.common.utils.ExecutionTimer;
 import obs.obr.populate.ObrWeight;
 
 import org.ncbo.stanford.obr.dao.AbstractObrDao;
+import org.ncbo.stanford.obr.dao.LocalIdResolver;
 import org.ncbo.stanford.obr.dao.annotation.DirectAnnotationDao;
 import org.ncbo.stanford.obr.dao.annotation.expanded.IsaExpandedAnnotationDao;
 import org.ncbo.stanford.obr.dao.annotation.expanded.MapExpandedAnnotationDao;
 import org.ncbo.stanford.obr.dao.element.ElementDao;
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
 import org.ncbo.stanford.obr.enumeration.ResourceType;
 import org.ncbo.stanford.obr.enumeration.WorkflowStatusEnum;
+import org.ncbo.stanford.obr.util.FileResourceParameters;
+import org.ncbo.stanford.obr.util.IsaClosureGraph;
+import org.ncbo.stanford.obr.util.MappingIndex;
 import org.ncbo.stanford.obr.util.MessageUtils;
+import org.ncbo.stanford.obr.util.aggregation.AggregationSorter;
+import org.ncbo.stanford.obr.util.aggregation.ConceptScoreAccumulator;
+import org.ncbo.stanford.obr.util.aggregation.TopKSelector;
 
 import com.mysql.jdbc.exceptions.MySQLIntegrityConstraintViolationException;
 import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
@@ -42,8 +54,25 @@ public class AggregationDao extends AbstractObrDao {
 	private static final String TABLE_SUFFIX = MessageUtils.getMessage("obr.aggregation.table.suffix"); // element Index Table
 	private static final String WORKFLOW_TABLE_SUFFIX = MessageUtils.getMessage("obr.aggregation.workflow.table.suffix");
 	
+	// True to aggregate the annotations and sort the aggregation table in Java (see streamingAggregation)
+	private static final boolean STREAMING_AGGREGATION = Boolean.parseBoolean(MessageUtils.getMessage("obr.aggregation.streaming"));
+	// Number of aggregated annotations sorted in memory, the other ones being merged from sorted files
+	private static final int SORT_BUFFER_SIZE = getIntegerProperty("obr.aggregation.sort.buffer.size", 4000000);
+	// True to merge in the sorted table only the elements aggregated since the last sort (see sortAggregation)
+	private static final boolean INCREMENTAL_AGGREGATION = Boolean.parseBoolean(MessageUtils.getMessage("obr.aggregation.incremental"));
+	// Number of best elements kept for each concept in the top-K table (0 for no top-K table)
+	private static final int TOP_K = getIntegerProperty("obr.aggregation.topk", 0);
+	
 	private PreparedStatement addEntryStatement;	 
 	private PreparedStatement deleteEntriesFromOntologyStatement;
+	private PreparedStatement getElementIDStatement;
+	
+	// Reads the elements missing in the cache of the resolver
+	private LocalIdResolver.ElementIDLookup elementIDLookup = new LocalIdResolver.ElementIDLookup() {
+		public int getElementID(String localElementID) {
+			return AggregationDao.this.getElementID(localElementID);
+		}
+	};
 	 
 	/**
 	 * Creates a new AggregationDao with a given resourceID.
@@ -64,6 +93,27 @@ public class AggregationDao extends AbstractObrDao {
 		return OBR_PREFIX + this.resourceID.toLowerCase() + TABLE_SUFFIX;
 	}
 	
+	/**
+	 * Table of the elements aggregated since the last sort of the aggregation table.
+	 */
+	private String getChangedElementTableSQLName(){
+		return this.getTableSQLName() + "_changed";
+	}
+	
+	/**
+	 * Table of the dictionary and weights used by the last complete sort of the aggregation table.
+	 */
+	private String getSortStateTableSQLName(){
+		return this.getSortedTableSQLName() + "_state";
+	}
+	
+	/**
+	 * Table of the TOP_K best aggregated annotations of each concept, sorted as the sorted aggregation table.
+	 */
+	private String getTopKTableSQLName(){
+		return this.getSortedTableSQLName() + "_topk";
+	}
+	
 	@Override
 	protected String creationQuery(){
 		return "CREATE TABLE " + getTableSQLName() +" (" +
@@ -88,6 +138,7 @@ public class AggregationDao extends AbstractObrDao {
 		super.openPreparedStatements();
 		this.openAddEntryStatement();		 
 		this.openDeleteEntriesFromOntologyStatement(); 
+		this.openGetElementIDStatement();
 	}
 
 	@Override
@@ -95,6 +146,7 @@ public class AggregationDao extends AbstractObrDao {
 		super.closePreparedStatements();
 		this.addEntryStatement.close();		 
 		this.deleteEntriesFromOntologyStatement.close();		 
+		this.getElementIDStatement.close();
 	}
 	
 	/****************************************** FUNCTIONS ON THE TABLE ***************************/ 
@@ -104,17 +156,8 @@ public class AggregationDao extends AbstractObrDao {
 		StringBuffer queryb = new StringBuffer();
 		queryb.append("INSERT INTO ");
 		queryb.append(this.getTableSQLName());
-		queryb.append(" (element_id, concept_id, score) VALUES (");
-			// sub query to get the elementID from the localElementID
-			queryb.append("(SELECT id FROM ");
-			queryb.append(ElementDao.name(this.resourceID));
-			queryb.append(" WHERE local_element_id=?)");
-		queryb.append("	,");
-			// sub query to get the conceptID from the localConceptID
-			queryb.append("(SELECT id FROM ");
-			queryb.append(conceptDao.getTableSQLName());
-			queryb.append(" WHERE local_concept_id=?)");
-		queryb.append("	,?);");
+		// The local ids are resolved by the LocalIdResolver
+		queryb.append(" (element_id, concept_id, score) VALUES (?,?,?);");
 		this.addEntryStatement = this.prepareSQLStatement(queryb.toString());
 	}
 
@@ -124,9 +167,15 @@ public class AggregationDao extends AbstractObrDao {
 	 */
 	public boolean addEntry(AggregationAnnotation entry){
 		boolean inserted = false;
+		int elementID = localIdResolver.getElementID(this.resourceID, entry.getLocalElementId(), this.elementIDLookup);
+		int conceptID = localIdResolver.getConceptID(entry.getLocalConceptID());
+		if(elementID == -1 || conceptID == -1){
+			// Unknown element or concept
+			return false;
+		}
 		try {
-			this.addEntryStatement.setString(1, entry.getLocalElementId());
-			this.addEntryStatement.setString(2, entry.getLocalConceptID());
+			this.addEntryStatement.setInt(1, elementID);
+			this.addEntryStatement.setInt(2, conceptID);
 			this.addEntryStatement.setFloat(3, entry.getScore());
 			this.executeSQLUpdate(this.addEntryStatement);
 			inserted = true;
@@ -145,6 +194,37 @@ public class AggregationDao extends AbstractObrDao {
 		return inserted;	
 	}
 
+	private void openGetElementIDStatement(){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT id FROM ");
+		queryb.append(ElementDao.name(this.resourceID));
+		queryb.append(" WHERE local_element_id=?;");
+		this.getElementIDStatement = this.prepareSQLStatement(queryb.toString());
+	}
+	
+	/**
+	 * Returns the id of the element with the given local_element_id from the element table, -1 if there is no such element.
+	 */
+	private int getElementID(String localElementID){
+		int elementID = -1;
+		try {
+			this.getElementIDStatement.setString(1, localElementID);
+			ResultSet rSet = this.executeSQLQuery(this.getElementIDStatement);
+			if(rSet.next()){
+				elementID = rSet.getInt(1);
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			this.openGetElementIDStatement();
+			return this.getElementID(localElementID);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the id of element " + localElementID + " from " + ElementDao.name(this.resourceID) + ". -1 returned.", e);
+		}
+		return elementID;
+	}
+
 	// ********************************* AGGREGATION FUNCTIONS  *****************************************************/
 	
 	/**
@@ -152,13 +232,45 @@ public class AggregationDao extends AbstractObrDao {
 	 * Returns the number of annotations added to the table. 
 	 */
 	public long aggregation(ObrWeight weights){
+		return this.aggregation(weights, -1, -1);
+	}
+	
+	/**
+	 * Index the content of _DAT and _EAT in the table by computing the right score.
+	 * If fromElementID is not negative, the annotations of the elements between the watermarks fromElementID (exclusive) 
+	 * and toElementID (inclusive) are aggregated instead of the ones selected by their workflow_status: the aggregated 
+	 * annotations left in this range by an interrupted aggregation are first removed, and only the workflow_status of
+	 * the direct annotations of the range is updated (the expanded annotations of the range are created with the 
+	 * workflow_status {@code INDEXING_DONE}).
+	 * 
+	 * @param fromElementID watermark of the last element aggregated, or -1 to use the workflow_status 
+	 * @param toElementID watermark of the last element to aggregate
+	 * @return the number of annotations added to the table. 
+	 */
+	public long aggregation(ObrWeight weights, long fromElementID, long toElementID){
+		if(fromElementID >= 0){
+			try{
+				this.executeSQLUpdate("DELETE FROM " + this.getTableSQLName() + " WHERE " 
+						+ pendingCondition("", null, fromElementID, toElementID) + ";");
+			}
+			catch(SQLException e){
+				logger.error("** PROBLEM ** Cannot delete the interrupted aggregation from " + this.getTableSQLName(), e);
+				return this.numberOfEntry();
+			}
+		}
+		if(INCREMENTAL_AGGREGATION){
+			this.recordChangedElements(fromElementID, toElementID);
+		}
+		if(STREAMING_AGGREGATION){
+			return this.streamingAggregation(weights, fromElementID, toElementID);
+		}
 		ExecutionTimer timer = new ExecutionTimer();	
 		// Load obr_context table in memeory
 		contextTableDao.loadTableIntoMemory(this.resourceID); 
 		
 		long nbAnnotation = 0;
 		// Adds the direct annotations done to aggregation table 
-		String directAnnotationAggregationQuery = aggregationQueryForDirectAnnotations(weights);
+		String directAnnotationAggregationQuery = aggregationQueryForDirectAnnotations(weights, fromElementID, toElementID);
 		timer.start();
 		try{
 			nbAnnotation = this.executeSQLUpdate(directAnnotationAggregationQuery);
@@ -175,8 +287,8 @@ public class AggregationDao extends AbstractObrDao {
 		updatingQueryb1.append(DirectAnnotationDao.name(this.resourceID));
 		updatingQueryb1.append(" SET workflow_status = ");
 		updatingQueryb1.append(WorkflowStatusEnum.INDEXING_DONE.getStatus());
-		updatingQueryb1.append(" WHERE workflow_status = ");
-		updatingQueryb1.append(WorkflowStatusEnum.MAPPING_DONE.getStatus());
+		updatingQueryb1.append(" WHERE ");
+		updatingQueryb1.append(pendingCondition("", WorkflowStatusEnum.MAPPING_DONE, fromElementID, toElementID));
 		
 		timer.reset();
 		timer.start();
@@ -192,7 +304,7 @@ public class AggregationDao extends AbstractObrDao {
 				+ " in :" + timer.millisecondsToTimeString(timer.duration()));
 		 
 		// Adds to _aggregation the isa expanded annotations.
-		String isaExpansionAggregationQuery = aggregationQueryForIsaExpandedAnnotations(weights);
+		String isaExpansionAggregationQuery = aggregationQueryForIsaExpandedAnnotations(weights, fromElementID, toElementID);
 		timer.reset();
 		timer.start();
 		try{
@@ -204,30 +316,13 @@ public class AggregationDao extends AbstractObrDao {
 		timer.end();
 		logger.info("\t" +nbAnnotation + " annotations aggregated with isa expanded annotations in : " + timer.millisecondsToTimeString(timer.duration()) );
 
-		// Switches the indexingDone flags on EAT
-		StringBuffer updatingQueryb2 = new StringBuffer();
-		updatingQueryb2.append("UPDATE ");
-		updatingQueryb2.append(IsaExpandedAnnotationDao.name(this.resourceID));
-		updatingQueryb2.append(" SET workflow_status = ");
-		updatingQueryb2.append(WorkflowStatusEnum.INDEXING_DONE.getStatus());
-		updatingQueryb2.append(" WHERE workflow_status = ");
-		updatingQueryb2.append(WorkflowStatusEnum.INDEXING_NOT_DONE.getStatus());
-		timer.reset();
-		timer.start();
-		try{
-			 nbAnnotation = this.executeSQLUpdate(updatingQueryb2.toString());
-			 }
-		catch(SQLException e){
-			logger.error("** PROBLEM ** Cannot switch indexingDone flags on _EAT.", e);
+		// Switches the indexingDone flags on EAT (the expanded annotations of a watermark range are already flagged)
+		if(fromElementID < 0){
+			this.switchWorkflowStatus(IsaExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE);
 		}
-		timer.end();
-		logger.info("\tworkflow_status updated to "+ WorkflowStatusEnum.INDEXING_DONE.getStatus()+ " in table " 
-				+ IsaExpandedAnnotationDao.name(this.resourceID)
-				+ " in : " + timer.millisecondsToTimeString(timer.duration()));
-
 		
 		// Adds to _aggregation the mapping expanded annotations.
-		String mappingExpansionAggregationQuery = aggregationQueryForMapExpandedAnnotations(weights);
+		String mappingExpansionAggregationQuery = aggregationQueryForMapExpandedAnnotations(weights, fromElementID, toElementID);
 		timer.reset();
 		timer.start();
 		try{
@@ -241,34 +336,184 @@ public class AggregationDao extends AbstractObrDao {
 				+ timer.millisecondsToTimeString(timer.duration()));
 		
 		// Switches the workflow_status flags on mapping annotation
-		StringBuffer updatingQueryb3 = new StringBuffer();
-		updatingQueryb3.append("UPDATE ");
-		updatingQueryb3.append(MapExpandedAnnotationDao.name(this.resourceID));
-		updatingQueryb3.append(" SET workflow_status = ");
-		updatingQueryb3.append(WorkflowStatusEnum.INDEXING_DONE.getStatus());
-		updatingQueryb3.append(" WHERE workflow_status = ");
-		updatingQueryb3.append(WorkflowStatusEnum.INDEXING_NOT_DONE.getStatus());
-		timer.reset();
-		timer.start();
-		try{
-			 nbAnnotation = this.executeSQLUpdate(updatingQueryb3.toString());			 
-		  }
-		catch(SQLException e){
-			logger.error("** PROBLEM ** Cannot switch workflow_status flags on " + MapExpandedAnnotationDao.name(this.resourceID), e);
-		} 
-		timer.end();
-		logger.info("\tworkflow_status updated to "+ WorkflowStatusEnum.INDEXING_DONE.getStatus()+ " in table " 
-				+ MapExpandedAnnotationDao.name(this.resourceID) 
-				+ " in  : " + timer.millisecondsToTimeString(timer.duration()));  		
+		if(fromElementID < 0){
+			this.switchWorkflowStatus(MapExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE);
+		}
 		return this.numberOfEntry();
 	} 
 	
 	/**
+	 * Index the content of _DAT and _EAT in the table like {@link #aggregation(ObrWeight, long, long)}, and adds to 
+	 * the given counter the number of aggregated annotations created for each ontology. The aggregated annotations 
+	 * of the elements with annotations not yet aggregated are counted before and after the aggregation, 
+	 * so only these elements are scanned.
 	 * 
+	 * @param counter counter of the new annotations of the workflow, or null
+	 * @return the number of annotations added to the table. 
+	 */
+	public long aggregation(ObrWeight weights, long fromElementID, long toElementID, OntologyStatisticsCounter counter){
+		if(counter == null){
+			return this.aggregation(weights, fromElementID, toElementID);
+		}
+		String elementTableName = this.getTableSQLName() + "_stats";
+		try{
+			this.executeSQLUpdate("DROP TEMPORARY TABLE IF EXISTS " + elementTableName + ";");
+			this.executeSQLUpdate("CREATE TEMPORARY TABLE " + elementTableName + " (element_id INT(11) UNSIGNED NOT NULL PRIMARY KEY) ENGINE=MyISAM;");
+			this.executeSQLUpdate(elementsToResetQuery(elementTableName, DirectAnnotationDao.name(this.resourceID), 
+					pendingCondition("", WorkflowStatusEnum.MAPPING_DONE, fromElementID, toElementID)));
+			if(fromElementID < 0){
+				this.executeSQLUpdate(elementsToResetQuery(elementTableName, IsaExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE));
+				this.executeSQLUpdate(elementsToResetQuery(elementTableName, MapExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE));
+			}
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot record the elements to aggregate in " + elementTableName + ", statistics will be computed again.", e);
+			counter.setIncomplete();
+			return this.aggregation(weights, fromElementID, toElementID);
+		}
+		this.countAggregatedStatistics(elementTableName, counter, -1);
+		long nbAnnotation = this.aggregation(weights, fromElementID, toElementID);
+		this.countAggregatedStatistics(elementTableName, counter, 1);
+		try{
+			this.executeSQLUpdate("DROP TEMPORARY TABLE " + elementTableName + ";");
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot drop the temporary table " + elementTableName, e);
+		}
+		return nbAnnotation;
+	}
+	
+	/**
+	 * Adds (sign 1) or subtracts (sign -1) to the counter the number of aggregated annotations of each ontology 
+	 * for the elements of the given table.
+	 */
+	private void countAggregatedStatistics(String elementTableName, OntologyStatisticsCounter counter, int sign){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT CT.ontology_id, COUNT(AGT.concept_id) FROM ");
+		queryb.append(elementTableName);
+		queryb.append(" AS PET, ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" AS AGT, ");
+		queryb.append(conceptDao.getMemoryTableSQLName());
+		queryb.append(" AS CT WHERE PET.element_id=AGT.element_id AND AGT.concept_id=CT.id GROUP BY CT.ontology_id;");
+		this.countStatistics(queryb.toString(), counter, new int[]{OntologyStatisticsCounter.AGGREGATED}, sign);
+	}
+	
+	/**
+	 * Resets the aggregation of the elements having annotations not yet aggregated.
+	 * An interrupted aggregation leaves some annotations of an element aggregated and the others not,
+	 * so the aggregated annotations of these elements are removed and all their annotations are flagged
+	 * again for aggregation (workflow_status {@code MAPPING_DONE} for DAT, {@code INDEXING_NOT_DONE} for the expanded
+	 * annotations). The next aggregation then computes the complete score of these elements.
+	 * 
+	 * @return number of elements reset
+	 */
+	public long resetInterruptedAggregation(){
+		String elementTableName = this.getTableSQLName() + "_reset";
+		long nbElement = 0;
+		try{
+			this.executeSQLUpdate("DROP TEMPORARY TABLE IF EXISTS " + elementTableName + ";");
+			this.executeSQLUpdate("CREATE TEMPORARY TABLE " + elementTableName + " (element_id INT(11) UNSIGNED NOT NULL PRIMARY KEY) ENGINE=MyISAM;");
+			// Elements with annotations not yet aggregated
+			this.executeSQLUpdate(elementsToResetQuery(elementTableName, DirectAnnotationDao.name(this.resourceID), WorkflowStatusEnum.MAPPING_DONE));
+			this.executeSQLUpdate(elementsToResetQuery(elementTableName, IsaExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE));
+			this.executeSQLUpdate(elementsToResetQuery(elementTableName, MapExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE));
+			
+			// Flags again the aggregated annotations of these elements
+			this.executeSQLUpdate(resetStatusQuery(elementTableName, DirectAnnotationDao.name(this.resourceID), WorkflowStatusEnum.MAPPING_DONE));
+			this.executeSQLUpdate(resetStatusQuery(elementTableName, IsaExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE));
+			this.executeSQLUpdate(resetStatusQuery(elementTableName, MapExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE));
+			
+			StringBuffer queryb = new StringBuffer();
+			queryb.append("DELETE AGT FROM ");
+			queryb.append(this.getTableSQLName());
+			queryb.append(" AGT, ");
+			queryb.append(elementTableName);
+			queryb.append(" RET WHERE AGT.element_id=RET.element_id;");
+			this.executeSQLUpdate(queryb.toString());
+			
+			ResultSet rSet = this.executeSQLQuery("SELECT COUNT(element_id) FROM " + elementTableName + ";");
+			if(rSet.next()){
+				nbElement = rSet.getLong(1);
+			}
+			rSet.close();
+			this.executeSQLUpdate("DROP TEMPORARY TABLE " + elementTableName + ";");
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot reset the interrupted aggregation on table " + this.getTableSQLName(), e);
+		}
+		return nbElement;
+	}
+	
+	private static String elementsToResetQuery(String elementTableName, String annotationTableName, WorkflowStatusEnum status){
+		return elementsToResetQuery(elementTableName, annotationTableName, "workflow_status=" + status.getStatus());
+	}
+	
+	private static String elementsToResetQuery(String elementTableName, String annotationTableName, String condition){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("INSERT IGNORE INTO ");
+		queryb.append(elementTableName);
+		queryb.append(" SELECT DISTINCT element_id FROM ");
+		queryb.append(annotationTableName);
+		queryb.append(" WHERE ");
+		queryb.append(condition);
+		queryb.append(";");
+		return queryb.toString();
+	}
+	
+	private static String resetStatusQuery(String elementTableName, String annotationTableName, WorkflowStatusEnum status){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("UPDATE ");
+		queryb.append(annotationTableName);
+		queryb.append(" ANT, ");
+		queryb.append(elementTableName);
+		queryb.append(" RET SET ANT.workflow_status=");
+		queryb.append(status.getStatus());
+		queryb.append(" WHERE ANT.element_id=RET.element_id AND ANT.workflow_status=");
+		queryb.append(WorkflowStatusEnum.INDEXING_DONE.getStatus());
+		queryb.append(";");
+		return queryb.toString();
+	}
+	
+	/**
+	 * Sorts the aggregation table into the sorted aggregation table.
+	 * If obr.aggregation.incremental is true and the sorted table was completely sorted with the same dictionary
+	 * and weights, only the aggregated annotations of the elements aggregated since the last sort are 
+	 * merged in the sorted table. 
+	 * 
+	 * @param resourceType
+	 * @param weights weights used for the aggregation
+	 * @param dictionaryID dictionary used for the annotations
+	 */
+	public boolean sortAggregation(ResourceType resourceType, ObrWeight weights, int dictionaryID){
+		String weightSignature = null;
+		if(INCREMENTAL_AGGREGATION){
+			weightSignature = this.getWeightSignature(weights);
+			if(this.isSortedTableUpToDate(dictionaryID, weightSignature)){
+				boolean merged = this.mergeChangedElements();
+				if(merged && TOP_K > 0){
+					this.topKAggregation();
+				}
+				return merged;
+			}
+			logger.info("\tDictionary or weights changed since the last sort, the aggregation table is completely sorted.");
+		}
+		boolean sorted = STREAMING_AGGREGATION ? this.streamingSortAggregation() : this.sortAggregation(resourceType);
+		if(sorted && INCREMENTAL_AGGREGATION){
+			this.saveSortState(dictionaryID, weightSignature);
+		}
+		if(sorted && TOP_K > 0){
+			this.topKAggregation();
+		}
+		return sorted;
+	}
+	
+	/**
+	 * Sorts the whole aggregation table with the sort_aggregation_table stored procedure.
 	 * 
 	 * @param resourceType
 	 */
-	public boolean sortAggregation(ResourceType resourceType){
+	private boolean sortAggregation(ResourceType resourceType){
 		try{
 			if(ResourceType.BIG== resourceType){
 				this.callStoredProcedure("sort_aggregation_table", this.getTableSQLName(), this.getSortedTableSQLName(), "1");
@@ -289,7 +534,7 @@ public class AggregationDao extends AbstractObrDao {
 	 * @param weights
 	 * @return
 	 */
-	private String aggregationQueryForDirectAnnotations(ObrWeight weights){
+	private String aggregationQueryForDirectAnnotations(ObrWeight weights, long fromElementID, long toElementID){
  
 		StringBuffer query = new StringBuffer();
 		query.append("INSERT INTO ");
@@ -309,13 +554,13 @@ public class AggregationDao extends AbstractObrDao {
 		query.append(termDao.getMemoryTableSQLName());
 		query.append(" TT ON DAT.term_id= TT.id, ");
 		query.append(contextTableDao.getMemoryTableSQLName());
-		query.append(" CXT WHERE DAT.context_id = CXT.id AND workflow_status= ");
-		query.append(WorkflowStatusEnum.MAPPING_DONE.getStatus());
+		query.append(" CXT WHERE DAT.context_id = CXT.id AND ");
+		query.append(pendingCondition("DAT.", WorkflowStatusEnum.MAPPING_DONE, fromElementID, toElementID));
 		query.append(" ON DUPLICATE KEY UPDATE score=score+@s ;");
 		return query.toString();
 	} 
 	 
-	private String aggregationQueryForIsaExpandedAnnotations(ObrWeight weights){
+	private String aggregationQueryForIsaExpandedAnnotations(ObrWeight weights, long fromElementID, long toElementID){
 		StringBuffer query = new StringBuffer();
 		query.append("INSERT INTO ");
 		query.append(this.getTableSQLName());
@@ -326,14 +571,14 @@ public class AggregationDao extends AbstractObrDao {
 		query.append(IsaExpandedAnnotationDao.name(this.resourceID));
 		query.append(" EAT, ");
 		query.append(contextTableDao.getMemoryTableSQLName());
-		query.append(" CXT WHERE EAT.context_id= CXT.id AND workflow_status=");
-		query.append(WorkflowStatusEnum.INDEXING_NOT_DONE.getStatus());
+		query.append(" CXT WHERE EAT.context_id= CXT.id AND ");
+		query.append(pendingCondition("EAT.", WorkflowStatusEnum.INDEXING_NOT_DONE, fromElementID, toElementID));
 		query.append(" ON DUPLICATE KEY UPDATE score=score+@s;");
 		
 		return query.toString();
 	}
 	
-	private String aggregationQueryForMapExpandedAnnotations(ObrWeight weights){
+	private String aggregationQueryForMapExpandedAnnotations(ObrWeight weights, long fromElementID, long toElementID){
 		StringBuffer query = new StringBuffer();
 		query.append("INSERT INTO ");
 		query.append(this.getTableSQLName());
@@ -343,12 +588,822 @@ public class AggregationDao extends AbstractObrDao {
 		query.append(MapExpandedAnnotationDao.name(this.resourceID));
 		query.append(" EAT, ");
 		query.append(contextTableDao.getMemoryTableSQLName());
-		query.append(" CXT WHERE EAT.context_id= CXT.id AND workflow_status=");
-		query.append(WorkflowStatusEnum.INDEXING_NOT_DONE.getStatus());
+		query.append(" CXT WHERE EAT.context_id= CXT.id AND ");
+		query.append(pendingCondition("EAT.", WorkflowStatusEnum.INDEXING_NOT_DONE, fromElementID, toElementID));
 		query.append(" ON DUPLICATE KEY UPDATE score=score+@s;");
 		return query.toString();
 	}
 		
+	// ********************************* INCREMENTAL SORT FUNCTIONS  *****************************************************/
+	
+	/**
+	 * Adds the elements having annotations not yet aggregated (or the elements of the watermark range if 
+	 * fromElementID is not negative) to the table of changed elements.
+	 */
+	private void recordChangedElements(long fromElementID, long toElementID){
+		String changedTableName = this.getChangedElementTableSQLName();
+		try{
+			this.executeSQLUpdate("CREATE TABLE IF NOT EXISTS " + changedTableName + " (element_id INT(11) UNSIGNED NOT NULL PRIMARY KEY) ENGINE=MyISAM;");
+			this.executeSQLUpdate(elementsToResetQuery(changedTableName, DirectAnnotationDao.name(this.resourceID), 
+					pendingCondition("", WorkflowStatusEnum.MAPPING_DONE, fromElementID, toElementID)));
+			if(fromElementID < 0){
+				this.executeSQLUpdate(elementsToResetQuery(changedTableName, IsaExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE));
+				this.executeSQLUpdate(elementsToResetQuery(changedTableName, MapExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE));
+			}
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot record the changed elements in " + changedTableName + ", the next sort is complete.", e);
+			this.resetSortState();
+		}
+	}
+	
+	/**
+	 * Replaces the aggregated annotations of the changed elements in the sorted table, 
+	 * then empties the table of changed elements.
+	 */
+	private boolean mergeChangedElements(){
+		ExecutionTimer timer = new ExecutionTimer();
+		timer.start();
+		String changedTableName = this.getChangedElementTableSQLName();
+		String sortedTableName = this.getSortedTableSQLName();
+		try{
+			StringBuffer deleteQuery = new StringBuffer();
+			deleteQuery.append("DELETE ST FROM ");
+			deleteQuery.append(sortedTableName);
+			deleteQuery.append(" ST, ");
+			deleteQuery.append(changedTableName);
+			deleteQuery.append(" CET WHERE ST.element_id=CET.element_id;");
+			this.executeSQLUpdate(deleteQuery.toString());
+			
+			StringBuffer insertQuery = new StringBuffer();
+			insertQuery.append("INSERT INTO ");
+			insertQuery.append(sortedTableName);
+			insertQuery.append(" (element_id, concept_id, score) SELECT AGT.element_id, AGT.concept_id, AGT.score FROM ");
+			insertQuery.append(this.getTableSQLName());
+			insertQuery.append(" AGT, ");
+			insertQuery.append(changedTableName);
+			insertQuery.append(" CET WHERE AGT.element_id=CET.element_id ORDER BY AGT.concept_id, AGT.score DESC;");
+			long nbAnnotation = this.executeSQLUpdate(insertQuery.toString());
+			
+			this.executeSQLUpdate("TRUNCATE TABLE " + changedTableName + ";");
+			timer.end();
+			logger.info("\t" + nbAnnotation + " aggregated annotations of the changed elements merged in table " + sortedTableName 
+					+ " in : " + timer.millisecondsToTimeString(timer.duration()));
+			return true;
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot merge the changed elements in table " + sortedTableName, e);
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns true if the sorted table was completely sorted with the given dictionary and weights.
+	 */
+	private boolean isSortedTableUpToDate(int dictionaryID, String weightSignature){
+		boolean upToDate = false;
+		try{
+			this.executeSQLUpdate("CREATE TABLE IF NOT EXISTS " + this.getChangedElementTableSQLName() + " (element_id INT(11) UNSIGNED NOT NULL PRIMARY KEY) ENGINE=MyISAM;");
+			this.executeSQLUpdate("CREATE TABLE IF NOT EXISTS " + this.getSortStateTableSQLName() + " (dictionary_id SMALLINT UNSIGNED NOT NULL, weights TEXT NOT NULL) ENGINE=MyISAM DEFAULT CHARSET=latin1;");
+			ResultSet rSet = this.executeSQLQuery("SELECT dictionary_id, weights FROM " + this.getSortStateTableSQLName() + ";");
+			if(rSet.next()){
+				upToDate = rSet.getInt(1) == dictionaryID && weightSignature.equals(rSet.getString(2));
+			}
+			rSet.close();
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot read the sort state from " + this.getSortStateTableSQLName(), e);
+		}
+		return upToDate;
+	}
+	
+	/**
+	 * Records the dictionary and weights of a complete sort. The changed elements are all in the sorted table.
+	 */
+	private void saveSortState(int dictionaryID, String weightSignature){
+		StringBuffer insertQuery = new StringBuffer();
+		insertQuery.append("INSERT INTO ");
+		insertQuery.append(this.getSortStateTableSQLName());
+		insertQuery.append(" (dictionary_id, weights) VALUES (");
+		insertQuery.append(dictionaryID);
+		insertQuery.append(", '");
+		insertQuery.append(weightSignature);
+		insertQuery.append("');");
+		try{
+			this.executeSQLUpdate("TRUNCATE TABLE " + this.getChangedElementTableSQLName() + ";");
+			this.executeSQLUpdate("DELETE FROM " + this.getSortStateTableSQLName() + ";");
+			this.executeSQLUpdate(insertQuery.toString());
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot save the sort state in " + this.getSortStateTableSQLName(), e);
+		}
+	}
+	
+	/**
+	 * Reinitializes the aggregation table and empties the tables derived from it (changed elements, 
+	 * sorted table and top-K table), so the next sort is complete.
+	 */
+	@Override
+	public void reInitializeSQLTable(){
+		super.reInitializeSQLTable();
+		this.resetSortState();
+		try{
+			this.executeSQLUpdate("DROP TABLE IF EXISTS " + this.getChangedElementTableSQLName() + ";");
+			this.executeSQLUpdate("DROP TABLE IF EXISTS " + this.getTopKTableSQLName() + ";");
+			// The sorted table is kept (empty) for the queries reading it before the next sort
+			this.executeSQLUpdate(sortedTableCreationQuery("IF NOT EXISTS " + this.getSortedTableSQLName()));
+			this.executeSQLUpdate("TRUNCATE TABLE " + this.getSortedTableSQLName() + ";");
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot reinitialize the sorted tables of " + this.getTableSQLName(), e);
+		}
+	}
+	
+	/**
+	 * Forces a complete sort of the aggregation table at the next sort.
+	 */
+	private void resetSortState(){
+		try{
+			this.executeSQLUpdate("DROP TABLE IF EXISTS " + this.getSortStateTableSQLName() + ";");
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot reset the sort state " + this.getSortStateTableSQLName(), e);
+		}
+	}
+	
+	/**
+	 * Returns a description of the weights used for the aggregation (ObrWeight and weights of the contexts).
+	 */
+	private String getWeightSignature(ObrWeight weights){
+		StringBuffer sb = new StringBuffer();
+		sb.append(weights.getPreferredNameDA()).append(',');
+		sb.append(weights.getSynonymDA()).append(',');
+		sb.append(weights.getReportedDA()).append(',');
+		sb.append(weights.getIsaFactor()).append(',');
+		sb.append(weights.getMappingEA());
+		double[] contextWeights = contextTableDao.getContextWeights(this.resourceID);
+		for(int contextID = 0; contextID < contextWeights.length; contextID++){
+			if(!Double.isNaN(contextWeights[contextID])){
+				sb.append(';').append(contextID).append('=').append(contextWeights[contextID]);
+			}
+		}
+		return sb.toString();
+	}
+	
+	// ********************************* TOP-K FUNCTIONS  *****************************************************/
+	
+	/**
+	 * Builds the top-K table with the TOP_K best elements of each concept, in one pass on the aggregation table.
+	 * The new table replaces the previous one.
+	 */
+	private boolean topKAggregation(){
+		ExecutionTimer timer = new ExecutionTimer();
+		timer.start();
+		String topKTableName = this.getTopKTableSQLName();
+		File topKFile = new File(FileResourceParameters.mgrepOutputFolder() + topKTableName + ".sorted");
+		TopKSelector selector = new TopKSelector(TOP_K);
+		try{
+			ResultSet rSet = this.executeSQLQueryWithFetching("SELECT element_id, concept_id, score FROM " + this.getTableSQLName() + ";");
+			try{
+				while(rSet.next()){
+					selector.add(rSet.getInt(1), rSet.getInt(2), rSet.getFloat(3));
+				}
+			}
+			finally{
+				rSet.close();
+			}
+			long nbTopK;
+			BufferedWriter out = new BufferedWriter(new FileWriter(topKFile), 256 * 1024);
+			try{
+				nbTopK = selector.writeSorted(out);
+			}
+			finally{
+				out.close();
+			}
+			this.loadSortedAggregationFile(topKFile, topKTableName);
+			timer.end();
+			logger.info("\t" + nbTopK + " aggregated annotations (top " + TOP_K + " of " + selector.getNumberOfConcepts() + " concepts, out of " 
+					+ selector.getNumberOfAnnotations() + ") loaded in table " + topKTableName + " in : " + timer.millisecondsToTimeString(timer.duration()));
+			return true;
+		}
+		catch(IOException e){
+			logger.error("** PROBLEM ** Cannot write the top-K aggregation file " + topKFile.getName(), e);
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot build the top-K table " + topKTableName, e);
+		}
+		finally{
+			topKFile.delete();
+		}
+		return false;
+	}
+	
+	// ********************************* STREAMING AGGREGATION FUNCTIONS  *****************************************************/
+	
+	/**
+	 * Aggregates the annotations of _DAT and _EAT not yet aggregated, with the same scores than the queries
+	 * of {@link #aggregation(ObrWeight)}, without INSERT ... ON DUPLICATE KEY UPDATE on the table:
+	 * the three annotation tables are read in element_id order, the scores of each element are accumulated in memory
+	 * and the aggregated annotations are written to a file loaded in the table 
+	 * (merged with the existing scores of the elements if the table is not empty).
+	 * Returns the number of annotations in the table. 
+	 */
+	private long streamingAggregation(ObrWeight weights, long fromElementID, long toElementID){
+		ExecutionTimer timer = new ExecutionTimer();
+		timer.start();
+		long nbAnnotation;
+		File aggregatedFile = new File(FileResourceParameters.mgrepOutputFolder() + this.getTableSQLName() + ".aggregated");
+		try{
+			BufferedWriter out = new BufferedWriter(new FileWriter(aggregatedFile), 256 * 1024);
+			try{
+				nbAnnotation = this.writeAggregatedAnnotations(out, weights, fromElementID, toElementID);
+			}
+			finally{
+				out.close();
+			}
+			timer.end();
+			logger.info("\t" + nbAnnotation + " annotations aggregated in memory in : " + timer.millisecondsToTimeString(timer.duration()));
+			
+			timer.reset();
+			timer.start();
+			if(nbAnnotation > 0){
+				this.loadAggregatedAnnotationFile(aggregatedFile);
+			}
+			timer.end();
+			logger.info("\tAggregated annotations loaded in table " + this.getTableSQLName() + " in : " + timer.millisecondsToTimeString(timer.duration()));
+		}
+		catch(IOException e){
+			logger.error("** PROBLEM ** Cannot write the aggregated annotations file " + aggregatedFile.getName(), e);
+			return this.numberOfEntry();
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot aggregate the annotations in table " + this.getTableSQLName(), e);
+			return this.numberOfEntry();
+		}
+		finally{
+			aggregatedFile.delete();
+		}
+		
+		this.switchWorkflowStatus(DirectAnnotationDao.name(this.resourceID), 
+				pendingCondition("", WorkflowStatusEnum.MAPPING_DONE, fromElementID, toElementID));
+		// The expanded annotations of a watermark range are already flagged
+		if(fromElementID < 0){
+			this.switchWorkflowStatus(IsaExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE);
+			this.switchWorkflowStatus(MapExpandedAnnotationDao.name(this.resourceID), WorkflowStatusEnum.INDEXING_NOT_DONE);
+		}
+		return this.numberOfEntry();
+	}
+	
+	/**
+	 * Reads the annotations not yet aggregated and writes the aggregated annotations 
+	 * (lines [element_id	concept_id	score]) in element_id order. The writer is not closed.
+	 * 
+	 * @return the number of aggregated annotations written
+	 */
+	private long writeAggregatedAnnotations(BufferedWriter out, ObrWeight weights, long fromElementID, long toElementID) throws IOException, SQLException {
+		double[] contextWeights = contextTableDao.getContextWeights(this.resourceID);
+		// Weight of the direct annotations by type: reported, preferred name, synonym 
+		double[] directWeights = new double[]{weights.getReportedDA(), weights.getPreferredNameDA(), weights.getSynonymDA()};
+		
+		AnnotationStream[] streams = new AnnotationStream[3];
+		try{
+			streams[0] = new AnnotationStream(this.executeSQLQueryWithFetching(directAnnotationStreamQuery(fromElementID, toElementID)), 
+					AnnotationStream.DIRECT, contextWeights, directWeights, weights);
+			streams[1] = new AnnotationStream(this.executeSQLQueryWithFetching(expandedAnnotationStreamQuery(IsaExpandedAnnotationDao.name(this.resourceID), "parent_level", fromElementID, toElementID)), 
+					AnnotationStream.ISA, contextWeights, directWeights, weights);
+			streams[2] = new AnnotationStream(this.executeSQLQueryWithFetching(expandedAnnotationStreamQuery(MapExpandedAnnotationDao.name(this.resourceID), "0", fromElementID, toElementID)), 
+					AnnotationStream.MAPPING, contextWeights, directWeights, weights);
+			
+			ConceptScoreAccumulator accumulator = new ConceptScoreAccumulator();
+			long nbAnnotation = 0;
+			while(true){
+				// Next element in the three streams
+				long elementID = Long.MAX_VALUE;
+				for(AnnotationStream stream: streams){
+					if(stream.hasNext && stream.elementID < elementID){
+						elementID = stream.elementID;
+					}
+				}
+				if(elementID == Long.MAX_VALUE){
+					break;
+				}
+				for(AnnotationStream stream: streams){
+					stream.accumulate(elementID, accumulator);
+				}
+				nbAnnotation += writeAggregatedElement(out, elementID, accumulator);
+			}
+			return nbAnnotation;
+		}
+		finally{
+			for(AnnotationStream stream: streams){
+				if(stream != null){
+					stream.rSet.close();
+				}
+			}
+		}
+	}
+	
+	private String directAnnotationStreamQuery(long fromElementID, long toElementID){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT DAT.element_id, DAT.concept_id, DAT.context_id, IF(DAT.term_id IS NULL, 0, IF(TT.is_preferred, 1, 2)) FROM ");
+		queryb.append(DirectAnnotationDao.name(this.resourceID));
+		queryb.append(" DAT LEFT JOIN ");
+		queryb.append(termDao.getMemoryTableSQLName());
+		queryb.append(" TT ON DAT.term_id= TT.id WHERE ");
+		queryb.append(pendingCondition("DAT.", WorkflowStatusEnum.MAPPING_DONE, fromElementID, toElementID));
+		queryb.append(" ORDER BY DAT.element_id;");
+		return queryb.toString();
+	}
+	
+	private String expandedAnnotationStreamQuery(String tableName, String levelColumn, long fromElementID, long toElementID){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT element_id, concept_id, context_id, ");
+		queryb.append(levelColumn);
+		queryb.append(" FROM ");
+		queryb.append(tableName);
+		queryb.append(" WHERE ");
+		queryb.append(pendingCondition("", WorkflowStatusEnum.INDEXING_NOT_DONE, fromElementID, toElementID));
+		queryb.append(" ORDER BY element_id;");
+		return queryb.toString();
+	}
+	
+	/**
+	 * Loads the file of aggregated annotations in the table. If the table is not empty, the file is loaded 
+	 * in a temporary _delta table whose scores are added to the existing ones.
+	 */
+	private void loadAggregatedAnnotationFile(File aggregatedFile) throws SQLException {
+		boolean emptyTable = this.numberOfEntry() == 0;
+		String loadedTableName = emptyTable ? this.getTableSQLName() : this.getTableSQLName() + "_delta"; 
+		if(!emptyTable){
+			this.executeSQLUpdate("DROP TABLE IF EXISTS " + loadedTableName + ";");
+			this.executeSQLUpdate("CREATE TABLE " + loadedTableName + " (element_id INT UNSIGNED NOT NULL, concept_id INT UNSIGNED NOT NULL, score FLOAT) ENGINE=MyISAM DEFAULT CHARSET=latin1;");
+		}
+		StringBuffer loadingQuery = new StringBuffer();
+		loadingQuery.append("LOAD DATA LOCAL INFILE '");
+		loadingQuery.append(aggregatedFile.getAbsolutePath().replace("\\", "/"));
+		loadingQuery.append("' INTO TABLE ");
+		loadingQuery.append(loadedTableName);
+		loadingQuery.append(" FIELDS TERMINATED BY '\t' (element_id, concept_id, score);");
+		this.executeSQLUpdate(loadingQuery.toString());
+		
+		if(!emptyTable){
+			StringBuffer mergeQuery = new StringBuffer();
+			mergeQuery.append("INSERT INTO ");
+			mergeQuery.append(this.getTableSQLName());
+			mergeQuery.append(" (element_id, concept_id, score) SELECT element_id, concept_id, score FROM ");
+			mergeQuery.append(loadedTableName);
+			mergeQuery.append(" ON DUPLICATE KEY UPDATE score=score+VALUES(score);");
+			try{
+				this.executeSQLUpdate(mergeQuery.toString());
+			}
+			finally{
+				this.executeSQLUpdate("DROP TABLE " + loadedTableName + ";");
+			}
+		}
+	}
+	
+	/**
+	 * Sorts the table in Java and loads the sorted annotations in a new sorted aggregation table, which replaces 
+	 * the previous one (instead of the sort_aggregation_table stored procedure).
+	 */
+	private boolean streamingSortAggregation(){
+		ExecutionTimer timer = new ExecutionTimer();
+		timer.start();
+		String sortedTableName = this.getSortedTableSQLName();
+		File sortedFile = new File(FileResourceParameters.mgrepOutputFolder() + sortedTableName + ".sorted");
+		AggregationSorter sorter = new AggregationSorter(new File(FileResourceParameters.mgrepOutputFolder()), sortedTableName, SORT_BUFFER_SIZE);
+		try{
+			ResultSet rSet = this.executeSQLQueryWithFetching("SELECT element_id, concept_id, score FROM " + this.getTableSQLName() + ";");
+			try{
+				while(rSet.next()){
+					sorter.add(rSet.getInt(1), rSet.getInt(2), rSet.getFloat(3));
+				}
+			}
+			finally{
+				rSet.close();
+			}
+			BufferedWriter out = new BufferedWriter(new FileWriter(sortedFile), 256 * 1024);
+			try{
+				sorter.writeSorted(out);
+			}
+			finally{
+				out.close();
+			}
+			timer.end();
+			logger.info("\t" + sorter.getNumberOfAnnotations() + " aggregated annotations sorted in : " + timer.millisecondsToTimeString(timer.duration()));
+			
+			timer.reset();
+			timer.start();
+			this.loadSortedAggregationFile(sortedFile, sortedTableName);
+			timer.end();
+			logger.info("\tTable " + sortedTableName + " loaded in : " + timer.millisecondsToTimeString(timer.duration()));
+			return true;
+		}
+		catch(IOException e){
+			logger.error("** PROBLEM ** Cannot write the sorted aggregation file " + sortedFile.getName(), e);
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot sort aggregation table " + this.getTableSQLName(), e);
+		}
+		finally{
+			sorter.delete();
+			sortedFile.delete();
+		}
+		return false;
+	}
+	
+	/**
+	 * Loads the given sorted file in a new table, which then replaces the given sorted table.
+	 */
+	private void loadSortedAggregationFile(File sortedFile, String sortedTableName) throws SQLException {
+		String newTableName = sortedTableName + "_new";
+		this.executeSQLUpdate("DROP TABLE IF EXISTS " + newTableName + ";");
+		this.executeSQLUpdate(sortedTableCreationQuery(newTableName));
+		StringBuffer loadingQuery = new StringBuffer();
+		loadingQuery.append("LOAD DATA LOCAL INFILE '");
+		loadingQuery.append(sortedFile.getAbsolutePath().replace("\\", "/"));
+		loadingQuery.append("' INTO TABLE ");
+		loadingQuery.append(newTableName);
+		loadingQuery.append(" FIELDS TERMINATED BY '\t' (element_id, concept_id, score);");
+		this.executeSQLUpdate(loadingQuery.toString());
+		
+		// Replaces the sorted table 
+		this.executeSQLUpdate(sortedTableCreationQuery("IF NOT EXISTS " + sortedTableName));
+		this.executeSQLUpdate("DROP TABLE IF EXISTS " + sortedTableName + "_old;");
+		this.executeSQLUpdate("RENAME TABLE " + sortedTableName + " TO " + sortedTableName + "_old, " + newTableName + " TO " + sortedTableName + ";");
+		this.executeSQLUpdate("DROP TABLE " + sortedTableName + "_old;");
+	}
+	
+	/**
+	 * Returns the query creating a sorted aggregation table (same table than the sort_aggregation_table stored procedure).
+	 */
+	private static String sortedTableCreationQuery(String tableName){
+		String indexName = tableName.replace("IF NOT EXISTS ", "");
+		return "CREATE TABLE " + tableName + " (" +
+					"element_id INT(10) UNSIGNED NOT NULL, " +
+					"concept_id INT(10) UNSIGNED NOT NULL, " +
+					"score FLOAT DEFAULT NULL, " +
+					"KEY X_" + indexName + "_element_id (element_id) USING BTREE, " +
+					"KEY X_" + indexName + "_concept_id (concept_id) USING BTREE, " +
+					"KEY X_" + indexName + "_score (score) USING BTREE " +
+				") ENGINE=MyISAM DEFAULT CHARSET=latin1;";
+	}
+	
+	/**
+	 * Switches the workflow_status of the aggregated annotations of the given annotation table to {@code INDEXING_DONE}.
+	 */
+	private void switchWorkflowStatus(String tableName, WorkflowStatusEnum aggregatedStatus){
+		this.switchWorkflowStatus(tableName, "workflow_status = " + aggregatedStatus.getStatus());
+	}
+	
+	/**
+	 * Switches the workflow_status of the annotations of the given annotation table selected by the given condition to {@code INDEXING_DONE}.
+	 */
+	private void switchWorkflowStatus(String tableName, String aggregatedCondition){
+		ExecutionTimer timer = new ExecutionTimer();
+		StringBuffer updatingQueryb = new StringBuffer();
+		updatingQueryb.append("UPDATE ");
+		updatingQueryb.append(tableName);
+		updatingQueryb.append(" SET workflow_status = ");
+		updatingQueryb.append(WorkflowStatusEnum.INDEXING_DONE.getStatus());
+		updatingQueryb.append(" WHERE ");
+		updatingQueryb.append(aggregatedCondition);
+		timer.start();
+		try{
+			this.executeSQLUpdate(updatingQueryb.toString());
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot switch workflow_status flags on " + tableName, e);
+		}
+		timer.end();
+		logger.info("\tworkflow_status updated to "+ WorkflowStatusEnum.INDEXING_DONE.getStatus()+ " in table " 
+				+ tableName + " in : " + timer.millisecondsToTimeString(timer.duration()));
+	}
+	
+	/**
+	 * Stream of the annotations of one annotation table not yet aggregated, in element_id order 
+	 * (columns element_id, concept_id, context_id, type of direct annotation or parent level).
+	 */
+	private static class AnnotationStream {
+		
+		static final int DIRECT = 0;
+		static final int ISA = 1;
+		static final int MAPPING = 2;
+		
+		private ResultSet rSet;
+		private int type;
+		private double[] contextWeights;
+		private double[] directWeights;
+		private double isaFactor;
+		private double mappingWeight;
+		
+		private boolean hasNext;
+		private long elementID;
+		
+		AnnotationStream(ResultSet rSet, int type, double[] contextWeights, double[] directWeights, ObrWeight weights) throws SQLException {
+			this.rSet = rSet;
+			this.type = type;
+			this.contextWeights = contextWeights;
+			this.directWeights = directWeights;
+			this.isaFactor = weights.getIsaFactor();
+			this.mappingWeight = weights.getMappingEA();
+			this.next();
+		}
+		
+		private void next() throws SQLException {
+			this.hasNext = this.rSet.next();
+			if(this.hasNext){
+				this.elementID = this.rSet.getLong(1);
+			}
+		}
+		
+		/**
+		 * Adds the scores of the annotations of the given element to the accumulator. 
+		 */
+		void accumulate(long elementID, ConceptScoreAccumulator accumulator) throws SQLException {
+			while(this.hasNext && this.elementID == elementID){
+				int contextID = this.rSet.getInt(3);
+				// Annotations of contexts not in the context table are not aggregated (as with the join of the queries)
+				if(contextID < this.contextWeights.length && !Double.isNaN(this.contextWeights[contextID])){
+					double score;
+					switch(this.type){
+					case DIRECT:
+						score = this.directWeights[this.rSet.getInt(4)];
+						break;
+					case ISA:
+						score = isaScore(this.isaFactor, this.rSet.getInt(4));
+						break;
+					default:
+						score = this.mappingWeight;
+					}
+					accumulator.add(this.rSet.getInt(2), score * this.contextWeights[contextID]);
+				}
+				this.next();
+			}
+		}
+	}
+	
+	// ********************************* FUSED EXPANSION AND AGGREGATION FUNCTIONS  *****************************************************/
+	
+	/**
+	 * Expands and aggregates in one pass the direct annotations not yet expanded (workflow_status {@code DIRECT_ANNOTATION_DONE}),
+	 * instead of the semantic expansion followed by {@link #aggregation(ObrWeight)}.
+	 * The direct annotations are read once in element_id order; the isa and mapping annotations of each element are computed
+	 * with the is_a closure and the mappings loaded in memory, and the scores of the element with the same formulas than the 
+	 * aggregation queries. The expanded and the aggregated annotations are bulk loaded in their tables, the expanded ones
+	 * already flagged as aggregated, so that only the workflow_status of the direct annotations is updated.
+	 * 
+	 * @param weights weights used for the aggregation
+	 * @param isaClosure the is_a closure, null for no isa transitive closure expansion
+	 * @param mappingIndex the mappings, null for no mapping expansion
+	 * @param maxLevel if greater than zero, restricts the isa transitive closure expansion to the parents up to this level
+	 * @return the number of annotations in the table.
+	 */
+	public long fusedExpansionAggregation(ObrWeight weights, IsaClosureGraph isaClosure, MappingIndex mappingIndex, int maxLevel){
+		String directTableName = DirectAnnotationDao.name(this.resourceID);
+		if(INCREMENTAL_AGGREGATION){
+			try{
+				this.executeSQLUpdate("CREATE TABLE IF NOT EXISTS " + this.getChangedElementTableSQLName() + " (element_id INT(11) UNSIGNED NOT NULL PRIMARY KEY) ENGINE=MyISAM;");
+				this.executeSQLUpdate(elementsToResetQuery(this.getChangedElementTableSQLName(), directTableName, WorkflowStatusEnum.DIRECT_ANNOTATION_DONE));
+			}
+			catch(SQLException e){
+				logger.error("** PROBLEM ** Cannot record the changed elements in " + this.getChangedElementTableSQLName() + ", the next sort is complete.", e);
+				this.resetSortState();
+			}
+		}
+		ExecutionTimer timer = new ExecutionTimer();
+		timer.start();
+		String filePrefix = FileResourceParameters.mgrepOutputFolder() + this.getTableSQLName();
+		File isaFile = new File(filePrefix + ".isa");
+		File mappingFile = new File(filePrefix + ".mapping");
+		File aggregatedFile = new File(filePrefix + ".aggregated");
+		try{
+			long[] counts;
+			BufferedWriter isaOut = new BufferedWriter(new FileWriter(isaFile), 256 * 1024);
+			BufferedWriter mappingOut = new BufferedWriter(new FileWriter(mappingFile), 256 * 1024);
+			BufferedWriter aggregatedOut = new BufferedWriter(new FileWriter(aggregatedFile), 256 * 1024);
+			try{
+				counts = this.writeFusedAnnotations(weights, isaClosure, mappingIndex, maxLevel, isaOut, mappingOut, aggregatedOut);
+			}
+			finally{
+				isaOut.close();
+				mappingOut.close();
+				aggregatedOut.close();
+			}
+			timer.end();
+			logger.info("\t" + counts[0] + " isa annotations, " + counts[1] + " mapping annotations and " + counts[2] 
+					+ " aggregated annotations computed in memory in : " + timer.millisecondsToTimeString(timer.duration()));
+			
+			timer.reset();
+			timer.start();
+			if(counts[0] > 0){
+				this.loadAnnotationFile(isaFile, IsaExpandedAnnotationDao.name(this.resourceID), 
+						"(element_id, concept_id, context_id, position_from, position_to, child_concept_id, parent_level, workflow_status)");
+			}
+			if(counts[1] > 0){
+				this.loadAnnotationFile(mappingFile, MapExpandedAnnotationDao.name(this.resourceID), 
+						"(element_id, concept_id, context_id, position_from, position_to, mapped_concept_id, mapping_type, workflow_status)");
+			}
+			if(counts[2] > 0){
+				this.loadAggregatedAnnotationFile(aggregatedFile);
+			}
+			timer.end();
+			logger.info("\tExpanded and aggregated annotations loaded in : " + timer.millisecondsToTimeString(timer.duration()));
+		}
+		catch(IOException e){
+			logger.error("** PROBLEM ** Cannot write the expanded and aggregated annotations files " + filePrefix, e);
+			return this.numberOfEntry();
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot expand and aggregate the annotations of " + directTableName, e);
+			return this.numberOfEntry();
+		}
+		finally{
+			isaFile.delete();
+			mappingFile.delete();
+			aggregatedFile.delete();
+		}
+		this.switchWorkflowStatus(directTableName, WorkflowStatusEnum.DIRECT_ANNOTATION_DONE);
+		return this.numberOfEntry();
+	}
+	
+	/**
+	 * Resets the elements left by an interrupted fused expansion and aggregation: the direct annotations not yet expanded
+	 * of these elements may have their isa, mapping and aggregated annotations already loaded. As these annotations cannot
+	 * be told apart from the ones of previous workflows, the elements are computed again completely: their expanded and 
+	 * aggregated annotations are removed and all their direct annotations are flagged again for the semantic expansion
+	 * (workflow_status {@code DIRECT_ANNOTATION_DONE}).
+	 * 
+	 * @return number of elements reset
+	 */
+	public long resetInterruptedFusedAggregation(){
+		String elementTableName = this.getTableSQLName() + "_reset";
+		String directTableName = DirectAnnotationDao.name(this.resourceID);
+		long nbElement = 0;
+		try{
+			this.executeSQLUpdate("DROP TEMPORARY TABLE IF EXISTS " + elementTableName + ";");
+			this.executeSQLUpdate("CREATE TEMPORARY TABLE " + elementTableName + " (element_id INT(11) UNSIGNED NOT NULL PRIMARY KEY) ENGINE=MyISAM;");
+			this.executeSQLUpdate(elementsToResetQuery(elementTableName, directTableName, WorkflowStatusEnum.DIRECT_ANNOTATION_DONE));
+			String[] tableNames = new String[]{IsaExpandedAnnotationDao.name(this.resourceID), MapExpandedAnnotationDao.name(this.resourceID), this.getTableSQLName()};
+			for(String tableName: tableNames){
+				StringBuffer queryb = new StringBuffer();
+				queryb.append("DELETE ANT FROM ");
+				queryb.append(tableName);
+				queryb.append(" ANT, ");
+				queryb.append(elementTableName);
+				queryb.append(" RET WHERE ANT.element_id=RET.element_id;");
+				this.executeSQLUpdate(queryb.toString());
+			}
+			this.executeSQLUpdate(resetStatusQuery(elementTableName, directTableName, WorkflowStatusEnum.DIRECT_ANNOTATION_DONE));
+			
+			ResultSet rSet = this.executeSQLQuery("SELECT COUNT(element_id) FROM " + elementTableName + ";");
+			if(rSet.next()){
+				nbElement = rSet.getLong(1);
+			}
+			rSet.close();
+			this.executeSQLUpdate("DROP TEMPORARY TABLE " + elementTableName + ";");
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot reset the interrupted expansion and aggregation on table " + this.getTableSQLName(), e);
+		}
+		return nbElement;
+	}
+	
+	/**
+	 * Reads the direct annotations not yet expanded and writes their isa annotations, mapping annotations 
+	 * and aggregated annotations [element_id	concept_id	score]. The writers are not closed.
+	 * 
+	 * @return the numbers of isa, mapping and aggregated annotations written
+	 */
+	private long[] writeFusedAnnotations(ObrWeight weights, IsaClosureGraph isaClosure, MappingIndex mappingIndex, int maxLevel, 
+			BufferedWriter isaOut, BufferedWriter mappingOut, BufferedWriter aggregatedOut) throws IOException, SQLException {
+		double[] contextWeights = contextTableDao.getContextWeights(this.resourceID);
+		// Weight of the direct annotations by type: reported, preferred name, synonym 
+		double[] directWeights = new double[]{weights.getReportedDA(), weights.getPreferredNameDA(), weights.getSynonymDA()};
+		String status = String.valueOf(WorkflowStatusEnum.INDEXING_DONE.getStatus());
+		
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT DAT.element_id, DAT.concept_id, DAT.context_id, IF(DAT.term_id IS NULL, 0, IF(TT.is_preferred, 1, 2)), DAT.position_from, DAT.position_to FROM ");
+		queryb.append(DirectAnnotationDao.name(this.resourceID));
+		queryb.append(" DAT LEFT JOIN ");
+		queryb.append(termDao.getMemoryTableSQLName());
+		queryb.append(" TT ON DAT.term_id= TT.id WHERE DAT.workflow_status= ");
+		queryb.append(WorkflowStatusEnum.DIRECT_ANNOTATION_DONE.getStatus());
+		queryb.append(" ORDER BY DAT.element_id;");
+		
+		long[] counts = new long[3];
+		ConceptScoreAccumulator accumulator = new ConceptScoreAccumulator();
+		long currentElementID = -1;
+		ResultSet rSet = this.executeSQLQueryWithFetching(queryb.toString());
+		try{
+			while(rSet.next()){
+				long elementID = rSet.getLong(1);
+				if(elementID != currentElementID){
+					counts[2] += writeAggregatedElement(aggregatedOut, currentElementID, accumulator);
+					currentElementID = elementID;
+				}
+				int conceptID = rSet.getInt(2);
+				int contextID = rSet.getInt(3);
+				// Annotations of contexts not in the context table are not aggregated (as with the join of the queries)
+				double contextWeight = contextID < contextWeights.length ? contextWeights[contextID] : Double.NaN;
+				boolean aggregated = !Double.isNaN(contextWeight);
+				if(aggregated){
+					accumulator.add(conceptID, directWeights[rSet.getInt(4)] * contextWeight);
+				}
+				
+				String prefix = null;
+				String suffix = null;
+				int first = isaClosure == null ? 0 : isaClosure.getFirstParent(conceptID);
+				int end = isaClosure == null ? 0 : isaClosure.getEndParent(conceptID, maxLevel);
+				int firstMapping = mappingIndex == null ? 0 : mappingIndex.getFirstMapping(conceptID);
+				int endMapping = mappingIndex == null ? 0 : mappingIndex.getEndMapping(conceptID);
+				if(first < end || firstMapping < endMapping){
+					// Columns shared by the expanded annotations of the direct annotation
+					String positionFrom = rSet.getString(5);
+					String positionTo = rSet.getString(6);
+					prefix = elementID + "\t";
+					suffix = "\t" + contextID + "\t" + (positionFrom == null ? "\\N" : positionFrom) + "\t" 
+							+ (positionTo == null ? "\\N" : positionTo) + "\t" + conceptID + "\t";
+				}
+				for(int i = first; i < end; i++){
+					int parentConceptID = isaClosure.getParent(i);
+					int level = isaClosure.getLevel(i);
+					isaOut.write(prefix);
+					isaOut.write(Integer.toString(parentConceptID));
+					isaOut.write(suffix);
+					isaOut.write(Integer.toString(level));
+					isaOut.write('\t');
+					isaOut.write(status);
+					isaOut.write('\n');
+					if(aggregated){
+						accumulator.add(parentConceptID, isaScore(weights.getIsaFactor(), level) * contextWeight);
+					}
+				}
+				counts[0] += end - first;
+				for(int i = firstMapping; i < endMapping; i++){
+					int mappedConceptID = mappingIndex.getMappedConcept(i);
+					mappingOut.write(prefix);
+					mappingOut.write(Integer.toString(mappedConceptID));
+					mappingOut.write(suffix);
+					mappingOut.write(Integer.toString(mappingIndex.getMappingType(i)));
+					mappingOut.write('\t');
+					mappingOut.write(status);
+					mappingOut.write('\n');
+					if(aggregated){
+						accumulator.add(mappedConceptID, weights.getMappingEA() * contextWeight);
+					}
+				}
+				counts[1] += endMapping - firstMapping;
+			}
+			counts[2] += writeAggregatedElement(aggregatedOut, currentElementID, accumulator);
+		}
+		finally{
+			rSet.close();
+		}
+		return counts;
+	}
+	
+	/**
+	 * Writes the aggregated annotations of the given element and clears the accumulator.
+	 * 
+	 * @return the number of aggregated annotations written
+	 */
+	private static int writeAggregatedElement(BufferedWriter out, long elementID, ConceptScoreAccumulator accumulator) throws IOException {
+		int nbAnnotation = accumulator.size();
+		for(int i = 0; i < nbAnnotation; i++){
+			out.write(Long.toString(elementID));
+			out.write('\t');
+			out.write(Integer.toString(accumulator.getConceptID(i)));
+			out.write('\t');
+			out.write(Float.toString((float) accumulator.getScore(i)));
+			out.write('\n');
+		}
+		accumulator.clear();
+		return nbAnnotation;
+	}
+	
+	/**
+	 * Loads the given file in the given annotation table.
+	 */
+	private void loadAnnotationFile(File annotationFile, String tableName, String columns) throws SQLException {
+		StringBuffer loadingQuery = new StringBuffer();
+		loadingQuery.append("LOAD DATA LOCAL INFILE '");
+		loadingQuery.append(annotationFile.getAbsolutePath().replace("\\", "/"));
+		loadingQuery.append("' INTO TABLE ");
+		loadingQuery.append(tableName);
+		loadingQuery.append(" FIELDS TERMINATED BY '\t' ");
+		loadingQuery.append(columns);
+		loadingQuery.append(";");
+		this.executeSQLUpdate(loadingQuery.toString());
+	}
+	
+	/**
+	 * Returns the score of an isa annotation of the given parent level (before the weight of the context).
+	 */
+	private static double isaScore(double isaFactor, int level){
+		return Math.floor(10 * Math.exp(-isaFactor * level) + 1);
+	}
+	
 	//********************************* DELETE FUNCTIONS *****************************************************/
 	  
 	private void openDeleteEntriesFromOntologyStatement(){	 
@@ -376,6 +1431,7 @@ public class AggregationDao extends AbstractObrDao {
 	 */
 	public boolean deleteEntriesFromOntology(String localOntologyID){
 		boolean deleted = false;
+		this.resetSortState();
 		try{
 			this.deleteEntriesFromOntologyStatement.setString(1, localOntologyID);
 			this.executeSQLUpdate(this.deleteEntriesFromOntologyStatement);
@@ -399,6 +1455,7 @@ public class AggregationDao extends AbstractObrDao {
 	 */
 	public boolean deleteEntriesFromOntologies(List<String> localOntologyIDs){		
 		boolean deleted = false;
+		this.resetSortState();
 		StringBuffer queryb = new StringBuffer();
 		/*queryb.append("DELETE IT FROM ");
 		queryb.append(this.getTableSQLName());		
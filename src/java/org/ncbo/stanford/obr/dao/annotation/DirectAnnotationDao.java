@@ -1,6 +1,8 @@
 package org.ncbo.stanford.obr.dao.annotation;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -13,7 +15,9 @@ import obs.common.beans.DictionaryBean;
 import obs.common.utils.ExecutionTimer;
 
 import org.ncbo.stanford.obr.dao.AbstractObrDao;
+import org.ncbo.stanford.obr.dao.LocalIdResolver;
 import org.ncbo.stanford.obr.dao.element.ElementDao;
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
 import org.ncbo.stanford.obr.enumeration.WorkflowStatusEnum;
 import org.ncbo.stanford.obr.util.FileResourceParameters;
 import org.ncbo.stanford.obr.util.MessageUtils;
@@ -45,9 +49,20 @@ public class DirectAnnotationDao extends AbstractObrDao {
 
 	private static final String TABLE_SUFFIX = MessageUtils.getMessage("obr.annotation.table.suffix");
 	
+	// Number of rows inserted by each query when loading a Mgrep stream
+	private static final int MGREP_INSERT_BATCH_SIZE = 1000;
+	
 	private PreparedStatement addEntryStatement;
 	private PreparedStatement addMgrepEntryStatement;	 
 	private PreparedStatement deleteEntriesFromOntologyStatement;
+	private PreparedStatement getElementIDStatement;
+	
+	// Reads the elements missing in the cache of the resolver
+	private LocalIdResolver.ElementIDLookup elementIDLookup = new LocalIdResolver.ElementIDLookup() {
+		public int getElementID(String localElementID) {
+			return DirectAnnotationDao.this.getElementID(localElementID);
+		}
+	};
 	
 	/**
 	 * Creates a new DirectAnnotationTable with a given resourceID.
@@ -100,6 +115,7 @@ public class DirectAnnotationDao extends AbstractObrDao {
 		this.openAddEntryStatement();
 		this.openAddMgrepEntryStatement();		 
 		this.openDeleteEntriesFromOntologyStatement();
+		this.openGetElementIDStatement();
 	}
 
 	@Override
@@ -108,6 +124,7 @@ public class DirectAnnotationDao extends AbstractObrDao {
 		this.addEntryStatement.close();
 		this.addMgrepEntryStatement.close();		 
 		this.deleteEntriesFromOntologyStatement.close();
+		this.getElementIDStatement.close();
 	}
 
 	/****************************************** FUNCTIONS ON THE TABLE ***************************/ 
@@ -117,23 +134,8 @@ public class DirectAnnotationDao extends AbstractObrDao {
 		StringBuffer queryb = new StringBuffer();
 		queryb.append("INSERT INTO ");
 		queryb.append(this.getTableSQLName());
-		queryb.append(" (element_id, concept_id, context_id, dictionary_id, workflow_status) "); 
-		queryb.append("VALUES (");
-			// sub query to get the elementID from the localElementID
-			queryb.append("(SELECT id FROM ");
-			queryb.append(ElementDao.name(this.resourceID));
-			queryb.append(" WHERE local_element_id=?)");
-		queryb.append("	,");
-			// sub query to get the conceptID from the localConceptID
-			queryb.append("(SELECT id FROM ");
-			queryb.append(conceptDao.getTableSQLName());
-			queryb.append(" WHERE local_concept_id=?)");
-		queryb.append("	,");
-			// sub query to get the contextID from the contextName
-			queryb.append("(SELECT id FROM ");
-			queryb.append(contextTableDao.getTableSQLName());
-			queryb.append(" WHERE name=?)");
-		queryb.append(",?,?)");	
+		// The local ids are resolved by the LocalIdResolver
+		queryb.append(" (element_id, concept_id, context_id, dictionary_id, workflow_status) VALUES (?,?,?,?,?);"); 
 		this.addEntryStatement = this.prepareSQLStatement(queryb.toString());
 	}
 
@@ -143,10 +145,17 @@ public class DirectAnnotationDao extends AbstractObrDao {
 	 */
 	public boolean addEntry(DirectAnnotationEntry entry ){
 		boolean inserted = false;
+		int elementID = localIdResolver.getElementID(this.resourceID, entry.getLocalElementId(), this.elementIDLookup);
+		int conceptID = localIdResolver.getConceptID(entry.getLocalConceptID());
+		int contextID = localIdResolver.getContextID(entry.getContextName());
+		if(elementID == -1 || conceptID == -1 || contextID == -1){
+			// Unknown element, concept or context
+			return false;
+		}
 		try {		 
-			this.addEntryStatement.setString (1, entry.getLocalElementId());
-			this.addEntryStatement.setString (2, entry.getLocalConceptID());
-			this.addEntryStatement.setString (3, entry.getContextName());
+			this.addEntryStatement.setInt    (1, elementID);
+			this.addEntryStatement.setInt    (2, conceptID);
+			this.addEntryStatement.setInt    (3, contextID);
 			this.addEntryStatement.setInt    (4, entry.getDictionaryId());
 			this.addEntryStatement.setInt(5, entry.getWorkflowStatus());		 
 			this.executeSQLUpdate(this.addEntryStatement);
@@ -171,22 +180,8 @@ public class DirectAnnotationDao extends AbstractObrDao {
 		queryb.append("INSERT INTO ");
 		queryb.append(this.getTableSQLName());
 		queryb.append(" (element_id, concept_id, context_id, term_id, "+this.getTableSQLName()+".position_from, "+this.getTableSQLName()+".position_to, dictionary_id, workflow_status) "); 
-		queryb.append("VALUES (");
-			// sub query to get the elementID from the localElementID
-			queryb.append("(SELECT id FROM ");
-			queryb.append(ElementDao.name(this.resourceID));
-			queryb.append(" WHERE local_element_id=?)");
-		queryb.append("	,");
-			// sub query to get the conceptID from the localConceptID
-			queryb.append("(SELECT id FROM ");
-			queryb.append(conceptDao.getTableSQLName());
-			queryb.append(" WHERE local_concept_id=?)");
-		queryb.append("	,");
-			// sub query to get the contextID from the contextName
-			queryb.append("(SELECT id FROM ");
-			queryb.append(contextTableDao.getTableSQLName());
-			queryb.append(" WHERE name=?)");
-		queryb.append(",?,?,?,?,?)");	
+		// The local ids are resolved by the LocalIdResolver
+		queryb.append("VALUES (?,?,?,?,?,?,?,?);");	
 		this.addMgrepEntryStatement = this.prepareSQLStatement(queryb.toString());
 	}
 
@@ -197,10 +192,17 @@ public class DirectAnnotationDao extends AbstractObrDao {
 	 */
 	public boolean addMgrepEntry(DirectMgrepAnnotationEntry entry){
 		boolean inserted = false;
+		int elementID = localIdResolver.getElementID(this.resourceID, entry.getLocalElementId(), this.elementIDLookup);
+		int conceptID = localIdResolver.getConceptID(entry.getLocalConceptID());
+		int contextID = localIdResolver.getContextID(entry.getContextName());
+		if(elementID == -1 || conceptID == -1 || contextID == -1){
+			// Unknown element, concept or context
+			return false;
+		}
 		try {
-			this.addMgrepEntryStatement.setString (1, entry.getLocalElementId());
-			this.addMgrepEntryStatement.setString (2, entry.getLocalConceptID());
-			this.addMgrepEntryStatement.setString (3, entry.getContextName());
+			this.addMgrepEntryStatement.setInt    (1, elementID);
+			this.addMgrepEntryStatement.setInt    (2, conceptID);
+			this.addMgrepEntryStatement.setInt    (3, contextID);
 			this.addMgrepEntryStatement.setInt    (4, entry.getTermID());
 			this.addMgrepEntryStatement.setInt    (5, entry.getFrom());
 			this.addMgrepEntryStatement.setInt    (6, entry.getTo());
@@ -224,6 +226,37 @@ public class DirectAnnotationDao extends AbstractObrDao {
 		return inserted;	
 	}
 	
+	private void openGetElementIDStatement(){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT id FROM ");
+		queryb.append(ElementDao.name(this.resourceID));
+		queryb.append(" WHERE local_element_id=?;");
+		this.getElementIDStatement = this.prepareSQLStatement(queryb.toString());
+	}
+	
+	/**
+	 * Returns the id of the element with the given local_element_id from the element table, -1 if there is no such element.
+	 */
+	private int getElementID(String localElementID){
+		int elementID = -1;
+		try {
+			this.getElementIDStatement.setString(1, localElementID);
+			ResultSet rSet = this.executeSQLQuery(this.getElementIDStatement);
+			if(rSet.next()){
+				elementID = rSet.getInt(1);
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			this.openGetElementIDStatement();
+			return this.getElementID(localElementID);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the id of element " + localElementID + " from " + ElementDao.name(this.resourceID) + ". -1 returned.", e);
+		}
+		return elementID;
+	}
+	
 	/**
 	 * Add a set of DirectAnnotationEntry to the table.
 	 * @param HashSet<DirectAnnotationEntry> entries
@@ -253,27 +286,9 @@ public class DirectAnnotationDao extends AbstractObrDao {
 	 * Returns the number of annotations added to the table. 
 	 */
 	public long loadMgrepFile(File mgrepFile, int dictionaryID){
-		long nbAnnotation;
 		ExecutionTimer timer = new ExecutionTimer();
 
-		// Creates a temporary table with the same columns than the Mgrep result file
-		/* CREATE TEMPORARY TABLE OBR_TR_MGREP
-    	(termID INT UNSIGNED, OBR_TR_MGREP.from INT UNSIGNED, OBR_TR_MGREP.to INT UNSIGNED, elementID INT UNSIGNED, contextID INT UNSIGNED,); */
-		
-		StringBuffer createQuery = new StringBuffer();
-		createQuery.append("CREATE TABLE ");
-		createQuery.append(this.getTableSQLName());
-		createQuery.append("_MGREP (term_id INT UNSIGNED, ");
-		createQuery.append(this.getTableSQLName());
-		createQuery.append("_MGREP.position_from INT UNSIGNED, ");
-		createQuery.append(this.getTableSQLName());
-		createQuery.append("_MGREP.position_to INT UNSIGNED, element_id INT UNSIGNED, context_id INT UNSIGNED);");
-		try{
-			this.executeSQLUpdate(createQuery.toString());
-			}
-		catch(SQLException e){
-			logger.error("** PROBLEM ** Cannot create temporary table to load the file " + mgrepFile.getName(), e);
-		}
+		this.createMgrepTable(mgrepFile.getName());
 		
 		// Loads the Mgrep results from the file to the temporary table
 		/* Example of query
@@ -303,6 +318,113 @@ public class DirectAnnotationDao extends AbstractObrDao {
 		logger.info("MGREP Table created in:"
 				+ timer.millisecondsToTimeString(timer.duration()) + "\n");
 		
+		return this.processMgrepTable(dictionaryID);
+	}
+	
+	/**
+	 * Loads the Mgrep results read from the given stream (5 columns: termID/from/to/elementID/contextID) into the 
+	 * temporary _MGREP table with multiple rows INSERT of MGREP_INSERT_BATCH_SIZE rows. 
+	 * The stream is read until its end, then {@link #processMgrepTable(int)} completes the information in the table.
+	 * If the loading fails, the temporary table is dropped.
+	 * 
+	 * @param mgrepResults stream of Mgrep results
+	 * @return true if the whole stream has been loaded
+	 */
+	public boolean loadMgrepStream(BufferedReader mgrepResults){
+		ExecutionTimer timer = new ExecutionTimer();
+		timer.start();
+		this.createMgrepTable("the Mgrep stream");
+		
+		StringBuffer insertQuery = new StringBuffer();
+		insertQuery.append("INSERT INTO ");
+		insertQuery.append(this.getTableSQLName());
+		insertQuery.append("_MGREP (term_id, position_from, position_to, element_id, context_id) VALUES ");
+		int insertQueryLength = insertQuery.length();
+		
+		long nbRows = 0;
+		int nbBatchRows = 0;
+		try{
+			String line;
+			while((line = mgrepResults.readLine()) != null){
+				String[] columns = line.split(TAB_STRING);
+				if(columns.length != 5){
+					logger.error("** PROBLEM ** Invalid Mgrep result line: " + line);
+					continue;
+				}
+				if(nbBatchRows > 0){
+					insertQuery.append(COMMA_STRING);
+				}
+				insertQuery.append("(");
+				for (int i = 0; i < columns.length; i++) {
+					if(i > 0){
+						insertQuery.append(COMMA_STRING);
+					}
+					insertQuery.append(Integer.parseInt(columns[i]));
+				}
+				insertQuery.append(")");
+				nbBatchRows++;
+				if(nbBatchRows == MGREP_INSERT_BATCH_SIZE){
+					nbRows += this.executeSQLUpdate(insertQuery.toString());
+					insertQuery.setLength(insertQueryLength);
+					nbBatchRows = 0;
+				}
+			}
+			if(nbBatchRows > 0){
+				nbRows += this.executeSQLUpdate(insertQuery.toString());
+			}
+		}
+		catch(IOException e){
+			logger.error("** PROBLEM ** Cannot read the Mgrep stream.", e);
+			this.dropMgrepTable();
+			return false;
+		}
+		catch(NumberFormatException e){
+			logger.error("** PROBLEM ** Invalid Mgrep result in the Mgrep stream.", e);
+			this.dropMgrepTable();
+			return false;
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot load the Mgrep stream.", e);
+			this.dropMgrepTable();
+			return false;
+		}
+		timer.end();
+		logger.info(nbRows + " Mgrep results streamed in MGREP Table in:"
+				+ timer.millisecondsToTimeString(timer.duration()) + "\n");
+		return true;
+	}
+	
+	/**
+	 * Creates the temporary _MGREP table with the same columns than the Mgrep result file.
+	 */
+	private void createMgrepTable(String mgrepSource){
+		/* CREATE TEMPORARY TABLE OBR_TR_MGREP
+    	(termID INT UNSIGNED, OBR_TR_MGREP.from INT UNSIGNED, OBR_TR_MGREP.to INT UNSIGNED, elementID INT UNSIGNED, contextID INT UNSIGNED,); */
+		
+		StringBuffer createQuery = new StringBuffer();
+		createQuery.append("CREATE TABLE ");
+		createQuery.append(this.getTableSQLName());
+		createQuery.append("_MGREP (term_id INT UNSIGNED, ");
+		createQuery.append(this.getTableSQLName());
+		createQuery.append("_MGREP.position_from INT UNSIGNED, ");
+		createQuery.append(this.getTableSQLName());
+		createQuery.append("_MGREP.position_to INT UNSIGNED, element_id INT UNSIGNED, context_id INT UNSIGNED);");
+		try{
+			this.executeSQLUpdate(createQuery.toString());
+			}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot create temporary table to load " + mgrepSource, e);
+		}
+	}
+	
+	/**
+	 * Joins the temporary _MGREP table with the terms to populate the table, then drops the temporary table.
+	 * Returns the number of annotations added to the table.
+	 */
+	public long processMgrepTable(int dictionaryID){
+		long nbAnnotation;
+		ExecutionTimer timer = new ExecutionTimer();
+		
 		// Joins the temporary table and OBS_TT to populate the table
 		/* INSERT INTO OBR_TR_DAT (elementID, conceptID, contextID, termID, OBR_TR_DAT.from, OBR_TR_DAT.to, dictionaryID, isaClosureDone, mappingDone, distanceDone, indexingDone)
  			SELECT elementID, conceptID, contextID, OBR_TR_MGREP.termID, OBR_TR_MGREP.from, OBR_TR_MGREP.to, 1, false, false, false, false
@@ -332,20 +454,26 @@ public class DirectAnnotationDao extends AbstractObrDao {
 		joinQuery.append(" TT WHERE ");
 		joinQuery.append(this.getTableSQLName());
 		joinQuery.append("_MGREP.term_id= TT.id ;");	
-		timer.reset();
 		timer.start();
 		try{
 			nbAnnotation = this.executeWithStoreProcedure(this.getTableSQLName(), joinQuery.toString(), false);
 			}
 		catch(SQLException e){
-			logger.error("** PROBLEM ** Cannot join the temporary table and OBS_TT to load the file " + mgrepFile.getName()+". 0 returned", e);
+			logger.error("** PROBLEM ** Cannot join the temporary table and OBS_TT. 0 returned", e);
 			nbAnnotation = 0;
 		}
 		timer.end();
 		logger.info("Processing MGREP to DAT Table in:"
 				+ timer.millisecondsToTimeString(timer.duration()) + "\n");
 		
-		// Deletes the temporary table
+		this.dropMgrepTable();
+		return nbAnnotation;
+	}
+	
+	/**
+	 * Deletes the temporary _MGREP table.
+	 */
+	public void dropMgrepTable(){
 		StringBuffer deleteQuery = new StringBuffer();
 		deleteQuery.append("DROP TABLE ");
 		deleteQuery.append(this.getTableSQLName());
@@ -356,9 +484,149 @@ public class DirectAnnotationDao extends AbstractObrDao {
 		catch(SQLException e){
 			logger.error("** PROBLEM ** Cannot delete the temporary table.", e);
 		}
+	}
+	
+	//********************************* REPORTED ANNOTATION FUNCTIONS *****************************************************
+
+	/**
+	 * Loads a file of reported annotations (2 columns: localElementID/localConceptID) of the given context 
+	 * into the temporary _REPORTED table, then joins it with the element and concept tables to populate the table
+	 * (instead of the 3 sub queries of {@link #addEntry(DirectAnnotationEntry)} for each annotation).
+	 * The _REPORTED table is a MySQL temporary table of the connection, dropped at the end.
+	 * Returns the number of annotations added to the table, or -1 if the file cannot be loaded 
+	 * (no annotation added). 
+	 */
+	public long loadReportedAnnotationFile(File reportedFile, String contextName, int dictionaryID){
+		long nbAnnotation = 0;
+		boolean loaded = false;
+		ExecutionTimer timer = new ExecutionTimer();
+		
+		int contextID = contextTableDao.getContextIDByContextName(contextName);
+		
+		StringBuffer createQuery = new StringBuffer();
+		createQuery.append("CREATE TEMPORARY TABLE ");
+		createQuery.append(this.getTableSQLName());
+		createQuery.append("_REPORTED (local_element_id VARCHAR(255) NOT NULL, local_concept_id VARCHAR(246) NOT NULL) ENGINE=MyISAM DEFAULT CHARSET=latin1;");
+		
+		StringBuffer loadingQuery = new StringBuffer();
+		loadingQuery.append("LOAD DATA LOCAL INFILE '");
+		loadingQuery.append(reportedFile.getAbsolutePath().replace("\\", "/"));
+		loadingQuery.append("' INTO TABLE ");
+		loadingQuery.append(this.getTableSQLName());
+		loadingQuery.append("_REPORTED FIELDS TERMINATED BY '\t' (local_element_id, local_concept_id);");
+		
+		/* Example of query
+		 * INSERT INTO obr_gm_annotation (element_id, concept_id, context_id, dictionary_id, workflow_status)
+			SELECT DISTINCT ET.id, CT.id, 12, 5, 1 FROM obr_gm_annotation_REPORTED RT, obr_gm_element ET, obs_concept CT 
+				WHERE RT.local_element_id=ET.local_element_id AND RT.local_concept_id=CT.local_concept_id; */
+		StringBuffer joinQuery = new StringBuffer();
+		joinQuery.append("INSERT INTO ");
+		joinQuery.append(this.getTableSQLName());
+		joinQuery.append(" (element_id, concept_id, context_id, dictionary_id, workflow_status) SELECT DISTINCT ET.id, CT.id, ");
+		joinQuery.append(contextID);
+		joinQuery.append(", ");
+		joinQuery.append(dictionaryID);
+		joinQuery.append(", ");
+		joinQuery.append(WorkflowStatusEnum.DIRECT_ANNOTATION_DONE.getStatus());
+		joinQuery.append(" FROM ");
+		joinQuery.append(this.getTableSQLName());
+		joinQuery.append("_REPORTED RT, ");
+		joinQuery.append(ElementDao.name(this.resourceID));
+		joinQuery.append(" ET, ");
+		joinQuery.append(conceptDao.getTableSQLName());
+		joinQuery.append(" CT WHERE RT.local_element_id=ET.local_element_id AND RT.local_concept_id=CT.local_concept_id;");
+		
+		timer.start();
+		try{
+			this.executeSQLUpdate("DROP TEMPORARY TABLE IF EXISTS " + this.getTableSQLName() + "_REPORTED;");
+			this.executeSQLUpdate(createQuery.toString());
+			try{
+				this.executeSQLUpdate(loadingQuery.toString());
+				loaded = true;
+				nbAnnotation = this.executeSQLUpdate(joinQuery.toString());
+			}
+			finally{
+				this.executeSQLUpdate("DROP TEMPORARY TABLE IF EXISTS " + this.getTableSQLName() + "_REPORTED;");
+			}
+		}
+		catch(SQLException e){
+			if(!loaded){
+				logger.error("** PROBLEM ** Cannot load the reported annotations file " + reportedFile.getName() + ". -1 returned", e);
+				return -1;
+			}
+			logger.error("** PROBLEM ** Cannot add the reported annotations of file " + reportedFile.getName() + ". 0 returned", e);
+		}
+		timer.end();
+		logger.info("\tReported annotations of context " + contextName + " loaded in: "
+				+ timer.millisecondsToTimeString(timer.duration()));
+		
 		return nbAnnotation;
 	}
 	
+	//********************************* WATERMARK FUNCTIONS *****************************************************/
+	
+	/**
+	 * Returns the largest element_id of the table, -1 if the table is empty.
+	 */
+	public long getMaxElementID(){
+		long maxElementID = -1;
+		try{
+			ResultSet rSet = this.executeSQLQuery("SELECT MAX(element_id) FROM " + this.getTableSQLName() + ";");
+			if(rSet.next() && rSet.getObject(1) != null){
+				maxElementID = rSet.getLong(1);
+			}
+			rSet.close();
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot get the largest element_id from " + this.getTableSQLName() + ". -1 returned", e);
+		}
+		return maxElementID;
+	}
+	
+	/**
+	 * Returns true if the annotations waiting for the semantic expansion and the aggregation are the annotations 
+	 * of the elements above the given watermark: all the annotations of the elements up to the watermark are aggregated, 
+	 * and no annotation is between the expansion and the aggregation of a workflow using the workflow_status.
+	 * It is not the case when elements below the watermark are annotated again (e.g. with a new dictionary).
+	 */
+	public boolean isWatermarkValid(long watermark){
+		if(watermark < 0){
+			return false;
+		}
+		boolean valid = false;
+		try{
+			StringBuffer queryb = new StringBuffer();
+			queryb.append("SELECT element_id FROM ");
+			queryb.append(this.getTableSQLName());
+			queryb.append(" WHERE workflow_status IN (");
+			queryb.append(WorkflowStatusEnum.IS_A_CLOSURE_DONE.getStatus());
+			queryb.append(", ");
+			queryb.append(WorkflowStatusEnum.MAPPING_DONE.getStatus());
+			queryb.append(") LIMIT 1;");
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			valid = !rSet.next();
+			rSet.close();
+			if(valid){
+				queryb = new StringBuffer();
+				queryb.append("SELECT element_id FROM ");
+				queryb.append(this.getTableSQLName());
+				queryb.append(" WHERE workflow_status = ");
+				queryb.append(WorkflowStatusEnum.DIRECT_ANNOTATION_DONE.getStatus());
+				queryb.append(" AND element_id <= ");
+				queryb.append(watermark);
+				queryb.append(" LIMIT 1;");
+				rSet = this.executeSQLQuery(queryb.toString());
+				valid = !rSet.next();
+				rSet.close();
+			}
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot check the watermark " + watermark + " on table " + this.getTableSQLName() + ". false returned", e);
+			valid = false;
+		}
+		return valid;
+	}
+	
 	//********************************* DELETE FUNCTIONS *****************************************************/
 	 
 	private void openDeleteEntriesFromOntologyStatement(){
@@ -497,7 +765,6 @@ public class DirectAnnotationDao extends AbstractObrDao {
 		try {
 			if(stopwords.size()>0){
 				nbDelete = this.executeSQLUpdate(queryb.toString());
-				this.closeTableGenericStatement();	
 			}
 			else{
 				nbDelete = 0;
@@ -604,6 +871,24 @@ public class DirectAnnotationDao extends AbstractObrDao {
 		 
 	}
 	
+	/**
+	 * Adds to the given counter the number of mgrep and reported annotations of each ontology
+	 * among the direct annotations not yet expanded (workflow_status {@code DIRECT_ANNOTATION_DONE}), 
+	 * with one scan of these annotations.
+	 */
+	public void countAnnotationStatistics(OntologyStatisticsCounter counter){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT CT.ontology_id, SUM(DAT.term_id IS NOT NULL), SUM(DAT.term_id IS NULL) FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" AS DAT, ");
+		queryb.append(conceptDao.getMemoryTableSQLName());
+		queryb.append(" AS CT WHERE DAT.concept_id=CT.id AND DAT.workflow_status = ");
+		queryb.append(WorkflowStatusEnum.DIRECT_ANNOTATION_DONE.getStatus());
+		queryb.append(" GROUP BY CT.ontology_id;");
+		this.countStatistics(queryb.toString(), counter, 
+				new int[]{OntologyStatisticsCounter.MGREP, OntologyStatisticsCounter.REPORTED}, 1);
+	}
+	
 	public boolean isIndexExist(){
 		boolean isIndexExist= false;
 		try {			 			
@@ -1,13 +1,23 @@
 package org.ncbo.stanford.obr.dao.annotation.expanded;
 
+import java.io.File;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.ncbo.stanford.obr.dao.AbstractObrDao;
 import org.ncbo.stanford.obr.dao.obs.concept.ConceptDao;
 import org.ncbo.stanford.obr.dao.obs.ontology.OntologyDao;
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
+import org.ncbo.stanford.obr.enumeration.WorkflowStatusEnum;
+import org.ncbo.stanford.obr.util.FileResourceParameters;
 
 import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
 
@@ -37,8 +47,25 @@ import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
  */
 public abstract class AbstractExpandedAnnotationDao extends AbstractObrDao {
   
+	// Number of threads used by the java expansions
+	private static final int EXPANSION_THREADS = getIntegerProperty("obr.expansion.threads", Runtime.getRuntime().availableProcessors());
+	
 	private PreparedStatement deleteEntriesFromOntologyStatement;
 	
+	/**
+	 * Expansion of the direct annotations of a range of element_id into a file loaded in the expanded annotation table.
+	 */
+	protected interface RangeExpansion {
+		
+		/**
+		 * Writes in the given file the expanded annotations of the direct annotations with an element_id 
+		 * between fromElementID and toElementID (inclusive).
+		 * 
+		 * @return the number of expanded annotations written.
+		 */
+		long expand(long fromElementID, long toElementID, File expandedFile) throws Exception;
+	}
+	
 	/**
 	 * Creates a new ExpandedAnnotationTable with a given resourceID.
 	 * The suffix that will be added for AnnotationTable is "_EAT".
@@ -63,6 +90,145 @@ public abstract class AbstractExpandedAnnotationDao extends AbstractObrDao {
 	
 	/****************************************** FUNCTIONS ON THE TABLE ***************************/ 
 
+	//********************************* JAVA EXPANSION FUNCTIONS *****************************************************/
+	
+	/**
+	 * Splits the direct annotations of the given table waiting for the expansion in ranges of element_id, 
+	 * expands the ranges in parallel (obr.expansion.threads) and loads the files written by the expansion
+	 * in the table. The workflow_status of the direct annotations is not changed.
+	 * 
+	 * @param status workflow_status of the direct annotations waiting for the expansion, used if fromElementID is negative
+	 * @param fromElementID if not negative, the direct annotations of the elements between the watermarks 
+	 * fromElementID (exclusive) and toElementID (inclusive) are expanded whatever their workflow_status
+	 * @param columns columns of the table written in the files by the expansion, e.g. "(element_id, concept_id)"
+	 * @return the number of expanded annotations loaded.
+	 */
+	protected long parallelExpansion(String annotationTableName, WorkflowStatusEnum status, long fromElementID, long toElementID, 
+			String columns, final RangeExpansion expansion) throws SQLException, ExecutionException, InterruptedException {
+		ResultSet rSet = this.executeSQLQuery("SELECT MIN(element_id), MAX(element_id) FROM " + annotationTableName 
+				+ " WHERE " + pendingCondition("", status, fromElementID, toElementID) + ";");
+		long minElementID = 0;
+		long maxElementID = -1;
+		if(rSet.next() && rSet.getObject(1) != null){
+			minElementID = rSet.getLong(1);
+			maxElementID = rSet.getLong(2);
+		}
+		rSet.close();
+		if(maxElementID < minElementID){
+			return 0;
+		}
+		
+		long nbAnnotation = 0;
+		int nbThreads = Math.max(1, EXPANSION_THREADS);
+		long rangeSize = (maxElementID - minElementID) / nbThreads + 1;
+		ExecutorService executorService = Executors.newFixedThreadPool(nbThreads);
+		List<File> expandedFiles = new ArrayList<File>();
+		try{
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for(int i = 0; i < nbThreads; i++){
+				final long from = minElementID + i * rangeSize;
+				final long to = Math.min(maxElementID, from + rangeSize - 1);
+				if(from > to){
+					break;
+				}
+				final File expandedFile = new File(FileResourceParameters.mgrepOutputFolder() + this.getTableSQLName() + "_" + i + ".expanded");
+				expandedFiles.add(expandedFile);
+				results.add(executorService.submit(new Callable<Long>() {
+					public Long call() throws Exception {
+						return expansion.expand(from, to, expandedFile);
+					}
+				}));
+			}
+			for(Future<Long> result: results){
+				nbAnnotation += result.get();
+			}
+			for(File expandedFile: expandedFiles){
+				StringBuffer loadingQuery = new StringBuffer();
+				loadingQuery.append("LOAD DATA LOCAL INFILE '");
+				loadingQuery.append(expandedFile.getAbsolutePath().replace("\\", "/"));
+				loadingQuery.append("' INTO TABLE ");
+				loadingQuery.append(this.getTableSQLName());
+				loadingQuery.append(" FIELDS TERMINATED BY '\t' ");
+				loadingQuery.append(columns);
+				loadingQuery.append(";");
+				this.executeSQLUpdate(loadingQuery.toString());
+			}
+		}
+		finally{
+			executorService.shutdownNow();
+			for(File expandedFile: expandedFiles){
+				expandedFile.delete();
+			}
+		}
+		return nbAnnotation;
+	}
+	
+	/**
+	 * Returns the query selecting [element_id, concept_id, context_id, position_from, position_to] of the direct annotations 
+	 * with the given workflow_status (any workflow_status if null) and an element_id between from and to (inclusive).
+	 */
+	protected static String rangeAnnotationQuery(String annotationTableName, WorkflowStatusEnum status, long from, long to){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT element_id, concept_id, context_id, position_from, position_to FROM ");
+		queryb.append(annotationTableName);
+		queryb.append(" WHERE ");
+		if(status != null){
+			queryb.append("workflow_status = ");
+			queryb.append(status.getStatus());
+			queryb.append(" AND ");
+		}
+		queryb.append("element_id BETWEEN ");
+		queryb.append(from);
+		queryb.append(" AND ");
+		queryb.append(to);
+		queryb.append(";");
+		return queryb.toString();
+	}
+	
+	/**
+	 * Returns the workflow_status of the created expanded annotations: {@code INDEXING_NOT_DONE}, or {@code INDEXING_DONE} 
+	 * for an expansion of the elements of a watermark range, whose aggregation also selects the expanded annotations
+	 * by element_id.
+	 */
+	protected static WorkflowStatusEnum expandedStatus(long fromElementID){
+		return fromElementID < 0 ? WorkflowStatusEnum.INDEXING_NOT_DONE : WorkflowStatusEnum.INDEXING_DONE;
+	}
+	
+	/**
+	 * Deletes the expanded annotations of the elements between the watermarks fromElementID (exclusive) 
+	 * and toElementID (inclusive), left by an interrupted expansion of these elements.
+	 * 
+	 * @return number of deleted annotations
+	 */
+	protected long deleteExpansions(long fromElementID, long toElementID) throws SQLException {
+		return this.executeSQLUpdate("DELETE FROM " + this.getTableSQLName() + " WHERE " 
+				+ pendingCondition("", null, fromElementID, toElementID) + ";");
+	}
+	
+	/**
+	 * Adds to the given column of the counter the number of expanded annotations of each ontology 
+	 * among the annotations not yet aggregated: the annotations with the workflow_status {@code INDEXING_NOT_DONE}, 
+	 * or the annotations of the elements between the watermarks fromElementID (exclusive) and toElementID (inclusive).
+	 */
+	public void countAnnotationStatistics(OntologyStatisticsCounter counter, int column, long fromElementID, long toElementID){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT CT.ontology_id, COUNT(EAT.concept_id) FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" AS EAT, ");
+		queryb.append(conceptDao.getMemoryTableSQLName());
+		queryb.append(" AS CT WHERE EAT.concept_id=CT.id AND ");
+		queryb.append(pendingCondition("EAT.", WorkflowStatusEnum.INDEXING_NOT_DONE, fromElementID, toElementID));
+		queryb.append(" GROUP BY CT.ontology_id;");
+		this.countStatistics(queryb.toString(), counter, new int[]{column}, 1);
+	}
+	
+	/**
+	 * Returns the value of a nullable column in a LOAD DATA file.
+	 */
+	protected static String loadDataValue(String value){
+		return value == null ? "\\N" : value;
+	}
+	
 	//********************************* DELETE FUNCTIONS *****************************************************/
 	
 	/**
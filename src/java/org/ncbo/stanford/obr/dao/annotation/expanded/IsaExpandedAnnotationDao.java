@@ -1,15 +1,21 @@
 package org.ncbo.stanford.obr.dao.annotation.expanded;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import obs.common.beans.DictionaryBean;
 
 import org.ncbo.stanford.obr.dao.annotation.DirectAnnotationDao;
 import org.ncbo.stanford.obr.enumeration.WorkflowStatusEnum;
+import org.ncbo.stanford.obr.util.IsaClosureGraph;
 import org.ncbo.stanford.obr.util.MessageUtils;
 
 import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
@@ -37,6 +43,8 @@ import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
 public class IsaExpandedAnnotationDao extends AbstractExpandedAnnotationDao {
 
 	private static final String TABLE_SUFFIX = MessageUtils.getMessage("obr.isa.expanded.annotation.table.suffix");
+	// True to expand the direct annotations with the is_a closure loaded in memory instead of a join with the relation memory table
+	private static final boolean JAVA_EXPANSION = Boolean.parseBoolean(MessageUtils.getMessage("obr.expansion.isa.java"));
 	private PreparedStatement deleteEntriesFromOntologyStatement;
 	
 	/**
@@ -113,7 +121,39 @@ public class IsaExpandedAnnotationDao extends AbstractExpandedAnnotationDao {
 	 * @param maxLevel {@code int} if greater than zero then restrict is closure expansion annotations upto this level  
 	 * @return {@code int} the number of isaClosure annotations created in the corresponding _EAT.
 	 */
-	public long isaClosureExpansion(DirectAnnotationDao annotationDao){
+	public long isaClosureExpansion(DirectAnnotationDao annotationDao, int maxLevel){
+		return this.isaClosureExpansion(annotationDao, maxLevel, -1, -1);
+	}
+	
+	/**
+	 * Populates the table with isa transitive closure annotations of the direct annotations waiting for the expansion.
+	 * If fromElementID is not negative, the direct annotations of the elements between the watermarks fromElementID (exclusive) 
+	 * and toElementID (inclusive) are expanded instead of the ones selected by their workflow_status: the isa annotations
+	 * left in this range by an interrupted expansion are first removed, the isa annotations are created with the 
+	 * workflow_status {@code INDEXING_DONE} and the workflow_status of the direct annotations is not updated.
+	 * 
+	 * @param annotationDao
+	 * @param maxLevel {@code int} if greater than zero then restrict is closure expansion annotations upto this level
+	 * @param fromElementID watermark of the last element expanded, or -1 to use the workflow_status 
+	 * @param toElementID watermark of the last element to expand
+	 * @return {@code int} the number of isaClosure annotations created in the corresponding _EAT.
+	 */
+	public long isaClosureExpansion(DirectAnnotationDao annotationDao, int maxLevel, long fromElementID, long toElementID){
+		if(fromElementID >= 0){
+			try{
+				this.deleteExpansions(fromElementID, toElementID);
+			}
+			catch(SQLException e){
+				logger.error("** PROBLEM ** Cannot delete the interrupted isa transitive closure expansions from " + this.getTableSQLName() +". 0 returned", e);
+				return 0;
+			}
+		}
+		if(JAVA_EXPANSION){
+			IsaClosureGraph graph = relationDao.getIsaClosureGraph();
+			if(graph != null){
+				return this.javaIsaClosureExpansion(annotationDao, graph, maxLevel, fromElementID, toElementID);
+			}
+		}
 		long nbAnnotation;		 
 		// Query Used :
 		// 		INSERT obr_tr_expanded_annotation(element_id, concept_id, context_id, child_concept_id, parent_level, indexing_done)
@@ -127,13 +167,17 @@ public class IsaExpandedAnnotationDao extends AbstractExpandedAnnotationDao {
 		queryb.append(this.getTableSQLName());
 		queryb.append(" (element_id, concept_id, context_id, child_concept_id, parent_level, position_from, position_to, workflow_status) SELECT element_id, ISAPT.parent_concept_id, context_id");
 	 	queryb.append(", DAT.concept_id, level, DAT.position_from, DAT.position_to, ");
-		queryb.append(WorkflowStatusEnum.INDEXING_NOT_DONE.getStatus());
+		queryb.append(expandedStatus(fromElementID).getStatus());
 		queryb.append(" FROM ");
 		queryb.append(annotationDao.getTableSQLName());
 		queryb.append(" AS DAT, ");			 
 		queryb.append(relationDao.getMemoryTableSQLName()); // Join with memory table.
-		queryb.append(" AS ISAPT WHERE DAT.concept_id = ISAPT.concept_id AND DAT.workflow_status = ");
-		queryb.append(WorkflowStatusEnum.DIRECT_ANNOTATION_DONE.getStatus());		 
+		queryb.append(" AS ISAPT WHERE DAT.concept_id = ISAPT.concept_id AND ");
+		queryb.append(pendingCondition("DAT.", WorkflowStatusEnum.DIRECT_ANNOTATION_DONE, fromElementID, toElementID));
+		if(maxLevel > 0){
+			queryb.append(" AND ISAPT.level <= ");
+			queryb.append(maxLevel);
+		}
 		queryb.append("; ");
 		
 		StringBuffer updatingQueryb = new StringBuffer();
@@ -145,7 +189,9 @@ public class IsaExpandedAnnotationDao extends AbstractExpandedAnnotationDao {
 		updatingQueryb.append(WorkflowStatusEnum.DIRECT_ANNOTATION_DONE.getStatus());
 		try{
 			nbAnnotation = this.executeWithStoreProcedure(this.getTableSQLName(), queryb.toString(), false);
-			this.executeSQLUpdate(updatingQueryb.toString());
+			if(fromElementID < 0){
+				this.executeSQLUpdate(updatingQueryb.toString());
+			}
 		}
 		catch(SQLException e){
 			logger.error("** PROBLEM ** Cannot execute the isa transitive closure on table " + this.getTableSQLName() +". 0 returned", e);
@@ -154,6 +200,141 @@ public class IsaExpandedAnnotationDao extends AbstractExpandedAnnotationDao {
 		return nbAnnotation;
 	} 
 	
+	/**
+	 * Java version of the isa transitive closure expansion. The direct annotations waiting for the expansion are 
+	 * split in ranges of element_id expanded in parallel with the given is_a closure: each range is streamed from 
+	 * the direct annotation table and its expanded annotations are written in a file, then loaded in the table.
+	 *  
+	 * @return the number of isaClosure annotations created.
+	 */
+	private long javaIsaClosureExpansion(DirectAnnotationDao annotationDao, final IsaClosureGraph graph, final int maxLevel, long fromElementID, long toElementID){
+		long nbAnnotation;
+		final String annotationTableName = annotationDao.getTableSQLName();
+		
+		StringBuffer updatingQueryb = new StringBuffer();
+		updatingQueryb.append("UPDATE ");
+		updatingQueryb.append(annotationTableName);
+		updatingQueryb.append(" SET workflow_status = ");
+		updatingQueryb.append(WorkflowStatusEnum.IS_A_CLOSURE_DONE.getStatus());
+		updatingQueryb.append(" WHERE workflow_status = ");
+		updatingQueryb.append(WorkflowStatusEnum.DIRECT_ANNOTATION_DONE.getStatus());
+		try{
+			// The direct annotations of the watermark range are read whatever their workflow_status
+			final WorkflowStatusEnum directStatus = fromElementID < 0 ? WorkflowStatusEnum.DIRECT_ANNOTATION_DONE : null;
+			final WorkflowStatusEnum expandedStatus = expandedStatus(fromElementID);
+			nbAnnotation = this.parallelExpansion(annotationTableName, WorkflowStatusEnum.DIRECT_ANNOTATION_DONE, fromElementID, toElementID, 
+					"(element_id, concept_id, context_id, position_from, position_to, child_concept_id, parent_level, workflow_status)", 
+					new RangeExpansion() {
+						public long expand(long fromElementID, long toElementID, File expandedFile) throws Exception {
+							return expandRange(annotationTableName, directStatus, fromElementID, toElementID, graph, maxLevel, expandedStatus, expandedFile);
+						}
+					});
+			if(fromElementID < 0){
+				this.executeSQLUpdate(updatingQueryb.toString());
+			}
+		}
+		catch(ExecutionException e){
+			logger.error("** PROBLEM ** Cannot expand the annotations of " + annotationTableName + ". 0 returned", e.getCause());
+			nbAnnotation = 0;
+		}
+		catch(InterruptedException e){
+			logger.error("** PROBLEM ** Isa transitive closure expansion interrupted on table " + this.getTableSQLName() +". 0 returned", e);
+			Thread.currentThread().interrupt();
+			nbAnnotation = 0;
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot execute the isa transitive closure on table " + this.getTableSQLName() +". 0 returned", e);
+			nbAnnotation = 0;
+		}
+		return nbAnnotation;
+	}
+	
+	/**
+	 * Writes in the given file the expanded annotations of the direct annotations with the given workflow_status 
+	 * (any workflow_status if null) and an element_id between from and to (inclusive).
+	 * 
+	 * @return the number of expanded annotations written.
+	 */
+	private long expandRange(String annotationTableName, WorkflowStatusEnum directStatus, long from, long to, IsaClosureGraph graph, int maxLevel, 
+			WorkflowStatusEnum expandedStatus, File expandedFile) throws SQLException, IOException {
+		String status = String.valueOf(expandedStatus.getStatus());
+		long nbAnnotation = 0;
+		BufferedWriter out = new BufferedWriter(new FileWriter(expandedFile), 256 * 1024);
+		try{
+			ResultSet rSet = this.executeSQLQueryWithFetching(rangeAnnotationQuery(annotationTableName, directStatus, from, to));
+			try{
+				while(rSet.next()){
+					int conceptID = rSet.getInt(2);
+					int first = graph.getFirstParent(conceptID);
+					int end = graph.getEndParent(conceptID, maxLevel);
+					if(first == end){
+						continue;
+					}
+					// Columns shared by all the expanded annotations of the direct annotation
+					String elementID = rSet.getString(1);
+					String contextID = rSet.getString(3);
+					String positionFrom = loadDataValue(rSet.getString(4));
+					String positionTo = loadDataValue(rSet.getString(5));
+					String childConceptID = Integer.toString(conceptID);
+					for(int i = first; i < end; i++){
+						out.write(elementID);
+						out.write('\t');
+						out.write(Integer.toString(graph.getParent(i)));
+						out.write('\t');
+						out.write(contextID);
+						out.write('\t');
+						out.write(positionFrom);
+						out.write('\t');
+						out.write(positionTo);
+						out.write('\t');
+						out.write(childConceptID);
+						out.write('\t');
+						out.write(Integer.toString(graph.getLevel(i)));
+						out.write('\t');
+						out.write(status);
+						out.write('\n');
+						nbAnnotation++;
+					}
+				}
+			}
+			finally{
+				rSet.close();
+			}
+		}
+		finally{
+			out.close();
+		}
+		return nbAnnotation;
+	}
+	
+	/**
+	 * Deletes the isa transitive closure annotations created from the direct annotations still waiting for the isa transitive closure expansion.
+	 * Such annotations are left by an interrupted isa transitive closure expansion and would be duplicated by the next one.
+	 * 
+	 * @param annotationDao
+	 * @return number of deleted annotations
+	 */
+	public long deleteInterruptedExpansions(DirectAnnotationDao annotationDao){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("DELETE EAT FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" EAT, ");
+		queryb.append(annotationDao.getTableSQLName());
+		queryb.append(" DAT WHERE EAT.element_id=DAT.element_id AND EAT.context_id=DAT.context_id AND EAT.child_concept_id=DAT.concept_id");
+		queryb.append(" AND EAT.position_from<=>DAT.position_from AND EAT.position_to<=>DAT.position_to AND EAT.workflow_status=");
+		queryb.append(WorkflowStatusEnum.INDEXING_NOT_DONE.getStatus());
+		queryb.append(" AND DAT.workflow_status=");
+		queryb.append(WorkflowStatusEnum.DIRECT_ANNOTATION_DONE.getStatus());
+		queryb.append(";");
+		try{
+			return this.executeSQLUpdate(queryb.toString());
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot delete the interrupted isa transitive closure expansions from " + this.getTableSQLName(), e);
+		}
+		return 0;
+	}
+	
 	//********************************* DELETE FUNCTIONS *****************************************************/
 	
 	/**
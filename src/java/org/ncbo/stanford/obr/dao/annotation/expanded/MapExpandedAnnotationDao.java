@@ -1,15 +1,21 @@
 package org.ncbo.stanford.obr.dao.annotation.expanded;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import obs.common.beans.DictionaryBean;
 
 import org.ncbo.stanford.obr.dao.annotation.DirectAnnotationDao;
 import org.ncbo.stanford.obr.enumeration.WorkflowStatusEnum;
+import org.ncbo.stanford.obr.util.MappingIndex;
 import org.ncbo.stanford.obr.util.MessageUtils;
 
 import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
@@ -37,6 +43,8 @@ import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
 public class MapExpandedAnnotationDao extends AbstractExpandedAnnotationDao {
 
 	private static final String TABLE_SUFFIX = MessageUtils.getMessage("obr.map.expanded.annotation.table.suffix");
+	// True to expand the direct annotations with the mappings loaded in memory instead of a join with the map memory table
+	private static final boolean JAVA_EXPANSION = Boolean.parseBoolean(MessageUtils.getMessage("obr.expansion.mapping.java"));
 	private PreparedStatement deleteEntriesFromOntologyStatement;
 	
 	/**
@@ -114,6 +122,37 @@ public class MapExpandedAnnotationDao extends AbstractExpandedAnnotationDao {
 	 * @return Returns the number of mapping annotations created in the corresponding _EAT.
 	 */
 	public long mappingExpansion(DirectAnnotationDao annotationDao){
+		return this.mappingExpansion(annotationDao, -1, -1);
+	}
+	
+	/**
+	 * Populates the table with mapping annotations of the direct annotations waiting for the mapping expansion.
+	 * If fromElementID is not negative, the direct annotations of the elements between the watermarks fromElementID (exclusive) 
+	 * and toElementID (inclusive) are expanded instead of the ones selected by their workflow_status: the mapping annotations
+	 * left in this range by an interrupted expansion are first removed, the mapping annotations are created with the 
+	 * workflow_status {@code INDEXING_DONE} and the workflow_status of the direct annotations is not updated.
+	 * 
+	 * @param annotationDao
+	 * @param fromElementID watermark of the last element expanded, or -1 to use the workflow_status 
+	 * @param toElementID watermark of the last element to expand
+	 * @return Returns the number of mapping annotations created in the corresponding _EAT.
+	 */
+	public long mappingExpansion(DirectAnnotationDao annotationDao, long fromElementID, long toElementID){
+		if(fromElementID >= 0){
+			try{
+				this.deleteExpansions(fromElementID, toElementID);
+			}
+			catch(SQLException e){
+				logger.error("** PROBLEM ** Cannot delete the interrupted mapping expansions from " + this.getTableSQLName() +". 0 returned", e);
+				return 0;
+			}
+		}
+		if(JAVA_EXPANSION){
+			MappingIndex mappingIndex = mapDao.getMappingIndex();
+			if(mappingIndex != null){
+				return this.javaMappingExpansion(annotationDao, mappingIndex, fromElementID, toElementID);
+			}
+		}
 		long nbAnnotation;	 
 		// Query Used :
 		// 		INSERT obr_tr_expanded_annotation(element_id, concept_id, context_id, mapped_concept_id, mapping_type, indexing_done)
@@ -127,13 +166,13 @@ public class MapExpandedAnnotationDao extends AbstractExpandedAnnotationDao {
 		queryb.append(this.getTableSQLName());
 		queryb.append(" (element_id, concept_id, context_id, mapped_concept_id, mapping_type, position_from, position_to, workflow_status) SELECT element_id, MAPT.mapped_concept_id, context_id, ");
 		queryb.append("DAT.concept_id, mapping_type, DAT.position_from, DAT.position_to, ");
-		queryb.append(WorkflowStatusEnum.INDEXING_NOT_DONE.getStatus());	
+		queryb.append(expandedStatus(fromElementID).getStatus());	
 		queryb.append(" FROM ");	   
 		queryb.append(annotationDao.getTableSQLName());
 		queryb.append(" AS DAT, ");		
 		queryb.append(mapDao.getMemoryTableSQLName()); // JOin with memory map table
-		queryb.append(" AS MAPT WHERE DAT.concept_id = MAPT.concept_id AND DAT.workflow_status = ");
-		queryb.append(WorkflowStatusEnum.IS_A_CLOSURE_DONE.getStatus());		 
+		queryb.append(" AS MAPT WHERE DAT.concept_id = MAPT.concept_id AND ");
+		queryb.append(pendingCondition("DAT.", WorkflowStatusEnum.IS_A_CLOSURE_DONE, fromElementID, toElementID));
 		queryb.append("; ");
 		
 		StringBuffer updatingQueryb = new StringBuffer();
@@ -146,7 +185,9 @@ public class MapExpandedAnnotationDao extends AbstractExpandedAnnotationDao {
 		
 		try{
 			nbAnnotation = this.executeWithStoreProcedure(this.getTableSQLName(), queryb.toString(), false);
-			this.executeSQLUpdate(updatingQueryb.toString());
+			if(fromElementID < 0){
+				this.executeSQLUpdate(updatingQueryb.toString());
+			}
 		}
 		catch(SQLException e){
 			logger.error("** PROBLEM ** Cannot execute the mapping expansion query on table " + this.getTableSQLName() +". 0 returned", e);
@@ -155,6 +196,141 @@ public class MapExpandedAnnotationDao extends AbstractExpandedAnnotationDao {
 		return nbAnnotation;
 	}
 	
+	/**
+	 * Java version of the mapping expansion. The direct annotations waiting for the mapping expansion are 
+	 * split in ranges of element_id expanded in parallel with the given mappings: each range is streamed from 
+	 * the direct annotation table and its mapping annotations are written in a file, then loaded in the table.
+	 *  
+	 * @return the number of mapping annotations created.
+	 */
+	private long javaMappingExpansion(DirectAnnotationDao annotationDao, final MappingIndex mappingIndex, long fromElementID, long toElementID){
+		long nbAnnotation;
+		final String annotationTableName = annotationDao.getTableSQLName();
+		
+		StringBuffer updatingQueryb = new StringBuffer();
+		updatingQueryb.append("UPDATE ");
+		updatingQueryb.append(annotationTableName);
+		updatingQueryb.append(" SET workflow_status = ");
+		updatingQueryb.append(WorkflowStatusEnum.MAPPING_DONE.getStatus());
+		updatingQueryb.append(" WHERE workflow_status = ");
+		updatingQueryb.append(WorkflowStatusEnum.IS_A_CLOSURE_DONE.getStatus());
+		try{
+			// The direct annotations of the watermark range are read whatever their workflow_status
+			final WorkflowStatusEnum directStatus = fromElementID < 0 ? WorkflowStatusEnum.IS_A_CLOSURE_DONE : null;
+			final WorkflowStatusEnum expandedStatus = expandedStatus(fromElementID);
+			nbAnnotation = this.parallelExpansion(annotationTableName, WorkflowStatusEnum.IS_A_CLOSURE_DONE, fromElementID, toElementID, 
+					"(element_id, concept_id, context_id, position_from, position_to, mapped_concept_id, mapping_type, workflow_status)", 
+					new RangeExpansion() {
+						public long expand(long fromElementID, long toElementID, File expandedFile) throws Exception {
+							return expandRange(annotationTableName, directStatus, fromElementID, toElementID, mappingIndex, expandedStatus, expandedFile);
+						}
+					});
+			if(fromElementID < 0){
+				this.executeSQLUpdate(updatingQueryb.toString());
+			}
+		}
+		catch(ExecutionException e){
+			logger.error("** PROBLEM ** Cannot expand the annotations of " + annotationTableName + ". 0 returned", e.getCause());
+			nbAnnotation = 0;
+		}
+		catch(InterruptedException e){
+			logger.error("** PROBLEM ** Mapping expansion interrupted on table " + this.getTableSQLName() +". 0 returned", e);
+			Thread.currentThread().interrupt();
+			nbAnnotation = 0;
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot execute the mapping expansion on table " + this.getTableSQLName() +". 0 returned", e);
+			nbAnnotation = 0;
+		}
+		return nbAnnotation;
+	}
+	
+	/**
+	 * Writes in the given file the mapping annotations of the direct annotations with the given workflow_status 
+	 * (any workflow_status if null) and an element_id between from and to (inclusive).
+	 * 
+	 * @return the number of mapping annotations written.
+	 */
+	private long expandRange(String annotationTableName, WorkflowStatusEnum directStatus, long from, long to, MappingIndex mappingIndex, 
+			WorkflowStatusEnum expandedStatus, File expandedFile) throws SQLException, IOException {
+		String status = String.valueOf(expandedStatus.getStatus());
+		long nbAnnotation = 0;
+		BufferedWriter out = new BufferedWriter(new FileWriter(expandedFile), 256 * 1024);
+		try{
+			ResultSet rSet = this.executeSQLQueryWithFetching(rangeAnnotationQuery(annotationTableName, directStatus, from, to));
+			try{
+				while(rSet.next()){
+					int conceptID = rSet.getInt(2);
+					int first = mappingIndex.getFirstMapping(conceptID);
+					int end = mappingIndex.getEndMapping(conceptID);
+					if(first == end){
+						continue;
+					}
+					// Columns shared by all the mapping annotations of the direct annotation
+					String elementID = rSet.getString(1);
+					String contextID = rSet.getString(3);
+					String positionFrom = loadDataValue(rSet.getString(4));
+					String positionTo = loadDataValue(rSet.getString(5));
+					String mappedConceptID = Integer.toString(conceptID);
+					for(int i = first; i < end; i++){
+						out.write(elementID);
+						out.write('\t');
+						out.write(Integer.toString(mappingIndex.getMappedConcept(i)));
+						out.write('\t');
+						out.write(contextID);
+						out.write('\t');
+						out.write(positionFrom);
+						out.write('\t');
+						out.write(positionTo);
+						out.write('\t');
+						out.write(mappedConceptID);
+						out.write('\t');
+						out.write(Integer.toString(mappingIndex.getMappingType(i)));
+						out.write('\t');
+						out.write(status);
+						out.write('\n');
+						nbAnnotation++;
+					}
+				}
+			}
+			finally{
+				rSet.close();
+			}
+		}
+		finally{
+			out.close();
+		}
+		return nbAnnotation;
+	}
+	
+	/**
+	 * Deletes the mapping annotations created from the direct annotations still waiting for the mapping expansion.
+	 * Such annotations are left by an interrupted mapping expansion and would be duplicated by the next one.
+	 * 
+	 * @param annotationDao
+	 * @return number of deleted annotations
+	 */
+	public long deleteInterruptedExpansions(DirectAnnotationDao annotationDao){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("DELETE EAT FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" EAT, ");
+		queryb.append(annotationDao.getTableSQLName());
+		queryb.append(" DAT WHERE EAT.element_id=DAT.element_id AND EAT.context_id=DAT.context_id AND EAT.mapped_concept_id=DAT.concept_id");
+		queryb.append(" AND EAT.position_from<=>DAT.position_from AND EAT.position_to<=>DAT.position_to AND EAT.workflow_status=");
+		queryb.append(WorkflowStatusEnum.INDEXING_NOT_DONE.getStatus());
+		queryb.append(" AND DAT.workflow_status=");
+		queryb.append(WorkflowStatusEnum.IS_A_CLOSURE_DONE.getStatus());
+		queryb.append(";");
+		try{
+			return this.executeSQLUpdate(queryb.toString());
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot delete the interrupted mapping expansions from " + this.getTableSQLName(), e);
+		}
+		return 0;
+	}
+	
 	//********************************* DELETE FUNCTIONS *****************************************************/
 	
 	/**
@@ -3,9 +3,11 @@ package org.ncbo.stanford.obr.dao.context;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 
 import org.ncbo.stanford.obr.dao.AbstractObrDao;
 import org.ncbo.stanford.obr.util.MessageUtils;
+import org.ncbo.stanford.obr.util.StringIntHashMap;
 
 import com.mysql.jdbc.exceptions.MySQLIntegrityConstraintViolationException;
 import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
@@ -87,7 +89,7 @@ public class ContexDao extends AbstractObrDao {
 	 * Add an new entry in corresponding SQL table.
 	 * @return True if the entry was added to the SQL table, false if a problem occurred during insertion.
 	 */
-	public boolean addEntry(ContextEntry entry){
+	public synchronized boolean addEntry(ContextEntry entry){
 		boolean inserted = false;
 		try {
 			addEntryStatement.setString(1, entry.getContextName());
@@ -121,7 +123,7 @@ public class ContexDao extends AbstractObrDao {
 		getContextIDByContextNameStatement = this.prepareSQLStatement(queryb.toString());
 	}
 
-	public int getContextIDByContextName(String contextName){
+	public synchronized int getContextIDByContextName(String contextName){
 		int contextID = -1;
 		try {
 			getContextIDByContextNameStatement.setString(1, contextName);
@@ -139,6 +141,64 @@ public class ContexDao extends AbstractObrDao {
 		}
 		return contextID;
 	}	
+	
+	/**
+	 * Loads the [name, id] pairs of all the contexts into the given map.
+	 */
+	public synchronized void loadContextIDs(StringIntHashMap contextIDs){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT name, id FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(";");
+		try{
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			while(rSet.next()){
+				contextIDs.put(rSet.getString(1), rSet.getInt(2));
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			this.loadContextIDs(contextIDs);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot load the context ids from " + this.getTableSQLName() + ".", e);
+		}
+	}
+
+	/**
+	 * Returns the weights of the contexts of the given resource, indexed by context id.
+	 * The weight of the other ids is NaN.
+	 */
+	public synchronized double[] getContextWeights(String resourceID){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT id, weight FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" WHERE name LIKE '");
+		queryb.append(resourceID);
+		queryb.append("%';");
+		double[] weights = new double[0];
+		try{
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			while(rSet.next()){
+				int contextID = rSet.getInt(1);
+				if(contextID >= weights.length){
+					double[] newWeights = new double[contextID + 1];
+					System.arraycopy(weights, 0, newWeights, 0, weights.length);
+					Arrays.fill(newWeights, weights.length, newWeights.length, Double.NaN);
+					weights = newWeights;
+				}
+				weights[contextID] = rSet.getDouble(2);
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.getContextWeights(resourceID);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the context weights of resource " + resourceID + " from " + this.getTableSQLName() + ".", e);
+		}
+		return weights;
+	}
 
 	/********************************* ENTRY CLASS *****************************************************/
 
@@ -188,12 +248,47 @@ public class ContexDao extends AbstractObrDao {
 	}
 
 	/**
-	 * This method loads obr_context table into memory.
+	 * This method loads the contexts of the given resource from obr_context table into memory.
+	 * 
+	 * <p>Only the rows of the given resource are refreshed in the memory table, so that 
+	 * resources processed in parallel do not drop the contexts used by each other.
+	 * 
 	 * @param resourceID 
 	 * 
 	 */
-	public void loadTableIntoMemory(String resourceID) {		 
-		callStoredProcedure("load_context_table_into_memory", resourceID);
-		logger.info("\t" +this.getTableSQLName()+ " loaded in to memory.");
+	public synchronized void loadTableIntoMemory(String resourceID) {
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("CREATE TABLE IF NOT EXISTS ");
+		queryb.append(this.getMemoryTableSQLName());
+		queryb.append(" (id INT(11) UNSIGNED, weight DOUBLE, KEY X_");
+		queryb.append(this.getMemoryTableSQLName());
+		queryb.append("_id (id)) ENGINE=MEMORY DEFAULT CHARSET=latin1;");
+		
+		StringBuffer deleteQuery = new StringBuffer();
+		deleteQuery.append("DELETE FROM ");
+		deleteQuery.append(this.getMemoryTableSQLName());
+		deleteQuery.append(" WHERE id IN (SELECT id FROM ");
+		deleteQuery.append(this.getTableSQLName());
+		deleteQuery.append(" WHERE name LIKE '");
+		deleteQuery.append(resourceID);
+		deleteQuery.append("%');");
+		
+		StringBuffer insertQuery = new StringBuffer();
+		insertQuery.append("INSERT INTO ");
+		insertQuery.append(this.getMemoryTableSQLName());
+		insertQuery.append(" (id, weight) SELECT id, weight FROM ");
+		insertQuery.append(this.getTableSQLName());
+		insertQuery.append(" WHERE name LIKE '");
+		insertQuery.append(resourceID);
+		insertQuery.append("%';");
+		try{
+			this.executeSQLUpdate(queryb.toString());
+			this.executeSQLUpdate(deleteQuery.toString());
+			this.executeSQLUpdate(insertQuery.toString());
+			logger.info("\t" +this.getTableSQLName()+ " loaded in to memory.");
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot load contexts of resource " + resourceID + " into " + this.getMemoryTableSQLName(), e);
+		}
 	}
 }
@@ -1,17 +1,22 @@
 package org.ncbo.stanford.obr.dao.dictionary;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.regex.Pattern;
 
 import obs.common.beans.DictionaryBean;
+import obs.common.utils.ExecutionTimer;
 
 import org.ncbo.stanford.obr.dao.AbstractObrDao;
 import org.ncbo.stanford.obr.dao.obs.term.TermDao;
@@ -39,6 +44,12 @@ public class DictionaryDao extends AbstractObrDao {
 
 	protected static final String TABLE_SUFFIX = MessageUtils.getMessage("obr.dictionary.table.suffix");
 	
+	// Property listing the black lists used to create the dictionary files
+	private static final String BLACK_LIST_PROPERTY = "obr.dictionary.blacklist";
+	private static final String DEFAULT_BLACK_LIST = "OBS_MGREP_empty.txt";
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+	private static final Pattern NEW_LINE_PATTERN = Pattern.compile(NEW_LINE_REGEX);
+	
 	private static PreparedStatement addEntryStatement;
 	private static PreparedStatement getLastDictionaryBeanStatement;
 	private static PreparedStatement deleteEntryStatement;
@@ -159,7 +170,7 @@ public class DictionaryDao extends AbstractObrDao {
 		getLastDictionaryBeanStatement = this.prepareSQLStatement(queryb.toString());
 	}
 	
-	public DictionaryBean getLastDictionaryBean(){
+	public synchronized DictionaryBean getLastDictionaryBean(){
 		DictionaryBean dictionary;
 		try {
 			ResultSet rSet = this.executeSQLQuery(getLastDictionaryBeanStatement);
@@ -200,35 +211,63 @@ public class DictionaryDao extends AbstractObrDao {
 	}
 	
 	/**
-	 * Adds to the query to create the dictionary a restriction on the terms selected 
-	 * according to a given blacklist.
+	 * Returns the black lists used to create the given dictionary: the files of the blacklists folder listed 
+	 * (comma separated) in property obr.dictionary.blacklist.[dictionaryID], or by default in property 
+	 * obr.dictionary.blacklist (OBS_MGREP_empty.txt if not specified).
+	 * 
+	 * @param dictionaryID the dictionary, or -1 for the complete dictionary (default black lists)
 	 */
-	private String blackListFilter(){
-		// Specify the black list to use here
-		//String blacklist = "OBS_MGREP_basics.txt";
-		String blacklist = "OBS_MGREP_empty.txt";
-		StringBuffer sb = new StringBuffer();
-		sb.append("name NOT IN(''");
-		// reads the black list file
-		File blackFile = new File(FileResourceParameters.blackListFolder() + blacklist);
-		try{
-		FileReader fstream = new FileReader(blackFile);
-		BufferedReader in = new BufferedReader(fstream);
-		String line = in.readLine();
-		while (line != null){
-			sb.append(", '");
-			sb.append(line);
-			sb.append("'");
-			line = in.readLine();
+	private static String blackListFiles(int dictionaryID){
+		String blackListFiles = null;
+		if(dictionaryID >= 0){
+			blackListFiles = MessageUtils.getMessage(BLACK_LIST_PROPERTY + "." + dictionaryID);
 		}
-		in.close();
-		fstream.close();
+		if(blackListFiles == null || blackListFiles.trim().length() == 0){
+			blackListFiles = MessageUtils.getMessage(BLACK_LIST_PROPERTY);
 		}
-		catch (IOException e) {
-			logger.error("** PROBLEM ** Cannot read balck list to filter the dictionary.", e);
+		if(blackListFiles == null || blackListFiles.trim().length() == 0){
+			blackListFiles = DEFAULT_BLACK_LIST;
 		}
-		sb.append(")");
-		return sb.toString();
+		return blackListFiles;
+	}
+	
+	/**
+	 * Reads the terms of the given black lists, used to filter the terms of the dictionary file.
+	 * The empty name is always black listed.
+	 */
+	private static HashSet<String> readBlackList(String blackListFiles){
+		HashSet<String> blackList = new HashSet<String>();
+		blackList.add(EMPTY_STRING);
+		for(String blackListFile: blackListFiles.split(",")){
+			File blackFile = new File(FileResourceParameters.blackListFolder() + blackListFile.trim());
+			try{
+				FileReader fstream = new FileReader(blackFile);
+				BufferedReader in = new BufferedReader(fstream);
+				String line = in.readLine();
+				while (line != null){
+					blackList.add(blackListKey(line));
+					line = in.readLine();
+				}
+				in.close();
+				fstream.close();
+			}
+			catch (IOException e) {
+				logger.error("** PROBLEM ** Cannot read balck list " + blackFile.getName() + " to filter the dictionary.", e);
+			}
+		}
+		return blackList;
+	}
+	
+	/**
+	 * Returns the name compared to the black list: the name without its trailing spaces,
+	 * lower cased with the English locale (case insensitive match, accents are kept).
+	 */
+	private static String blackListKey(String name){
+		int end = name.length();
+		while(end > 0 && name.charAt(end - 1) == ' '){
+			end--;
+		}
+		return name.substring(0, end).toLowerCase(Locale.ENGLISH);
 	}
 	
 	/**
@@ -244,18 +283,13 @@ public class DictionaryDao extends AbstractObrDao {
 		queryb.append(conceptDao.getMemoryTableSQLName());
 		queryb.append(" CT, ");
 		queryb.append(ontologyDao.getMemoryTableSQLName());
-		queryb.append(" OT WHERE TT.concept_id=CT.id AND CT.ontology_id=OT.id AND TT.");		 
-		queryb.append(this.blackListFilter());
-		queryb.append(" AND OT.dictionary_id = ");
+		queryb.append(" OT WHERE TT.concept_id=CT.id AND CT.ontology_id=OT.id AND OT.dictionary_id = ");
 		queryb.append(dictionaryID);
 		queryb.append("; "); 
 		
 		long nbLines = 0;
 		try{
-			ResultSet couplesSet = this.executeSQLQuery(queryb.toString());
-			nbLines = this.writeFile(file, couplesSet);
-			couplesSet.close();
-			this.closeTableGenericStatement();
+			nbLines = this.writeFile(file, queryb.toString(), blackListFiles(dictionaryID));
 		}
 		catch(Exception e){
 			logger.error("** PROBLEM ** Cannot write dictionary file " + file.getName()+" with dictionaryID: " + dictionaryID, e);
@@ -273,16 +307,11 @@ public class DictionaryDao extends AbstractObrDao {
 		StringBuffer queryb = new StringBuffer();		 
 		queryb.append("SELECT id, name FROM ");
 		queryb.append(TermDao.name());
-		queryb.append(" TT WHERE TT.");		 
-		queryb.append(this.blackListFilter());
 		queryb.append("; "); 
 		
 		long nbLines = 0;
 		try{
-			ResultSet couplesSet = this.executeSQLQuery(queryb.toString());
-			nbLines = this.writeFile(file, couplesSet);
-			couplesSet.close();
-			this.closeTableGenericStatement();
+			nbLines = this.writeFile(file, queryb.toString(), blackListFiles(-1));
 		}
 		catch(Exception e){
 			logger.error("** PROBLEM ** Cannot write complete dictionary file " + file.getName(), e);
@@ -290,27 +319,89 @@ public class DictionaryDao extends AbstractObrDao {
 		return nbLines;
 	} 
 	
-	private long writeFile(File file, ResultSet couplesSet) throws IOException, SQLException {
+	/**
+	 * Streams the [id name] couples selected by the given query, and writes the ones whose name is not in the given
+	 * black lists in the given file, through a buffered file channel. The duration of each phase is logged.
+	 * 
+	 * @return The number of lines written in the given file.
+	 */
+	private long writeFile(File file, String query, String blackListFiles) throws IOException, SQLException {
+		ExecutionTimer timer = new ExecutionTimer();
+		timer.start();
+		HashSet<String> blackList = readBlackList(blackListFiles);
+		timer.end();
+		long blackListDuration = timer.duration();
+		
+		timer.reset();
+		timer.start();
+		ResultSet couplesSet = this.executeSQLQueryWithFetching(query);
+		timer.end();
+		long queryDuration = timer.duration();
+		
+		timer.reset();
+		timer.start();
 		long nbLines = 0;
-		FileWriter fstream = new FileWriter(file);
-		BufferedWriter out = new BufferedWriter(fstream);
-		StringBuffer lineb = new StringBuffer();
-		while(couplesSet.next()){
-			String column1 = couplesSet.getString(1);
-			String column2 = couplesSet.getString(2);
-			lineb.append(column1);
-			lineb.append("\t");
-			lineb.append(column2.replaceAll(NEW_LINE_REGEX, BLANK_SPACE));
-			out.write(lineb.toString());
-			lineb.delete(0, lineb.length());
-			//out.newLine();
-			// Have to be in Unix format for the mgrep tool
-			out.write("\n");
-			nbLines++;
+		long nbBlackListed = 0;
+		long nbBytes = 0;
+		FileOutputStream fstream = new FileOutputStream(file);
+		FileChannel channel = fstream.getChannel();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+		try{
+			while(couplesSet.next()){
+				String name = couplesSet.getString(2);
+				if(name == null || blackList.contains(blackListKey(name))){
+					nbBlackListed++;
+					continue;
+				}
+				if(name.indexOf('\n') >= 0){
+					name = NEW_LINE_PATTERN.matcher(name).replaceAll(BLANK_SPACE);
+				}
+				// Have to be in Unix format for the mgrep tool
+				byte[] line = (couplesSet.getString(1) + "\t" + name + "\n").getBytes();
+				if(line.length > buffer.remaining()){
+					nbBytes += writeBuffer(channel, buffer);
+					if(line.length > buffer.capacity()){
+						ByteBuffer lineBuffer = ByteBuffer.wrap(line);
+						while(lineBuffer.hasRemaining()){
+							nbBytes += channel.write(lineBuffer);
+						}
+						nbLines++;
+						continue;
+					}
+				}
+				buffer.put(line);
+				nbLines++;
+			}
+			nbBytes += writeBuffer(channel, buffer);
 		}
-		out.close();
-		fstream.close();
+		finally{
+			couplesSet.close();
+			channel.close();
+			fstream.close();
+		}
+		timer.end();
+		
+		logger.info("\t\tDictionary file " + file.getName() + " written: " + nbLines + " terms (" + nbBytes + " bytes), " 
+				+ nbBlackListed + " terms filtered by black lists " + blackListFiles + " (" + blackList.size() + " names).");
+		logger.info("\t\tBlack lists read in " + timer.millisecondsToTimeString(blackListDuration) 
+				+ ", query executed in " + timer.millisecondsToTimeString(queryDuration) 
+				+ ", terms streamed and written in " + timer.millisecondsToTimeString(timer.duration()) + ".");
 		return nbLines;
 	}
+	
+	/**
+	 * Writes the content of the given buffer to the given channel and clears the buffer.
+	 * 
+	 * @return The number of bytes written.
+	 */
+	private static long writeBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+		long nbBytes = 0;
+		buffer.flip();
+		while(buffer.hasRemaining()){
+			nbBytes += channel.write(buffer);
+		}
+		buffer.clear();
+		return nbBytes;
+	}
 		
 }
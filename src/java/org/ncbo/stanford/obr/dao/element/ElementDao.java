@@ -19,6 +19,7 @@ import org.ncbo.stanford.obr.dao.AbstractObrDao;
 import org.ncbo.stanford.obr.dao.annotation.DirectAnnotationDao;
 import org.ncbo.stanford.obr.dao.annotation.DirectAnnotationDao.DirectAnnotationEntry;
 import org.ncbo.stanford.obr.enumeration.WorkflowStatusEnum;
+import org.ncbo.stanford.obr.util.FileResourceParameters;
 import org.ncbo.stanford.obr.util.MessageUtils;
 import org.ncbo.stanford.obr.util.StringUtilities;
 
@@ -51,14 +52,32 @@ public class ElementDao extends AbstractObrDao {
 
 	private static final String TABLE_SUFFIX = MessageUtils.getMessage("obr.element.table.suffix");
 	
+	// Number of elements inserted with one multi-row INSERT (1 to insert the elements one by one)
+	private static final int INSERT_BATCH_SIZE = getInsertBatchSize();
+	// Maximum number of characters of the context texts of one batch, to keep the INSERT under max_allowed_packet
+	private static final int INSERT_BATCH_MAX_CHARS = 512 * 1024;
+	
+	// Extension of the files of reported annotations loaded in the annotation table
+	private static final String REPORTED_FILE_EXTENSION = ".reported";
+	
 	/** Suffix used for temporary table*/
 	protected static final String TEMP_TABLE_SUFFIX = MessageUtils.getMessage("obr.temp.element.table.suffix");
 	
 	private ArrayList<String> contextNames;
 	
+	// Largest element id of the current window of elements to process, -1 if no window is opened 
+	private long windowMaxElementID = -1;
+	
 	private PreparedStatement addEntryStatement;	 
 	private PreparedStatement getAllLocalElementIDsStatement;
 	
+	// Elements waiting to be inserted by the next batch
+	private ArrayList<Element> batchElements = new ArrayList<Element>();
+	private HashSet<String> batchLocalElementIDs = new HashSet<String>();
+	private int batchChars = 0;
+	// Number of elements not added because already in the table 
+	private long nbDuplicateElement = 0;
+	
 	/**
 	 * Creates a new elementTable with a given resourceID and a resource structure.
 	 * The suffix that will be added for AnnotationTable is "_ET".
@@ -201,6 +220,94 @@ public class ElementDao extends AbstractObrDao {
 		 
 	}
 	
+	/**
+	 * Opens the next window of at most maxNumberOfElementsToProcess non annotated elements (in element id order)
+	 * for the given dictionary. Until {@link #closeElementWindow()}, the methods working on the non annotated
+	 * elements only consider the elements of this window. As the window is given by its largest element id,
+	 * it is also seen by the other connections (unlike the temporary table).
+	 * 
+	 * @param dictionaryID used to find non annotated element
+	 * @param maxNumberOfElementsToProcess
+	 * @return the largest element id of the window or -1 if all the elements are annotated
+	 */
+	public long openElementWindow(int dictionaryID, int maxNumberOfElementsToProcess){
+		this.closeElementWindow();
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT MAX(id) FROM (SELECT id FROM ");
+		queryb.append(this.getTableSQLName());
+		this.appendNonAnnotatedCondition(queryb, dictionaryID);
+		queryb.append(" ORDER BY id LIMIT ");
+		queryb.append(maxNumberOfElementsToProcess);
+		queryb.append(") W;");
+		try{
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			if(rSet.first() && rSet.getObject(1) != null){
+				this.windowMaxElementID = rSet.getLong(1);
+			}
+			rSet.close();
+		}catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot open the window of elements to process on table " + this.getTableSQLName(), e);
+		}
+		return this.windowMaxElementID;
+	}
+	
+	/**
+	 * Closes the current window of elements, all the non annotated elements are considered again.
+	 */
+	public void closeElementWindow(){
+		this.windowMaxElementID = -1;
+	}
+	
+	/**
+	 * Appends the condition selecting the elements not annotated with the given dictionary,
+	 * restricted to the current window of elements if any.
+	 */
+	private void appendNonAnnotatedCondition(StringBuffer queryb, int dictionaryID){
+		queryb.append(" WHERE (dictionary_id IS NULL OR dictionary_id<");
+		queryb.append(dictionaryID);
+		queryb.append(")");
+		this.appendWindowCondition(queryb);
+	}
+	
+	private void appendWindowCondition(StringBuffer queryb){
+		if(this.windowMaxElementID >= 0){
+			queryb.append(" AND id<=");
+			queryb.append(this.windowMaxElementID);
+		}
+	}
+	
+	/**
+	 * Deletes the annotations made with the given dictionary for the elements not yet annotated with this dictionary.
+	 * Such annotations are left by an interrupted annotation of these elements and would be duplicated by the next one.
+	 * 
+	 * @param dictionaryID
+	 * @param directAnnotationDao
+	 * @return number of deleted annotations
+	 */
+	public long deleteInterruptedAnnotations(int dictionaryID, DirectAnnotationDao directAnnotationDao){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("DELETE DAT FROM ");
+		queryb.append(directAnnotationDao.getTableSQLName());
+		queryb.append(" DAT, ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" ET WHERE DAT.element_id=ET.id AND DAT.dictionary_id=");
+		queryb.append(dictionaryID);
+		queryb.append(" AND (ET.dictionary_id IS NULL OR ET.dictionary_id<");
+		queryb.append(dictionaryID);
+		queryb.append(")");
+		if(this.windowMaxElementID >= 0){
+			queryb.append(" AND ET.id<=");
+			queryb.append(this.windowMaxElementID);
+		}
+		queryb.append(";");
+		try{
+			return this.executeSQLUpdate(queryb.toString());
+		}catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot delete the interrupted annotations from " + directAnnotationDao.getTableSQLName(), e);
+		}
+		return 0;
+	}
+	
 	public boolean resetDictionary(){
 		boolean updated = false;
 		StringBuffer queryb = new StringBuffer();
@@ -267,8 +374,7 @@ public class ElementDao extends AbstractObrDao {
 			return this.addEntry(element);
 		}
 		catch (MySQLIntegrityConstraintViolationException e){
-			// TODO: not to catch this exception here 
-			//logger.info("Table " + this.getTableSQLName() + " already contains a row for element " + element.getLocalElementId() +".");
+			this.reportDuplicate(element.getLocalElementId());
 		}
 		catch (SQLException e) {
 			logger.error("** PROBLEM ** Cannot add an entry on table " + this.getTableSQLName(), e);
@@ -276,6 +382,173 @@ public class ElementDao extends AbstractObrDao {
 		return inserted;	
 	} 
 	
+	/**
+	 * Adds an element to the batch of elements to insert in the corresponding _ET table. 
+	 * The batch is inserted with one multi-row INSERT when it contains obr.elements.insert.batch.size elements,
+	 * or when {@link #flushEntries()} is called. If the batch size is 1, the element is inserted immediately 
+	 * with {@link #addEntry(Element)}.
+	 * 
+	 * @return True if the element was queued in the batch, false if the batch already contains this element. 
+	 * An element queued is not inserted if the table already contains it when the batch is inserted: it is then
+	 * only counted by {@link #getNumberOfDuplicateElements()}.
+	 */
+	public boolean addEntryToBatch(Element element){
+		if(INSERT_BATCH_SIZE <= 1){
+			return this.addEntry(element);
+		}
+		if(!this.batchLocalElementIDs.add(element.getLocalElementId())){
+			this.reportDuplicate(element.getLocalElementId());
+			return false;
+		}
+		this.batchElements.add(element);
+		for(String contextName: this.contextNames){
+			String itemValue = element.getElementStructure().getText(contextName);
+			if(itemValue != null){
+				this.batchChars += itemValue.length();
+			}
+		}
+		if(this.batchElements.size() >= INSERT_BATCH_SIZE || this.batchChars >= INSERT_BATCH_MAX_CHARS){
+			this.flushEntries();
+		}
+		return true;
+	}
+	
+	/**
+	 * Inserts the elements waiting in the batch. The elements already contained in the table are 
+	 * reported and not inserted.
+	 * 
+	 * @return number of elements inserted
+	 */
+	public int flushEntries(){
+		if(this.batchElements.isEmpty()){
+			return 0;
+		}
+		ArrayList<Element> elements = new ArrayList<Element>(this.batchElements.size());
+		HashSet<String> existingLocalElementIDs = this.getExistingLocalElementIDs(this.batchLocalElementIDs);
+		for (Element element : this.batchElements) {
+			if(existingLocalElementIDs.contains(element.getLocalElementId())){
+				this.reportDuplicate(element.getLocalElementId());
+			}else{
+				elements.add(element);
+			}
+		}
+		this.batchElements.clear();
+		this.batchLocalElementIDs.clear();
+		this.batchChars = 0;
+		if(elements.isEmpty()){
+			return 0;
+		}
+		
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("INSERT INTO ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" (local_element_id");
+		for(String contextName: this.contextNames){
+			queryb.append(", ");
+			queryb.append(contextName);
+		}
+		queryb.append(") VALUES ");
+		for (int i = 0; i < elements.size(); i++) {
+			if(i > 0){
+				queryb.append(", ");
+			}
+			queryb.append("(?");
+			for (int j = 0; j < this.contextNames.size(); j++) {
+				queryb.append(", ?");
+			}
+			queryb.append(")");
+		}
+		queryb.append(";");
+		
+		int nbInserted = 0;
+		PreparedStatement insertStatement = this.prepareSQLStatement(queryb.toString());
+		try{
+			int index = 1;
+			for (Element element : elements) {
+				insertStatement.setString(index++, element.getLocalElementId());
+				for(String contextName: this.contextNames){
+					String itemValue = element.getElementStructure().getText(contextName);
+					insertStatement.setString(index++, StringUtilities.escapeLine(itemValue));
+				}
+			}
+			nbInserted = (int) this.executeSQLUpdate(insertStatement);
+			insertStatement.close();
+		}
+		catch (SQLException e) {
+			// Inserts the elements one by one (the ones already inserted are reported as duplicates) 
+			logger.error("** PROBLEM ** Cannot insert a batch of " + elements.size() + " elements in table " + this.getTableSQLName() + ", elements inserted one by one.", e);
+			nbInserted = 0;
+			for (Element element : elements) {
+				if(this.addEntry(element)){
+					nbInserted++;
+				}
+			}
+		}
+		return nbInserted;
+	}
+	
+	/**
+	 * Returns the given local element IDs already contained in the table.
+	 */
+	private HashSet<String> getExistingLocalElementIDs(HashSet<String> localElementIDs){
+		HashSet<String> existingLocalElementIDs = new HashSet<String>();
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT local_element_id FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" WHERE local_element_id IN (");
+		for (int i = 0; i < localElementIDs.size(); i++) {
+			if(i > 0){
+				queryb.append(", ");
+			}
+			queryb.append("?");
+		}
+		queryb.append(");");
+		try{
+			PreparedStatement selectStatement = this.prepareSQLStatement(queryb.toString());
+			int index = 1;
+			for (String localElementID : localElementIDs) {
+				selectStatement.setString(index++, localElementID);
+			}
+			ResultSet rSet = this.executeSQLQuery(selectStatement);
+			while(rSet.next()){
+				existingLocalElementIDs.add(rSet.getString(1));
+			}
+			rSet.close();
+			selectStatement.close();
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the existing elements of table " + this.getTableSQLName(), e);
+		}
+		return existingLocalElementIDs;
+	}
+	
+	private void reportDuplicate(String localElementID){
+		this.nbDuplicateElement++;
+		logger.info("Table " + this.getTableSQLName() + " already contains a row for element " + localElementID + ", element not added.");
+	}
+	
+	/**
+	 * Returns the number of elements not added by {@link #addEntryToBatch(Element)} because already in the table.
+	 */
+	public long getNumberOfDuplicateElements(){
+		return this.nbDuplicateElement;
+	}
+	
+	/**
+	 * Resets the number of elements not added because already in the table (at the end of an update of the resource).
+	 */
+	public void resetNumberOfDuplicateElements(){
+		this.nbDuplicateElement = 0;
+	}
+	
+	private static int getInsertBatchSize(){
+		try{
+			return Integer.parseInt(MessageUtils.getMessage("obr.elements.insert.batch.size").trim());
+		}catch (Exception e) {
+			return 1;
+		}
+	}
+	
 	private void openGetAllLocalElementIDsStatement(){
 		StringBuffer queryb = new StringBuffer();
 		queryb.append("SELECT local_element_id FROM ");
@@ -382,11 +655,32 @@ public class ElementDao extends AbstractObrDao {
 	 * @param useTemporaryElementTable 
 	 */
 	public void writeNonAnnotatedElements(File mgrepResourceFile, int dictionaryID, Structure structure){
+		try{
+			FileWriter foutstream = new FileWriter(mgrepResourceFile);
+			BufferedWriter out = new BufferedWriter(foutstream);
+			if(!this.writeNonAnnotatedElements(out, dictionaryID, structure)){
+				logger.error("** PROBLEM ** Cannot write the file " + mgrepResourceFile.getName()+".");
+			}
+			out.close();
+			foutstream.close();
+		}
+		catch (IOException e) {
+			logger.error("** PROBLEM ** Cannot write the Mgrep file for exporting resource.", e);
+		}
+	}
+	
+	/**
+	 * Writes all the non annotated elements according to a given dictionaryID to the given writer 
+	 * (lines [elementID	contextID	text]) as they are read from the table. 
+	 * Used to stream the elements directly to the concept recognizer. The writer is not closed.
+	 * 
+	 * @return true if all the elements have been written
+	 */
+	public boolean writeNonAnnotatedElements(BufferedWriter out, int dictionaryID, Structure structure){
 		StringBuffer queryb = new StringBuffer();
 		queryb.append("SELECT * FROM ");
 		queryb.append(this.getTableSQLName());		 
-		queryb.append(" WHERE dictionary_id IS NULL OR dictionary_id<");
-		queryb.append(dictionaryID);		 
+		this.appendNonAnnotatedCondition(queryb, dictionaryID);
 		queryb.append(";");
 		
 		//loads the contextName-contextID in a temporary structure to avoid querying the DB when executing the resultset streaming
@@ -396,8 +690,6 @@ public class ElementDao extends AbstractObrDao {
 		}
 		
 		try{
-			FileWriter foutstream = new FileWriter(mgrepResourceFile);
-			BufferedWriter out = new BufferedWriter(foutstream);
 			ResultSet rSet = this.executeSQLQueryWithFetching(queryb.toString());
 			// For each row in the table, splits the row in several lines in the file
 			while(rSet.next()){
@@ -417,16 +709,43 @@ public class ElementDao extends AbstractObrDao {
 				}
 			}
 			rSet.close();
-			this.closeTableGenericStatement();
-			out.close();
-			foutstream.close();
+			out.flush();
+			return true;
 		}
 		catch (IOException e) {
-			logger.error("** PROBLEM ** Cannot write the Mgrep file for exporting resource.", e);
+			logger.error("** PROBLEM ** Cannot write the elements for exporting resource.", e);
 		}
 		catch(SQLException e){
-			logger.error("** PROBLEM ** Cannot write the file " + mgrepResourceFile.getName()+".", e);
+			logger.error("** PROBLEM ** Cannot read the elements to export from " + this.getTableSQLName()+".", e);
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the smallest and the largest element id of the non annotated elements
+	 * according to a given dictionaryID, or null if there is no such element.
+	 * 
+	 * @param dictionaryID
+	 * @return array [min id, max id]
+	 */
+	public long[] getNonAnnotatedElementIdRange(int dictionaryID){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT MIN(id), MAX(id) FROM ");
+		queryb.append(this.getTableSQLName());
+		this.appendNonAnnotatedCondition(queryb, dictionaryID);
+		queryb.append(";");
+		try{
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			long[] range = null;
+			if(rSet.first() && rSet.getObject(1) != null){
+				range = new long[]{rSet.getLong(1), rSet.getLong(2)};
+			}
+			rSet.close();
+			return range;
+		}catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the element id range of non annotated elements.", e);
 		}
+		return null;
 	}
 	
 	/**
@@ -440,8 +759,7 @@ public class ElementDao extends AbstractObrDao {
 		StringBuffer queryb = new StringBuffer();
 		queryb.append("SELECT count(id) FROM ");
 		queryb.append(this.getTableSQLName());
-		queryb.append(" WHERE dictionary_id IS NULL OR dictionary_id<");
-		queryb.append(dictionaryID);		 
+		this.appendNonAnnotatedCondition(queryb, dictionaryID);
 		queryb.append(";");
 		try{
 			ResultSet rSet = this.executeSQLQuery(queryb.toString());
@@ -470,8 +788,7 @@ public class ElementDao extends AbstractObrDao {
 		updatingQueryb.append(this.getTableSQLName());
 		updatingQueryb.append(" SET dictionary_id=");
 		updatingQueryb.append(dictionaryID);
-		updatingQueryb.append(" WHERE dictionary_id IS NULL OR dictionary_id<");
-		updatingQueryb.append(dictionaryID);		
+		this.appendNonAnnotatedCondition(updatingQueryb, dictionaryID);
 		updatingQueryb.append(";");
 		try{
 			nbUpdated = this.executeSQLUpdate(updatingQueryb.toString());
@@ -486,29 +803,124 @@ public class ElementDao extends AbstractObrDao {
 	/**
 	 * Add the reported annotations that pre-exist in the resource.
 	 * Reported annotations come from context with staticOntologyID in _CXT that is not null or -1. 
+	 * The pairs [localElementID	localConceptID] are streamed to a file loaded with 
+	 * {@link DirectAnnotationDao#loadReportedAnnotationFile(File, String, int)} which resolves the ids with one join.
+	 * If the file cannot be written or loaded, the annotations are added one by one.
 	 * 
 	 * @param directAnnotationDao 
 	 * @param useTemporaryElementTable 
 	 * 
 	 */
 	public long addExistingAnnotations(int dictionaryID, Structure structure, String contextName, String localOntologyID, boolean isNewVirsion, DirectAnnotationDao directAnnotationDao){		
+		File reportedFile = new File(FileResourceParameters.mgrepOutputFolder() + directAnnotationDao.getTableSQLName() 
+				+ "_" + contextName + REPORTED_FILE_EXTENSION);
+		long nbReportedAnnotations;
+		try{
+			BufferedWriter out = new BufferedWriter(new FileWriter(reportedFile));
+			long nbLines;
+			try{
+				nbLines = this.writeExistingAnnotations(out, dictionaryID, structure, contextName, localOntologyID, isNewVirsion);
+			}
+			finally{
+				out.close();
+			}
+			if(nbLines < 0){
+				return 0;
+			}
+			logger.info("\t" + nbLines + " reported annotations written for context " + contextName + ".");
+			nbReportedAnnotations = nbLines == 0 ? 0 : directAnnotationDao.loadReportedAnnotationFile(reportedFile, contextName, dictionaryID);
+			if(nbReportedAnnotations < 0){
+				logger.info("\tReported annotations of context " + contextName + " added one by one.");
+				nbReportedAnnotations = this.addExistingAnnotationEntries(dictionaryID, structure, contextName, localOntologyID, isNewVirsion, directAnnotationDao);
+			}
+		}
+		catch (IOException e) {
+			logger.error("** PROBLEM ** Cannot write the reported annotations file " + reportedFile.getName() + ", annotations added one by one.", e);
+			nbReportedAnnotations = this.addExistingAnnotationEntries(dictionaryID, structure, contextName, localOntologyID, isNewVirsion, directAnnotationDao);
+		}
+		finally{
+			reportedFile.delete();
+		}
+		return nbReportedAnnotations;
+	}
+	
+	/**
+	 * Writes the reported annotations of the given context (lines [localElementID	localConceptID]) 
+	 * as they are read from the table. The writer is not closed.
+	 * 
+	 * @return the number of lines written or -1 if the elements cannot be read
+	 */
+	private long writeExistingAnnotations(BufferedWriter out, int dictionaryID, Structure structure, String contextName, String localOntologyID, boolean isNewVirsion) throws IOException {
+		long nbLines = 0;
+		try{
+			ResultSet rSet = this.executeSQLQueryWithFetching(this.existingAnnotationsQuery(dictionaryID, contextName, isNewVirsion));
+			try{
+				while(rSet.next()){
+					String localElementID = escapeLoadDataField(rSet.getString(1));
+					String annotationSet  = rSet.getString(2);
+					if(annotationSet == null){
+						continue;
+					}
+					String[] splittedLocalConceptIDs = annotationSet.split(GT_SEPARATOR_STRING);
+					for (int i =0;i<splittedLocalConceptIDs.length;i++){
+						//if the this is a valid localConceptID (to exclude case with "" or " " in the reported annotation column
+						if(splittedLocalConceptIDs[i].matches(".*/.*")){
+							out.write(localElementID);
+							out.write('\t');
+							out.write(escapeLoadDataField(splittedLocalConceptIDs[i].replace(structure.getOntoID(contextName), localOntologyID)));
+							out.newLine();
+							nbLines++;
+						}
+					}
+				}
+			}
+			finally{
+				rSet.close();
+			}
+		}
+		catch(SQLException e){
+			logger.error("** PROBLEM ** Cannot report annotation from the table "+this.getTableSQLName()+". Empty set returned.", e);
+			return -1;
+		}
+		return nbLines;
+	}
+	
+	/**
+	 * Escapes the characters having a meaning for LOAD DATA (backslash, tab and new lines).
+	 */
+	private static String escapeLoadDataField(String field){
+		if(field.indexOf('\\') < 0 && field.indexOf('\t') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0){
+			return field;
+		}
+		return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+	
+	private String existingAnnotationsQuery(int dictionaryID, String contextName, boolean isNewVirsion){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT local_element_id, ");
+		queryb.append(contextName+" FROM ");
+		queryb.append(this.getTableSQLName());			 
+		queryb.append(" WHERE (dictionary_id IS NULL ");
+		
+		if(isNewVirsion){
+			queryb.append("OR dictionary_id<");
+			queryb.append(dictionaryID);
+		} 
+		queryb.append(")");
+		this.appendWindowCondition(queryb);
+		queryb.append(";");
+		return queryb.toString();
+	}
+	
+	/**
+	 * Add the reported annotations one by one with {@link DirectAnnotationDao#addEntries(HashSet)}.
+	 */
+	private long addExistingAnnotationEntries(int dictionaryID, Structure structure, String contextName, String localOntologyID, boolean isNewVirsion, DirectAnnotationDao directAnnotationDao){		
 				
 		HashSet<DirectAnnotationEntry> reportedAnnotations = new HashSet<DirectAnnotationEntry>();
 		long nbReportedAnnotations =0 ;
 		try{				
-			StringBuffer queryb = new StringBuffer();
-			queryb.append("SELECT local_element_id, ");
-			queryb.append(contextName+" FROM ");
-			queryb.append(this.getTableSQLName());			 
-			queryb.append(" WHERE dictionary_id IS NULL ");
-			
-			if(isNewVirsion){
-				queryb.append("OR dictionary_id<");
-				queryb.append(dictionaryID);
-			} 
-			
-			queryb.append(";");		
-			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			ResultSet rSet = this.executeSQLQuery(this.existingAnnotationsQuery(dictionaryID, contextName, isNewVirsion));
 			while(rSet.next()){
 				String localElementID = rSet.getString(1);		
 				String annotationSet  = rSet.getString(2);
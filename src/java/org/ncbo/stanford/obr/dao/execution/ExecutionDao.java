@@ -93,7 +93,7 @@ public class ExecutionDao extends AbstractObrDao {
 	 * Add an new entry in corresponding SQL table.
 	 * @return True if the entry was added to the SQL table, false if a problem occurred during insertion.
 	 */
-	public boolean addEntry(ExecutionEntry executionEntry){
+	public synchronized boolean addEntry(ExecutionEntry executionEntry){
 		boolean inserted = false;
 		try {			
 			addEntryStatement.setString(1, executionEntry.getResourceId());
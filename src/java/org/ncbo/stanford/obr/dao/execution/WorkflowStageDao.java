@@ -0,0 +1,259 @@
+package org.ncbo.stanford.obr.dao.execution;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Set;
+
+import org.ncbo.stanford.obr.dao.AbstractObrDao;
+import org.ncbo.stanford.obr.enumeration.WorkflowStageEnum;
+import org.ncbo.stanford.obr.util.MessageUtils;
+
+import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
+
+/**
+ * This class is a representation for the the obr_workflow_stage table.
+ * This table is the ledger of the stages of the workflow of each resource:
+ * a stage is recorded when it starts and marked with an end time when it is completed
+ * with a given dictionary. The entries of a resource are removed when its workflow is completed,
+ * so the remaining entries are the ones of an interrupted workflow.
+ */
+public class WorkflowStageDao extends AbstractObrDao {
+
+	// Table suffix string
+	private static final String TABLE_SUFFIX = MessageUtils.getMessage("obr.workflow.stage.table.suffix");
+
+	// Prepared statement for starting a stage.
+	private static PreparedStatement startStageStatement;
+
+	// Prepared statement for completing a stage.
+	private static PreparedStatement completeStageStatement;
+
+	/**
+	 * Default constructor
+	 */
+	private WorkflowStageDao() {
+		super(EMPTY_STRING, TABLE_SUFFIX);
+	}
+
+	public static String name(){
+		return OBR_PREFIX + TABLE_SUFFIX;
+	}
+
+	@Override
+	protected String creationQuery(){
+		return "CREATE TABLE " + getTableSQLName() +" (" +
+					"resource_id INT UNSIGNED NOT NULL, " +
+					"dictionary_id SMALLINT UNSIGNED NOT NULL, "+
+					"stage VARCHAR(32) NOT NULL, " +
+					"stage_beginning TIMESTAMP NULL DEFAULT NULL, " +
+					"stage_end TIMESTAMP NULL DEFAULT NULL, " +
+					"PRIMARY KEY (resource_id, dictionary_id, stage) " +
+				  ") ENGINE=MyISAM DEFAULT CHARSET=latin1;";
+	}
+
+	@Override
+	protected void openPreparedStatements() {
+		super.openPreparedStatements();
+		this.openAddEntryStatement();
+		this.openCompleteStageStatement();
+	}
+
+	@Override
+	protected void closePreparedStatements() throws SQLException {
+		super.closePreparedStatements();
+		startStageStatement.close();
+		completeStageStatement.close();
+	}
+
+	private static class WorkflowStageDaoHolder {
+		private final static WorkflowStageDao WORKFLOW_STAGE_DAO_INSTANCE = new WorkflowStageDao();
+	}
+
+	/**
+	 * Returns a WorkflowStageDao object by creating one if a singleton not already exists.
+	 */
+	public static WorkflowStageDao getInstance(){
+		return WorkflowStageDaoHolder.WORKFLOW_STAGE_DAO_INSTANCE;
+	}
+
+	/****************************************** FUNCTIONS ON THE TABLE ***************************/
+
+	@Override
+	protected void openAddEntryStatement(){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("INSERT INTO ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" (resource_id, dictionary_id, stage, stage_beginning, stage_end) VALUES ");
+		queryb.append(" ((SELECT RT.id FROM ");
+		queryb.append(resourceTableDao.getTableSQLName());
+		queryb.append(" RT WHERE RT.resource_id= ?), ?, ?, NOW(), NULL) ");
+		queryb.append("ON DUPLICATE KEY UPDATE stage_beginning=NOW(), stage_end=NULL;");
+		startStageStatement = this.prepareSQLStatement(queryb.toString());
+	}
+
+	private void openCompleteStageStatement(){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("UPDATE ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" SET stage_end=NOW() WHERE resource_id=(SELECT RT.id FROM ");
+		queryb.append(resourceTableDao.getTableSQLName());
+		queryb.append(" RT WHERE RT.resource_id= ?) AND dictionary_id=? AND stage=?;");
+		completeStageStatement = this.prepareSQLStatement(queryb.toString());
+	}
+
+	/**
+	 * Records the beginning of a stage of the workflow of the given resource.
+	 *
+	 * @return True if the stage was recorded, false if a problem occurred.
+	 */
+	public synchronized boolean startStage(String resourceID, int dictionaryID, WorkflowStageEnum stage){
+		boolean started = false;
+		try {
+			startStageStatement.setString(1, resourceID);
+			startStageStatement.setInt(2, dictionaryID);
+			startStageStatement.setString(3, stage.name());
+			this.executeSQLUpdate(startStageStatement);
+			started = true;
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			this.openAddEntryStatement();
+			return this.startStage(resourceID, dictionaryID, stage);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot start stage " + stage + " of resource " + resourceID + " on table " + this.getTableSQLName(), e);
+		}
+		return started;
+	}
+
+	/**
+	 * Records the end of a stage of the workflow of the given resource.
+	 *
+	 * @return True if the stage was recorded, false if a problem occurred.
+	 */
+	public synchronized boolean completeStage(String resourceID, int dictionaryID, WorkflowStageEnum stage){
+		boolean completed = false;
+		try {
+			completeStageStatement.setString(1, resourceID);
+			completeStageStatement.setInt(2, dictionaryID);
+			completeStageStatement.setString(3, stage.name());
+			this.executeSQLUpdate(completeStageStatement);
+			completed = true;
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			this.openCompleteStageStatement();
+			return this.completeStage(resourceID, dictionaryID, stage);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot complete stage " + stage + " of resource " + resourceID + " on table " + this.getTableSQLName(), e);
+		}
+		return completed;
+	}
+
+	/**
+	 * Returns the stages of the workflow of the given resource completed with the given dictionary.
+	 */
+	public synchronized Set<WorkflowStageEnum> getCompletedStages(String resourceID, int dictionaryID){
+		Set<WorkflowStageEnum> stages = EnumSet.noneOf(WorkflowStageEnum.class);
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT stage FROM ");
+		queryb.append(this.getTableSQLName());
+		this.appendResourceCondition(queryb, resourceID);
+		queryb.append(" AND dictionary_id=");
+		queryb.append(dictionaryID);
+		queryb.append(" AND stage_end IS NOT NULL;");
+		try {
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			while(rSet.next()){
+				stages.add(WorkflowStageEnum.valueOf(rSet.getString(1)));
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.getCompletedStages(resourceID, dictionaryID);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the completed stages of resource " + resourceID + " from " + this.getTableSQLName(), e);
+		}
+		return stages;
+	}
+
+	/**
+	 * Returns the stages of the workflow of the given resource started but not completed,
+	 * with the dictionary used by each one.
+	 */
+	public synchronized HashMap<WorkflowStageEnum, Integer> getInterruptedStages(String resourceID){
+		HashMap<WorkflowStageEnum, Integer> stages = new HashMap<WorkflowStageEnum, Integer>();
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT stage, dictionary_id FROM ");
+		queryb.append(this.getTableSQLName());
+		this.appendResourceCondition(queryb, resourceID);
+		queryb.append(" AND stage_end IS NULL;");
+		try {
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			while(rSet.next()){
+				stages.put(WorkflowStageEnum.valueOf(rSet.getString(1)), rSet.getInt(2));
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.getInterruptedStages(resourceID);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the interrupted stages of resource " + resourceID + " from " + this.getTableSQLName(), e);
+		}
+		return stages;
+	}
+
+	/**
+	 * Deletes all the entries of the given resource.
+	 *
+	 * @return True if the entries were successfully removed.
+	 */
+	public synchronized boolean deleteEntries(String resourceID){
+		return this.deleteEntries(resourceID, -1);
+	}
+
+	/**
+	 * Deletes the entries of the given resource recorded with another dictionary than the given one.
+	 *
+	 * @return True if the entries were successfully removed.
+	 */
+	public synchronized boolean deleteEntriesOfOtherDictionaries(String resourceID, int dictionaryID){
+		return this.deleteEntries(resourceID, dictionaryID);
+	}
+
+	private boolean deleteEntries(String resourceID, int exceptDictionaryID){
+		boolean deleted = false;
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("DELETE FROM ");
+		queryb.append(this.getTableSQLName());
+		this.appendResourceCondition(queryb, resourceID);
+		if(exceptDictionaryID >= 0){
+			queryb.append(" AND dictionary_id<>");
+			queryb.append(exceptDictionaryID);
+		}
+		queryb.append(";");
+		try{
+			this.executeSQLUpdate(queryb.toString());
+			deleted = true;
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.deleteEntries(resourceID, exceptDictionaryID);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot delete the stages of resource " + resourceID + " from " + this.getTableSQLName(), e);
+		}
+		return deleted;
+	}
+
+	private void appendResourceCondition(StringBuffer queryb, String resourceID){
+		queryb.append(" WHERE resource_id=(SELECT RT.id FROM ");
+		queryb.append(resourceTableDao.getTableSQLName());
+		queryb.append(" RT WHERE RT.resource_id='");
+		queryb.append(resourceID);
+		queryb.append("')");
+	}
+}
@@ -0,0 +1,173 @@
+package org.ncbo.stanford.obr.dao.execution;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.ncbo.stanford.obr.dao.AbstractObrDao;
+import org.ncbo.stanford.obr.enumeration.WorkflowStageEnum;
+import org.ncbo.stanford.obr.util.MessageUtils;
+
+import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
+
+/**
+ * This class is a representation for the the obr_workflow_watermark table.
+ * This table keeps for each resource and stage of the workflow the watermark of the stage:
+ * the largest element_id whose annotations went through the stage. When the watermarks are used
+ * (obr.workflow.watermark), the annotations waiting for a stage are selected by a range of element_id
+ * above its watermark instead of their workflow_status, and the watermark is recorded once at the end of the stage.
+ * Unlike the entries of the workflow stage table, the watermarks are kept when the workflow is completed.
+ */
+public class WorkflowWatermarkDao extends AbstractObrDao {
+
+	// Table suffix string
+	private static final String TABLE_SUFFIX = MessageUtils.getMessage("obr.workflow.watermark.table.suffix");
+
+	// Prepared statement for recording a watermark.
+	private static PreparedStatement setWatermarkStatement;
+
+	/**
+	 * Default constructor
+	 */
+	private WorkflowWatermarkDao() {
+		super(EMPTY_STRING, TABLE_SUFFIX);
+	}
+
+	public static String name(){
+		return OBR_PREFIX + TABLE_SUFFIX;
+	}
+
+	@Override
+	protected String creationQuery(){
+		return "CREATE TABLE " + getTableSQLName() +" (" +
+					"resource_id INT UNSIGNED NOT NULL, " +
+					"stage VARCHAR(32) NOT NULL, " +
+					"element_id INT UNSIGNED NOT NULL, " +
+					"watermark_date TIMESTAMP NULL DEFAULT NULL, " +
+					"PRIMARY KEY (resource_id, stage) " +
+				  ") ENGINE=MyISAM DEFAULT CHARSET=latin1;";
+	}
+
+	@Override
+	protected void openPreparedStatements() {
+		super.openPreparedStatements();
+		this.openAddEntryStatement();
+	}
+
+	@Override
+	protected void closePreparedStatements() throws SQLException {
+		super.closePreparedStatements();
+		setWatermarkStatement.close();
+	}
+
+	private static class WorkflowWatermarkDaoHolder {
+		private final static WorkflowWatermarkDao WORKFLOW_WATERMARK_DAO_INSTANCE = new WorkflowWatermarkDao();
+	}
+
+	/**
+	 * Returns a WorkflowWatermarkDao object by creating one if a singleton not already exists.
+	 */
+	public static WorkflowWatermarkDao getInstance(){
+		return WorkflowWatermarkDaoHolder.WORKFLOW_WATERMARK_DAO_INSTANCE;
+	}
+
+	/****************************************** FUNCTIONS ON THE TABLE ***************************/
+
+	@Override
+	protected void openAddEntryStatement(){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("INSERT INTO ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" (resource_id, stage, element_id, watermark_date) VALUES ");
+		queryb.append(" ((SELECT RT.id FROM ");
+		queryb.append(resourceTableDao.getTableSQLName());
+		queryb.append(" RT WHERE RT.resource_id= ?), ?, ?, NOW()) ");
+		queryb.append("ON DUPLICATE KEY UPDATE element_id=VALUES(element_id), watermark_date=NOW();");
+		setWatermarkStatement = this.prepareSQLStatement(queryb.toString());
+	}
+
+	/**
+	 * Records the watermark of a stage of the workflow of the given resource.
+	 *
+	 * @return True if the watermark was recorded, false if a problem occurred.
+	 */
+	public synchronized boolean setWatermark(String resourceID, WorkflowStageEnum stage, long elementID){
+		boolean recorded = false;
+		try {
+			setWatermarkStatement.setString(1, resourceID);
+			setWatermarkStatement.setString(2, stage.name());
+			setWatermarkStatement.setLong(3, elementID);
+			this.executeSQLUpdate(setWatermarkStatement);
+			recorded = true;
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			this.openAddEntryStatement();
+			return this.setWatermark(resourceID, stage, elementID);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot record the watermark of stage " + stage + " of resource " + resourceID + " on table " + this.getTableSQLName(), e);
+		}
+		return recorded;
+	}
+
+	/**
+	 * Returns the watermark of a stage of the workflow of the given resource, -1 if there is no watermark.
+	 */
+	public synchronized long getWatermark(String resourceID, WorkflowStageEnum stage){
+		long watermark = -1;
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT element_id FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" WHERE resource_id=(SELECT RT.id FROM ");
+		queryb.append(resourceTableDao.getTableSQLName());
+		queryb.append(" RT WHERE RT.resource_id='");
+		queryb.append(resourceID);
+		queryb.append("') AND stage='");
+		queryb.append(stage.name());
+		queryb.append("';");
+		try {
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			if(rSet.next()){
+				watermark = rSet.getLong(1);
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.getWatermark(resourceID, stage);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the watermark of stage " + stage + " of resource " + resourceID + " from " + this.getTableSQLName(), e);
+		}
+		return watermark;
+	}
+
+	/**
+	 * Deletes the watermark of a stage of the workflow of the given resource.
+	 *
+	 * @return True if the watermark was deleted, false if a problem occurred.
+	 */
+	public synchronized boolean deleteWatermark(String resourceID, WorkflowStageEnum stage){
+		boolean deleted = false;
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("DELETE FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" WHERE resource_id=(SELECT RT.id FROM ");
+		queryb.append(resourceTableDao.getTableSQLName());
+		queryb.append(" RT WHERE RT.resource_id='");
+		queryb.append(resourceID);
+		queryb.append("') AND stage='");
+		queryb.append(stage.name());
+		queryb.append("';");
+		try {
+			this.executeSQLUpdate(queryb.toString());
+			deleted = true;
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.deleteWatermark(resourceID, stage);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot delete the watermark of stage " + stage + " of resource " + resourceID + " from " + this.getTableSQLName(), e);
+		}
+		return deleted;
+	}
+}
@@ -2,11 +2,13 @@ package org.ncbo.stanford.obr.dao.obs.concept;
 
 import java.io.File;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import org.ncbo.stanford.obr.dao.obs.AbstractObsDao;
 import org.ncbo.stanford.obr.dao.obs.ontology.OntologyDao;
 import org.ncbo.stanford.obr.util.MessageUtils;
+import org.ncbo.stanford.obr.util.StringIntHashMap;
 
 import com.mysql.jdbc.exceptions.MySQLIntegrityConstraintViolationException;
 import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
@@ -27,6 +29,7 @@ public class ConceptDao extends AbstractObsDao {
 		
 	private PreparedStatement addEntryStatement;
 	private static PreparedStatement deleteEntriesFromOntologyStatement;
+	private static PreparedStatement getConceptIDStatement;
 	
 	private ConceptDao() {
 		super(TABLE_SUFFIX);
@@ -64,6 +67,7 @@ public class ConceptDao extends AbstractObsDao {
 		super.openPreparedStatements();
 		this.openAddEntryStatement();	
 		this.openDeleteEntriesFromOntologyStatement();
+		this.openGetConceptIDStatement();
 	}
 	
 	@Override
@@ -71,6 +75,7 @@ public class ConceptDao extends AbstractObsDao {
 		super.closePreparedStatements();
 		this.addEntryStatement.close();
 		deleteEntriesFromOntologyStatement.close();
+		getConceptIDStatement.close();
 	}
 	
 	@Override
@@ -184,6 +189,69 @@ public class ConceptDao extends AbstractObsDao {
 		return deleted;
 	}
 	
+	private void openGetConceptIDStatement(){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT id FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" WHERE local_concept_id=?;");
+		getConceptIDStatement = this.prepareSQLStatement(queryb.toString());
+	}
+	
+	/**
+	 * Returns the id of the concept with the given local_concept_id, -1 if there is no such concept.
+	 */
+	public synchronized int getConceptID(String localConceptID){
+		int conceptID = -1;
+		try {
+			getConceptIDStatement.setString(1, localConceptID);
+			ResultSet rSet = this.executeSQLQuery(getConceptIDStatement);
+			if(rSet.next()){
+				conceptID = rSet.getInt(1);
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			this.openGetConceptIDStatement();
+			return this.getConceptID(localConceptID);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the id of concept " + localConceptID + " from " + this.getTableSQLName() + ". -1 returned.", e);
+		}
+		return conceptID;
+	}
+	
+	/**
+	 * Loads the [local_concept_id, id] pairs of the table into the given map, until the map uses 
+	 * the given number of bytes.
+	 * 
+	 * @return true if all the concepts have been loaded
+	 */
+	public boolean loadConceptIDs(StringIntHashMap conceptIDs, long maxBytes){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT local_concept_id, id FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(";");
+		try{
+			ResultSet rSet = this.executeSQLQueryWithFetching(queryb.toString());
+			try{
+				while(rSet.next()){
+					if(conceptIDs.getMemorySize() >= maxBytes){
+						return false;
+					}
+					conceptIDs.put(rSet.getString(1), rSet.getInt(2));
+				}
+			}
+			finally{
+				rSet.close();
+			}
+			return true;
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot load the concept ids from " + this.getTableSQLName() + ".", e);
+		}
+		return false;
+	}
+	
 	/**
 	 * This class is representation for obs_concept table entry.
 	 * @author k.planisamy
@@ -2,11 +2,16 @@ package org.ncbo.stanford.obr.dao.obs.map;
 
 import java.io.File;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 
 import org.ncbo.stanford.obr.dao.obs.AbstractObsDao;
 import org.ncbo.stanford.obr.dao.obs.concept.ConceptDao;
 import org.ncbo.stanford.obr.dao.obs.ontology.OntologyDao;
+import org.ncbo.stanford.obr.util.MappingIndex;
 import org.ncbo.stanford.obr.util.MessageUtils;
 
 import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
@@ -18,6 +23,7 @@ import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
    <li>concept_id INT(11) NOT NULL
    <li>mapped_concept_id INT(11) NOT NULL
    <li>mapping_type VARCHAR(246) NOT NULL
+   <li>ontology_id INT(11) NOT NULL, partition of the mapping (see {@link MapPartitionDao})
  * </ul>
  * 
  */
@@ -28,6 +34,9 @@ public class MapDao extends AbstractObsDao{
 	private PreparedStatement addEntryStatement;
 	private static PreparedStatement deleteEntriesFromOntologyStatement;
     private MapppingTypeDao mapppingTypeDao= MapppingTypeDao.getInstance();
+    
+	// Mappings loaded in memory for the Java mapping expansion
+	private MappingIndex mappingIndex = null;
 	
 	private MapDao() {
 		super(TABLE_SUFFIX);
@@ -77,10 +86,12 @@ public class MapDao extends AbstractObsDao{
 		"concept_id INT(11) NOT NULL, " +
 		"mapped_concept_id INT(11) NOT NULL, " +
 		"mapping_type VARCHAR(30) NOT NULL, " +
+		"ontology_id INT(11) NOT NULL DEFAULT 0, " +
 		//"UNIQUE (concept_id, mapped_concept_id ), " +	 
 		"INDEX X_" + this.getTableSQLName() +"_concept_id (concept_id), " +
 		"INDEX X_" + this.getTableSQLName() +"_mapped_concept_id (mapped_concept_id), " +
-		"INDEX X_" + this.getTableSQLName() +"_mappingType (mapping_type(10))" +
+		"INDEX X_" + this.getTableSQLName() +"_mappingType (mapping_type(10)), " +
+		"INDEX X_" + this.getTableSQLName() +"_ontology_id (ontology_id)" +
 		") ENGINE=MyISAM DEFAULT CHARSET=latin1; ";
 	}
 
@@ -96,6 +107,7 @@ public class MapDao extends AbstractObsDao{
 			addEntryStatement.setInt(3, entry.getMappedConceptID());
 			addEntryStatement.setString(4, entry.getMappingType());
 			this.executeSQLUpdate(addEntryStatement);
+			this.clearMappingIndex();
 			inserted = true;
 		}
 		catch (MySQLNonTransientConnectionException e) {
@@ -123,6 +135,7 @@ public class MapDao extends AbstractObsDao{
 		} catch (SQLException e) {			 
 			logger.error("Problem in populating mapping type table" , e);
 		}	
+		this.clearMappingIndex();
 		return nbInserted;
 	} 
 	
@@ -148,9 +161,287 @@ public class MapDao extends AbstractObsDao{
 		} catch (SQLException e) {			 
 			logger.error("Problem in populating map table from file : " + mappingEntryFile.getAbsolutePath(), e);
 		}	
+		this.clearMappingIndex();
 		return nbInserted;
 	}
 	
+	/**
+	 * Synchronizes the given partitions of the map table with the mappings of the given file, written from the 
+	 * master map table with their partition: the mappings of the partitions which are not in the file are deleted,
+	 * then the mappings of the file which are not in the table are inserted. The other partitions are not read.
+	 * If the memory map table was up to date with the map table, the mappings of the concepts whose mappings changed
+	 * are updated in it, otherwise it is dropped to be loaded again.
+	 * 
+	 * @param mappingEntryFile File containing the mappings of the partitions.
+	 * @param ontologyIDs partitions to synchronize.
+	 * @return the numbers of mappings deleted and inserted, or null if a problem occurred.
+	 */
+	public long[] synchronizeMappings(File mappingEntryFile, Collection<Integer> ontologyIDs) {
+		String syncTable = this.getTableSQLName() + "_sync";
+		String deletedTable = syncTable + "_deleted";
+		String insertedTable = syncTable + "_inserted";
+		String conceptTable = syncTable + "_concept";
+		boolean memoryTableSynchronized = this.isMemoryTableSynchronized();
+		long[] nbMappings = null;
+		StringBuffer partitionsb = new StringBuffer();
+		for(Iterator<Integer> it = ontologyIDs.iterator(); it.hasNext();){
+			partitionsb.append(it.next());
+			if(it.hasNext()){
+				partitionsb.append(", ");
+			}
+		}
+		try{
+			// Mappings of the partitions in the master table
+			this.executeSQLUpdate("DROP TABLE IF EXISTS " + syncTable + ";");
+			this.executeSQLUpdate("CREATE TABLE " + syncTable + " LIKE " + this.getTableSQLName() + ";");
+			StringBuffer queryb = new StringBuffer();
+			queryb.append("LOAD DATA LOCAL INFILE '");
+			queryb.append(mappingEntryFile.getAbsolutePath());
+			queryb.append("' IGNORE INTO TABLE ");
+			queryb.append(syncTable);
+			queryb.append(" FIELDS TERMINATED BY '\t' IGNORE 1 LINES");
+			this.executeSQLUpdate(queryb.toString());
+			
+			// Delete set: mappings of the partitions removed or changed in the master table
+			this.executeSQLUpdate("DROP TABLE IF EXISTS " + deletedTable + ";");
+			queryb = new StringBuffer();
+			queryb.append("CREATE TABLE ");
+			queryb.append(deletedTable);
+			queryb.append(" (PRIMARY KEY (id)) ENGINE=MyISAM SELECT MAPT.* FROM ");
+			queryb.append(this.getTableSQLName());
+			queryb.append(" MAPT LEFT JOIN ");
+			queryb.append(syncTable);
+			queryb.append(" ST ON ST.id = MAPT.id AND ST.concept_id = MAPT.concept_id AND ST.mapped_concept_id = MAPT.mapped_concept_id");
+			queryb.append(" AND ST.mapping_type = MAPT.mapping_type AND ST.ontology_id = MAPT.ontology_id WHERE MAPT.ontology_id IN (");
+			queryb.append(partitionsb);
+			queryb.append(") AND ST.id IS NULL;");
+			this.executeSQLUpdate(queryb.toString());
+			queryb = new StringBuffer();
+			queryb.append("DELETE MAPT FROM ");
+			queryb.append(this.getTableSQLName());
+			queryb.append(" MAPT, ");
+			queryb.append(deletedTable);
+			queryb.append(" DT WHERE MAPT.id = DT.id;");
+			long nbDeleted = this.executeSQLUpdate(queryb.toString());
+			
+			// Insert set: mappings of the master table not in the table
+			this.executeSQLUpdate("DROP TABLE IF EXISTS " + insertedTable + ";");
+			queryb = new StringBuffer();
+			queryb.append("CREATE TABLE ");
+			queryb.append(insertedTable);
+			queryb.append(" (PRIMARY KEY (id)) ENGINE=MyISAM SELECT ST.* FROM ");
+			queryb.append(syncTable);
+			queryb.append(" ST LEFT JOIN ");
+			queryb.append(this.getTableSQLName());
+			queryb.append(" MAPT ON MAPT.id = ST.id WHERE MAPT.id IS NULL;");
+			this.executeSQLUpdate(queryb.toString());
+			queryb = new StringBuffer();
+			queryb.append("INSERT INTO ");
+			queryb.append(this.getTableSQLName());
+			queryb.append(" (id, concept_id, mapped_concept_id, mapping_type, ontology_id) SELECT id, concept_id, mapped_concept_id, mapping_type, ontology_id FROM ");
+			queryb.append(insertedTable);
+			queryb.append(";");
+			long nbInserted = this.executeSQLUpdate(queryb.toString());
+			nbMappings = new long[]{nbDeleted, nbInserted};
+			
+			this.populateMappingTypeTable();
+			if(memoryTableSynchronized){
+				try{
+					this.updateMemoryTable(deletedTable, insertedTable, conceptTable);
+				}
+				catch (SQLException e) {
+					logger.error("** PROBLEM ** Cannot update the memory table " + this.getMemoryTableSQLName() + ", it will be loaded again.", e);
+					memoryTableSynchronized = false;
+				}
+			}
+			if(!memoryTableSynchronized){
+				this.dropMemoryTable();
+			}
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot synchronize the mappings of table " + this.getTableSQLName() + " from file : " + mappingEntryFile.getAbsolutePath(), e);
+			this.dropMemoryTable();
+		}
+		finally{
+			for(String table: new String[]{syncTable, deletedTable, insertedTable, conceptTable}){
+				try{
+					this.executeSQLUpdate("DROP TABLE IF EXISTS " + table + ";");
+				}
+				catch (SQLException e) {
+					logger.error("** PROBLEM ** Cannot drop table " + table, e);
+				}
+			}
+			this.clearMappingIndex();
+		}
+		return nbMappings;
+	}
+	
+	/**
+	 * Updates in the memory map table the mappings of the concepts of the given deleted and inserted mappings,
+	 * and adds the new mapping types in the memory mapping type table.
+	 */
+	private void updateMemoryTable(String deletedTable, String insertedTable, String conceptTable) throws SQLException {
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("INSERT INTO ");
+		queryb.append(mapppingTypeDao.getMemoryTableSQLName());
+		queryb.append(" (id, mapping_type) SELECT MTT.id, MTT.mapping_type FROM ");
+		queryb.append(mapppingTypeDao.getTableSQLName());
+		queryb.append(" MTT LEFT JOIN ");
+		queryb.append(mapppingTypeDao.getMemoryTableSQLName());
+		queryb.append(" MTM ON MTM.id = MTT.id WHERE MTM.id IS NULL;");
+		this.executeSQLUpdate(queryb.toString());
+		
+		// Concepts whose mappings changed
+		this.executeSQLUpdate("DROP TABLE IF EXISTS " + conceptTable + ";");
+		this.executeSQLUpdate("CREATE TABLE " + conceptTable + " (concept_id INT(11) NOT NULL PRIMARY KEY) ENGINE=MyISAM;");
+		this.executeSQLUpdate("INSERT IGNORE INTO " + conceptTable + " (concept_id) SELECT concept_id FROM " + deletedTable + ";");
+		this.executeSQLUpdate("INSERT IGNORE INTO " + conceptTable + " (concept_id) SELECT concept_id FROM " + insertedTable + ";");
+		
+		queryb = new StringBuffer();
+		queryb.append("DELETE MM FROM ");
+		queryb.append(this.getMemoryTableSQLName());
+		queryb.append(" MM, ");
+		queryb.append(conceptTable);
+		queryb.append(" SC WHERE MM.concept_id = SC.concept_id;");
+		this.executeSQLUpdate(queryb.toString());
+		queryb = new StringBuffer();
+		queryb.append("INSERT INTO ");
+		queryb.append(this.getMemoryTableSQLName());
+		queryb.append(" (concept_id, mapped_concept_id, mapping_type) SELECT MAPT.concept_id, MAPT.mapped_concept_id, IFNULL(MTM.id, 0) FROM ");
+		queryb.append(conceptTable);
+		queryb.append(" SC JOIN ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" MAPT ON MAPT.concept_id = SC.concept_id LEFT JOIN ");
+		queryb.append(mapppingTypeDao.getMemoryTableSQLName());
+		// As with the procedure, a mapping whose type is unknown is kept with the type 0
+		queryb.append(" MTM ON MTM.mapping_type = MAPT.mapping_type;");
+		this.executeSQLUpdate(queryb.toString());
+	}
+	
+	/**
+	 * Returns true if the memory map table exists and has the same number of mappings as the map table.
+	 * The memory tables are emptied when the MySQL server restarts.
+	 */
+	public boolean isMemoryTableSynchronized() {
+		boolean synchronizedTable = false;
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT (SELECT COUNT(*) FROM ");
+		queryb.append(this.getMemoryTableSQLName());
+		queryb.append(") = (SELECT COUNT(*) FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(");");
+		try{
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			if(rSet.next()){
+				synchronizedTable = rSet.getBoolean(1);
+			}
+			rSet.close();
+		}
+		catch (SQLException e) {
+			logger.info("\tMemory table " + this.getMemoryTableSQLName() + " not available: " + e.getMessage());
+		}
+		return synchronizedTable;
+	}
+	
+	/**
+	 * Drops the memory map table, so it is loaded again by the procedure load_obs_tables_into_memory.
+	 */
+	public void dropMemoryTable() {
+		try{
+			this.executeSQLUpdate("DROP TABLE IF EXISTS " + this.getMemoryTableSQLName() + ";");
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot drop table " + this.getMemoryTableSQLName(), e);
+		}
+	}
+	
+	/**
+	 * Returns the number of mappings of the given partitions (all the partitions if ontologyIDs is null).
+	 * 
+	 * @return the number of mappings by ontology_id, or null if a problem occurred.
+	 */
+	public HashMap<Integer, Long> getNumberOfMappingsByPartition(Collection<Integer> ontologyIDs) {
+		HashMap<Integer, Long> nbMappings = new HashMap<Integer, Long>();
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT ontology_id, COUNT(*) FROM ");
+		queryb.append(this.getTableSQLName());
+		if(ontologyIDs != null){
+			if(ontologyIDs.isEmpty()){
+				return nbMappings;
+			}
+			queryb.append(" WHERE ontology_id IN (");
+			for(Iterator<Integer> it = ontologyIDs.iterator(); it.hasNext();){
+				queryb.append(it.next());
+				if(it.hasNext()){
+					queryb.append(", ");
+				}
+			}
+			queryb.append(")");
+		}
+		queryb.append(" GROUP BY ontology_id;");
+		try{
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			while(rSet.next()){
+				nbMappings.put(rSet.getInt(1), rSet.getLong(2));
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.getNumberOfMappingsByPartition(ontologyIDs);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the number of mappings by partition from " + this.getTableSQLName() + ". Null returned.", e);
+			return null;
+		}
+		return nbMappings;
+	}
+	
+	/**
+	 * Returns the mappings of the map table loaded in memory, with the ids of the mapping types. The mappings are 
+	 * read from the table the first time, then kept until {@link #clearMappingIndex()}.
+	 * As in the memory map table loaded by the stored procedure, a mapping whose type is missing from the mapping 
+	 * type table is kept with the mapping type id 0.
+	 * 
+	 * @return the mapping index, or null if the map table cannot be read.
+	 */
+	public synchronized MappingIndex getMappingIndex(){
+		if(this.mappingIndex == null){
+			long start = System.currentTimeMillis();
+			StringBuffer queryb = new StringBuffer();
+			queryb.append("SELECT MAPT.concept_id, MAPT.mapped_concept_id, IFNULL(MTT.id, 0) FROM ");
+			queryb.append(this.getTableSQLName());
+			queryb.append(" MAPT LEFT JOIN ");
+			queryb.append(mapppingTypeDao.getTableSQLName());
+			queryb.append(" MTT ON MAPT.mapping_type = MTT.mapping_type;");
+			MappingIndex.Builder builder = new MappingIndex.Builder();
+			try{
+				ResultSet rSet = this.executeSQLQueryWithFetching(queryb.toString());
+				try{
+					while(rSet.next()){
+						builder.add(rSet.getInt(1), rSet.getInt(2), rSet.getInt(3));
+					}
+				}
+				finally{
+					rSet.close();
+				}
+				this.mappingIndex = builder.build();
+				logger.info("\t" + this.mappingIndex.getNumberOfMappings() + " mappings loaded in memory (" 
+						+ (this.mappingIndex.getMemorySize() / (1024 * 1024)) + " MB) in " + (System.currentTimeMillis() - start) + " ms.");
+			}
+			catch (SQLException e) {
+				logger.error("** PROBLEM ** Cannot load the mappings from " + this.getTableSQLName(), e);
+			}
+		}
+		return this.mappingIndex;
+	}
+	
+	/**
+	 * Releases the mappings loaded in memory. They are loaded again when they are used.
+	 */
+	public synchronized void clearMappingIndex(){
+		this.mappingIndex = null;
+	}
+	
 	private void openDeleteEntriesFromOntologyStatement(){
 		// Query Used :
 		//	DELETE MAPT FROM obs_map MAPT, obs_concept CT, obs_ontology OT
@@ -194,6 +485,7 @@ public class MapDao extends AbstractObsDao{
 		try{
 			deleteEntriesFromOntologyStatement.setString(1, localOntologyID);
 			executeSQLUpdate(deleteEntriesFromOntologyStatement);
+			this.clearMappingIndex();
 			deleted = true;
 		}		
 		catch (MySQLNonTransientConnectionException e) {
@@ -0,0 +1,237 @@
+package org.ncbo.stanford.obr.dao.obs.map;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.ncbo.stanford.obr.dao.obs.AbstractObsDao;
+import org.ncbo.stanford.obr.dao.obs.ontology.OntologyDao;
+import org.ncbo.stanford.obr.util.MessageUtils;
+
+import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
+
+/**
+ * This class is a representation for the OBS(slave) DB obs_map_partition table.
+ * The mappings of the map table are partitioned by the ontology of their concept (0 for the mappings
+ * whose concept is not in the master concept table). For each partition copied in the slave map table,
+ * this table keeps the number of mappings and the content hash of the partition in the master map table
+ * when it was copied, so only the partitions whose hash changed since are copied again.
+ * The table contains the following columns:
+ * <ul>
+ * <li>ontology_id INT(11) NOT NULL PRIMARY KEY
+ * <li>nb_mapping INT(11) UNSIGNED NOT NULL
+ * <li>partition_hash VARCHAR(64) NOT NULL
+ * <li>sync_date TIMESTAMP
+ * </ul>
+ */
+public class MapPartitionDao extends AbstractObsDao{
+
+	private static final String TABLE_SUFFIX = MessageUtils.getMessage("obs.map.partition.table.suffix");
+
+	private MapPartitionDao() {
+		super(TABLE_SUFFIX);
+	}
+
+	private static class MapPartitionDaoHolder {
+		private final static MapPartitionDao MAP_PARTITION_DAO_INSTANCE = new MapPartitionDao();
+	}
+
+	/**
+	 * Returns a MapPartitionDao object by creating one if a singleton not already exists.
+	 */
+	public static MapPartitionDao getInstance(){
+		return MapPartitionDaoHolder.MAP_PARTITION_DAO_INSTANCE;
+	}
+
+	public static String name(){
+		return OBS_PREFIX + TABLE_SUFFIX;
+	}
+
+	@Override
+	protected String creationQuery() {
+		return "CREATE TABLE " + this.getTableSQLName() +" (" +
+		"ontology_id INT(11) NOT NULL PRIMARY KEY, " +
+		"nb_mapping INT(11) UNSIGNED NOT NULL, " +
+		"partition_hash VARCHAR(64) NOT NULL, " +
+		"sync_date TIMESTAMP NULL DEFAULT NULL" +
+		") ENGINE=MyISAM DEFAULT CHARSET=latin1; ";
+	}
+
+	@Override
+	protected void openAddEntryStatement() throws SQLException {
+	}
+
+	/**
+	 * Returns the partitions copied in the slave map table, by ontology_id.
+	 *
+	 * @return the partitions, or null if a problem occurred.
+	 */
+	public HashMap<Integer, MapPartitionEntry> getEntries(){
+		HashMap<Integer, MapPartitionEntry> partitions = new HashMap<Integer, MapPartitionEntry>();
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("SELECT ontology_id, nb_mapping, partition_hash FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(";");
+		try{
+			ResultSet rSet = this.executeSQLQuery(queryb.toString());
+			while(rSet.next()){
+				partitions.put(rSet.getInt(1), new MapPartitionEntry(rSet.getInt(1), rSet.getLong(2), rSet.getString(3)));
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.getEntries();
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the partitions from " + this.getTableSQLName() + ". Null returned.", e);
+			return null;
+		}
+		return partitions;
+	}
+
+	/**
+	 * Adds or replaces the given partitions in the table.
+	 *
+	 * @return true if the partitions were recorded.
+	 */
+	public boolean addEntries(Collection<MapPartitionEntry> entries){
+		if(entries.isEmpty()){
+			return true;
+		}
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("REPLACE INTO ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" (ontology_id, nb_mapping, partition_hash, sync_date) VALUES ");
+		for(Iterator<MapPartitionEntry> it = entries.iterator(); it.hasNext();){
+			MapPartitionEntry entry = it.next();
+			queryb.append("(");
+			queryb.append(entry.getOntologyID());
+			queryb.append(", ");
+			queryb.append(entry.getNbMapping());
+			queryb.append(", '");
+			queryb.append(entry.getPartitionHash());
+			queryb.append("', NOW())");
+			if(it.hasNext()){
+				queryb.append(", ");
+			}
+		}
+		queryb.append(";");
+		try{
+			this.executeSQLUpdate(queryb.toString());
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.addEntries(entries);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot add the partitions in " + this.getTableSQLName(), e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes the given partitions from the table, or all the partitions if ontologyIDs is null.
+	 * The mappings of a deleted partition are copied again at the next synchronization of the map table.
+	 *
+	 * @return true if the partitions were deleted.
+	 */
+	public boolean deleteEntries(Collection<Integer> ontologyIDs){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("DELETE FROM ");
+		queryb.append(this.getTableSQLName());
+		if(ontologyIDs != null){
+			if(ontologyIDs.isEmpty()){
+				return true;
+			}
+			queryb.append(" WHERE ontology_id IN (");
+			for(Iterator<Integer> it = ontologyIDs.iterator(); it.hasNext();){
+				queryb.append(it.next());
+				if(it.hasNext()){
+					queryb.append(", ");
+				}
+			}
+			queryb.append(")");
+		}
+		queryb.append(";");
+		try{
+			this.executeSQLUpdate(queryb.toString());
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.deleteEntries(ontologyIDs);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot delete the partitions from " + this.getTableSQLName(), e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes the partition of the given local_ontology_id.
+	 *
+	 * @return true if the partition was deleted.
+	 */
+	public boolean deleteEntriesFromOntology(String localOntologyID){
+		StringBuffer queryb = new StringBuffer();
+		queryb.append("DELETE FROM ");
+		queryb.append(this.getTableSQLName());
+		queryb.append(" WHERE ontology_id IN (SELECT OT.id FROM ");
+		queryb.append(OntologyDao.name());
+		queryb.append(" OT WHERE OT.local_ontology_id = '");
+		queryb.append(localOntologyID);
+		queryb.append("');");
+		try{
+			this.executeSQLUpdate(queryb.toString());
+		}
+		catch (MySQLNonTransientConnectionException e) {
+			return this.deleteEntriesFromOntology(localOntologyID);
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot delete entries from "+this.getTableSQLName()+" for local_ontology_id: "+ localOntologyID+". False returned.", e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This class is representation for obs_map_partition table entry.
+	 */
+	public static class MapPartitionEntry{
+
+		private int ontologyID;
+		private long nbMapping;
+		private String partitionHash;
+
+		public MapPartitionEntry(int ontologyID, long nbMapping, String partitionHash) {
+			this.ontologyID = ontologyID;
+			this.nbMapping = nbMapping;
+			this.partitionHash = partitionHash;
+		}
+
+		public int getOntologyID() {
+			return ontologyID;
+		}
+
+		public long getNbMapping() {
+			return nbMapping;
+		}
+
+		public String getPartitionHash() {
+			return partitionHash;
+		}
+
+		public String toString(){
+			StringBuffer sb = new StringBuffer();
+			sb.append("MapPartitionEntry: [");
+			sb.append(this.ontologyID);
+			sb.append(", ");
+			sb.append(this.nbMapping);
+			sb.append(", ");
+			sb.append(this.partitionHash);
+			sb.append("]");
+			return sb.toString();
+		}
+	}
+}
@@ -1,19 +1,26 @@
 package org.ncbo.stanford.obr.dao.obs.master;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.InputStreamReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 
+import obs.common.utils.ExecutionTimer;
+
 import org.apache.log4j.Logger;
 import org.ncbo.stanford.obr.dao.DaoFactory;
+import org.ncbo.stanford.obr.dao.obs.map.MapPartitionDao.MapPartitionEntry;
 import org.ncbo.stanford.obr.dao.obs.ontology.OntologyDao.OntologyEntry;
 import org.ncbo.stanford.obr.util.FileResourceParameters;
 import org.ncbo.stanford.obr.util.MessageUtils;
@@ -42,8 +49,10 @@ public class ObsMasterDao implements DaoFactory{
 	private static final String MASTER_OBS_USER = MessageUtils.getMessage("obs.master.jdbc.username");
 	private static final String MASTER_OBS_PASSWORD = MessageUtils.getMessage("obs.master.jdbc.password");
 	
-	private static final String MASTER_OBS_SCEHMA_NAME = MessageUtils.getMessage("obs.master.schema.name");
-	private static final String MASTER_OBS_HOST_NAME = MessageUtils.getMessage("obs.master.schema.host.name");
+	/** Size of the buffer used to write a master table in a file. */
+	private static final int EXPORT_BUFFER_SIZE = 1 << 20;
+	/** NULL value in a LOAD DATA file. */
+	private static final byte[] NULL_FIELD = {'\\', 'N'};
   
 	/** Constant for ontology complete status for master obs_ontology table.  */
 	private static final int ONTOLOGY_COMPLETE_STATUS = Integer.parseInt(MessageUtils.getMessage("obs.master.ontology.status.complete"));
@@ -56,8 +65,12 @@ public class ObsMasterDao implements DaoFactory{
 	private static final String RELATION_ENTRIES_FILENAME = "OBS_MASTER_RELATION_TABLE";
 	/** Constant for mapping table entries file. */
 	private static final String MAPPING_ENTRIES_FILENAME = "OBS_MASTER_MAPPING_TABLE";	
+	/** Partition of a mapping: ontology of its concept. */
+	private static final String MAPPING_PARTITION = "IFNULL(CT.ontology_id, 0)";
 	/** Constant for semantic type table entries file. */
 	private static final String SEMANTIC_ENTRIES_FILENAME = "OBS_MASTER_SEMATIC_TYPE_TABLE";
+	/** Constant for L semantic type table entries file. */
+	private static final String L_SEMANTIC_ENTRIES_FILENAME = "OBS_MASTER_L_SEMATIC_TYPE_TABLE";
 	
 	/**
 	 * Default constructor for {@code ObsMasterDao}.
@@ -301,28 +314,95 @@ public class ObsMasterDao implements DaoFactory{
 	}
 	
 	/**
-	 * This method get mapping table entries from master map tables for given ontology versions
-	 * and write the result into text file.
+	 * This method get mapping table entries from master map tables, with the partition of each mapping 
+	 * (see {@link #getMasterMappingPartitions()}), and write the result into text file.
 	 * 
-	 * @param localOntologyIDs list of local ontology ids.
 	 * @return {@code File} containing mapping entries.
 	 */
 	public File writeMasterMappingEntries(){		 
+		return writeMasterMappingEntries(null);
+	}
+	
+	/**
+	 * This method get mapping table entries of the given partitions from master map tables, with the partition 
+	 * of each mapping, and write the result into text file.
+	 * 
+	 * @param ontologyIDs list of partitions (ontology_id of the concept), all the mappings if null.
+	 * @return {@code File} containing mapping entries.
+	 */
+	public File writeMasterMappingEntries(Collection<Integer> ontologyIDs){		 
 		StringBuffer selectQuery = new StringBuffer();
-		selectQuery.append("SELECT MAPT.id,  MAPT.concept_id,  MAPT.mapped_concept_id, MAPT.mapping_type FROM ");
+		selectQuery.append("SELECT MAPT.id,  MAPT.concept_id,  MAPT.mapped_concept_id, MAPT.mapping_type, ");
+		selectQuery.append(MAPPING_PARTITION);
+		selectQuery.append(" FROM ");
 		selectQuery.append(mapDao.getTableSQLName());
-		selectQuery.append(" MAPT; ");
+		selectQuery.append(" MAPT LEFT JOIN ");
+		selectQuery.append(conceptDao.getTableSQLName());
+		selectQuery.append(" CT ON CT.id = MAPT.concept_id");
+		if(ontologyIDs != null){
+			selectQuery.append(" WHERE ");
+			selectQuery.append(MAPPING_PARTITION);
+			selectQuery.append(" IN(");
+			for (Integer ontologyID : ontologyIDs) {
+				selectQuery.append(ontologyID);
+				selectQuery.append(", ");
+			}
+			selectQuery.delete(selectQuery.length()-2, selectQuery.length());
+			selectQuery.append(")");
+		}
+		selectQuery.append("; ");
 		
 		try {	
 			return writeQueryResultFile(selectQuery.toString(), MAPPING_ENTRIES_FILENAME);
 		}  
 		catch ( Exception e) {
-			logger.error("** PROBLEM ** Cannot get entries from master ralation table.", e);
+			logger.error("** PROBLEM ** Cannot get entries from master mapping table.", e);
 		}
 		
 		return null;
 	}
 	
+	/**
+	 * This method computes on the master map table the partitions of the mappings: the mappings are partitioned
+	 * by the ontology of their concept (0 if the concept is not in the concept table). The hash of a partition 
+	 * is computed from the content of its mappings (id, concept_id, mapped_concept_id, mapping_type) 
+	 * and does not depend on their order.
+	 * 
+	 * @return the partitions by ontology_id, or null if a problem occurred.
+	 */
+	public HashMap<Integer, MapPartitionEntry> getMasterMappingPartitions(){
+		HashMap<Integer, MapPartitionEntry> partitions = new HashMap<Integer, MapPartitionEntry>();
+		String mappingContent = "CONCAT_WS(',', MAPT.id, MAPT.concept_id, MAPT.mapped_concept_id, MAPT.mapping_type)";
+		StringBuffer selectQuery = new StringBuffer();
+		selectQuery.append("SELECT ");
+		selectQuery.append(MAPPING_PARTITION);
+		selectQuery.append(" AS partition_id, COUNT(*), CONCAT(COUNT(*), '-', SUM(CRC32(");
+		selectQuery.append(mappingContent);
+		selectQuery.append(")), '-', BIT_XOR(CAST(CONV(SUBSTRING(MD5(");
+		selectQuery.append(mappingContent);
+		selectQuery.append("), 1, 16), 16, 10) AS UNSIGNED))) FROM ");
+		selectQuery.append(mapDao.getTableSQLName());
+		selectQuery.append(" MAPT LEFT JOIN ");
+		selectQuery.append(conceptDao.getTableSQLName());
+		selectQuery.append(" CT ON CT.id = MAPT.concept_id GROUP BY partition_id;");
+		
+		try {
+			ResultSet rSet = this.executeSQLQuery(selectQuery.toString());
+			while(rSet.next()){
+				partitions.put(rSet.getInt(1), new MapPartitionEntry(rSet.getInt(1), rSet.getLong(2), rSet.getString(3)));
+			}
+			rSet.close();
+		}
+		catch (MySQLNonTransientConnectionException e) {			 
+			return this.getMasterMappingPartitions();
+		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot get the mapping partitions from master mapping table.", e);
+			return null;
+		}
+		return partitions;
+	}
+	
 	/**
 	 * This method get SemanticType table entries from master relation tables for given ontology versions
 	 * and write the result into text file.
@@ -368,7 +448,7 @@ public class ObsMasterDao implements DaoFactory{
 		selectQuery.append(lSemanticTypeDao.getTableSQLName());
 		selectQuery.append(" ST;");			
 		try {		
-			return writeQueryResultFile(selectQuery.toString(), SEMANTIC_ENTRIES_FILENAME);			
+			return writeQueryResultFile(selectQuery.toString(), L_SEMANTIC_ENTRIES_FILENAME);			
 		}  
 		catch ( Exception e) {
 			logger.error("** PROBLEM ** Cannot get entries from master ralation table.", e);
@@ -378,58 +458,120 @@ public class ObsMasterDao implements DaoFactory{
 	
 	
 	/**
-	 * Method executes mysql command on master database by firing given {@code sqlQuery} 
-	 * and write result in to file.
+	 * Method streams the result of the given {@code sqlQuery} on master database over JDBC
+	 * and writes it in to a tab separated file loadable with LOAD DATA ... IGNORE 1 LINES
+	 * (column names on the first line, NULL written as \N, backslashes, tabs and new lines escaped).
 	 * 
-	 * <p>Method uses obs master database credentials as follows:
-	 * <pre>
-	 * 	Host name as {@link #MASTER_OBS_HOST_NAME MASTER_OBS_HOST_NAME}
-	 * 	Database Schema as {@link #MASTER_OBS_SCEHMA_NAME MASTER_OBS_SCEHMA_NAME}
-	 * 	Username as {@link #MASTER_OBS_USER MASTER_OBS_USER}
-	 * 	Password as {@link #MASTER_OBS_PASSWORD MASTER_OBS_PASSWORD}
-	 * </pre>
-	
+	 * <p>The query is executed on its own connection to obs master database, with a streaming result set 
+	 * (fetch size {@code Integer.MIN_VALUE}), so several queries can be written at the same time and 
+	 * the rows are never all kept in memory. The column values are written as the bytes sent by the server,
+	 * without any conversion of character set.
 	 * 
 	 * @param sqlQuery a query to be executed on obs master table.
 	 * @param fileName Name of the text file used to write result. 
 	 * @return {@code File} containing result entries for given {@code sqlQuery}.
-	 * @throws Exception 
+	 * @throws Exception if the query or the writing fails, the partial file is then deleted.
 	 */
 	public File writeQueryResultFile(String sqlQuery, String fileName) throws Exception{		
 		File outputFile = new File(FileResourceParameters.dictionaryFolder() + fileName + ".txt");
-		FileWriter fw = new FileWriter(outputFile);
-		// Creating mysql command
-		StringBuffer command = new StringBuffer();
-		command.append("mysql -h ");
-		command.append(MASTER_OBS_HOST_NAME);
-		command.append(" -u ");
-		command.append(MASTER_OBS_USER);
-		command.append(" -p");
-		command.append(MASTER_OBS_PASSWORD);
-		command.append(" ");
-		command.append(MASTER_OBS_SCEHMA_NAME);
-		command.append(" -e \"");
-		command.append(sqlQuery);
-		command.append("\" > '");
-		command.append(outputFile.getAbsolutePath());
-		command.append("' ");		
-		String[] mysqlCommand = {"/bin/sh", "-c", command.toString()};				
-		Process p = Runtime.getRuntime().exec(mysqlCommand);
-		int exitValue = p.waitFor();
-		
-		
-		if (exitValue != 0){
-			logger.info("Problem during the mysql command execution...");
-			BufferedReader stdErr = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-			// read the output from the command
-			String s;
-			while ((s = stdErr.readLine()) != null) {
-				logger.error(s);
+		ExecutionTimer timer = new ExecutionTimer();
+		timer.start();
+		long nbRow = 0;
+		long nbByte = 0;
+		Connection connection = null;
+		boolean written = false;
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), EXPORT_BUFFER_SIZE);
+		try{
+			connection = DriverManager.getConnection(MASTER_OBS_CONNECTION_STRING, MASTER_OBS_USER, MASTER_OBS_PASSWORD);
+			connection.setReadOnly(true);
+			Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(Integer.MIN_VALUE);
+			ResultSet rSet = statement.executeQuery(sqlQuery);
+			ResultSetMetaData metaData = rSet.getMetaData();
+			int nbColumn = metaData.getColumnCount();
+			// Column names line
+			for(int i = 1; i <= nbColumn; i++){
+				if(i > 1){
+					out.write('\t');
+					nbByte++;
+				}
+				nbByte += writeField(out, metaData.getColumnLabel(i).getBytes());
 			}
+			out.write('\n');
+			nbByte++;
+			while(rSet.next()){
+				for(int i = 1; i <= nbColumn; i++){
+					if(i > 1){
+						out.write('\t');
+						nbByte++;
+					}
+					nbByte += writeField(out, rSet.getBytes(i));
+				}
+				out.write('\n');
+				nbByte++;
+				nbRow++;
+			}
+			rSet.close();
+			statement.close();
+			written = true;
 		}
+		catch (SQLException e) {
+			logger.error("** PROBLEM ** Cannot write the result of the query on master database in file " + outputFile.getName(), e);
+			throw e;
+		}
+		finally{
+			out.close();
+			// A partial file must not be loaded in the slave table
+			if(!written){
+				outputFile.delete();
+			}
+			if(connection != null){
+				try{
+					connection.close();
+				}catch (SQLException e) {
+					logger.error("Problem in closing connection " , e); 
+				}
+			}
+		}
+		timer.end();
+		// Throughput of the export
+		double seconds = Math.max(timer.duration(), 1) / 1000.0;
+		logger.info("\t" + nbRow + " rows (" + nbByte + " bytes) written in file " + outputFile.getName() + " in "
+				+ timer.millisecondsToTimeString(timer.duration()) + " [" + Math.round(nbRow / seconds) + " rows/s, "
+				+ Math.round(nbByte / seconds) + " bytes/s]");
 		return outputFile;		
 	}
-
+	
+	/**
+	 * Writes a column value escaped for LOAD DATA, and returns the number of bytes written.
+	 */
+	private static int writeField(OutputStream out, byte[] field) throws IOException {
+		if(field == null){
+			out.write(NULL_FIELD);
+			return NULL_FIELD.length;
+		}
+		boolean escape = false;
+		for(int i = 0; i < field.length && !escape; i++){
+			escape = field[i] == '\\' || field[i] == '\t' || field[i] == '\n' || field[i] == '\r' || field[i] == 0;
+		}
+		if(!escape){
+			out.write(field);
+			return field.length;
+		}
+		int nbByte = 0;
+		for(int i = 0; i < field.length; i++){
+			byte b = field[i];
+			if(b == '\\' || b == '\t' || b == '\n' || b == '\r' || b == 0){
+				out.write('\\');
+				nbByte++;
+				b = (byte) (b == '\t' ? 't' : b == '\n' ? 'n' : b == '\r' ? 'r' : b == 0 ? '0' : '\\');
+			}
+			out.write(b);
+			nbByte++;
+		}
+		return nbByte;
+	}
+	
 	/**
 	 * This method gets all the ontology versions available in ontology table
 	 *  
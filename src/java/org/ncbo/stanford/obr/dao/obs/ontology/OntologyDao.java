@@ -244,7 +244,7 @@ public class OntologyDao extends AbstractObsDao{
 	 * @param virtualOntologyID 
 	 * @return String of latest version of ontology.
 	 */
-	public String getLatestLocalOntologyID(String virtualOntologyID) {
+	public synchronized String getLatestLocalOntologyID(String virtualOntologyID) {
 		String localOntologyID= null;
 		try {
 			ResultSet rSet;			 
@@ -290,7 +290,7 @@ public class OntologyDao extends AbstractObsDao{
 	 * @param resourceID
 	 * @return
 	 */
-	public boolean hasNewVersionOfOntology(String virtualOntologyID, String resourceID) {
+	public synchronized boolean hasNewVersionOfOntology(String virtualOntologyID, String resourceID) {
 	 
 		int dictionaryID= 0;
 		try {
@@ -335,7 +335,7 @@ public class OntologyDao extends AbstractObsDao{
 		getLocalConceptIdByPrefNameAndOntologyIdStatement = this.prepareSQLStatement(queryb.toString());
 	}
 
-	public String getLocalConceptIdByPrefNameAndOntologyId(String localOntologyID, String termName){
+	public synchronized String getLocalConceptIdByPrefNameAndOntologyId(String localOntologyID, String termName){
 		String localConceptID = EMPTY_STRING;
 		try {
 			getLocalConceptIdByPrefNameAndOntologyIdStatement.setString(1, localOntologyID);
@@ -445,7 +445,6 @@ public class OntologyDao extends AbstractObsDao{
 				localOntologyIDs.add(rSet.getString(1));
 			}
 			rSet.close();
-			this.closeTableGenericStatement();
 		}		
 		catch (SQLException e) {
 			logger.error("** PROBLEM ** Cannot get localOntologyIDs from "+this.getTableSQLName()+".", e);
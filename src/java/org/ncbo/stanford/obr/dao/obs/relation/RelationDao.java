@@ -2,11 +2,13 @@ package org.ncbo.stanford.obr.dao.obs.relation;
 
 import java.io.File;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import org.ncbo.stanford.obr.dao.obs.AbstractObsDao;
 import org.ncbo.stanford.obr.dao.obs.concept.ConceptDao;
 import org.ncbo.stanford.obr.dao.obs.ontology.OntologyDao;
+import org.ncbo.stanford.obr.util.IsaClosureGraph;
 import org.ncbo.stanford.obr.util.MessageUtils;
 
 import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
@@ -27,6 +29,9 @@ public class RelationDao extends AbstractObsDao{
 
 	private PreparedStatement addEntryStatement;
 	private static PreparedStatement deleteEntriesFromOntologyStatement;
+	
+	// is_a closure loaded in memory for the Java isa transitive closure expansion
+	private IsaClosureGraph isaClosureGraph = null;
 
 	private RelationDao() {
 		super(TABLE_SUFFIX);
@@ -97,6 +102,7 @@ public class RelationDao extends AbstractObsDao{
 			this.addEntryStatement.setInt(3, entry.getParentConceptID());
 			this.addEntryStatement.setInt(4, entry.getLevel());
 			this.executeSQLUpdate(this.addEntryStatement);
+			this.clearIsaClosureGraph();
 			inserted = true;
 		}
 		catch (MySQLNonTransientConnectionException e) {
@@ -130,8 +136,47 @@ public class RelationDao extends AbstractObsDao{
 		} catch (SQLException e) {			 
 			logger.error("Problem in populating map table from file : " + relationEntryFile.getAbsolutePath(), e);
 		} 	
+		this.clearIsaClosureGraph();
 		return nbInserted;
 	}
+	
+	/**
+	 * Returns the is_a closure of the relation table loaded in memory. The closure is read from the table 
+	 * the first time, then kept until {@link #clearIsaClosureGraph()}.
+	 * 
+	 * @return the closure graph, or null if the relation table cannot be read.
+	 */
+	public synchronized IsaClosureGraph getIsaClosureGraph(){
+		if(this.isaClosureGraph == null){
+			long start = System.currentTimeMillis();
+			IsaClosureGraph.Builder builder = new IsaClosureGraph.Builder();
+			try{
+				ResultSet rSet = this.executeSQLQueryWithFetching("SELECT concept_id, parent_concept_id, level FROM " + this.getTableSQLName() + ";");
+				try{
+					while(rSet.next()){
+						builder.add(rSet.getInt(1), rSet.getInt(2), rSet.getInt(3));
+					}
+				}
+				finally{
+					rSet.close();
+				}
+				this.isaClosureGraph = builder.build();
+				logger.info("\t" + this.isaClosureGraph.getNumberOfRelations() + " is_a relations loaded in memory (" 
+						+ (this.isaClosureGraph.getMemorySize() / (1024 * 1024)) + " MB) in " + (System.currentTimeMillis() - start) + " ms.");
+			}
+			catch (SQLException e) {
+				logger.error("** PROBLEM ** Cannot load the is_a closure from " + this.getTableSQLName(), e);
+			}
+		}
+		return this.isaClosureGraph;
+	}
+	
+	/**
+	 * Releases the is_a closure loaded in memory. It is loaded again when it is used.
+	 */
+	public synchronized void clearIsaClosureGraph(){
+		this.isaClosureGraph = null;
+	}
 	private void openDeleteEntriesFromOntologyStatement(){
 		// Query Used :
 		//	DELETE ISAPT FROM obs_relation ISAPT, obs_concept CT, obs_ontology OT
@@ -175,6 +220,7 @@ public class RelationDao extends AbstractObsDao{
 		try{
 			deleteEntriesFromOntologyStatement.setString(1, localOntologyID);
 			executeSQLUpdate(deleteEntriesFromOntologyStatement);
+			this.clearIsaClosureGraph();
 			deleted = true;
 		}		
 		catch (MySQLNonTransientConnectionException e) {
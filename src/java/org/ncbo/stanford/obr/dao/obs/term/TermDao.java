@@ -153,7 +153,7 @@ public class TermDao extends AbstractObsDao{
 		return queryb.toString();
 	}
 	
-	public HashSet<String> mapStringToLocalConceptIDs(String s, String localOntologyID){
+	public synchronized HashSet<String> mapStringToLocalConceptIDs(String s, String localOntologyID){
 		HashSet<String> localConceptIDs = new HashSet<String>();
 		try {
 			ResultSet rSet;			 
@@ -184,7 +184,7 @@ public class TermDao extends AbstractObsDao{
 	 * @param localOntologyID
 	 * @return
 	 */
-	public HashSet<String> mapTermsToLocalConceptIDs(Set<String> terms, String localOntologyID){
+	public synchronized HashSet<String> mapTermsToLocalConceptIDs(Set<String> terms, String localOntologyID){
 		HashSet<String> localConceptIDs = new HashSet<String>();
 		
 		if(terms== null || terms.isEmpty()){
@@ -447,7 +447,6 @@ public class ObrOntologyDao extends AbstractObrDao{
 				localOntologyIDs.add(rSet.getString(1));
 			}
 			rSet.close();
-			this.closeTableGenericStatement();
 		}		
 		catch (SQLException e) {
 			logger.error("** PROBLEM ** Cannot get localOntologyIDs from "+this.getTableSQLName()+".", e);
@@ -161,7 +161,7 @@ public class ResourceDao extends AbstractObrDao {
 	 * Add an new entry in corresponding SQL table.
 	 * @return True if the entry was added to the SQL table, false if a problem occurred during insertion.
 	 */
-	public boolean addEntry(Resource resource){
+	public synchronized boolean addEntry(Resource resource){
 		boolean inserted = false;
 		try {			
 			addEntryStatement.setString(1, resource.getResourceName());
@@ -206,7 +206,7 @@ public class ResourceDao extends AbstractObrDao {
 	 * @param resource
 	 * @return True if the entry was added or updated to the SQL table, false if a problem occurred during insertion.
 	 */
-	public boolean addEntryOrUpdate(Resource resource){		
+	public synchronized boolean addEntryOrUpdate(Resource resource){		
 		// if entry already present then update the entry.		
 		if(hasResourceEntry(resource.getResourceId())){
 			return this.updateEntry(resource);
@@ -221,7 +221,7 @@ public class ResourceDao extends AbstractObrDao {
 	 * @param resourceID
 	 * @return True if the entry is present in SQL table.
 	 */
-	public boolean hasResourceEntry(String resourceID){ 
+	public synchronized boolean hasResourceEntry(String resourceID){ 
 		boolean hasEntry = false;
 		try {
 			hasEntryStatement.setString(1, resourceID); 			 
@@ -248,7 +248,7 @@ public class ResourceDao extends AbstractObrDao {
 	 * Add an new entry in corresponding SQL table.
 	 * @return True if the entry was updated to the SQL table, false if a problem occurred during insertion.
 	 */
-	public boolean updateEntry(Resource resource){
+	public synchronized boolean updateEntry(Resource resource){
 		boolean updated = false;
 		try {
 			updateEntryStatement.setString(1, resource.getResourceName());			
@@ -300,7 +300,7 @@ public class ResourceDao extends AbstractObrDao {
 	 * 
 	 * @return True if the entry was updated to the SQL table.
 	 */
-	public boolean updateDictionaryAndWorkflowDate(Resource resource, int dictionaryID){
+	public synchronized boolean updateDictionaryAndWorkflowDate(Resource resource, int dictionaryID){
 		boolean updated = false;
 		try {
 			StringBuffer queryb = new StringBuffer();
@@ -337,7 +337,7 @@ public class ResourceDao extends AbstractObrDao {
 		resetDictionaryStatement = this.prepareSQLStatement(queryb.toString());
 	}
 	
-	public boolean resetDictionary(String resourceID){
+	public synchronized boolean resetDictionary(String resourceID){
 		boolean updated = false;
 		try{
 			resetDictionaryStatement.setString(1, resourceID);
@@ -371,7 +371,7 @@ public class ResourceDao extends AbstractObrDao {
 	 * @param numberOfElements 
 	 * @return boolean {@code true} if updated successfully.
 	 */
-	public boolean updateNumberOfElementAndDate(String resourceID, int numberOfElements){
+	public synchronized boolean updateNumberOfElementAndDate(String resourceID, int numberOfElements){
 		boolean updated = false;
 		try{
 			updateNumberOfElementAndDateStatement.setInt(1, numberOfElements);
@@ -442,7 +442,7 @@ public class ResourceDao extends AbstractObrDao {
 	 * @param resourceID
 	 * @return int - dictionary id 
 	 */
-	public int getDictionaryId(String resourceID){
+	public synchronized int getDictionaryId(String resourceID){
 		int dictionaryID = -1;
 		try {
 			getDictioanryIDStatement.setString(1, resourceID); 			 
@@ -472,7 +472,7 @@ public class ResourceDao extends AbstractObrDao {
 	 * @param resourceID
 	 * @return int - id .
 	 */
-	public int getResourceIdKey(String resourceID){ 
+	public synchronized int getResourceIdKey(String resourceID){ 
 		int id= -1;
 		try {
 			hasEntryStatement.setString(1, resourceID); 			 
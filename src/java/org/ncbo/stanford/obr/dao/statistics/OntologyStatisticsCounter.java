@@ -0,0 +1,141 @@
+package org.ncbo.stanford.obr.dao.statistics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ncbo.stanford.obr.dao.statistics.StatisticsDao.StatisticsEntry;
+
+/**
+ * This class counts by ontology_id the annotations added to the annotation tables of a resource during
+ * a workflow (aggregated, mgrep, reported, isa and mapping annotations), so the statistics table is updated
+ * with the new annotations instead of counting again all the annotations of the resource.
+ * The counters are kept in primitive arrays split in stripes by ontology_id, each stripe with its own lock,
+ * so the stages can add their counts from several threads.
+ * A counter that missed some annotations (e.g. stage processed without counting) is marked incomplete
+ * and must not be used to update the statistics.
+ */
+public class OntologyStatisticsCounter {
+
+	public static final int AGGREGATED = 0;
+	public static final int MGREP = 1;
+	public static final int REPORTED = 2;
+	public static final int ISA = 3;
+	public static final int MAPPING = 4;
+
+	private static final int NB_COLUMN = 5;
+	private static final int NB_STRIPE = 16;
+	private static final int EMPTY = -1;
+
+	private Stripe[] stripes;
+	private volatile boolean complete = true;
+
+	public OntologyStatisticsCounter() {
+		this.stripes = new Stripe[NB_STRIPE];
+		for(int i = 0; i < NB_STRIPE; i++){
+			this.stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Adds the given number of annotations (can be negative) to the given column of the given ontology.
+	 */
+	public void add(int column, int ontologyID, long count) {
+		Stripe stripe = this.stripes[(hash(ontologyID) >>> 16) & (NB_STRIPE - 1)];
+		synchronized (stripe) {
+			stripe.add(column, ontologyID, count);
+		}
+	}
+
+	/**
+	 * Marks the counter incomplete: some annotations were added without being counted.
+	 */
+	public void setIncomplete() {
+		this.complete = false;
+	}
+
+	/**
+	 * Returns false if some annotations were added without being counted.
+	 */
+	public boolean isComplete() {
+		return this.complete;
+	}
+
+	/**
+	 * Returns the counts of each ontology as entries of the statistics table for the given resource
+	 * (the columns of each entry are the numbers of annotations to add).
+	 */
+	public List<StatisticsEntry> getEntries(int resourceID) {
+		List<StatisticsEntry> entries = new ArrayList<StatisticsEntry>();
+		for(Stripe stripe: this.stripes){
+			synchronized (stripe) {
+				for(int j = 0; j < stripe.size; j++){
+					int slot = stripe.usedSlots[j];
+					entries.add(new StatisticsEntry(resourceID, stripe.ontologies[slot],
+							stripe.counts[AGGREGATED][slot], stripe.counts[MGREP][slot], stripe.counts[REPORTED][slot],
+							stripe.counts[ISA][slot], stripe.counts[MAPPING][slot]));
+				}
+			}
+		}
+		return entries;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Counters of the ontologies of one stripe (open addressing on the ontology_id).
+	 */
+	private static class Stripe {
+
+		private int[] ontologies;
+		private long[][] counts;
+		// Slots used, in insertion order
+		private int[] usedSlots;
+		private int size = 0;
+
+		private Stripe() {
+			this.allocate(16);
+		}
+
+		private void add(int column, int ontologyID, long count) {
+			if((this.size + 1) * 2 > this.ontologies.length){
+				this.resize();
+			}
+			int mask = this.ontologies.length - 1;
+			int i = hash(ontologyID) & mask;
+			while(this.ontologies[i] != EMPTY && this.ontologies[i] != ontologyID){
+				i = (i + 1) & mask;
+			}
+			if(this.ontologies[i] == EMPTY){
+				this.ontologies[i] = ontologyID;
+				this.usedSlots[this.size++] = i;
+			}
+			this.counts[column][i] += count;
+		}
+
+		private void allocate(int capacity) {
+			this.ontologies = new int[capacity];
+			this.counts = new long[NB_COLUMN][capacity];
+			this.usedSlots = new int[capacity];
+			Arrays.fill(this.ontologies, EMPTY);
+		}
+
+		private void resize() {
+			int[] oldOntologies = this.ontologies;
+			long[][] oldCounts = this.counts;
+			int[] oldUsedSlots = this.usedSlots;
+			int oldSize = this.size;
+			this.allocate(oldOntologies.length << 1);
+			this.size = 0;
+			for(int j = 0; j < oldSize; j++){
+				int slot = oldUsedSlots[j];
+				for(int column = 0; column < NB_COLUMN; column++){
+					this.add(column, oldOntologies[slot], oldCounts[column][slot]);
+				}
+			}
+		}
+	}
+}
@@ -4,6 +4,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
@@ -37,6 +39,11 @@ import com.mysql.jdbc.exceptions.MySQLNonTransientConnectionException;
 public class StatisticsDao extends AbstractObrDao {
 
 	private static final String TABLE_SUFFIX = MessageUtils.getMessage("obr.statistics.table.suffix");
+	
+	// Maximum number of rows of a multi-row insert
+	private static final int BATCH_SIZE = 1000;
+	// Maximum number of executions of a multi-row insert when the connection is lost
+	private static final int MAX_EXECUTIONS = 3;
 
 	private static PreparedStatement addEntryStatement;
 	private static PreparedStatement getOntolgyIDsForResourceStatement;
@@ -114,7 +121,7 @@ public class StatisticsDao extends AbstractObrDao {
 	 * Add an new entry in corresponding SQL table.
 	 * @return True if the entry was added to the SQL table, false if a problem occurred during insertion.
 	 */
-	public boolean addEntry(StatisticsEntry entry){
+	public synchronized boolean addEntry(StatisticsEntry entry){
 		boolean inserted = false;
 		try {
 			addEntryStatement.setInt(1, entry.getResourceId());
@@ -149,19 +156,146 @@ public class StatisticsDao extends AbstractObrDao {
 	}
 	
 	/**
-	 * Add a set of StatisticsEntry to the table.
+	 * Add a set of StatisticsEntry to the table, with one multi-row INSERT ... ON DUPLICATE KEY UPDATE for each resource.
+	 * The entries of a resource are added one by one if the batched statement fails.
 	 * @param HashSet<StatisticsEntry> entries
 	 * @return the number of added entries
 	 */
-	public long addEntries(HashSet<StatisticsEntry> entries){
+	public synchronized long addEntries(HashSet<StatisticsEntry> entries){
 		long nbInserted = 0;
-		for(StatisticsEntry entry: entries){
-			if (this.addEntry(entry)){
-				nbInserted++;
+		for(List<StatisticsEntry> resourceEntries: entriesByResource(entries).values()){
+			long nbWritten = this.writeEntries(resourceEntries, false);
+			if(nbWritten < 0){
+				nbWritten = 0;
+				for(StatisticsEntry entry: resourceEntries){
+					if (this.addEntry(entry)){
+						nbWritten++;
+					}
+				}
 			}
+			nbInserted += nbWritten;
 		}
 		return nbInserted;
 	} 
+	
+	/**
+	 * Adds the numbers of annotations of the given entries to the entries of the table with one multi-row
+	 * INSERT ... ON DUPLICATE KEY UPDATE for each resource (see {@link OntologyStatisticsCounter}).
+	 * 
+	 * @param entries numbers of annotations to add for each resource and ontology
+	 * @return True if the entries were added or updated, false if a problem occurred. 
+	 */
+	public synchronized boolean addEntryIncrements(List<StatisticsEntry> entries){
+		boolean updated = true;
+		for(List<StatisticsEntry> resourceEntries: entriesByResource(entries).values()){
+			if(this.writeEntries(resourceEntries, true) < 0){
+				updated = false;
+			}
+		}
+		return updated;
+	}
+	
+	private static HashMap<Integer, List<StatisticsEntry>> entriesByResource(Collection<StatisticsEntry> entries){
+		HashMap<Integer, List<StatisticsEntry>> entriesByResource = new HashMap<Integer, List<StatisticsEntry>>();
+		for(StatisticsEntry entry: entries){
+			List<StatisticsEntry> resourceEntries = entriesByResource.get(entry.getResourceId());
+			if(resourceEntries == null){
+				resourceEntries = new ArrayList<StatisticsEntry>();
+				entriesByResource.put(entry.getResourceId(), resourceEntries);
+			}
+			resourceEntries.add(entry);
+		}
+		return entriesByResource;
+	}
+	
+	/**
+	 * Writes the given entries of one resource with multi-row INSERT ... ON DUPLICATE KEY UPDATE statements 
+	 * of at most {@code BATCH_SIZE} rows. The ontologies of the resource already in the table are read first, 
+	 * so the numbers of inserted and updated entries are logged.
+	 * 
+	 * @param increment true to add the numbers of annotations to the ones of the table, false to replace them
+	 * @return the number of entries written, -1 if a problem occurred
+	 */
+	private long writeEntries(List<StatisticsEntry> entries, boolean increment){
+		if(entries.size() == 0){
+			return 0;
+		}
+		int resourceID = entries.get(0).getResourceId();
+		HashSet<Integer> existingOntologyIDs = new HashSet<Integer>(this.getOntolgyIDsForResource(resourceID));
+		long nbInserted = 0;
+		long nbUpdated = 0;
+		for(int from = 0; from < entries.size(); from += BATCH_SIZE){
+			List<StatisticsEntry> batch = entries.subList(from, Math.min(from + BATCH_SIZE, entries.size()));
+			StringBuffer queryb = new StringBuffer();
+			queryb.append("INSERT INTO ");
+			queryb.append(this.getTableSQLName());
+			queryb.append(" (resource_id, ontology_id, aggregated_annotations, mgrep_annotations, reported_annotations, isa_annotations, mapping_annotations) VALUES ");
+			for(StatisticsEntry entry: batch){
+				queryb.append("(");
+				queryb.append(entry.getResourceId());
+				queryb.append(", ");
+				queryb.append(entry.getOntologyID());
+				queryb.append(", ");
+				queryb.append(entry.getAggregatedAnnotations());
+				queryb.append(", ");
+				queryb.append(entry.getMgrepAnnotations());
+				queryb.append(", ");
+				queryb.append(entry.getReportedAnnotations());
+				queryb.append(", ");
+				queryb.append(entry.getIsaAnnotations());
+				queryb.append(", ");
+				queryb.append(entry.getMappingAnnotations());
+				queryb.append("), ");
+				if(existingOntologyIDs.add(entry.getOntologyID())){
+					nbInserted++;
+				}else{
+					nbUpdated++;
+				}
+			}
+			queryb.delete(queryb.length()-2, queryb.length());
+			queryb.append(" ON DUPLICATE KEY UPDATE ");
+			String[] columns = {"aggregated_annotations", "mgrep_annotations", "reported_annotations", "isa_annotations", "mapping_annotations"};
+			for(int i = 0; i < columns.length; i++){
+				queryb.append(columns[i]);
+				queryb.append("=");
+				if(increment){
+					queryb.append(columns[i]);
+					queryb.append("+");
+				}
+				queryb.append("VALUES(");
+				queryb.append(columns[i]);
+				queryb.append(i < columns.length - 1 ? "), " : ");");
+			}
+			try {
+				this.executeBatch(queryb.toString(), increment);
+			}
+			catch (SQLException e) {
+				logger.error("** PROBLEM ** Cannot write the statistics of resource " + resourceID + " on table " + this.getTableSQLName(), e);
+				return -1;
+			}
+		}
+		logger.info("\t" + nbInserted + " entries inserted and " + nbUpdated + " entries updated in " + this.getTableSQLName() + " for resource " + resourceID + ".");
+		return nbInserted + nbUpdated;
+	}
+	
+	/**
+	 * Executes one multi-row statement, again (at most {@code MAX_EXECUTIONS} times) if the connection was lost.
+	 * A statement adding increments is not executed again, as it may have been applied before the connection 
+	 * was lost: the statistics are then calculated again from the annotation tables.
+	 */
+	private void executeBatch(String query, boolean increment) throws SQLException {
+		for(int execution = 1; ; execution++){
+			try {
+				this.executeSQLUpdate(query);
+				return;
+			}
+			catch (MySQLNonTransientConnectionException e) {
+				if(increment || execution >= MAX_EXECUTIONS){
+					throw e;
+				}
+			}
+		}
+	}
 
 	private void openGetOntolgyIDsForResourceStatement(){
 		StringBuffer queryb = new StringBuffer();
@@ -256,7 +390,7 @@ public class StatisticsDao extends AbstractObrDao {
 	 * @param ontologyID
 	 * @return
 	 */
-	public boolean deleteStatisticsForResource(String resourceID){
+	public synchronized boolean deleteStatisticsForResource(String resourceID){
 		boolean deleted = false;
 		try{
 			deleteStatisticsForResourceStatement.setString(1, resourceID);			 
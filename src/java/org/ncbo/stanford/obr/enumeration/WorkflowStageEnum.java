@@ -0,0 +1,25 @@
+package org.ncbo.stanford.obr.enumeration;
+
+/**
+ * Stages of the workflow of a resource, in their execution order.
+ * They are recorded in the workflow stage table so that an interrupted
+ * workflow restarts after the last completed stage.
+ */
+public enum WorkflowStageEnum {
+	RESOURCE_UPDATE,
+	DIRECT_ANNOTATION,
+	SEMANTIC_EXPANSION,
+	FUSED_EXPANSION_AGGREGATION,
+	AGGREGATION,
+	SORT_AGGREGATION,
+	CONCEPT_FREQUENCY,
+	STATISTICS
+	;
+
+	/**
+	 * Returns true for the stages working on the annotation tables with the workflow_status flags.
+	 */
+	public boolean isAnnotationStage() {
+		return this == DIRECT_ANNOTATION || this == SEMANTIC_EXPANSION || this == FUSED_EXPANSION_AGGREGATION || this == AGGREGATION;
+	}
+}
@@ -13,6 +13,7 @@ import obs.obr.populate.Structure;
 import org.apache.log4j.Logger;
 import org.ncbo.stanford.obr.dao.AbstractObrDao;
 import org.ncbo.stanford.obr.dao.context.ContexDao.ContextEntry;
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
 import org.ncbo.stanford.obr.enumeration.ResourceType;
 import org.ncbo.stanford.obr.service.aggregation.AggregationService;
 import org.ncbo.stanford.obr.service.aggregation.impl.AggregationServiceImpl;
@@ -303,6 +304,17 @@ public abstract class ResourceAccessTool implements StringHelper {
 		resourceUpdateService.calculateObrStatistics(withCompleteDictionary, dictionary);
 	}
 	
+	/**
+	 * This method adds the annotations counted during the workflow to the statistics of current resource,
+	 * or calculates the statistics from the annotation tables if the counter is null or incomplete.
+	 * @param withCompleteDictionary 
+	 * @param dictionary 
+	 * @param counter 
+	 */
+	public void calculateObrStatistics(boolean withCompleteDictionary, DictionaryBean dictionary, OntologyStatisticsCounter counter){
+		resourceUpdateService.calculateObrStatistics(withCompleteDictionary, dictionary, counter);
+	}
+	
 	
 	/**
 	 * Constructs a <code>String</code> with all attributes in name = value format.
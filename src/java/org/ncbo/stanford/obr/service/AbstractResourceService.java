@@ -16,41 +16,46 @@ public abstract class AbstractResourceService implements DaoFactory, StringHelpe
 	// Logger for AbstractResourceService 
 	protected static Logger logger = Logger.getLogger(AbstractResourceService.class);
 	
-	protected static ResourceAccessTool resourceAccessTool;	
+	protected ResourceAccessTool resourceAccessTool;	
 	
-	protected static ElementDao elementTableDao;
-	protected static DirectAnnotationDao directAnnotationTableDao;
-	protected static IsaExpandedAnnotationDao isaExpandedAnnotationTableDao;
-	protected static MapExpandedAnnotationDao mapExpandedAnnotationTableDao;
-	protected static AggregationDao aggregationTableDao;
-	protected static ConceptFrequencyDao conceptFrequencyDao;
+	// Tables specific to the resource, one instance for each resource access tool.
+	protected ElementDao elementTableDao;
+	protected DirectAnnotationDao directAnnotationTableDao;
+	protected IsaExpandedAnnotationDao isaExpandedAnnotationTableDao;
+	protected MapExpandedAnnotationDao mapExpandedAnnotationTableDao;
+	protected AggregationDao aggregationTableDao;
+	protected ConceptFrequencyDao conceptFrequencyDao;
 	  
 	public AbstractResourceService(ResourceAccessTool resourceAccessTool) {
 		super();
+		this.resourceAccessTool = resourceAccessTool;
 		
-		if(AbstractResourceService.resourceAccessTool== null 
-				|| AbstractResourceService.resourceAccessTool.getToolResource().getResourceId()!=resourceAccessTool.getToolResource().getResourceId()){
-			 AbstractResourceService.resourceAccessTool = resourceAccessTool;
-				
-			// Creating Element Table Dao for given resource access tool
-			 elementTableDao= new ElementDao(resourceAccessTool.getToolResource().getResourceId() 
-					, resourceAccessTool.getToolResource().getResourceStructure()) ;
-					 
-			 directAnnotationTableDao= new DirectAnnotationDao(resourceAccessTool.getToolResource().getResourceId()) ;
-			
-			 isaExpandedAnnotationTableDao= new IsaExpandedAnnotationDao(resourceAccessTool.getToolResource().getResourceId());
-			 
-			 mapExpandedAnnotationTableDao= new MapExpandedAnnotationDao(resourceAccessTool.getToolResource().getResourceId());
-			
-			 aggregationTableDao = new AggregationDao(resourceAccessTool.getToolResource().getResourceId());
-			 
-			 conceptFrequencyDao = new ConceptFrequencyDao(resourceAccessTool.getToolResource().getResourceId());			
+		// The services of a same resource access tool share the tables of the first created service. 
+		if(resourceAccessTool.getResourceUpdateService() instanceof AbstractResourceService){
+			AbstractResourceService service = (AbstractResourceService) resourceAccessTool.getResourceUpdateService();
+			this.elementTableDao = service.elementTableDao;
+			this.directAnnotationTableDao = service.directAnnotationTableDao;
+			this.isaExpandedAnnotationTableDao = service.isaExpandedAnnotationTableDao;
+			this.mapExpandedAnnotationTableDao = service.mapExpandedAnnotationTableDao;
+			this.aggregationTableDao = service.aggregationTableDao;
+			this.conceptFrequencyDao = service.conceptFrequencyDao;
+			return;
 		}
 		
+		String resourceID = resourceAccessTool.getToolResource().getResourceId();
 		
+		// Creating Element Table Dao for given resource access tool
+		this.elementTableDao = new ElementDao(resourceID, resourceAccessTool.getToolResource().getResourceStructure());
+		
+		this.directAnnotationTableDao = new DirectAnnotationDao(resourceID);
+		
+		this.isaExpandedAnnotationTableDao = new IsaExpandedAnnotationDao(resourceID);
+		
+		this.mapExpandedAnnotationTableDao = new MapExpandedAnnotationDao(resourceID);
+		
+		this.aggregationTableDao = new AggregationDao(resourceID);
+		
+		this.conceptFrequencyDao = new ConceptFrequencyDao(resourceID);
 	}
-	
-	
-	
 
 }
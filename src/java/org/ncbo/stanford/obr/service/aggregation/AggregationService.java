@@ -5,6 +5,7 @@ package org.ncbo.stanford.obr.service.aggregation;
 
 import java.util.List;
 
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
 import org.ncbo.stanford.obr.enumeration.ResourceType;
 
 import obs.obr.populate.ObrWeight;
@@ -26,14 +27,53 @@ public interface AggregationService {
 	 */
 	public long aggregation(ObrWeight weights);
 	
+	/**
+	 * Processes the direct & expanded annotations of the elements between two watermarks to produce the index
+	 * (see obr.workflow.watermark). The annotations are selected by their workflow_status if fromElementID is negative.
+	 * 
+	 * @param weights  Used for calculating score
+	 * @param fromElementID  watermark of the last element aggregated, or -1 to use the workflow_status
+	 * @param toElementID  watermark of the last element to aggregate
+	 * @return The number of annotations created in the index. 
+	 */
+	public long aggregation(ObrWeight weights, long fromElementID, long toElementID);
+	
+	/**
+	 * Processes the direct & expanded annotations of the elements between two watermarks to produce the index,
+	 * and adds to the given counter the number of aggregated annotations created for each ontology.
+	 * 
+	 * @param weights  Used for calculating score
+	 * @param fromElementID  watermark of the last element aggregated, or -1 to use the workflow_status
+	 * @param toElementID  watermark of the last element to aggregate
+	 * @param counter  {@code OntologyStatisticsCounter} of the new annotations of the workflow, or null
+	 * @return The number of annotations created in the index. 
+	 */
+	public long aggregation(ObrWeight weights, long fromElementID, long toElementID, OntologyStatisticsCounter counter);
+	
+	/**
+	 * Expands and aggregates in a single pass the direct annotations not yet expanded, with the is_a closure 
+	 * and the mappings loaded in memory. Replaces the semantic expansion followed by the aggregation.
+	 * 
+	 * @param weights  Used for calculating score
+	 * @param isaClosureExpansion  {@code boolean} for is a closure expansion
+	 * @param mappingExpansion  {@code boolean} for mapping expansion
+	 * @return The number of annotations in the index, -1 if the is_a closure or the mappings cannot be loaded
+	 * (the semantic expansion and the aggregation must then be used). 
+	 */
+	public long fusedExpansionAggregation(ObrWeight weights, boolean isaClosureExpansion, boolean mappingExpansion);
+	
 	/**
 	 *  Sort Aggregation
+	 *  Only the elements aggregated since the last sort are merged in the sorted table if obr.aggregation.incremental 
+	 *  is true, unless the dictionary or the weights changed.
 	 * 
 	 * @param resourceType  Used for calculating score
+	 * @param weights  Used for calculating score
+	 * @param dictionaryID  Dictionary used for the annotations
 	 * @return  Boolean  
 	 * 
 	 */
-	public boolean sortAggregation(ResourceType resourceType);
+	public boolean sortAggregation(ResourceType resourceType, ObrWeight weights, int dictionaryID);
 	
 	/**
 	 * Method removes indexing done for given ontology versions.
@@ -41,6 +81,22 @@ public interface AggregationService {
 	 * @param {@code List} of localOntologyID String containing ontology version.
 	 */
 	public void removeAggregation(List<String> localOntologyID);
+	
+	/**
+	 * Method resets the aggregation of the elements left partially aggregated by an interrupted aggregation,
+	 * so that the next aggregation computes them again completely.
+	 * 
+	 * @return The number of elements reset.
+	 */
+	public long resetInterruptedAggregation();
+	
+	/**
+	 * Method resets the elements left by an interrupted fused expansion and aggregation,
+	 * so that the semantic expansion and the aggregation compute them again completely.
+	 * 
+	 * @return The number of elements reset.
+	 */
+	public long resetInterruptedFusedAggregation();
 
 	/**
 	 * Method calculates concept frequency from aggregation table 
@@ -5,10 +5,14 @@ import java.util.List;
 import obs.common.utils.ExecutionTimer;
 import obs.obr.populate.ObrWeight;
 
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
 import org.ncbo.stanford.obr.enumeration.ResourceType;
 import org.ncbo.stanford.obr.resource.ResourceAccessTool;
 import org.ncbo.stanford.obr.service.AbstractResourceService;
 import org.ncbo.stanford.obr.service.aggregation.AggregationService;
+import org.ncbo.stanford.obr.service.semantic.SemanticExpansionService;
+import org.ncbo.stanford.obr.util.IsaClosureGraph;
+import org.ncbo.stanford.obr.util.MappingIndex;
 
 public class AggregationServiceImpl extends AbstractResourceService implements AggregationService{
 
@@ -23,27 +27,103 @@ public class AggregationServiceImpl extends AbstractResourceService implements A
 	 * Returns the number of annotations created in the index. 
 	 */
 	public long aggregation(ObrWeight weights){
+		return this.aggregation(weights, -1, -1);
+	} 
+	
+	/**
+	 * Processes the direct & expanded annotations of the elements between two watermarks to produce the index.
+	 * Returns the number of annotations created in the index. 
+	 */
+	public long aggregation(ObrWeight weights, long fromElementID, long toElementID){
+		return this.aggregation(weights, fromElementID, toElementID, null);
+	} 
+	
+	/**
+	 * Processes the direct & expanded annotations of the elements between two watermarks to produce the index,
+	 * and counts the aggregated annotations created for each ontology.
+	 * Returns the number of annotations created in the index. 
+	 */
+	public long aggregation(ObrWeight weights, long fromElementID, long toElementID, OntologyStatisticsCounter counter){
 		long nbAnnotation;
 		ExecutionTimer timer = new ExecutionTimer();
 		timer.start();
 		logger.info("*** Executing aggregation process.... ");
-		nbAnnotation = aggregationTableDao.aggregation(weights);
+		nbAnnotation = aggregationTableDao.aggregation(weights, fromElementID, toElementID, counter);
 		timer.end();
 		logger.info("### Aggregation processed in: " + timer.millisecondsToTimeString(timer.duration()));
 		return nbAnnotation;
 	} 
 	
-	public boolean sortAggregation(ResourceType resourceType) {
+	/**
+	 * Expands and aggregates in a single pass the direct annotations not yet expanded.
+	 * Returns the number of annotations in the index, -1 if the is_a closure or the mappings cannot be loaded. 
+	 */
+	public long fusedExpansionAggregation(ObrWeight weights, boolean isaClosureExpansion, boolean mappingExpansion){
+		IsaClosureGraph isaClosure = null;
+		MappingIndex mappingIndex = null;
+		if(isaClosureExpansion){
+			isaClosure = relationDao.getIsaClosureGraph();
+			if(isaClosure == null){
+				logger.error("** PROBLEM ** Cannot load the is_a closure, fused expansion and aggregation not processed.");
+				return -1;
+			}
+		}
+		if(mappingExpansion){
+			mappingIndex = mapDao.getMappingIndex();
+			if(mappingIndex == null){
+				logger.error("** PROBLEM ** Cannot load the mappings, fused expansion and aggregation not processed.");
+				return -1;
+			}
+		}
+		// The expansion of big resources is restricted to the parents up to obr.expanded.annotation.max.level
+		int maxLevel = resourceAccessTool.getResourceType() == ResourceType.BIG ? SemanticExpansionService.MAX_LEVEL_FOR_BIG_RESOURCE : SemanticExpansionService.LEVEL_ALL;
+		long nbAnnotation;
+		ExecutionTimer timer = new ExecutionTimer();
+		timer.start();
+		logger.info("*** Executing fused expansion and aggregation process.... ");
+		nbAnnotation = aggregationTableDao.fusedExpansionAggregation(weights, isaClosure, mappingIndex, maxLevel);
+		timer.end();
+		logger.info("### Fused expansion and aggregation processed in: " + timer.millisecondsToTimeString(timer.duration()));
+		return nbAnnotation;
+	}
+	
+	public boolean sortAggregation(ResourceType resourceType, ObrWeight weights, int dictionaryID) {
 		boolean result= false;
 		ExecutionTimer timer = new ExecutionTimer();
 		timer.start();
 		logger.info("*** Executing aggregation sorting process.... ");
-		result = aggregationTableDao.sortAggregation(resourceType);
+		result = aggregationTableDao.sortAggregation(resourceType, weights, dictionaryID);
 		timer.end();
 		logger.info("### Aggregation sorted in: " + timer.millisecondsToTimeString(timer.duration()));
 		return result;
 	}
 	
+	/**
+	 * Method resets the aggregation of the elements left partially aggregated by an interrupted aggregation.
+	 * 
+	 * @return The number of elements reset.
+	 */
+	public long resetInterruptedAggregation() {
+		long nbElement = aggregationTableDao.resetInterruptedAggregation();
+		if(nbElement > 0){
+			logger.info("\tAggregation of " + nbElement + " elements reset after an interrupted aggregation.");
+		}
+		return nbElement;
+	}
+	
+	/**
+	 * Method resets the elements left by an interrupted fused expansion and aggregation.
+	 * 
+	 * @return The number of elements reset.
+	 */
+	public long resetInterruptedFusedAggregation() {
+		long nbElement = aggregationTableDao.resetInterruptedFusedAggregation();
+		if(nbElement > 0){
+			logger.info("\tExpansion and aggregation of " + nbElement + " elements reset after an interrupted fused expansion and aggregation.");
+		}
+		return nbElement;
+	}
+	
 	/**
 	 * Method removes indexing done for given ontology versions.
 	 * 
@@ -5,6 +5,8 @@ import java.util.List;
 
 import obs.common.beans.DictionaryBean;
 
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
+
 /**
  * Service for processing direct annotations
  * 
@@ -46,6 +48,30 @@ public interface AnnotationService {
 	 */
 	public long createTemporaryElementTable(int dictionaryID);
 	
+	/**
+	 * This method opens the next window of at most {@code getMaxNumberOfElementsToProcess()} non annotated 
+	 * elements for given dictionary id. Until {@link #closeElementWindow()}, the annotation is restricted to 
+	 * the elements of this window. The annotations left by an interrupted annotation of this window are removed. 
+	 * 
+	 * @param dictionaryID
+	 * @return Number of elements in the window (0 if all the elements are annotated)
+	 */
+	public int openElementWindow(int dictionaryID);
+	
+	/**
+	 * This method closes the current window of elements.
+	 */
+	public void closeElementWindow();
+	
+	/**
+	 * This method removes the annotations made with the given dictionary for the elements 
+	 * not yet annotated with this dictionary, left by an interrupted annotation.
+	 * 
+	 * @param dictionaryID
+	 * @return Number of annotations removed
+	 */
+	public long removeInterruptedAnnotations(int dictionaryID);
+	
 	/**
 	 * 
 	 */
@@ -59,6 +85,31 @@ public interface AnnotationService {
 	 */
 	public int getNumberOfElementsForAnnotation(int dictionaryID);
 	
+	/**
+	 * This method gives the largest element_id of the direct annotations, used as watermark of the 
+	 * elements to expand and aggregate.
+	 * 
+	 * @return long - largest element_id, -1 if there is no annotation
+	 */
+	public long getMaxAnnotatedElementID();
+	
+	/**
+	 * This method checks if the annotations waiting for the semantic expansion and the aggregation
+	 * are the ones of the elements above the given watermark (see obr.workflow.watermark).
+	 * 
+	 * @param watermark largest element_id aggregated
+	 * @return true if the annotations can be selected by the watermark
+	 */
+	public boolean isWatermarkValid(long watermark);
+	
+	/**
+	 * This method adds to the given counter the number of mgrep and reported annotations of each ontology 
+	 * among the direct annotations not yet expanded.
+	 * 
+	 * @param counter {@code OntologyStatisticsCounter} of the new annotations of the workflow
+	 */
+	public void countAnnotationStatistics(OntologyStatisticsCounter counter);
+	
 	/**
 	 *  Enable indexes for all annotation table
 	 *   
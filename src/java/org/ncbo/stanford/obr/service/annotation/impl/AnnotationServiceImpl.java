@@ -1,9 +1,19 @@
 package org.ncbo.stanford.obr.service.annotation.impl;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import obs.common.beans.DictionaryBean;
 import obs.common.utils.ExecutionTimer;
@@ -11,11 +21,16 @@ import obs.obr.populate.Structure;
 
 import org.apache.log4j.Logger;
 import org.ncbo.stanford.obr.dao.dictionary.DictionaryDao;
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
+import org.ncbo.stanford.obr.enumeration.ResourceType;
 import org.ncbo.stanford.obr.resource.ResourceAccessTool;
 import org.ncbo.stanford.obr.service.AbstractResourceService;
 import org.ncbo.stanford.obr.service.annotation.AnnotationService;
 import org.ncbo.stanford.obr.util.FileResourceParameters;
 import org.ncbo.stanford.obr.util.mgrep.ConceptRecognitionTools;
+import org.ncbo.stanford.obr.util.mgrep.DictionaryAutomaton;
+import org.ncbo.stanford.obr.util.mgrep.DictionaryAutomatonCache;
+import org.ncbo.stanford.obr.util.mgrep.LineBlockQueue;
 
 public class AnnotationServiceImpl extends AbstractResourceService implements
 		AnnotationService {
@@ -23,6 +38,12 @@ public class AnnotationServiceImpl extends AbstractResourceService implements
 	// Logger for AnnotationServiceImpl
 	protected static Logger logger = Logger
 			.getLogger(AnnotationServiceImpl.class);
+	
+	// Lock for the creation of the dictionary files shared by all the resources
+	private static final Object DICTIONARY_FILE_LOCK = new Object();
+	
+	// Maximum number of blocks of lines waiting between two stages of the streaming concept recognition
+	private static final int STREAMING_QUEUE_CAPACITY = 16;
 
 	public AnnotationServiceImpl(ResourceAccessTool resourceAccessTool) {
 		super(resourceAccessTool);
@@ -50,6 +71,10 @@ public class AnnotationServiceImpl extends AbstractResourceService implements
 		if(elementTableDao.numberOfElementsForMgrepAnnotation(dictionary.getDictionaryId())> 0){
 			nbAnnotation = this.conceptRecognitionWithMgrep(dictionary,
 			 		withCompleteDictionary, stopwords);
+			if(nbAnnotation < 0){
+				// The elements keep their dictionary, so they are annotated again by the next workflow
+				return 0;
+			}
 		} else{
 			logger.info("\tNo element present in "+ elementTableDao.getTableSQLName()+ " for MGRAP annotation.");
 		}
@@ -70,7 +95,7 @@ public class AnnotationServiceImpl extends AbstractResourceService implements
 	/**
 	 * Applies Mgrep on the corresponding resource. Only the elements in _ET
 	 * with a dictionaryID < to the latest one are selected (or the one with
-	 * null); Returns the number of annotations added to _DAT.
+	 * null); Returns the number of annotations added to _DAT, or -1 if the concept recognition failed.
 	 */
 	private long conceptRecognitionWithMgrep(DictionaryBean dictionary,
 			boolean withCompleteDictionary, HashSet<String> stopwords) {
@@ -91,14 +116,17 @@ public class AnnotationServiceImpl extends AbstractResourceService implements
 				dictionaryFile = new File(DictionaryDao
 						.dictionaryFileName(dictionary));
 			}
-			if (dictionaryFile.createNewFile()) {
-				logger.info("\t\tRe-creation of the dictionaryFile...");			 
-				
-				if (withCompleteDictionary) {
-					dictionaryDao.writeDictionaryFile(dictionaryFile);
-				} else {
-					dictionaryDao.writeDictionaryFile(dictionaryFile, dictionary
-							.getDictionaryId());
+			// Resources processed in parallel wait for the dictionary file being written
+			synchronized (DICTIONARY_FILE_LOCK) {
+				if (dictionaryFile.createNewFile()) {
+					logger.info("\t\tRe-creation of the dictionaryFile...");			 
+					
+					if (withCompleteDictionary) {
+						dictionaryDao.writeDictionaryFile(dictionaryFile);
+					} else {
+						dictionaryDao.writeDictionaryFile(dictionaryFile, dictionary
+								.getDictionaryId());
+					}
 				}
 			}
 		} catch (IOException e) {
@@ -109,6 +137,20 @@ public class AnnotationServiceImpl extends AbstractResourceService implements
 							e);
 		}
 
+		// Streams the elements to the concept recognizer and its results to the table
+		if (ConceptRecognitionTools.isStreamingRecognition()) {
+			timer.start();
+			nbDirectAnnotation = this.streamConceptRecognition(dictionary, dictionaryFile);
+			timer.end();
+			if (nbDirectAnnotation >= 0) {
+				logger.info("\t## Total streaming concept recognition processed in: "
+						+ timer.millisecondsToTimeString(timer.duration()));
+				return nbDirectAnnotation;
+			}
+			logger.info("\t\tStreaming concept recognition failed, processing with files...");
+			timer.reset();
+		}
+
 		// Writes the resource file with the elements not processed with the
 		// latest dictionary
 		timer.start();
@@ -121,8 +163,15 @@ public class AnnotationServiceImpl extends AbstractResourceService implements
 		// Calls Mgrep
 		timer.reset();
 		timer.start();
-		File mgrepFile = this.mgrepCall(dictionaryFile, resourceFile);
+		File mgrepFile = this.mgrepCall(dictionary, dictionaryFile, resourceFile);
 		timer.end();
+		if(mgrepFile == null){
+			// The failure is logged by mgrepCall
+			logger.info("\t\tNo Mgrep result, the elements are not annotated with dictionary " 
+					+ dictionary.getDictionaryId() + ".");
+			resourceFile.delete();
+			return -1;
+		}
 		logger.info("\t\tMgrep executed in: "
 				+ timer.millisecondsToTimeString(timer.duration()));
 
@@ -146,12 +195,137 @@ public class AnnotationServiceImpl extends AbstractResourceService implements
 		return nbDirectAnnotation;
 	}
 
-	private File mgrepCall(File dictionaryFile, File resourceFile) {
-		logger.info("Call to Mgrep...");
+	/**
+	 * Streams the elements not processed with the latest dictionary to the concept recognizer
+	 * (Mgrep process or java recognizer, according to obr.concept.recognizer) and the recognized terms
+	 * to the table, without intermediate files. The elements are read in a separated thread with its own
+	 * connection, and the stages are connected with bounded queues (or the Mgrep process pipes).
+	 * The table is populated only if all the stages completed.
+	 * 
+	 * @return the number of annotations added to the table or -1 if a stage failed
+	 */
+	private long streamConceptRecognition(final DictionaryBean dictionary, File dictionaryFile) {
+		logger.info("\t\tStreaming the resource to the concept recognizer...");
+		ExecutorService executorService = Executors.newFixedThreadPool(2);
+		Process mgrepProcess = null;
+		boolean loaded = false;
+		long nbAnnotation = -1;
+		try {
+			final LineBlockQueue elements;
+			final Writer elementsWriter;
+			final BufferedReader annotationsReader;
+			Future<Long> recognition = null;
+			if (ConceptRecognitionTools.JAVA_RECOGNIZER.equals(ConceptRecognitionTools.getConceptRecognizer())) {
+				final DictionaryAutomaton automaton = DictionaryAutomatonCache.getAutomaton(dictionary, dictionaryFile);
+				final LineBlockQueue annotations = new LineBlockQueue(STREAMING_QUEUE_CAPACITY);
+				elements = new LineBlockQueue(STREAMING_QUEUE_CAPACITY);
+				elementsWriter = elements.getWriter();
+				annotationsReader = new BufferedReader(annotations.getReader());
+				recognition = executorService.submit(new Callable<Long>() {
+					public Long call() throws Exception {
+						try {
+							long nbRecognized = ConceptRecognitionTools.javaStream(automaton, elements, annotations);
+							annotations.close();
+							return nbRecognized;
+						} catch (Exception e) {
+							annotations.abort();
+							throw e;
+						}
+					}
+				});
+			} else {
+				mgrepProcess = ConceptRecognitionTools.startMgrep(dictionaryFile);
+				elements = null;
+				elementsWriter = new OutputStreamWriter(mgrepProcess.getOutputStream());
+				annotationsReader = new BufferedReader(new InputStreamReader(mgrepProcess.getInputStream()));
+			}
+			final Process recognizerProcess = mgrepProcess;
+
+			// Reads the elements in a separated thread (the streamed result set has its own connection of the pool)
+			Future<Boolean> export = executorService.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					boolean exported = false;
+					try {
+						BufferedWriter out = new BufferedWriter(elementsWriter);
+						exported = elementTableDao.writeNonAnnotatedElements(out, dictionary.getDictionaryId(),
+								resourceAccessTool.getToolResource().getResourceStructure());
+						if (exported) {
+							out.close();
+						}
+					} finally {
+						if (!exported) {
+							// Stops the next stages 
+							if (elements != null) {
+								elements.abort();
+							} else {
+								recognizerProcess.destroy();
+							}
+						}
+					}
+					return exported;
+				}
+			});
+
+			loaded = directAnnotationTableDao.loadMgrepStream(annotationsReader);
+			if (!loaded) {
+				// Stops the previous stages waiting for the loading
+				executorService.shutdownNow();
+				if (mgrepProcess != null) {
+					mgrepProcess.destroy();
+				}
+			}
+			boolean exported = export.get();
+			boolean recognized = true;
+			if (recognition != null) {
+				recognition.get();
+			} else {
+				recognized = mgrepProcess.waitFor() == 0;
+			}
+			if (loaded && exported && recognized) {
+				nbAnnotation = directAnnotationTableDao.processMgrepTable(dictionary.getDictionaryId());
+				logger.info(nbAnnotation + " annotations done with streaming concept recognition.");
+			}
+		} catch (ExecutionException e) {
+			logger.error("** PROBLEM ** Streaming concept recognition failed.", e.getCause());
+		} catch (Exception e) {
+			logger.error("** PROBLEM ** Cannot execute streaming concept recognition.", e);
+		} finally {
+			executorService.shutdownNow();
+			if (mgrepProcess != null) {
+				mgrepProcess.destroy();
+			}
+			// Partial results are never joined to the table
+			if (loaded && nbAnnotation < 0) {
+				directAnnotationTableDao.dropMgrepTable();
+			}
+		}
+		return nbAnnotation;
+	}
+
+	private File mgrepCall(DictionaryBean dictionary, File dictionaryFile, File resourceFile) {
 		File mgrepFile = null;
 		try {
-			mgrepFile = ConceptRecognitionTools.mgrepLocal(dictionaryFile,
-					resourceFile);
+			if(ConceptRecognitionTools.JAVA_RECOGNIZER.equals(ConceptRecognitionTools.getConceptRecognizer())){
+				logger.info("Call to Java recognizer...");
+				mgrepFile = ConceptRecognitionTools.javaLocal(DictionaryAutomatonCache
+						.getAutomaton(dictionary, dictionaryFile), resourceFile);
+			}else{
+				// BIG resources are split in shards processed by parallel Mgrep processes
+				int nbShards = resourceAccessTool.getResourceType() == ResourceType.BIG ? ConceptRecognitionTools.getMgrepShards() : 1;
+				long[] elementIdRange = null;
+				if(nbShards > 1){
+					elementIdRange = elementTableDao.getNonAnnotatedElementIdRange(dictionary.getDictionaryId());
+				}
+				if(elementIdRange != null){
+					logger.info("Call to sharded Mgrep...");
+					mgrepFile = ConceptRecognitionTools.mgrepSharded(dictionaryFile, resourceFile, 
+							elementIdRange[0], elementIdRange[1], nbShards);
+				}else{
+					logger.info("Call to Mgrep...");
+					mgrepFile = ConceptRecognitionTools.mgrepLocal(dictionaryFile,
+							resourceFile);
+				}
+			}
 		} catch (IOException e) {
 			logger.error("** PROBLEM ** Cannot create MgrepFile.", e);
 		} catch (Exception e) {
@@ -282,6 +456,26 @@ public class AnnotationServiceImpl extends AbstractResourceService implements
 		 return elementTableDao.createTemporaryTable(dictionaryID, resourceAccessTool.getMaxNumberOfElementsToProcess());		
 	}
 	
+	public int openElementWindow(int dictionaryID) {
+		if(elementTableDao.openElementWindow(dictionaryID, resourceAccessTool.getMaxNumberOfElementsToProcess()) < 0){
+			return 0;
+		}
+		this.removeInterruptedAnnotations(dictionaryID);
+		return elementTableDao.numberOfElementsForMgrepAnnotation(dictionaryID);
+	}
+	
+	public void closeElementWindow() {
+		elementTableDao.closeElementWindow();
+	}
+	
+	public long removeInterruptedAnnotations(int dictionaryID) {
+		long nbDeleted = elementTableDao.deleteInterruptedAnnotations(dictionaryID, directAnnotationTableDao);
+		if(nbDeleted > 0){
+			logger.info("\t" + nbDeleted + " annotations of an interrupted annotation removed.");
+		}
+		return nbDeleted;
+	}
+	
 	public void createIndexForAnnotationTable() {	
 		if(!directAnnotationTableDao.isIndexExist()){
 			 directAnnotationTableDao.createIndex();
@@ -294,6 +488,18 @@ public class AnnotationServiceImpl extends AbstractResourceService implements
 	public int getNumberOfElementsForAnnotation(int dictionaryID) {		 
 		return elementTableDao.numberOfElementsForMgrepAnnotation(dictionaryID);
 	}
+	
+	public long getMaxAnnotatedElementID() {
+		return directAnnotationTableDao.getMaxElementID();
+	}
+	
+	public boolean isWatermarkValid(long watermark) {
+		return directAnnotationTableDao.isWatermarkValid(watermark);
+	}
+	
+	public void countAnnotationStatistics(OntologyStatisticsCounter counter) {
+		directAnnotationTableDao.countAnnotationStatistics(counter);
+	}
 
 	/**
 	 * Disable indexes for all annotation tables
@@ -3,19 +3,26 @@ package org.ncbo.stanford.obr.service.obs.impl;
 import java.io.File;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import obs.common.beans.DictionaryBean;
 import obs.common.utils.ExecutionTimer;
 import obs.common.utils.Utilities;
 
 import org.apache.log4j.Logger;
+import org.ncbo.stanford.obr.dao.AbstractObrDao;
 import org.ncbo.stanford.obr.dao.DaoFactory;
+import org.ncbo.stanford.obr.dao.obs.map.MapPartitionDao.MapPartitionEntry;
 import org.ncbo.stanford.obr.dao.obs.master.ObsMasterDao;
 import org.ncbo.stanford.obr.dao.obs.ontology.OntologyDao.OntologyEntry;
 import org.ncbo.stanford.obr.exception.NoOntologyFoundException;
 import org.ncbo.stanford.obr.service.obs.ObsDataPopulationService;
 import org.ncbo.stanford.obr.util.LoggerUtils;
+import org.ncbo.stanford.obr.util.MessageUtils;
+import org.ncbo.stanford.obr.util.TaskGraph;
 
 /**
  * This service class {@code ObsDataPopulationServiceImpl} is provides implementation for populating obs slave data from master table which is used for
@@ -31,6 +38,20 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 	/** The obsMasterDao used for querying OBS master database. */
 	private ObsMasterDao obsMasterDao;
 	
+	// Names of the tasks populating the slave tables
+	private static final String CONCEPT_EXPORT_TASK = "write master concept";
+	private static final String CONCEPT_LOAD_TASK = "load slave concept";
+	private static final String TERM_EXPORT_TASK = "write master term";
+	private static final String TERM_LOAD_TASK = "load slave term";
+	private static final String RELATION_EXPORT_TASK = "write master relation";
+	private static final String RELATION_LOAD_TASK = "load slave relation";
+	private static final String MAPPING_EXPORT_TASK = "write master mapping";
+	private static final String MAPPING_LOAD_TASK = "load slave mapping";
+	private static final String SEMANTIC_TYPE_EXPORT_TASK = "write master semantic type";
+	private static final String SEMANTIC_TYPE_LOAD_TASK = "load slave semantic type";
+	private static final String L_SEMANTIC_TYPE_EXPORT_TASK = "write master L semantic type";
+	private static final String L_SEMANTIC_TYPE_LOAD_TASK = "load slave L semantic type";
+	
 	/**
 	 * 
 	 */
@@ -63,15 +84,79 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 		int dictionaryID = dictionaryDao.getLastDictionaryBean().getDictionaryId();
 		// Get ontologies available currently in slave table. 
 		List<String> currentSlaveOntologies = ontologyDao.getAllLocalOntologyIDs();
-		List<String>  localOntologyIDs = populateOntologySlaveData(dictionaryID, currentSlaveOntologies);
-	
-		if(localOntologyIDs != null && localOntologyIDs.size()>0){
-			populateConceptsSlaveData(localOntologyIDs);
-		    populateTermsSlaveData(localOntologyIDs);		 
-			populateRelationSlaveData(localOntologyIDs);
-			populateMappingSlaveData(localOntologyIDs);
-			populateSemanticTypeData(localOntologyIDs);
-			populateLSemanticTypeData();
+		// The ontologies are populated first: the concepts belong to them, and the master entries to write are
+		// the ones of the new ontology versions. 
+		final List<String> localOntologyIDs = populateOntologySlaveData(dictionaryID, currentSlaveOntologies);
+		
+		if(localOntologyIDs.size() > 0){
+			// All the master tables are written at the same time, and each slave table is loaded as soon as its file is written.
+			final TaskGraph graph = new TaskGraph();
+			graph.addTask(CONCEPT_EXPORT_TASK, new Callable<File>(){
+				public File call() {
+					return checkEntryFile(obsMasterDao.writeMasterConceptEntries(localOntologyIDs), CONCEPT_EXPORT_TASK);
+				}
+			});
+			graph.addTask(TERM_EXPORT_TASK, new Callable<File>(){
+				public File call() {
+					return checkEntryFile(obsMasterDao.writeMasterTermEntries(localOntologyIDs), TERM_EXPORT_TASK);
+				}
+			});
+			graph.addTask(RELATION_EXPORT_TASK, new Callable<File>(){
+				public File call() {
+					return checkEntryFile(obsMasterDao.writeMasterRelationEntries(localOntologyIDs), RELATION_EXPORT_TASK);
+				}
+			});
+			graph.addTask(MAPPING_EXPORT_TASK, new Callable<MappingChanges>(){
+				public MappingChanges call() {
+					return writeMasterMappingChanges();
+				}
+			});
+			graph.addTask(SEMANTIC_TYPE_EXPORT_TASK, new Callable<File>(){
+				public File call() {
+					return checkEntryFile(obsMasterDao.writeMasterSemanticTypeEntries(localOntologyIDs), SEMANTIC_TYPE_EXPORT_TASK);
+				}
+			});
+			graph.addTask(L_SEMANTIC_TYPE_EXPORT_TASK, new Callable<File>(){
+				public File call() {
+					return checkEntryFile(obsMasterDao.writeMasterLSemanticTypeEntries(), L_SEMANTIC_TYPE_EXPORT_TASK);
+				}
+			});
+			graph.addTask(CONCEPT_LOAD_TASK, new SlaveTableLoad<File>(graph, CONCEPT_EXPORT_TASK){
+				protected long load(File entryFile) {
+					return populateConceptsSlaveData(entryFile);
+				}
+			}, CONCEPT_EXPORT_TASK);
+			graph.addTask(TERM_LOAD_TASK, new SlaveTableLoad<File>(graph, TERM_EXPORT_TASK){
+				protected long load(File entryFile) {
+					return populateTermsSlaveData(entryFile);
+				}
+			}, TERM_EXPORT_TASK);
+			graph.addTask(RELATION_LOAD_TASK, new SlaveTableLoad<File>(graph, RELATION_EXPORT_TASK){
+				protected long load(File entryFile) {
+					return populateRelationSlaveData(entryFile);
+				}
+			}, RELATION_EXPORT_TASK);
+			graph.addTask(MAPPING_LOAD_TASK, new SlaveTableLoad<MappingChanges>(graph, MAPPING_EXPORT_TASK){
+				protected long load(MappingChanges changes) {
+					return populateMappingSlaveData(changes);
+				}
+			}, MAPPING_EXPORT_TASK);
+			graph.addTask(SEMANTIC_TYPE_LOAD_TASK, new SlaveTableLoad<File>(graph, SEMANTIC_TYPE_EXPORT_TASK){
+				protected long load(File entryFile) {
+					return populateSemanticTypeData(entryFile);
+				}
+			}, SEMANTIC_TYPE_EXPORT_TASK);
+			graph.addTask(L_SEMANTIC_TYPE_LOAD_TASK, new SlaveTableLoad<File>(graph, L_SEMANTIC_TYPE_EXPORT_TASK){
+				protected long load(File entryFile) {
+					return populateLSemanticTypeData(entryFile);
+				}
+			}, L_SEMANTIC_TYPE_EXPORT_TASK);
+		
+			boolean completed = graph.execute(getPopulationThreads());
+			if(!completed){
+				logger.error("** PROBLEM ** Some slave tables were not populated from master obs database.");
+			}
+			logger.info("Population of slave data tasks:\n" + graph.getTimingReport());
 		}else{
 			logger.info("No new ontology found in master table.");					
 		}
@@ -86,6 +171,78 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 		}
 	}
  
+	/**
+	 * Returns the number of slave population tasks executed at the same time from property obs.slave.populate.threads
+	 * (4 by default).
+	 */
+	private static int getPopulationThreads(){
+		try{
+			return Integer.parseInt(MessageUtils.getMessage("obs.slave.populate.threads").trim());
+		}catch (Exception e) {
+			return 4;
+		}
+	}
+	
+	/**
+	 * Returns the given file written by the given task, fails the task if no file was written.
+	 */
+	private static File checkEntryFile(File entryFile, String task){
+		if(entryFile == null){
+			throw new IllegalStateException("No file written by task " + task);
+		}
+		return entryFile;
+	}
+	
+	/**
+	 * Returns true if the slave mapping table is synchronized with the master mapping table partition by partition
+	 * (property obs.map.sync.incremental, false by default).
+	 */
+	private static boolean isIncrementalMappingSync(){
+		return Boolean.parseBoolean(MessageUtils.getMessage("obs.map.sync.incremental"));
+	}
+	
+	/**
+	 * Task loading a slave table from the entries written by an export task.
+	 * The LOAD DATA statements of the task are executed on their own DB connection, so the slave tables
+	 * are loaded at the same time.
+	 */
+	private static abstract class SlaveTableLoad<T> implements Callable<Long> {
+		
+		private TaskGraph graph;
+		private String exportTask;
+		
+		private SlaveTableLoad(TaskGraph graph, String exportTask) {
+			this.graph = graph;
+			this.exportTask = exportTask;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public Long call() {
+			T entries = (T) this.graph.getResult(this.exportTask);
+			AbstractObrDao.openResourceConnection();
+			try{
+				return this.load(entries);
+			}finally{
+				AbstractObrDao.closeResourceConnection();
+			}
+		}
+		
+		protected abstract long load(T entries);
+	}
+	
+	/**
+	 * Mappings written from the master mapping table: all the mappings, or only the ones of the partitions
+	 * changed since the last synchronization of the slave mapping table.
+	 */
+	private static class MappingChanges {
+		
+		// Partitions of the master mapping table, null if the synchronization is not incremental
+		private HashMap<Integer, MapPartitionEntry> masterPartitions;
+		// Partitions written in the file, null if all the mappings are written
+		private List<Integer> changedPartitions;
+		private File entryFile;
+	}
+	
 	/**
 	 * Populates new ontology versions present in OBS master database which are not present in 
 	 * slave ontology table with particular dictionary. 
@@ -117,11 +274,16 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 	 * @return Number of concept entries added in slave concept table.
 	 */
 	public long populateConceptsSlaveData(List<String> localOntologyIDs) {
+		// Writes concept entries to file from master concept table. 
+		return populateConceptsSlaveData(obsMasterDao.writeMasterConceptEntries(localOntologyIDs));
+	}
+	
+	/**
+	 * Populates the slave concept table from the given file of master concept entries.
+	 */
+	private long populateConceptsSlaveData(File conceptEntryFile) {
 		long numberOfConceptsAdded= 0;
-		File conceptEntryFile = null;		
 		try{
-			// Writes concept entries to file from master concept table. 
-			conceptEntryFile = obsMasterDao.writeMasterConceptEntries(localOntologyIDs); 
 			// load file entries into slave concept table. 
 			numberOfConceptsAdded = conceptDao.populateSlaveConceptTableFromFile(conceptEntryFile);
 			logger.info("Number of concept entries added in slave concept table : " + numberOfConceptsAdded);
@@ -142,12 +304,17 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 	 * @return Number of term entries added in slave term table.
 	 */
 	public long populateTermsSlaveData(List<String> localOntologyIDs) {		
+		// Writes term entries to file from master term table.
+		return populateTermsSlaveData(obsMasterDao.writeMasterTermEntries(localOntologyIDs));
+	}
+	
+	/**
+	 * Populates the slave term table from the given file of master term entries.
+	 */
+	private long populateTermsSlaveData(File termsEntryFile) {		
 		long numberOfTermsAdded= 0;
 		long numberOfStopwordsTermsRemoved= 0;
-		File termsEntryFile = null;		
 		try{
-			// Writes term entries to file from master term table.
-			termsEntryFile = obsMasterDao.writeMasterTermEntries(localOntologyIDs); 
 			// Load file entries into slave term table. 
 			numberOfTermsAdded = termDao.populateSlaveTermTableFromFile(termsEntryFile);
 			logger.info("Number of term entries added in slave term table : " + numberOfTermsAdded);
@@ -171,11 +338,16 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 	 * @return Number of relation entries added in slave relation table.
 	 */
 	public long populateRelationSlaveData(List<String> localOntologyIDs){	
+		// Writes 'is a parent' relation entries to file from master relation table.
+		return populateRelationSlaveData(obsMasterDao.writeMasterRelationEntries(localOntologyIDs));
+	}
+	
+	/**
+	 * Populates the slave relation table from the given file of master relation entries.
+	 */
+	private long populateRelationSlaveData(File relationEntryFile){	
 		long numberOfRelationsAdded= 0;
-		File relationEntryFile = null;		
 		try{
-			// Writes 'is a parent' relation entries to file from master relation table.
-			relationEntryFile = obsMasterDao.writeMasterRelationEntries(localOntologyIDs);
 			// Load file entries into slave term table. 
 			numberOfRelationsAdded = relationDao.populateSlaveRelationTableFromFile(relationEntryFile);
 			logger.info("Total Number of relations entries added in slave relation table : " + numberOfRelationsAdded);
@@ -195,14 +367,115 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 	 * @return Number of mapping entries added in slave map table.
 	 */
 	public long populateMappingSlaveData(List<String> localOntologyIDs){	
+		// Writes mapping entries to file from master map table.
+		return populateMappingSlaveData(obsMasterDao.writeMasterMappingEntries());
+	}
+	
+	/**
+	 * Writes the mappings of the master mapping table to copy in the slave mapping table. 
+	 * When the synchronization is incremental, the hashes of the partitions of the master mapping table are compared
+	 * to the ones recorded when the partitions were copied, and only the mappings of the new, changed or removed
+	 * partitions are written. All the mappings are written if no partition was recorded.
+	 */
+	private MappingChanges writeMasterMappingChanges(){
+		MappingChanges changes = new MappingChanges();
+		if(isIncrementalMappingSync()){
+			changes.masterPartitions = obsMasterDao.getMasterMappingPartitions();
+			HashMap<Integer, MapPartitionEntry> slavePartitions = mapPartitionDao.getEntries();
+			if(changes.masterPartitions != null && slavePartitions != null && slavePartitions.size() > 0){
+				changes.changedPartitions = new ArrayList<Integer>();
+				for (MapPartitionEntry masterPartition : changes.masterPartitions.values()) {
+					MapPartitionEntry slavePartition = slavePartitions.get(masterPartition.getOntologyID());
+					if(slavePartition == null || !slavePartition.getPartitionHash().equals(masterPartition.getPartitionHash())){
+						changes.changedPartitions.add(masterPartition.getOntologyID());
+					}
+				}
+				for (Integer ontologyID : slavePartitions.keySet()) {
+					if(!changes.masterPartitions.containsKey(ontologyID)){
+						changes.changedPartitions.add(ontologyID);
+					}
+				}
+				logger.info("Number of mapping partitions changed in master map table : " + changes.changedPartitions.size() 
+						+ " of " + changes.masterPartitions.size());
+				if(changes.changedPartitions.size() > 0){
+					changes.entryFile = checkEntryFile(obsMasterDao.writeMasterMappingEntries(changes.changedPartitions), MAPPING_EXPORT_TASK);
+				}
+				return changes;
+			}
+		}
+		changes.entryFile = checkEntryFile(obsMasterDao.writeMasterMappingEntries(), MAPPING_EXPORT_TASK);
+		return changes;
+	}
+	
+	/**
+	 * Populates the slave mapping table from the given master mappings: the table is populated again from all the
+	 * mappings, or the changed partitions are synchronized. The partitions copied are recorded with their 
+	 * master hash if their number of mappings is the same as in the master table.
+	 */
+	private long populateMappingSlaveData(MappingChanges changes){
+		if(changes.changedPartitions == null){
+			long numberOfMappingsAdded = populateMappingSlaveData(changes.entryFile);
+			if(changes.masterPartitions != null){
+				recordMappingPartitions(changes.masterPartitions, changes.masterPartitions.keySet());
+			}
+			return numberOfMappingsAdded;
+		}
+		if(changes.changedPartitions.size() == 0){
+			logger.info("Slave map table up to date with master map table.");
+			return 0;
+		}
+		long[] nbMappings;
+		try{
+			nbMappings = mapDao.synchronizeMappings(changes.entryFile, changes.changedPartitions);
+		}finally {
+			 if(changes.entryFile!= null && changes.entryFile.exists()){
+				 changes.entryFile.delete();
+			 }
+		}
+		if(nbMappings == null){
+			// The partitions are synchronized again by the next population
+			mapPartitionDao.deleteEntries(changes.changedPartitions);
+			return 0;
+		}
+		logger.info("Number of mapping entries removed from slave map table : " + nbMappings[0]);
+		logger.info("Number of mapping entries added in slave map table : " + nbMappings[1]);
+		recordMappingPartitions(changes.masterPartitions, changes.changedPartitions);
+		return nbMappings[1];
+	}
+	
+	/**
+	 * Records the given partitions copied from the master mapping table, the ones whose number of mappings 
+	 * is not the one of the master table are deleted to be copied again.
+	 */
+	private void recordMappingPartitions(HashMap<Integer, MapPartitionEntry> masterPartitions, Collection<Integer> ontologyIDs){
+		HashMap<Integer, Long> nbMappings = mapDao.getNumberOfMappingsByPartition(ontologyIDs);
+		List<MapPartitionEntry> copiedPartitions = new ArrayList<MapPartitionEntry>();
+		List<Integer> otherPartitions = new ArrayList<Integer>();
+		for (Integer ontologyID : ontologyIDs) {
+			MapPartitionEntry masterPartition = masterPartitions.get(ontologyID);
+			Long nbMapping = nbMappings == null ? null : nbMappings.get(ontologyID);
+			if(masterPartition != null && nbMapping != null && nbMapping.longValue() == masterPartition.getNbMapping()){
+				copiedPartitions.add(masterPartition);
+			}else{
+				otherPartitions.add(ontologyID);
+			}
+		}
+		mapPartitionDao.deleteEntries(otherPartitions);
+		mapPartitionDao.addEntries(copiedPartitions);
+		logger.info("Number of mapping partitions recorded : " + copiedPartitions.size());
+	}
+	
+	/**
+	 * Populates again the slave mapping table from the given file of master mapping entries.
+	 */
+	private long populateMappingSlaveData(File mappingEntryFile){	
 		long numberOfMappingsAdded = 0 ;
-		File mappingEntryFile = null;
 		try{
 			logger.info("Re-initialize slave Mapping table.");
 			// Remove all data from mapping table.			
 			mapDao.reInitializeSQLTable();
-			// Writes mapping entries to file from master map table.
-			mappingEntryFile = obsMasterDao.writeMasterMappingEntries();
+			mapDao.dropMemoryTable();
+			mapPartitionDao.deleteEntries(null);
 			// Load file entries into slave mapping table. 
 			numberOfMappingsAdded = mapDao.populateSlaveMappingTableFromFile(mappingEntryFile);			
 			logger.info("Total Number of mapping entries added in slave map table : " + numberOfMappingsAdded);
@@ -225,11 +498,16 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 	 * @return Number of relation entries added in slave relation table.
 	 */
 	public long populateSemanticTypeData(List<String> localOntologyIDs){	
+		// Writes semantic type entries to file from master semantic type table.
+		return populateSemanticTypeData(obsMasterDao.writeMasterSemanticTypeEntries(localOntologyIDs));
+	}
+	
+	/**
+	 * Populates the slave semantic type table from the given file of master semantic type entries.
+	 */
+	private long populateSemanticTypeData(File semanticTypeEntryFile){	
 		long numberOfSemanticTypeAdded= 0;
-		File semanticTypeEntryFile = null;		
 		try{
-			// Writes 'is a parent' relation entries to file from master relation table.
-			semanticTypeEntryFile = obsMasterDao.writeMasterSemanticTypeEntries(localOntologyIDs);
 			// Load file entries into slave term table. 
 			numberOfSemanticTypeAdded = semanticTypeDao.populateSlaveSemanticTypeTableFromFile(semanticTypeEntryFile) ;
 			logger.info("Total Number of Semantic Type entries added in slave relation table : " + numberOfSemanticTypeAdded);
@@ -248,14 +526,19 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 	 * @return Number of LSemanticType entries added in slave relation table.
 	 */
 	public long populateLSemanticTypeData(){
+		// Writes L semantic type entries to file from master LSemanticType table.
+		return populateLSemanticTypeData(obsMasterDao.writeMasterLSemanticTypeEntries());
+	}
+	
+	/**
+	 * Populates again the slave LSemanticType table from the given file of master LSemanticType entries.
+	 */
+	private long populateLSemanticTypeData(File semanticTypeEntryFile){
 		long numberOfSemanticTypeAdded= 0;
-		File semanticTypeEntryFile = null;	
 		try{
 			logger.info("Re-initialize slave lSemanticType table.");
 			// Remove all data from mapping table.			
 			lSemanticTypeDao.reInitializeSQLTable();
-			// Writes 'is a parent' relation entries to file from master LSemanticType table.
-			semanticTypeEntryFile = obsMasterDao.writeMasterLSemanticTypeEntries();
 			// Load file entries into slave term table. 
 			numberOfSemanticTypeAdded = lSemanticTypeDao.populateSlaveLSemanticTypeTableFromFile(semanticTypeEntryFile) ;
 			logger.info("Total Number of L Semantic Type entries added in slave relation table : " + numberOfSemanticTypeAdded);
@@ -303,6 +586,12 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 			 logger.error("Problem in removing ontology version " + localOntologyID + " from mapping table.");
 		 }
 		 
+		 // remove the mapping partition of the ontology, synchronized again from master map table
+		 status = mapPartitionDao.deleteEntriesFromOntology(localOntologyID);
+		 if(!status){
+			 logger.error("Problem in removing ontology version " + localOntologyID + " from mapping partition table.");
+		 }
+		 
 		 // remove ontology from term table
 		 status =termDao.deleteEntriesFromOntology(localOntologyID);
 		 if(!status){
@@ -327,6 +616,11 @@ public class ObsDataPopulationServiceImpl implements ObsDataPopulationService, D
 	 * @see org.ncbo.stanford.obr.service.obs.ObsDataPopulationService#loadObsSlaveTablesIntoMemeory()
 	 */
 	public void loadObsSlaveTablesIntoMemory() throws SQLException {
-		ontologyDao.callLoadObsSlaveTablesIntoMemoryProcedure();
+		if(isIncrementalMappingSync()){
+			// The memory map tables are kept when they are up to date with the incremental synchronization of the map table
+			ontologyDao.callLoadObsSlaveTablesIntoMemoryProcedure(!mapDao.isMemoryTableSynchronized());
+		}else{
+			ontologyDao.callLoadObsSlaveTablesIntoMemoryProcedure();
+		}
 	}
 }
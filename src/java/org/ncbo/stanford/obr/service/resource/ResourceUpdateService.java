@@ -8,6 +8,7 @@ import obs.obr.populate.Element;
 import obs.obr.populate.Resource;
 import obs.obr.populate.Element.BadElementStructureException;
 
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
 import org.ncbo.stanford.obr.exception.ResourceFileException;
 
 /**
@@ -95,11 +96,23 @@ public interface ResourceUpdateService {
 	/**
 	 * Adds new entry for given @code Element in element table.
 	 * 
+	 * If obr.elements.insert.batch.size is greater than 1, the element is only queued and inserted with the next batch:
+	 * true is then returned before checking if the table already contains this element, and the elements found in the 
+	 * table when the batch is inserted are not added but reported by {@link #updateResourceUpdateInfo(Resource)}.
+	 * 
 	 * @param element
-	 * @return boolean - true if successfully added otherwise false.
+	 * @return boolean - true if successfully added (or queued) otherwise false.
 	 */
 	public boolean addElement(Element element);
 	
+	/**
+	 * Inserts the elements added by {@link #addElement(Element)} and still waiting in the batch
+	 * of the element table (see property obr.elements.insert.batch.size).
+	 * 
+	 * @return number of elements inserted
+	 */
+	public int flushElements();
+	
 	/**
 	 * Gets the number of entries present in element table.
 	 * 
@@ -127,6 +140,16 @@ public interface ResourceUpdateService {
 	 */
 	public void calculateObrStatistics(boolean withCompleteDictionary, DictionaryBean dictionary);
 	
+	/**
+	 * This method adds to the statistics of a resource the annotations counted during the workflow, with 
+	 * one batched update of the statistics table. The statistics are calculated from the annotation tables
+	 * if the counter is null or incomplete.
+	 * @param withCompleteDictionary 
+	 * @param dictionary 
+	 * @param counter {@code OntologyStatisticsCounter} of the new annotations of the workflow
+	 */
+	public void calculateObrStatistics(boolean withCompleteDictionary, DictionaryBean dictionary, OntologyStatisticsCounter counter);
+	
 	/**
 	 * This method gets latest version of ontology for given virtual ontology id
 	 * 
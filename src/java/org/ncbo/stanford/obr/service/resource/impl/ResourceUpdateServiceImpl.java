@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 import obs.common.beans.DictionaryBean;
 import obs.common.utils.ExecutionTimer;
@@ -17,6 +18,7 @@ import obs.obr.populate.Structure;
 import obs.obr.populate.Element.BadElementStructureException;
 
 import org.apache.log4j.Logger;
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
 import org.ncbo.stanford.obr.dao.statistics.StatisticsDao.StatisticsEntry;
 import org.ncbo.stanford.obr.exception.ResourceFileException;
 import org.ncbo.stanford.obr.resource.ResourceAccessTool;
@@ -45,6 +47,8 @@ public class ResourceUpdateServiceImpl extends AbstractResourceService implement
 	 */
 	public int updateResourceContentFromFile(File resourceFile) throws BadElementStructureException, ResourceFileException{
 		int nbElement = 0;
+		// The elements are counted in the table, as the ones queued in a batch may be already in the table 
+		long nbElementBefore = this.numberOfEntry();
 		logger.info("Updating resource content with local file " + resourceFile.getName() + "...");
 		try{
 			FileReader fstream = new FileReader(resourceFile);
@@ -65,9 +69,7 @@ public class ResourceUpdateServiceImpl extends AbstractResourceService implement
 					i++;
 				}
 				element = new Element(elementCompleteInfo[0], eltStructure);
-				if (this.addElement(element)){
-					nbElement ++;
-				}
+				this.addElement(element);
 				line = in.readLine();
 			}
 			in.close();
@@ -76,6 +78,7 @@ public class ResourceUpdateServiceImpl extends AbstractResourceService implement
 		catch (IOException e){
 			logger.error("** PROBLEM ** Cannot update resource " + resourceAccessTool.getToolResource().getResourceName() + " with file " + resourceFile.getName(), e);
 		}
+		nbElement = (int) (this.numberOfEntry() - nbElementBefore);
 		return nbElement;
 	}
 	
@@ -88,6 +91,7 @@ public class ResourceUpdateServiceImpl extends AbstractResourceService implement
 	}
  
 	public long numberOfEntry() {		 
+		this.flushElements();
 		return elementTableDao.numberOfEntry();
 	} 
 
@@ -110,6 +114,7 @@ public class ResourceUpdateServiceImpl extends AbstractResourceService implement
 	 * Returns a set of all the localElementIDs contained in the table. 
 	 */
 	public HashSet<String> getAllLocalElementIDs(){
+		this.flushElements();
 		return elementTableDao.getAllLocalElementIDs();
 	}
 	
@@ -117,6 +122,7 @@ public class ResourceUpdateServiceImpl extends AbstractResourceService implement
 	 * Returns a set of all the values contained in the given column of table. 
 	 */
 	public HashSet<String> getAllValuesByColumn(String columName){
+		this.flushElements();
 		return elementTableDao.getAllValuesByColumn(columName);
 	}
 	
@@ -124,11 +130,22 @@ public class ResourceUpdateServiceImpl extends AbstractResourceService implement
 	 * Returns the value of a given context for a given element in the table.
 	 */
 	public String getContextValueByContextName(String localElementID, String contextName){
+		this.flushElements();
 		return elementTableDao.getContextValueByContextName(localElementID, contextName);
 	}
 
 	public boolean addElement(Element element){
-		return elementTableDao.addEntry(element);
+		return elementTableDao.addEntryToBatch(element);
+	}
+	
+	/**
+	 * Inserts the elements added by {@link #addElement(Element)} and still waiting in the batch
+	 * of the element table.
+	 * 
+	 * @return number of elements inserted
+	 */
+	public int flushElements(){
+		return elementTableDao.flushEntries();
 	}
 	
 	/**
@@ -337,6 +354,40 @@ public class ResourceUpdateServiceImpl extends AbstractResourceService implement
 		
 	} 
 	
+	/**
+	 * This method adds the annotations counted by ontology during the workflow to the statistics of the current resource,
+	 * instead of counting again all the annotations of the resource.
+	 * 
+	 */
+	public void calculateObrStatistics(boolean withCompleteDictionary, DictionaryBean dictionary, OntologyStatisticsCounter counter) {
+		if(counter == null || !counter.isComplete()){
+			this.calculateObrStatistics(withCompleteDictionary, dictionary);
+			return;
+		}
+		
+		logger.info("*** Processing of statistics started...");
+		ExecutionTimer timer = new ExecutionTimer();
+		timer.start();
+		
+		// Get resource id (primary key) from ResourceTable
+		int resource_id = resourceTableDao.getResourceIdKey(resourceAccessTool.getToolResource().getResourceId()); 
+		List<StatisticsEntry> entries = counter.getEntries(resource_id);
+		
+		// Adding the new annotations to the entries of OBR_STATS tables.
+		if(!statisticsDao.addEntryIncrements(entries)){
+			logger.info("\tStatistics increments not added, statistics calculated from the annotation tables.");
+			this.calculateObrStatistics(withCompleteDictionary, dictionary);
+			return;
+		}
+		
+		logger.info("\tNumber of entries added/updated in statistics table are :" + entries.size());
+		timer.end();
+		logger.info("\tResource " + resourceAccessTool.getToolResource().getResourceName()
+				+ " statistics processed in: "
+				+ timer.millisecondsToTimeString(timer.duration()));
+		logger.info("### Processing of statistics completed.\n");
+	}
+	
 	/**
 	 * This method gets latest version of ontology for given virtual ontology id
 	 * 
@@ -354,7 +405,13 @@ public class ResourceUpdateServiceImpl extends AbstractResourceService implement
 	 * @return boolean {@code true} if updated successfully.
 	 */
 	public boolean updateResourceUpdateInfo(Resource resource) {
-		// TODO Auto-generated method stub
+		// The update of the resource is completed
+		this.flushElements();
+		if(elementTableDao.getNumberOfDuplicateElements() > 0){
+			logger.info("\t" + elementTableDao.getNumberOfDuplicateElements() + " elements already in table " 
+					+ elementTableDao.getTableSQLName() + " not added.");
+			elementTableDao.resetNumberOfDuplicateElements();
+		}
 		int totalElements = elementTableDao.getTotalNumberOfElement();
 		return resourceTableDao.updateNumberOfElementAndDate(resource.getResourceId(), totalElements);
 		
@@ -379,6 +436,7 @@ public class ResourceUpdateServiceImpl extends AbstractResourceService implement
 	 * @return localElementID
 	 */
 	public String getLastElementLocalID(){
+		this.flushElements();
 		return elementTableDao.getLastElementLocalID();
 	}
 }
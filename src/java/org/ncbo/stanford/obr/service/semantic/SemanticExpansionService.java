@@ -5,6 +5,7 @@ package org.ncbo.stanford.obr.service.semantic;
 
 import java.util.List;
 
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
 import org.ncbo.stanford.obr.util.MessageUtils;
 
 /**
@@ -31,6 +32,29 @@ public interface SemanticExpansionService {
 	 * @return                    the number of direct annotations created. 
 	 */
 	public long semanticExpansion(boolean isaClosureExpansion, boolean mappingExpansion, boolean distanceExpansion);
+	
+	/** 
+	 * Processes the direct annotations of the elements between two watermarks to produce expanded annotations,
+	 * without updating the workflow_status of the direct annotations (see obr.workflow.watermark).
+	 * 
+	 * @param isaClosureExpansion {@code boolean} for is a closure expansion
+	 * @param mappingExpansion    {@code boolean} for mapping expansion
+	 * @param distanceExpansion   {@code boolean} for mapping expansion
+	 * @param fromElementID       watermark of the last element expanded, or -1 to use the workflow_status 
+	 * @param toElementID         watermark of the last element to expand
+	 * @return                    the number of expanded annotations created. 
+	 */
+	public long semanticExpansion(boolean isaClosureExpansion, boolean mappingExpansion, boolean distanceExpansion, long fromElementID, long toElementID);
+	
+	/**
+	 * Adds to the given counter the number of isa and mapping annotations of each ontology among the expanded 
+	 * annotations not yet aggregated, selected by their workflow_status if fromElementID is negative.
+	 * 
+	 * @param counter             {@code OntologyStatisticsCounter} of the new annotations of the workflow
+	 * @param fromElementID       watermark of the last element expanded before the expansion, or -1 to use the workflow_status 
+	 * @param toElementID         watermark of the last element expanded
+	 */
+	public void countAnnotationStatistics(OntologyStatisticsCounter counter, long fromElementID, long toElementID);
 
 	/**
 	 * Method removes expanded annotations for given ontology versions.Entries are remove from 
@@ -39,6 +63,14 @@ public interface SemanticExpansionService {
 	 * @param {@code List} of localOntologyIDs String containing ontology versions.
 	 */
 	public void removeExpandedAnnotations(List<String> localOntologyIDs);
+	
+	/**
+	 * Method removes the expanded annotations left by an interrupted semantic expansion, i.e. the expanded 
+	 * annotations of the direct annotations still waiting for their expansion.
+	 * 
+	 * @return the number of expanded annotations removed.
+	 */
+	public long removeInterruptedExpansions();
  
 	public void createIndexForExpandedAnnotationTables();
 }
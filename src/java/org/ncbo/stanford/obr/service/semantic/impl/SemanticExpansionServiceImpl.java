@@ -4,6 +4,8 @@ import java.util.List;
 
 import obs.common.utils.ExecutionTimer;
 
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
+import org.ncbo.stanford.obr.enumeration.ResourceType;
 import org.ncbo.stanford.obr.resource.ResourceAccessTool;
 import org.ncbo.stanford.obr.service.AbstractResourceService;
 import org.ncbo.stanford.obr.service.semantic.SemanticExpansionService;
@@ -27,6 +29,17 @@ public class SemanticExpansionServiceImpl extends AbstractResourceService implem
 	 * @return                    the number of direct annotations created. 
 	 */
 	public long semanticExpansion(boolean isaClosureExpansion, boolean mappingExpansion, boolean distanceExpansion){
+		return this.semanticExpansion(isaClosureExpansion, mappingExpansion, distanceExpansion, -1, -1);
+	}
+	
+	/** 
+	 * Processes the direct annotations of the elements between two watermarks to produce expanded annotations,
+	 * without updating the workflow_status of the direct annotations. The direct annotations waiting for 
+	 * the expansion are selected by their workflow_status if fromElementID is negative.
+	 * 
+	 * @return                    the number of expanded annotations created. 
+	 */
+	public long semanticExpansion(boolean isaClosureExpansion, boolean mappingExpansion, boolean distanceExpansion, long fromElementID, long toElementID){
 		long nbAnnotation = 0;
 		ExecutionTimer timer1 = new ExecutionTimer();
 		timer1.start();
@@ -36,7 +49,9 @@ public class SemanticExpansionServiceImpl extends AbstractResourceService implem
 		if(isaClosureExpansion){
 			timer.start();
 			logger.info("\t** Executing isa transitive closure expansion... ");
-			long isaAnnotation = isaExpandedAnnotationTableDao.isaClosureExpansion(directAnnotationTableDao);
+			// The expansion of big resources is restricted to the parents up to obr.expanded.annotation.max.level
+			int maxLevel = resourceAccessTool.getResourceType() == ResourceType.BIG ? MAX_LEVEL_FOR_BIG_RESOURCE : LEVEL_ALL;
+			long isaAnnotation = isaExpandedAnnotationTableDao.isaClosureExpansion(directAnnotationTableDao, maxLevel, fromElementID, toElementID);
 			logger.info("\t\t" +isaAnnotation);
 			nbAnnotation += isaAnnotation;
 			timer.end();
@@ -47,7 +62,7 @@ public class SemanticExpansionServiceImpl extends AbstractResourceService implem
 		if(mappingExpansion){
 			timer.start();
 			logger.info("\t** Executing mapping expansion... ");
-			long mappingAnnotation = mapExpandedAnnotationTableDao.mappingExpansion(directAnnotationTableDao);
+			long mappingAnnotation = mapExpandedAnnotationTableDao.mappingExpansion(directAnnotationTableDao, fromElementID, toElementID);
 			logger.info("\t\t" + mappingAnnotation);
 			nbAnnotation += mappingAnnotation;
 			timer.end();
@@ -69,6 +84,17 @@ public class SemanticExpansionServiceImpl extends AbstractResourceService implem
 		return nbAnnotation;
 	}
 	
+	/**
+	 * Method adds to the given counter the number of isa and mapping annotations of each ontology 
+	 * among the expanded annotations not yet aggregated.
+	 * 
+	 * @param counter {@code OntologyStatisticsCounter} of the new annotations of the workflow
+	 */
+	public void countAnnotationStatistics(OntologyStatisticsCounter counter, long fromElementID, long toElementID) {
+		isaExpandedAnnotationTableDao.countAnnotationStatistics(counter, OntologyStatisticsCounter.ISA, fromElementID, toElementID);
+		mapExpandedAnnotationTableDao.countAnnotationStatistics(counter, OntologyStatisticsCounter.MAPPING, fromElementID, toElementID);
+	}
+	
 	/**
 	 * Method removes expanded annotations for given ontology versions.Entries are remove from 
 	 * is a parent relation and mapping relation.
@@ -91,6 +117,22 @@ public class SemanticExpansionServiceImpl extends AbstractResourceService implem
 //			 
 //		 }	
 	}
+	
+	/**
+	 * Method removes the expanded annotations left by an interrupted semantic expansion.
+	 * The isa and mapping annotations of the direct annotations still waiting for the corresponding
+	 * expansion (according to their workflow_status) are removed.
+	 * 
+	 * @return the number of expanded annotations removed.
+	 */
+	public long removeInterruptedExpansions() {
+		long nbAnnotation = isaExpandedAnnotationTableDao.deleteInterruptedExpansions(directAnnotationTableDao)
+				+ mapExpandedAnnotationTableDao.deleteInterruptedExpansions(directAnnotationTableDao);
+		if(nbAnnotation > 0){
+			logger.info("\t" + nbAnnotation + " expanded annotations of an interrupted expansion removed.");
+		}
+		return nbAnnotation;
+	}
 
 	/*
 	 * (non-Javadoc)
@@ -1,14 +1,19 @@
 package org.ncbo.stanford.obr.service.workflow.impl;
 
 import java.io.File;
-
+import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Arrays;
-
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import obs.common.beans.DictionaryBean;
 import obs.common.beans.IsaContextBean;
@@ -21,10 +26,15 @@ import obs.common.utils.Utilities;
 import obs.obr.populate.ObrWeight;
 
 import org.apache.log4j.Logger;
+import org.ncbo.stanford.obr.dao.AbstractObrDao;
 import org.ncbo.stanford.obr.dao.DaoFactory;
+import org.ncbo.stanford.obr.dao.LocalIdResolver;
 import org.ncbo.stanford.obr.dao.execution.ExecutionDao.ExecutionEntry;
+import org.ncbo.stanford.obr.dao.statistics.OntologyStatisticsCounter;
 import org.ncbo.stanford.obr.enumeration.ResourceType;
+import org.ncbo.stanford.obr.enumeration.WorkflowStageEnum;
 import org.ncbo.stanford.obr.resource.ResourceAccessTool;
+import org.ncbo.stanford.obr.service.annotation.AnnotationService;
 import org.ncbo.stanford.obr.service.obs.ObsDataPopulationService;
 import org.ncbo.stanford.obr.service.obs.impl.ObsDataPopulationServiceImpl;
 import org.ncbo.stanford.obr.service.workflow.ResourceIndexWorkflow;
@@ -57,6 +67,9 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 			ReportedContextBean.RDA_WEIGHT);
 	
 	private ObsDataPopulationService obsDataPopulationService = new ObsDataPopulationServiceImpl();
+	
+	// Marker stopping the index stage of the pipelined workflow
+	private static final ResourceRun END_OF_PIPELINE = new ResourceRun(null, null, null, false, null, null);
 	 
 	public ResourceIndexWorkflowImpl() {
 		logger = LoggerUtils.createOBRLogger(ResourceIndexWorkflowImpl.class);
@@ -79,6 +92,10 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 		 boolean withLatestDictionary = Boolean.parseBoolean(MessageUtils.getMessage("obs.slave.dictionary.latest"));
 		 
 		 this.obsDataPopulationService.populateObsSlaveData(withLatestDictionary);			 
+		 // The concepts, the is_a closure and the mappings in memory are loaded again from the new slave tables
+		 LocalIdResolver.getInstance().clear();
+		 relationDao.clearIsaClosureGraph();
+		 mapDao.clearMappingIndex();
 		 System.gc();
 		 logger.info("Populating obs slave tables completed.");	
 		
@@ -100,6 +117,10 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 	 * update elements for them and annotated them using obs tables.
 	 * 
 	 * <P>This methods process all the resources included in properties file.
+	 * If the property obr.workflow.parallelism is greater than 1, the resources are processed 
+	 * concurrently by a pool of that many threads, each resource using its own tables and DB connection.
+	 * If the property obr.workflow.pipelined is true, the update of the next resources overlaps with the 
+	 * indexing of the current ones (see {@link #executePipelinedWorkflow(String[])}).
 	 * 
 	 */
 	public void startResourceIndexWorkflow() { 
@@ -108,41 +129,238 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 		// gets all resource ids for processing, 
 		String[] resourceIDs = StringUtilities.splitSecure(MessageUtils
 				.getMessage("obr.resource.ids"), ",");		
-		//Initialize the Execution timer 		
-		ExecutionTimer timer = new ExecutionTimer();	
+		int parallelism = getIntegerProperty("obr.workflow.parallelism", 1);
+		boolean pipelined = Boolean.parseBoolean(MessageUtils.getMessage("obr.workflow.pipelined"));
 		logger.info("***********************************************\n");
 		logger.info("The Resources index Workflow Started.\n");	
-		for (String resourceID : resourceIDs) {
-			ResourceAccessTool resourceAccessTool = null;
-			ExecutionEntry executionEntry= new ExecutionEntry();
-			executionEntry.setResourceId(resourceID);
-			executionEntry.setExecutionBeginning(new Date());
-			try {
-				// Create resource tool object using reflection.
-				resourceAccessTool = (ResourceAccessTool) Class.forName(
-						MessageUtils.getMessage("resource."
-								+ resourceID.toLowerCase())).newInstance();				 
-				logger.info("Start processing Resource " + resourceAccessTool.getToolResource().getResourceName() + "("+ resourceAccessTool.getToolResource().getResourceId() + ")....\n");
-				timer.start();
-				resourceProcessing(resourceAccessTool, executionEntry);
-				timer.end();
-				logger.info("Resource " + resourceAccessTool.getToolResource().getResourceName() + "("+ resourceAccessTool.getToolResource().getResourceId() + ") processed in: " + timer.millisecondsToTimeString(timer.duration()) +"\n");
-			} catch (Exception e) {
-				logger.error(
-						"Problem in creating resource tool for resource id : "
-								+ resourceID, e);
-			}finally{					
-				resourceAccessTool= null;
-				System.gc();
-				executionEntry.setExecutionEnd(new Date());
-				executionDao.addEntry(executionEntry);				
+		AbstractObrDao.checkConnectionPoolSize();
+		if(pipelined && resourceIDs.length > 1){
+			executePipelinedWorkflow(resourceIDs);
+		}else if(parallelism <= 1 || resourceIDs.length <= 1){
+			for (String resourceID : resourceIDs) {
+				processResource(resourceID);
 			}
-
+		}else{
+			logger.info("Processing " + resourceIDs.length + " resources with " + parallelism + " parallel threads.\n");
+			ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelism, resourceIDs.length));
+			for (final String resourceID : resourceIDs) {
+				executorService.execute(new Runnable() {
+					public void run() {
+						// Each resource uses its own connection 
+						AbstractObrDao.openResourceConnection();
+						try{
+							processResource(resourceID);
+						}finally{
+							AbstractObrDao.closeResourceConnection();
+						}
+					}
+				});
+			}
+			executorService.shutdown();
+			awaitTermination(executorService, "resources processing");
 		}
 		workflowTimer.end();
+		logger.info("DB connection pool [" + AbstractObrDao.getConnectionPoolStatistics() + "]");
+		logger.info("Local id resolver [" + LocalIdResolver.getInstance().getStatistics() + "]");
 		logger.info("Resources index Workflow completed in : " + workflowTimer.millisecondsToTimeString(workflowTimer.duration()));
 		logger.info("***********************************************\n");
 	}
+	
+	/**
+	 * Processes the resources with a pipeline of two stages. The fetch stage prepares the tables of a resource 
+	 * and updates its elements (network bound), then hands the resource over to the index stage, which annotates
+	 * and indexes it (DB bound). So the update of the next resources overlaps with the indexing of the current ones.
+	 * 
+	 * <p>Each stage has its own pool of threads (properties obr.workflow.fetch.parallelism and 
+	 * obr.workflow.index.parallelism), and the fetch stage waits when obr.workflow.pipeline.capacity 
+	 * fetched resources are already waiting for the index stage. A resource keeps the same DB connection 
+	 * through both stages.
+	 * 
+	 * @param resourceIDs resources to process 
+	 */
+	private void executePipelinedWorkflow(String[] resourceIDs){
+		int fetchParallelism = Math.min(Math.max(1, getIntegerProperty("obr.workflow.fetch.parallelism", 1)), resourceIDs.length);
+		int indexParallelism = Math.min(Math.max(1, getIntegerProperty("obr.workflow.index.parallelism", 1)), resourceIDs.length);
+		int capacity = Math.max(1, getIntegerProperty("obr.workflow.pipeline.capacity", 1));
+		logger.info("Processing " + resourceIDs.length + " resources with a pipeline of " + fetchParallelism 
+				+ " fetch threads and " + indexParallelism + " index threads.\n");
+		
+		// Hand-off queue between the fetch and the index stages
+		final BlockingQueue<ResourceRun> fetchedResources = new ArrayBlockingQueue<ResourceRun>(capacity);
+		
+		ExecutorService indexService = Executors.newFixedThreadPool(indexParallelism);
+		for (int i = 0; i < indexParallelism; i++) {
+			indexService.execute(new Runnable() {
+				public void run() {
+					try{
+						ResourceRun run;
+						while((run = fetchedResources.take()) != END_OF_PIPELINE){
+							indexFetchedResource(run);
+						}
+					}catch (InterruptedException e) {
+						logger.error("** PROBLEM ** Index stage of the workflow interrupted.", e);
+					}
+				}
+			});
+		}
+		
+		ExecutorService fetchService = Executors.newFixedThreadPool(fetchParallelism);
+		for (final String resourceID : resourceIDs) {
+			fetchService.execute(new Runnable() {
+				public void run() {
+					ResourceRun run = fetchResource(resourceID);
+					if(run != null){
+						try{
+							fetchedResources.put(run);
+						}catch (InterruptedException e) {
+							logger.error("** PROBLEM ** Fetch stage of the workflow interrupted, resource " + resourceID + " not indexed.", e);
+							AbstractObrDao.attachResourceConnection(run.connection);
+							AbstractObrDao.closeResourceConnection();
+							addExecutionEntry(run.executionEntry);
+						}
+					}
+				}
+			});
+		}
+		fetchService.shutdown();
+		awaitTermination(fetchService, "fetch stage");
+		
+		// Stops the index threads once all the fetched resources are indexed  
+		try{
+			for (int i = 0; i < indexParallelism; i++) {
+				fetchedResources.put(END_OF_PIPELINE);
+			}
+		}catch (InterruptedException e) {
+			logger.error("** PROBLEM ** Interrupted while stopping the index stage.", e);
+			indexService.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		indexService.shutdown();
+		awaitTermination(indexService, "index stage");
+	}
+	
+	/**
+	 * Fetch stage of the pipelined workflow: creates the resource access tool with its own DB connection
+	 * and updates the resource. The connection is detached from the current thread to be used by the index stage.
+	 * 
+	 * @return the fetched resource or null if a problem occurred
+	 */
+	private ResourceRun fetchResource(String resourceID){
+		ExecutionEntry executionEntry = new ExecutionEntry();
+		executionEntry.setResourceId(resourceID);
+		executionEntry.setExecutionBeginning(new Date());
+		AbstractObrDao.openResourceConnection();
+		try{
+			ResourceRun run = fetchResource(createResourceAccessTool(resourceID), executionEntry);
+			run.connection = AbstractObrDao.detachResourceConnection();
+			return run;
+		}catch (Exception e) {
+			logger.error("Problem in fetching resource id : " + resourceID, e);
+			AbstractObrDao.closeResourceConnection();
+			addExecutionEntry(executionEntry);
+			return null;
+		}
+	}
+	
+	/**
+	 * Index stage of the pipelined workflow: indexes a fetched resource with the DB connection of its fetch.
+	 * Any throwable is caught, so the index thread keeps taking the fetched resources: otherwise the fetch 
+	 * threads and the end of the pipeline would wait forever for a free place in the hand-off queue.
+	 */
+	private void indexFetchedResource(ResourceRun run){
+		AbstractObrDao.attachResourceConnection(run.connection);
+		try{
+			indexResource(run);
+			logger.info("Resource " + run.resourceAccessTool.getToolResource().getResourceName() + "("
+					+ run.resourceAccessTool.getToolResource().getResourceId() + ") processed in: " 
+					+ run.timer.millisecondsToTimeString(run.timer.duration()) +"\n");
+		}catch (Throwable e) {
+			logger.error("Problem in indexing resource id : " + run.executionEntry.getResourceId(), e);
+		}finally{
+			AbstractObrDao.closeResourceConnection();
+			LocalIdResolver.getInstance().clearElementIDs(run.executionEntry.getResourceId());
+			run.resourceAccessTool = null;
+			System.gc();
+			addExecutionEntry(run.executionEntry);
+		}
+	}
+	
+	/**
+	 * Waits for the termination of the tasks of the given executor service.
+	 */
+	private void awaitTermination(ExecutorService executorService, String description){
+		try {
+			while(!executorService.awaitTermination(1, TimeUnit.HOURS)){
+				logger.info("\tWaiting for " + description + " to complete...");
+			}
+		} catch (InterruptedException e) {
+			logger.error("** PROBLEM ** Interrupted while waiting for " + description + ".", e);
+			executorService.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Returns the integer value of the given property or the default value if not specified.
+	 */
+	private int getIntegerProperty(String property, int defaultValue){
+		try{
+			return Integer.parseInt(MessageUtils.getMessage(property).trim());
+		}catch (Exception e) {
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * This method creates the resource access tool for the given resource id and process it.
+	 * The execution entry is always added to execution table, and any problem is logged
+	 * without stopping the processing of other resources.
+	 *  
+	 * @param resourceID
+	 */
+	private void processResource(String resourceID){
+		//Initialize the Execution timer 		
+		ExecutionTimer timer = new ExecutionTimer();	
+		ResourceAccessTool resourceAccessTool = null;
+		ExecutionEntry executionEntry= new ExecutionEntry();
+		executionEntry.setResourceId(resourceID);
+		executionEntry.setExecutionBeginning(new Date());
+		try {
+			resourceAccessTool = createResourceAccessTool(resourceID);
+			timer.start();
+			resourceProcessing(resourceAccessTool, executionEntry);
+			timer.end();
+			logger.info("Resource " + resourceAccessTool.getToolResource().getResourceName() + "("+ resourceAccessTool.getToolResource().getResourceId() + ") processed in: " + timer.millisecondsToTimeString(timer.duration()) +"\n");
+		} catch (Exception e) {
+			logger.error(
+					"Problem in creating resource tool for resource id : "
+							+ resourceID, e);
+		}finally{					
+			LocalIdResolver.getInstance().clearElementIDs(resourceID);
+			resourceAccessTool= null;
+			System.gc();
+			addExecutionEntry(executionEntry);				
+		}
+	}
+	
+	/**
+	 * Creates the resource tool object of the given resource id using reflection.
+	 */
+	private ResourceAccessTool createResourceAccessTool(String resourceID) throws Exception {
+		ResourceAccessTool resourceAccessTool = (ResourceAccessTool) Class.forName(
+				MessageUtils.getMessage("resource."
+						+ resourceID.toLowerCase())).newInstance();				 
+		logger.info("Start processing Resource " + resourceAccessTool.getToolResource().getResourceName() + "("+ resourceAccessTool.getToolResource().getResourceId() + ")....\n");
+		return resourceAccessTool;
+	}
+	
+	/**
+	 * Adds the given entry with the current time as end of execution into the execution table.
+	 */
+	private void addExecutionEntry(ExecutionEntry executionEntry){
+		executionEntry.setExecutionEnd(new Date());
+		executionDao.addEntry(executionEntry);
+	}
 
 	/**
 	 * This method process individual resource and update elements for it.
@@ -152,6 +370,16 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 	 * @param executionEntry 
 	 */
 	public void resourceProcessing(ResourceAccessTool resourceAccessTool, ExecutionEntry executionEntry) {
+		indexResource(fetchResource(resourceAccessTool, executionEntry));
+	}
+	
+	/**
+	 * This method prepares the tables of the resource and updates its elements.
+	 * It is the network bound part of the processing of a resource.
+	 * 
+	 * @return the resource to index
+	 */
+	private ResourceRun fetchResource(ResourceAccessTool resourceAccessTool, ExecutionEntry executionEntry) {
 		ExecutionTimer timer = new ExecutionTimer();
 		ExecutionTimer timer1 = new ExecutionTimer();
 		
@@ -165,9 +393,10 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 		
 		// Creating logger for resourceAcessTool
 		Logger toolLogger = ResourceAccessTool.getLogger();
+		String resourceID = resourceAccessTool.getToolResource().getResourceId();
 		timer1.start();
 		toolLogger.info("**** Resource "
-				+ resourceAccessTool.getToolResource().getResourceId() + " processing");
+				+ resourceID + " processing");
 		toolLogger.info("Workflow Parameters[withCompleteDictionary= " 	+ withCompleteDictionary 
 									+ ", updateResource= " + updateResource 
 									+ ", reInitializeAllTables= " + reInitializeAllTables
@@ -179,30 +408,40 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 		// Re-initialized tables
 		if (reInitializeAllTables) {
 			resourceAccessTool.reInitializeAllTables();
+			workflowStageDao.deleteEntries(resourceID);
 		} else if (reInitializeAllTablesExceptElement) {
 			resourceAccessTool.reInitializeAllTablesExcept_ET();
+			workflowStageDao.deleteEntries(resourceID);
 		}
 
+		// Get the latest dictionary from OBS_DVT
+ 		DictionaryBean dictionary = dictionaryDao.getLastDictionaryBean();
+ 		
+ 		// Stages already completed by an interrupted workflow with this dictionary
+ 		WorkflowStages stages = resumeInterruptedWorkflow(resourceAccessTool, dictionary, toolLogger);
+
 		logger.info("\n");
 		if(resourceAccessTool.numberOfElement()==0){
 			executionEntry.setFirstExecution(true);
 		}
 		// Update resource for new elements 
-		if (updateResource) {
+		if (updateResource && stages.start(WorkflowStageEnum.RESOURCE_UPDATE)) {
 			timer.start();
 			toolLogger.info("*** Resource "
 					+ resourceAccessTool.getToolResource().getResourceName() + " update processing");
-			int nbElement = resourceAccessTool.updateResourceContent();
+			long nbElementBefore = resourceAccessTool.numberOfElement();
+			resourceAccessTool.updateResourceContent();
+			// Inserts the last batch of elements
 			resourceAccessTool.updateResourceUpdateInfo();
+			// The elements are counted in the table, as the elements queued in a batch may be already in the table
+			long nbElement = resourceAccessTool.numberOfElement() - nbElementBefore;
 			
 			timer.end();
 			toolLogger.info("### Resource "
 					+ resourceAccessTool.getToolResource().getResourceName()
-					+ " updated with " + nbElement + " elements in : " + timer.millisecondsToTimeString(timer.duration()) +"\n");				 
+					+ " updated with " + nbElement + " elements in : " + timer.millisecondsToTimeString(timer.duration()) +"\n");
+			stages.complete(WorkflowStageEnum.RESOURCE_UPDATE);
 		}
-
-		// Get the latest dictionary from OBS_DVT
- 		DictionaryBean dictionary = dictionaryDao.getLastDictionaryBean();
 	 	
   	    // Adding into execution entry.
 		executionEntry.setDictionaryId(dictionary.getDictionaryId());		
@@ -214,12 +453,27 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 		
 		executionEntry.setNbElement(resourceAccessTool.getAnnotationService().getNumberOfElementsForAnnotation(dictionary.getDictionaryId()));
 		
+		return new ResourceRun(resourceAccessTool, executionEntry, dictionary, withCompleteDictionary, stages, timer1);
+	}
+	
+	/**
+	 * This method annotates and indexes the elements of a resource prepared by 
+	 * {@link #fetchResource(ResourceAccessTool, ExecutionEntry)}.
+	 * It is the DB bound part of the processing of a resource.
+	 */
+	private void indexResource(ResourceRun run) {
+		ResourceAccessTool resourceAccessTool = run.resourceAccessTool;
+		Logger toolLogger = ResourceAccessTool.getLogger();
+		ExecutionTimer timer1 = run.timer;
 		 
 		// Execute the workflow according to resource type. 
-		executeWorkflow(resourceAccessTool, dictionary, withCompleteDictionary, toolLogger);//jay comment
+		executeWorkflow(resourceAccessTool, run.dictionary, run.withCompleteDictionary, run.stages, toolLogger);//jay comment
 		 
 	    // Update resource table entry for latest dictionary and date for resource workflow completed
 		resourceAccessTool.updateResourceWorkflowInfo();//jay comment
+		
+		// Workflow completed, the next execution starts from the first stage
+		workflowStageDao.deleteEntries(resourceAccessTool.getToolResource().getResourceId());
 	    
 		timer1.end();
 		toolLogger.info("#### Resource " + resourceAccessTool.getToolResource().getResourceName()
@@ -227,6 +481,44 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 				+ timer1.millisecondsToTimeString(timer1.duration()));		
 	}
 	
+	/**
+	 * This method looks in the workflow stage table for the stages of an interrupted workflow of the resource.
+	 * The partial results of the interrupted annotation stages are removed using the workflow_status 
+	 * of the annotations, so that these stages can be executed again. The stages completed with 
+	 * the given dictionary are skipped by the current execution.
+	 * 
+	 * @return the stages of the current execution
+	 */
+	private WorkflowStages resumeInterruptedWorkflow(ResourceAccessTool resourceAccessTool, DictionaryBean dictionary, Logger toolLogger){
+		String resourceID = resourceAccessTool.getToolResource().getResourceId();
+		HashMap<WorkflowStageEnum, Integer> interruptedStages = workflowStageDao.getInterruptedStages(resourceID);
+		
+		if(!interruptedStages.isEmpty()){
+			toolLogger.info("*** Resuming interrupted workflow, stages " + interruptedStages.keySet() + " not completed.");
+			// The elements of an interrupted fused stage are expanded and aggregated again completely
+			if(interruptedStages.containsKey(WorkflowStageEnum.FUSED_EXPANSION_AGGREGATION)){
+				resourceAccessTool.getAggregationService().resetInterruptedFusedAggregation();
+			}
+			for (WorkflowStageEnum stage : interruptedStages.keySet()) {
+				if(stage.isAnnotationStage()){
+					resourceAccessTool.getAnnotationService().removeInterruptedAnnotations(interruptedStages.get(stage));
+					resourceAccessTool.getSemanticExpansionService().removeInterruptedExpansions();
+					resourceAccessTool.getAggregationService().resetInterruptedAggregation();
+					break;
+				}
+			}
+		}
+		
+		// Stages completed with another dictionary must be executed again
+		workflowStageDao.deleteEntriesOfOtherDictionaries(resourceID, dictionary.getDictionaryId());
+		Set<WorkflowStageEnum> completedStages = workflowStageDao.getCompletedStages(resourceID, dictionary.getDictionaryId());
+		if(!completedStages.isEmpty()){
+			toolLogger.info("\tStages " + completedStages + " already completed with dictionary " + dictionary.getDictionaryId() + ".");
+		}
+		return new WorkflowStages(resourceID, dictionary.getDictionaryId(), completedStages, 
+				!interruptedStages.isEmpty() || !completedStages.isEmpty());
+	}
+	
 	/**
 	 * This method execute resource. 
 	 * 
@@ -235,9 +527,10 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 	 * 
 	 * @param resourceAccessTool {@code ResourceAccessTool}
 	 * @param dictionary {@code DictionaryBean) containing latest dictionary
+	 * @param stages {@code WorkflowStages} recording the stages of the workflow 
 	 * @param toolLogger {@code Logger} object for given resourceAccessTool
 	 */
-	private long executeWorkflow(ResourceAccessTool resourceAccessTool, DictionaryBean dictionary, boolean withCompleteDictionary, Logger toolLogger){
+	private long executeWorkflow(ResourceAccessTool resourceAccessTool, DictionaryBean dictionary, boolean withCompleteDictionary, WorkflowStages stages, Logger toolLogger){
 		
 		ExecutionTimer timer = new ExecutionTimer();
 		
@@ -247,91 +540,395 @@ public class ResourceIndexWorkflowImpl implements ResourceIndexWorkflow, DaoFact
 		int nbEntry  = resourceAccessTool.getAnnotationService()
 							.getNumberOfElementsForAnnotation(dictionary.getDictionaryId());
 		
-		
-		if(nbEntry == 0){
+		// An interrupted workflow is completed even without new element 
+		if(nbEntry == 0 && !stages.isResumed()){
 			logger.info("\tNo element present for annotation for resource : " + resourceAccessTool.getToolResource().getResourceId());
 			return 0;
 		}
 
+	    // Counter of the new annotations by ontology, null if the statistics are calculated from the annotation tables
+	    OntologyStatisticsCounter statisticsCounter = newStatisticsCounter(resourceAccessTool, stages.isResumed() || disableStatistics);
 	    boolean disableIndexes = Boolean.parseBoolean(MessageUtils.getMessage("obr.table.index.disabled"));
+	    boolean chunkedAnnotation = Boolean.parseBoolean(MessageUtils.getMessage("obr.elements.process.chunked"));
+	    boolean fusedAggregation = Boolean.parseBoolean(MessageUtils.getMessage("obr.aggregation.fused"));
 	    long nbAggregatedAnnotation = 0;
 	    
-		if(disableIndexes){
-			toolLogger.info("*** Disabling indexes on annotation tables starts...");
- 			timer.reset();
- 			timer.start();
-			resourceAccessTool.getAnnotationService().disableIndexes();
-			timer.end();
-			toolLogger.info("### Disabling indexes on annotation tables completed in "
-					+ timer.millisecondsToTimeString(timer.duration()) +".\n");			 
-		} 
-		
-		try{
-						 
-			// Processing direct annotations
-			long nbDirectAnnotation = resourceAccessTool.getAnnotationService()
-					.resourceAnnotation(withCompleteDictionary, dictionary, 
-							Utilities.arrayToHashSet(FileResourceParameters.STOP_WORDS)); 
-			
-			
-			toolLogger.info(nbEntry + " elements annotated (with "
-					+ nbDirectAnnotation
-					+ " new direct annotations) from resource "
-					+ resourceAccessTool.getToolResource().getResourceId() + ".\n");
-
-			// Flag for mapping expansion.  
-			boolean isaClosureExpansion = Boolean.parseBoolean(MessageUtils
-					.getMessage("obr.expansion.relational"));
-			
-			// Flag for mapping expansion.
-			boolean mappingExpansion = Boolean.parseBoolean(MessageUtils
-					.getMessage("obr.expansion.mapping"));
-			
-			// Flag for distance expansion.
-			boolean distanceExpansion = Boolean.parseBoolean(MessageUtils
-					.getMessage("obr.expansion.distance"));
-
-			// Creating semantic expansion annotation.
-			long nbExpandedAnnotation = resourceAccessTool.getSemanticExpansionService()
-					.semanticExpansion(isaClosureExpansion, mappingExpansion,
-							distanceExpansion);
-			toolLogger.info(nbEntry + " elements annotated (with "
-					+ nbExpandedAnnotation
-					+ " new expanded annotations) from resource "
-					+ resourceAccessTool.getToolResource().getResourceId() + ".\n");
-		}finally{
+	    if(chunkedAnnotation){
+	    	// The windows go through all the annotation stages
+	    	if(stages.start(WorkflowStageEnum.DIRECT_ANNOTATION)){
+	    		nbAggregatedAnnotation = executeChunkedAnnotation(resourceAccessTool, dictionary, withCompleteDictionary, stages.isResumed(), statisticsCounter, toolLogger);
+	    		stages.complete(WorkflowStageEnum.DIRECT_ANNOTATION);
+	    		stages.complete(WorkflowStageEnum.SEMANTIC_EXPANSION);
+	    		stages.complete(WorkflowStageEnum.AGGREGATION);
+	    	}
+	    }else{
 			if(disableIndexes){
-				toolLogger.info("*** Enabling indexes on annotation tables starts...");
+				toolLogger.info("*** Disabling indexes on annotation tables starts...");
 	 			timer.reset();
 	 			timer.start();
-				resourceAccessTool.getAnnotationService().enableIndexes(ResourceType.BIG==resourceAccessTool.getResourceType());
+				resourceAccessTool.getAnnotationService().disableIndexes();
 				timer.end();
-				toolLogger.info("### Enabling indexes on annotation tables completed in "
-						+ timer.millisecondsToTimeString(timer.duration()) +".\n");
-			}  
+				toolLogger.info("### Disabling indexes on annotation tables completed in "
+						+ timer.millisecondsToTimeString(timer.duration()) +".\n");			 
+			} 
+		
+			try{
+				if(stages.start(WorkflowStageEnum.DIRECT_ANNOTATION)){
+					directAnnotation(resourceAccessTool, dictionary, withCompleteDictionary, nbEntry, statisticsCounter, toolLogger);
+					stages.complete(WorkflowStageEnum.DIRECT_ANNOTATION);
+				}
+				if(stages.start(WorkflowStageEnum.SEMANTIC_EXPANSION)){
+					// The fused stage is not used to resume a workflow, whose expansion may be partially done
+					if(fusedAggregation && !stages.isResumed() && stages.start(WorkflowStageEnum.FUSED_EXPANSION_AGGREGATION)){
+						nbAggregatedAnnotation = fusedExpansionAggregation(resourceAccessTool, nbEntry, statisticsCounter, toolLogger);
+						stages.complete(WorkflowStageEnum.FUSED_EXPANSION_AGGREGATION);
+						stages.complete(WorkflowStageEnum.SEMANTIC_EXPANSION);
+						stages.complete(WorkflowStageEnum.AGGREGATION);
+					}else{
+						semanticExpansion(resourceAccessTool, nbEntry, statisticsCounter, toolLogger);
+						stages.complete(WorkflowStageEnum.SEMANTIC_EXPANSION);
+					}
+				}
+			}finally{
+				if(disableIndexes){
+					toolLogger.info("*** Enabling indexes on annotation tables starts...");
+		 			timer.reset();
+		 			timer.start();
+					resourceAccessTool.getAnnotationService().enableIndexes(ResourceType.BIG==resourceAccessTool.getResourceType());
+					timer.end();
+					toolLogger.info("### Enabling indexes on annotation tables completed in "
+							+ timer.millisecondsToTimeString(timer.duration()) +".\n");
+				}  
+			}
+			// Aggregation step to annotations.
+			if(stages.start(WorkflowStageEnum.AGGREGATION)){
+				nbAggregatedAnnotation = aggregation(resourceAccessTool, statisticsCounter);
+			 
+				toolLogger.info(nbEntry + " elements aggregated (with "
+						+ nbAggregatedAnnotation
+						+ " new aggregated annotations) from resource "
+						+ resourceAccessTool.getToolResource().getResourceId() + ".\n");
+				stages.complete(WorkflowStageEnum.AGGREGATION);
+			}
 		}
-		// Aggregation step to annotations.	 
-		nbAggregatedAnnotation = resourceAccessTool.getAggregationService().aggregation(
-				obrWeights);
-		 
-		toolLogger.info(nbEntry + " elements aggregated (with "
-				+ nbAggregatedAnnotation
-				+ " new aggregated annotations) from resource "
-				+ resourceAccessTool.getToolResource().getResourceId() + ".\n");
 		
 		// Sorting aggregation
-		resourceAccessTool.getAggregationService().sortAggregation(resourceAccessTool.getResourceType());
+		if(stages.start(WorkflowStageEnum.SORT_AGGREGATION)){
+			resourceAccessTool.getAggregationService().sortAggregation(resourceAccessTool.getResourceType(), obrWeights, dictionary.getDictionaryId());
+			stages.complete(WorkflowStageEnum.SORT_AGGREGATION);
+		}
 		
 		// Update obr_statistics and concept_frequency table.
-		if(nbAggregatedAnnotation > 0) {
-			resourceAccessTool.calulateConceptFrequncy();
-			if(!disableStatistics)
-				resourceAccessTool.calculateObrStatistics(withCompleteDictionary, dictionary);
-			
+		// When resuming, the aggregation may have been done by the interrupted workflow.
+		if(nbAggregatedAnnotation > 0 || stages.isResumed()) {
+			if(stages.start(WorkflowStageEnum.CONCEPT_FREQUENCY)){
+				resourceAccessTool.calulateConceptFrequncy();
+				stages.complete(WorkflowStageEnum.CONCEPT_FREQUENCY);
+			}
+			if(!disableStatistics && stages.start(WorkflowStageEnum.STATISTICS)){
+				resourceAccessTool.calculateObrStatistics(withCompleteDictionary, dictionary, statisticsCounter);
+				recordStatistics(resourceAccessTool);
+				stages.complete(WorkflowStageEnum.STATISTICS);
+			}
 		}  
 		 
 		return nbAggregatedAnnotation;   
 	} 
+
+	/**
+	 * This method annotates the non annotated elements by windows of {@code getMaxNumberOfElementsToProcess()}
+	 * elements. Each window goes through direct annotation, semantic expansion and aggregation before the next one,
+	 * so an interrupted workflow restarts from the first window not completely annotated.
+	 * 
+	 * @param resumed true if an interrupted workflow is resumed: the annotations of the interrupted window
+	 * are expanded and aggregated first 
+	 * @return number of new aggregated annotations
+	 */
+	private long executeChunkedAnnotation(ResourceAccessTool resourceAccessTool, DictionaryBean dictionary, boolean withCompleteDictionary, boolean resumed, OntologyStatisticsCounter statisticsCounter, Logger toolLogger){
+		ExecutionTimer timer = new ExecutionTimer();
+		AnnotationService annotationService = resourceAccessTool.getAnnotationService();
+		boolean fusedAggregation = Boolean.parseBoolean(MessageUtils.getMessage("obr.aggregation.fused"));
+		long nbAggregatedAnnotation = 0;
+		int nbWindow = 0;
+		int nbElement;
+		if(resumed){
+			toolLogger.info("*** Processing the annotations of the interrupted window starts...");
+			semanticExpansion(resourceAccessTool, 0, statisticsCounter, toolLogger);
+			nbAggregatedAnnotation += aggregation(resourceAccessTool, statisticsCounter);
+		}
+		try{
+			while((nbElement = annotationService.openElementWindow(dictionary.getDictionaryId())) > 0){
+				nbWindow++;
+				toolLogger.info("*** Processing window " + nbWindow + " of " + nbElement + " elements starts...");
+				timer.reset();
+				timer.start();
+				
+				directAnnotation(resourceAccessTool, dictionary, withCompleteDictionary, nbElement, statisticsCounter, toolLogger);
+				if(fusedAggregation){
+					// Recorded so that an interrupted window is expanded and aggregated again completely
+					String resourceID = resourceAccessTool.getToolResource().getResourceId();
+					workflowStageDao.startStage(resourceID, dictionary.getDictionaryId(), WorkflowStageEnum.FUSED_EXPANSION_AGGREGATION);
+					nbAggregatedAnnotation += fusedExpansionAggregation(resourceAccessTool, nbElement, statisticsCounter, toolLogger);
+					workflowStageDao.completeStage(resourceID, dictionary.getDictionaryId(), WorkflowStageEnum.FUSED_EXPANSION_AGGREGATION);
+				}else{
+					semanticExpansion(resourceAccessTool, nbElement, statisticsCounter, toolLogger);
+					nbAggregatedAnnotation += aggregation(resourceAccessTool, statisticsCounter);
+				}
+				
+				timer.end();
+				toolLogger.info("### Window " + nbWindow + " processed in: " + timer.millisecondsToTimeString(timer.duration()) + "\n");
+				
+				// The elements of the window must be annotated to go to the next one  
+				if(annotationService.getNumberOfElementsForAnnotation(dictionary.getDictionaryId()) > 0){
+					toolLogger.error("** PROBLEM ** Elements of window " + nbWindow + " not annotated, chunked annotation stopped.");
+					break;
+				}
+			}
+		}finally{
+			annotationService.closeElementWindow();
+		}
+		toolLogger.info(nbWindow + " windows of elements aggregated (with "
+				+ nbAggregatedAnnotation
+				+ " new aggregated annotations) from resource "
+				+ resourceAccessTool.getToolResource().getResourceId() + ".\n");
+		return nbAggregatedAnnotation;
+	}
+	
+	/**
+	 * This method creates the direct annotations of the non annotated elements, and counts them if statisticsCounter is not null.
+	 */
+	private void directAnnotation(ResourceAccessTool resourceAccessTool, DictionaryBean dictionary, boolean withCompleteDictionary, int nbElement, OntologyStatisticsCounter statisticsCounter, Logger toolLogger){
+		// Processing direct annotations
+		long nbDirectAnnotation = resourceAccessTool.getAnnotationService()
+				.resourceAnnotation(withCompleteDictionary, dictionary, 
+						Utilities.arrayToHashSet(FileResourceParameters.STOP_WORDS)); 
+		if(statisticsCounter != null){
+			resourceAccessTool.getAnnotationService().countAnnotationStatistics(statisticsCounter);
+		}
+		
+		
+		toolLogger.info(nbElement + " elements annotated (with "
+				+ nbDirectAnnotation
+				+ " new direct annotations) from resource "
+				+ resourceAccessTool.getToolResource().getResourceId() + ".\n");
+	}
+	
+	/**
+	 * This method expands the direct annotations not yet expanded, and counts the expanded annotations if statisticsCounter is not null.
+	 */
+	private void semanticExpansion(ResourceAccessTool resourceAccessTool, int nbElement, OntologyStatisticsCounter statisticsCounter, Logger toolLogger){
+		// Flag for mapping expansion.  
+		boolean isaClosureExpansion = Boolean.parseBoolean(MessageUtils
+				.getMessage("obr.expansion.relational"));
+		
+		// Flag for mapping expansion.
+		boolean mappingExpansion = Boolean.parseBoolean(MessageUtils
+				.getMessage("obr.expansion.mapping"));
+		
+		// Flag for distance expansion.
+		boolean distanceExpansion = Boolean.parseBoolean(MessageUtils
+				.getMessage("obr.expansion.distance"));
+
+		// Creating semantic expansion annotation.
+		long[] range = watermarkRange(resourceAccessTool, WorkflowStageEnum.SEMANTIC_EXPANSION);
+		long nbExpandedAnnotation = resourceAccessTool.getSemanticExpansionService()
+				.semanticExpansion(isaClosureExpansion, mappingExpansion,
+						distanceExpansion, range[0], range[1]);
+		if(statisticsCounter != null){
+			resourceAccessTool.getSemanticExpansionService().countAnnotationStatistics(statisticsCounter, range[0], range[1]);
+		}
+		recordWatermark(resourceAccessTool, WorkflowStageEnum.SEMANTIC_EXPANSION, range[1]);
+		toolLogger.info(nbElement + " elements annotated (with "
+				+ nbExpandedAnnotation
+				+ " new expanded annotations) from resource "
+				+ resourceAccessTool.getToolResource().getResourceId() + ".\n");
+	}
+	
+	/**
+	 * This method aggregates the expanded annotations not yet aggregated, and counts the aggregated annotations 
+	 * if statisticsCounter is not null.
+	 * 
+	 * @return number of aggregated annotations
+	 */
+	private long aggregation(ResourceAccessTool resourceAccessTool, OntologyStatisticsCounter statisticsCounter){
+		long[] range = watermarkRange(resourceAccessTool, WorkflowStageEnum.AGGREGATION);
+		long nbAggregatedAnnotation = resourceAccessTool.getAggregationService().aggregation(obrWeights, range[0], range[1], statisticsCounter);
+		recordWatermark(resourceAccessTool, WorkflowStageEnum.AGGREGATION, range[1]);
+		return nbAggregatedAnnotation;
+	}
+	
+	/**
+	 * Returns the watermarks {fromElementID, toElementID} of the elements whose annotations are waiting for the given stage
+	 * (semantic expansion or aggregation). If obr.workflow.watermark is false or the watermarks cannot be used 
+	 * (e.g. elements annotated again with a new dictionary), fromElementID is -1 and the annotations are selected by 
+	 * their workflow_status; toElementID is then the largest annotated element_id, recorded as watermark of the stage.
+	 */
+	private long[] watermarkRange(ResourceAccessTool resourceAccessTool, WorkflowStageEnum stage){
+		AnnotationService annotationService = resourceAccessTool.getAnnotationService();
+		long maxElementID = annotationService.getMaxAnnotatedElementID();
+		if(!Boolean.parseBoolean(MessageUtils.getMessage("obr.workflow.watermark"))){
+			return new long[]{-1, maxElementID};
+		}
+		String resourceID = resourceAccessTool.getToolResource().getResourceId();
+		long expansionWatermark = workflowWatermarkDao.getWatermark(resourceID, WorkflowStageEnum.SEMANTIC_EXPANSION);
+		long aggregationWatermark = workflowWatermarkDao.getWatermark(resourceID, WorkflowStageEnum.AGGREGATION);
+		if(expansionWatermark < 0 || aggregationWatermark < 0 || expansionWatermark < aggregationWatermark
+				|| !annotationService.isWatermarkValid(aggregationWatermark)){
+			logger.info("\tWatermarks not valid for stage " + stage + ", annotations selected by workflow_status.");
+			return new long[]{-1, maxElementID};
+		}
+		if(stage == WorkflowStageEnum.SEMANTIC_EXPANSION){
+			return new long[]{expansionWatermark, Math.max(expansionWatermark, maxElementID)};
+		}
+		return new long[]{aggregationWatermark, expansionWatermark};
+	}
+	
+	/**
+	 * Records the watermark of the given stage if obr.workflow.watermark is true.
+	 */
+	private void recordWatermark(ResourceAccessTool resourceAccessTool, WorkflowStageEnum stage, long elementID){
+		if(elementID >= 0 && Boolean.parseBoolean(MessageUtils.getMessage("obr.workflow.watermark"))){
+			workflowWatermarkDao.setWatermark(resourceAccessTool.getToolResource().getResourceId(), stage, elementID);
+		}
+	}
+	
+	/**
+	 * Returns a new counter of the annotations of the workflow if obr.statistics.incremental is true and the statistics of 
+	 * the resource were up to date at the end of its last workflow (recorded by the STATISTICS watermark), null otherwise.
+	 * The STATISTICS watermark is removed until the statistics of this workflow are processed.
+	 * 
+	 * @param disabled true if the annotations of the workflow cannot be counted (resumed workflow or statistics disabled)
+	 */
+	private OntologyStatisticsCounter newStatisticsCounter(ResourceAccessTool resourceAccessTool, boolean disabled){
+		if(!Boolean.parseBoolean(MessageUtils.getMessage("obr.statistics.incremental"))){
+			return null;
+		}
+		String resourceID = resourceAccessTool.getToolResource().getResourceId();
+		boolean upToDate = workflowWatermarkDao.getWatermark(resourceID, WorkflowStageEnum.STATISTICS) >= 0;
+		workflowWatermarkDao.deleteWatermark(resourceID, WorkflowStageEnum.STATISTICS);
+		if(disabled || !upToDate){
+			logger.info("\tStatistics of resource " + resourceID + " will be calculated from the annotation tables.");
+			return null;
+		}
+		return new OntologyStatisticsCounter();
+	}
+	
+	/**
+	 * Records that the statistics of the resource are up to date if obr.statistics.incremental is true.
+	 */
+	private void recordStatistics(ResourceAccessTool resourceAccessTool){
+		if(Boolean.parseBoolean(MessageUtils.getMessage("obr.statistics.incremental"))){
+			long maxElementID = resourceAccessTool.getAnnotationService().getMaxAnnotatedElementID();
+			workflowWatermarkDao.setWatermark(resourceAccessTool.getToolResource().getResourceId(), 
+					WorkflowStageEnum.STATISTICS, Math.max(0, maxElementID));
+		}
+	}
+	
+	/**
+	 * This method expands and aggregates in a single pass the direct annotations not yet expanded,
+	 * or with the semantic expansion and the aggregation if the is_a closure or the mappings cannot be loaded.
+	 * 
+	 * @return number of aggregated annotations
+	 */
+	private long fusedExpansionAggregation(ResourceAccessTool resourceAccessTool, int nbElement, OntologyStatisticsCounter statisticsCounter, Logger toolLogger){
+		boolean isaClosureExpansion = Boolean.parseBoolean(MessageUtils
+				.getMessage("obr.expansion.relational"));
+		boolean mappingExpansion = Boolean.parseBoolean(MessageUtils
+				.getMessage("obr.expansion.mapping"));
+		// The annotations expanded and aggregated by the fused stage are the ones below the largest element_id
+		long maxElementID = resourceAccessTool.getAnnotationService().getMaxAnnotatedElementID();
+		long nbAggregatedAnnotation = resourceAccessTool.getAggregationService()
+				.fusedExpansionAggregation(obrWeights, isaClosureExpansion, mappingExpansion);
+		if(nbAggregatedAnnotation < 0){
+			semanticExpansion(resourceAccessTool, nbElement, statisticsCounter, toolLogger);
+			nbAggregatedAnnotation = aggregation(resourceAccessTool, statisticsCounter);
+		}else{
+			// The annotations created by the fused stage are not counted
+			if(statisticsCounter != null){
+				statisticsCounter.setIncomplete();
+			}
+			recordWatermark(resourceAccessTool, WorkflowStageEnum.SEMANTIC_EXPANSION, maxElementID);
+			recordWatermark(resourceAccessTool, WorkflowStageEnum.AGGREGATION, maxElementID);
+		}
+		toolLogger.info(nbElement + " elements expanded and aggregated (with "
+				+ nbAggregatedAnnotation
+				+ " aggregated annotations) from resource "
+				+ resourceAccessTool.getToolResource().getResourceId() + ".\n");
+		return nbAggregatedAnnotation;
+	}
+	
+	/**
+	 * A resource between the fetch and the index parts of its processing.
+	 */
+	private static class ResourceRun {
+		
+		private ResourceAccessTool resourceAccessTool;
+		private ExecutionEntry executionEntry;
+		private DictionaryBean dictionary;
+		private boolean withCompleteDictionary;
+		private WorkflowStages stages;
+		private ExecutionTimer timer;
+		// DB connection of the resource tables when the resource is handed over to another thread
+		private Connection connection;
+		
+		ResourceRun(ResourceAccessTool resourceAccessTool, ExecutionEntry executionEntry, DictionaryBean dictionary,
+				boolean withCompleteDictionary, WorkflowStages stages, ExecutionTimer timer) {
+			this.resourceAccessTool = resourceAccessTool;
+			this.executionEntry = executionEntry;
+			this.dictionary = dictionary;
+			this.withCompleteDictionary = withCompleteDictionary;
+			this.stages = stages;
+			this.timer = timer;
+		}
+	}
+	
+	/**
+	 * Stages of one execution of the workflow of a resource, recorded in the workflow stage table.
+	 * A stage already completed with the same dictionary by an interrupted execution is skipped.
+	 */
+	private static class WorkflowStages {
+		
+		private String resourceID;
+		private int dictionaryID;
+		private Set<WorkflowStageEnum> completedStages;
+		private boolean resumed;
+		
+		WorkflowStages(String resourceID, int dictionaryID, Set<WorkflowStageEnum> completedStages, boolean resumed) {
+			this.resourceID = resourceID;
+			this.dictionaryID = dictionaryID;
+			this.completedStages = completedStages;
+			this.resumed = resumed;
+		}
+		
+		/**
+		 * Records the beginning of the given stage.
+		 * 
+		 * @return false if the stage was already completed and must be skipped
+		 */
+		boolean start(WorkflowStageEnum stage){
+			if(this.completedStages.contains(stage)){
+				ResourceAccessTool.getLogger().info("\tStage " + stage + " already completed with dictionary " + this.dictionaryID + ", skipped.");
+				return false;
+			}
+			workflowStageDao.startStage(this.resourceID, this.dictionaryID, stage);
+			return true;
+		}
+		
+		/**
+		 * Records the end of the given stage.
+		 */
+		void complete(WorkflowStageEnum stage){
+			workflowStageDao.completeStage(this.resourceID, this.dictionaryID, stage);
+			this.completedStages.add(stage);
+		}
+		
+		/**
+		 * Returns true if this execution resumes an interrupted one.
+		 */
+		boolean isResumed() {
+			return this.resumed;
+		}
+	}
  
 	/**
 	 * Deletes the ontology duplicates from the OBS slave tables and all the resource index tables.
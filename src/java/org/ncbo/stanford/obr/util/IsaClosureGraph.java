@@ -0,0 +1,151 @@
+package org.ncbo.stanford.obr.util;
+
+/**
+ * This class is a compact in-memory representation of the is_a transitive closure of the OBS relation table
+ * (concept_id -> parent_concept_id, level), used by the Java isa transitive closure expansion.
+ * The parents are kept in CSR form: the parents of a concept are stored contiguously, ordered by level,
+ * and an offset array indexed by concept_id gives their position. Restricting the expansion to a maximum
+ * level is then a cutoff in the parents of the concept.
+ * Once built, the graph is immutable and can be read by several threads.
+ */
+public class IsaClosureGraph {
+
+	// Parents of concept c between offsets[c] (inclusive) and offsets[c + 1] (exclusive)
+	private int[] offsets;
+	private int[] parents;
+	private short[] levels;
+
+	private IsaClosureGraph(int[] offsets, int[] parents, short[] levels) {
+		this.offsets = offsets;
+		this.parents = parents;
+		this.levels = levels;
+	}
+
+	/**
+	 * Returns the index of the first parent of the given concept.
+	 */
+	public int getFirstParent(int conceptID) {
+		if(conceptID < 0 || conceptID >= this.offsets.length - 1){
+			return 0;
+		}
+		return this.offsets[conceptID];
+	}
+
+	/**
+	 * Returns the index after the last parent of the given concept with a level lower or equal to
+	 * the given maximum level (all the parents if maxLevel is not greater than zero).
+	 */
+	public int getEndParent(int conceptID, int maxLevel) {
+		if(conceptID < 0 || conceptID >= this.offsets.length - 1){
+			return 0;
+		}
+		int end = this.offsets[conceptID + 1];
+		if(maxLevel > 0){
+			int first = this.offsets[conceptID];
+			while(end > first && this.levels[end - 1] > maxLevel){
+				end--;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Returns the parent concept_id at the given index.
+	 */
+	public int getParent(int index) {
+		return this.parents[index];
+	}
+
+	/**
+	 * Returns the level of the parent at the given index.
+	 */
+	public int getLevel(int index) {
+		return this.levels[index];
+	}
+
+	/**
+	 * Returns the number of relations of the graph.
+	 */
+	public int getNumberOfRelations() {
+		return this.parents.length;
+	}
+
+	/**
+	 * Returns the estimated number of bytes used by the graph.
+	 */
+	public long getMemorySize() {
+		return 4L * this.offsets.length + 6L * this.parents.length;
+	}
+
+	/**
+	 * Builds an IsaClosureGraph from relations added in any order.
+	 */
+	public static class Builder {
+
+		private int[] concepts = new int[1024];
+		private int[] parents = new int[1024];
+		private short[] levels = new short[1024];
+		private int size = 0;
+		private int maxConceptID = -1;
+
+		public void add(int conceptID, int parentConceptID, int level) {
+			if(conceptID < 0){
+				return;
+			}
+			if(this.size == this.concepts.length){
+				int capacity = this.size << 1;
+				int[] newConcepts = new int[capacity];
+				int[] newParents = new int[capacity];
+				short[] newLevels = new short[capacity];
+				System.arraycopy(this.concepts, 0, newConcepts, 0, this.size);
+				System.arraycopy(this.parents, 0, newParents, 0, this.size);
+				System.arraycopy(this.levels, 0, newLevels, 0, this.size);
+				this.concepts = newConcepts;
+				this.parents = newParents;
+				this.levels = newLevels;
+			}
+			this.concepts[this.size] = conceptID;
+			this.parents[this.size] = parentConceptID;
+			this.levels[this.size] = (short) Math.min(level, Short.MAX_VALUE);
+			this.size++;
+			this.maxConceptID = Math.max(this.maxConceptID, conceptID);
+		}
+
+		public IsaClosureGraph build() {
+			// Counting sort on concept_id
+			int[] offsets = new int[this.maxConceptID + 2];
+			for(int i = 0; i < this.size; i++){
+				offsets[this.concepts[i] + 1]++;
+			}
+			for(int c = 1; c < offsets.length; c++){
+				offsets[c] += offsets[c - 1];
+			}
+			int[] next = new int[offsets.length];
+			System.arraycopy(offsets, 0, next, 0, offsets.length);
+			int[] sortedParents = new int[this.size];
+			short[] sortedLevels = new short[this.size];
+			for(int i = 0; i < this.size; i++){
+				int j = next[this.concepts[i]]++;
+				sortedParents[j] = this.parents[i];
+				sortedLevels[j] = this.levels[i];
+			}
+			// Orders the parents of each concept by level
+			for(int c = 0; c < offsets.length - 1; c++){
+				for(int i = offsets[c] + 1; i < offsets[c + 1]; i++){
+					for(int j = i; j > offsets[c] && sortedLevels[j - 1] > sortedLevels[j]; j--){
+						short level = sortedLevels[j];
+						sortedLevels[j] = sortedLevels[j - 1];
+						sortedLevels[j - 1] = level;
+						int parent = sortedParents[j];
+						sortedParents[j] = sortedParents[j - 1];
+						sortedParents[j - 1] = parent;
+					}
+				}
+			}
+			this.concepts = null;
+			this.parents = null;
+			this.levels = null;
+			return new IsaClosureGraph(offsets, sortedParents, sortedLevels);
+		}
+	}
+}
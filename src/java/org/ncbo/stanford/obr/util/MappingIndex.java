@@ -0,0 +1,129 @@
+package org.ncbo.stanford.obr.util;
+
+/**
+ * This class is a compact in-memory representation of the OBS map table (concept_id -> mapped_concept_id, mapping type id),
+ * used by the Java mapping expansion.
+ * The mappings are kept in CSR form: the mappings of a concept are stored contiguously in primitive arrays,
+ * and an offset array indexed by concept_id gives their position.
+ * Once built, the index is immutable and can be read by several threads.
+ */
+public class MappingIndex {
+
+	// Mappings of concept c between offsets[c] (inclusive) and offsets[c + 1] (exclusive)
+	private int[] offsets;
+	private int[] mappedConcepts;
+	private short[] mappingTypes;
+
+	private MappingIndex(int[] offsets, int[] mappedConcepts, short[] mappingTypes) {
+		this.offsets = offsets;
+		this.mappedConcepts = mappedConcepts;
+		this.mappingTypes = mappingTypes;
+	}
+
+	/**
+	 * Returns the index of the first mapping of the given concept.
+	 */
+	public int getFirstMapping(int conceptID) {
+		if(conceptID < 0 || conceptID >= this.offsets.length - 1){
+			return 0;
+		}
+		return this.offsets[conceptID];
+	}
+
+	/**
+	 * Returns the index after the last mapping of the given concept.
+	 */
+	public int getEndMapping(int conceptID) {
+		if(conceptID < 0 || conceptID >= this.offsets.length - 1){
+			return 0;
+		}
+		return this.offsets[conceptID + 1];
+	}
+
+	/**
+	 * Returns the mapped concept_id at the given index.
+	 */
+	public int getMappedConcept(int index) {
+		return this.mappedConcepts[index];
+	}
+
+	/**
+	 * Returns the id of the mapping type at the given index.
+	 */
+	public int getMappingType(int index) {
+		return this.mappingTypes[index];
+	}
+
+	/**
+	 * Returns the number of mappings of the index.
+	 */
+	public int getNumberOfMappings() {
+		return this.mappedConcepts.length;
+	}
+
+	/**
+	 * Returns the estimated number of bytes used by the index.
+	 */
+	public long getMemorySize() {
+		return 4L * this.offsets.length + 6L * this.mappedConcepts.length;
+	}
+
+	/**
+	 * Builds a MappingIndex from mappings added in any order.
+	 */
+	public static class Builder {
+
+		private int[] concepts = new int[1024];
+		private int[] mappedConcepts = new int[1024];
+		private short[] mappingTypes = new short[1024];
+		private int size = 0;
+		private int maxConceptID = -1;
+
+		public void add(int conceptID, int mappedConceptID, int mappingType) {
+			if(conceptID < 0){
+				return;
+			}
+			if(this.size == this.concepts.length){
+				int capacity = this.size << 1;
+				int[] newConcepts = new int[capacity];
+				int[] newMappedConcepts = new int[capacity];
+				short[] newMappingTypes = new short[capacity];
+				System.arraycopy(this.concepts, 0, newConcepts, 0, this.size);
+				System.arraycopy(this.mappedConcepts, 0, newMappedConcepts, 0, this.size);
+				System.arraycopy(this.mappingTypes, 0, newMappingTypes, 0, this.size);
+				this.concepts = newConcepts;
+				this.mappedConcepts = newMappedConcepts;
+				this.mappingTypes = newMappingTypes;
+			}
+			this.concepts[this.size] = conceptID;
+			this.mappedConcepts[this.size] = mappedConceptID;
+			this.mappingTypes[this.size] = (short) mappingType;
+			this.size++;
+			this.maxConceptID = Math.max(this.maxConceptID, conceptID);
+		}
+
+		public MappingIndex build() {
+			// Counting sort on concept_id
+			int[] offsets = new int[this.maxConceptID + 2];
+			for(int i = 0; i < this.size; i++){
+				offsets[this.concepts[i] + 1]++;
+			}
+			for(int c = 1; c < offsets.length; c++){
+				offsets[c] += offsets[c - 1];
+			}
+			int[] next = new int[offsets.length];
+			System.arraycopy(offsets, 0, next, 0, offsets.length);
+			int[] sortedMappedConcepts = new int[this.size];
+			short[] sortedMappingTypes = new short[this.size];
+			for(int i = 0; i < this.size; i++){
+				int j = next[this.concepts[i]]++;
+				sortedMappedConcepts[j] = this.mappedConcepts[i];
+				sortedMappingTypes[j] = this.mappingTypes[i];
+			}
+			this.concepts = null;
+			this.mappedConcepts = null;
+			this.mappingTypes = null;
+			return new MappingIndex(offsets, sortedMappedConcepts, sortedMappingTypes);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package org.ncbo.stanford.obr.util;
+
+/**
+ * This class is a compact hash map from String keys to int values (open addressing with linear probing).
+ * It avoids the entry objects and the boxed values of a {@link java.util.HashMap}, and keeps an estimate
+ * of the memory it uses so that a cache can stay in a memory budget.
+ * This class is not synchronized.
+ */
+public class StringIntHashMap {
+
+	// Estimated size in bytes of a String object without its characters
+	private static final int STRING_OVERHEAD = 40;
+
+	private String[] keys;
+	private int[] values;
+	private int size = 0;
+	private long keyBytes = 0;
+
+	public StringIntHashMap() {
+		this(1024);
+	}
+
+	/**
+	 * @param expectedSize number of entries the map can contain before being resized
+	 */
+	public StringIntHashMap(int expectedSize) {
+		int capacity = 16;
+		while(capacity * 3 / 4 < expectedSize){
+			capacity <<= 1;
+		}
+		this.keys = new String[capacity];
+		this.values = new int[capacity];
+	}
+
+	/**
+	 * Returns the value of the given key, or the given default value if the map does not contain the key.
+	 */
+	public int get(String key, int defaultValue) {
+		int mask = this.keys.length - 1;
+		for(int i = hash(key) & mask; this.keys[i] != null; i = (i + 1) & mask){
+			if(this.keys[i].equals(key)){
+				return this.values[i];
+			}
+		}
+		return defaultValue;
+	}
+
+	public boolean containsKey(String key) {
+		int mask = this.keys.length - 1;
+		for(int i = hash(key) & mask; this.keys[i] != null; i = (i + 1) & mask){
+			if(this.keys[i].equals(key)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Associates the value to the key, replacing the previous value of the key.
+	 */
+	public void put(String key, int value) {
+		if((this.size + 1) * 4 > this.keys.length * 3){
+			this.resize(this.keys.length << 1);
+		}
+		int mask = this.keys.length - 1;
+		int i = hash(key) & mask;
+		while(this.keys[i] != null){
+			if(this.keys[i].equals(key)){
+				this.values[i] = value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		this.keys[i] = key;
+		this.values[i] = value;
+		this.size++;
+		this.keyBytes += STRING_OVERHEAD + 2 * key.length();
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the estimated number of bytes used by the map and its keys.
+	 */
+	public long getMemorySize() {
+		return this.keyBytes + 8L * this.keys.length;
+	}
+
+	/**
+	 * Returns the estimated number of bytes used by an entry with the given key.
+	 */
+	public static long getEntryMemorySize(String key) {
+		return STRING_OVERHEAD + 2 * key.length() + 16;
+	}
+
+	public void clear() {
+		this.keys = new String[16];
+		this.values = new int[16];
+		this.size = 0;
+		this.keyBytes = 0;
+	}
+
+	private void resize(int capacity) {
+		String[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		this.keys = new String[capacity];
+		this.values = new int[capacity];
+		int mask = capacity - 1;
+		for(int j = 0; j < oldKeys.length; j++){
+			if(oldKeys[j] != null){
+				int i = hash(oldKeys[j]) & mask;
+				while(this.keys[i] != null){
+					i = (i + 1) & mask;
+				}
+				this.keys[i] = oldKeys[j];
+				this.values[i] = oldValues[j];
+			}
+		}
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		// Spreads the bits of the hash code as the table size is a power of 2
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+}
@@ -0,0 +1,207 @@
+package org.ncbo.stanford.obr.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import obs.common.utils.ExecutionTimer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class executes a set of tasks depending on each other with a pool of threads.
+ * A task starts as soon as all the tasks it depends on are completed, and is skipped if one of them failed.
+ * The result of a completed task can be read by the tasks depending on it with {@link #getResult(String)}.
+ * After the execution, {@link #getTimingReport()} gives the start, duration and status of each task.
+ */
+public class TaskGraph {
+
+	// Logger for this class
+	private static Logger logger = Logger.getLogger(TaskGraph.class);
+
+	private enum Status {PENDING, RUNNING, COMPLETED, FAILED, SKIPPED}
+
+	private List<Task> tasks = new ArrayList<Task>();
+	private HashMap<String, Task> tasksByName = new HashMap<String, Task>();
+	private long startTime;
+	private long endTime;
+
+	/**
+	 * Adds a task executed when the given tasks are completed.
+	 *
+	 * @param name unique name of the task, used in the timing report
+	 * @param callable task to execute, a task fails if it throws an exception
+	 * @param dependencies names of the tasks already added which must be completed before this one
+	 */
+	public void addTask(String name, Callable<?> callable, String... dependencies) {
+		if(this.tasksByName.containsKey(name)){
+			throw new IllegalArgumentException("Task " + name + " already added.");
+		}
+		Task task = new Task(name, callable);
+		for(String dependency: dependencies){
+			Task dependencyTask = this.tasksByName.get(dependency);
+			if(dependencyTask == null){
+				throw new IllegalArgumentException("Task " + name + " depends on unknown task " + dependency + ".");
+			}
+			task.dependencies.add(dependencyTask);
+		}
+		this.tasks.add(task);
+		this.tasksByName.put(name, task);
+	}
+
+	/**
+	 * Returns the result of the given completed task, null if the task did not complete.
+	 */
+	public Object getResult(String name) {
+		Task task = this.tasksByName.get(name);
+		return task != null && task.status == Status.COMPLETED ? task.result : null;
+	}
+
+	/**
+	 * Executes all the tasks with at most nbThread tasks at the same time, and waits for their end.
+	 *
+	 * @return true if all the tasks completed, false if some failed or were skipped
+	 */
+	public boolean execute(int nbThread) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nbThread));
+		CompletionService<Task> completionService = new ExecutorCompletionService<Task>(executor);
+		this.startTime = System.currentTimeMillis();
+		int nbRunning = 0;
+		try{
+			while(true){
+				nbRunning += this.submitReadyTasks(completionService);
+				if(nbRunning == 0){
+					break;
+				}
+				try{
+					completionService.take().get();
+				}catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}catch (ExecutionException e) {
+					// The failures are recorded by the tasks
+				}
+				nbRunning--;
+			}
+		}finally{
+			executor.shutdownNow();
+		}
+		this.endTime = System.currentTimeMillis();
+		boolean completed = true;
+		for(Task task: this.tasks){
+			if(task.status == Status.PENDING){
+				task.status = Status.SKIPPED;
+			}
+			completed &= task.status == Status.COMPLETED;
+		}
+		return completed;
+	}
+
+	/**
+	 * Submits the pending tasks whose dependencies are completed, skips the ones with a dependency not completed.
+	 *
+	 * @return number of submitted tasks
+	 */
+	private int submitReadyTasks(CompletionService<Task> completionService) {
+		int nbSubmitted = 0;
+		boolean changed = true;
+		while(changed){
+			changed = false;
+			for(final Task task: this.tasks){
+				if(task.status != Status.PENDING){
+					continue;
+				}
+				boolean ready = true;
+				for(Task dependency: task.dependencies){
+					if(dependency.status == Status.FAILED || dependency.status == Status.SKIPPED){
+						task.status = Status.SKIPPED;
+						changed = true;
+						ready = false;
+						break;
+					}
+					ready &= dependency.status == Status.COMPLETED;
+				}
+				if(ready){
+					task.status = Status.RUNNING;
+					completionService.submit(new Callable<Task>(){
+						public Task call() {
+							task.run();
+							return task;
+						}
+					});
+					nbSubmitted++;
+				}
+			}
+		}
+		return nbSubmitted;
+	}
+
+	/**
+	 * Returns the report of the last execution: for each task its start since the beginning of the execution,
+	 * its duration and its status.
+	 */
+	public String getTimingReport() {
+		ExecutionTimer timer = new ExecutionTimer();
+		StringBuffer reportb = new StringBuffer();
+		long tasksDuration = 0;
+		for(Task task: this.tasks){
+			reportb.append("\t");
+			reportb.append(task.name);
+			reportb.append(": ");
+			reportb.append(task.status);
+			if(task.startTime > 0){
+				long duration = task.endTime - task.startTime;
+				tasksDuration += duration;
+				reportb.append(", started at +");
+				reportb.append(timer.millisecondsToTimeString(task.startTime - this.startTime));
+				reportb.append(", processed in ");
+				reportb.append(timer.millisecondsToTimeString(duration));
+			}
+			reportb.append("\n");
+		}
+		reportb.append("\t");
+		reportb.append(this.tasks.size());
+		reportb.append(" tasks processed in ");
+		reportb.append(timer.millisecondsToTimeString(this.endTime - this.startTime));
+		reportb.append(" (");
+		reportb.append(timer.millisecondsToTimeString(tasksDuration));
+		reportb.append(" of task processing).");
+		return reportb.toString();
+	}
+
+	private static class Task {
+
+		private String name;
+		private Callable<?> callable;
+		private List<Task> dependencies = new ArrayList<Task>();
+		private volatile Status status = Status.PENDING;
+		private volatile Object result;
+		private volatile long startTime;
+		private volatile long endTime;
+
+		private Task(String name, Callable<?> callable) {
+			this.name = name;
+			this.callable = callable;
+		}
+
+		private void run() {
+			this.startTime = System.currentTimeMillis();
+			try{
+				this.result = this.callable.call();
+				this.status = Status.COMPLETED;
+			}catch (Throwable e) {
+				this.status = Status.FAILED;
+				this.result = e;
+				logger.error("** PROBLEM ** Task " + this.name + " failed, the tasks depending on it are skipped.", e);
+			}finally{
+				this.endTime = System.currentTimeMillis();
+			}
+		}
+	}
+}
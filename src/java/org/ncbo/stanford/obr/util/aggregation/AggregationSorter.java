@@ -0,0 +1,250 @@
+package org.ncbo.stanford.obr.util.aggregation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * This class sorts aggregated annotations [element_id, concept_id, score] by concept_id and decreasing score
+ * (order of the sorted aggregation table), with a bounded memory.
+ * The annotations are buffered in primitive arrays; a full buffer is sorted and written as a binary run file
+ * in the work folder, and the runs are merged when the sorted annotations are written.
+ * This class is not synchronized.
+ */
+public class AggregationSorter {
+
+	private File workFolder;
+	private String name;
+
+	// Sort key (concept_id, decreasing score) and element_id of the buffered annotations
+	private long[] keys;
+	private int[] elements;
+	private int size = 0;
+
+	private List<File> runFiles = new ArrayList<File>();
+	private long nbAnnotation = 0;
+
+	/**
+	 * @param workFolder folder of the run files
+	 * @param name prefix of the run files
+	 * @param bufferSize number of annotations sorted in memory
+	 */
+	public AggregationSorter(File workFolder, String name, int bufferSize) {
+		this.workFolder = workFolder;
+		this.name = name;
+		this.keys = new long[Math.max(1024, bufferSize)];
+		this.elements = new int[this.keys.length];
+	}
+
+	public void add(int elementID, int conceptID, float score) throws IOException {
+		if(this.size == this.keys.length){
+			this.writeRun();
+		}
+		this.keys[this.size] = key(conceptID, score);
+		this.elements[this.size] = elementID;
+		this.size++;
+		this.nbAnnotation++;
+	}
+
+	/**
+	 * Returns the number of annotations added.
+	 */
+	public long getNumberOfAnnotations() {
+		return this.nbAnnotation;
+	}
+
+	/**
+	 * Writes all the annotations in the sorted order (lines [element_id	concept_id	score]).
+	 * The writer is not closed.
+	 */
+	public void writeSorted(Writer out) throws IOException {
+		if(this.runFiles.isEmpty()){
+			sort(this.keys, this.elements, 0, this.size - 1);
+			for(int i = 0; i < this.size; i++){
+				writeLine(out, this.keys[i], this.elements[i]);
+			}
+			return;
+		}
+		if(this.size > 0){
+			this.writeRun();
+		}
+		// Merges the runs
+		PriorityQueue<RunReader> readers = new PriorityQueue<RunReader>(this.runFiles.size());
+		try{
+			for(File runFile: this.runFiles){
+				RunReader reader = new RunReader(runFile);
+				if(reader.next()){
+					readers.add(reader);
+				}else{
+					reader.close();
+				}
+			}
+			RunReader reader;
+			while((reader = readers.poll()) != null){
+				writeLine(out, reader.key, reader.element);
+				if(reader.next()){
+					readers.add(reader);
+				}else{
+					reader.close();
+				}
+			}
+		}
+		finally{
+			for(RunReader reader: readers){
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the run files.
+	 */
+	public void delete() {
+		for(File runFile: this.runFiles){
+			runFile.delete();
+		}
+		this.runFiles.clear();
+		this.size = 0;
+	}
+
+	private void writeRun() throws IOException {
+		sort(this.keys, this.elements, 0, this.size - 1);
+		File runFile = new File(this.workFolder, this.name + "_" + this.runFiles.size() + ".run");
+		this.runFiles.add(runFile);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), 256 * 1024));
+		try{
+			for(int i = 0; i < this.size; i++){
+				out.writeLong(this.keys[i]);
+				out.writeInt(this.elements[i]);
+			}
+		}
+		finally{
+			out.close();
+		}
+		this.size = 0;
+	}
+
+	private static void writeLine(Writer out, long key, int elementID) throws IOException {
+		out.write(Integer.toString(elementID));
+		out.write('\t');
+		out.write(Long.toString(getConceptID(key)));
+		out.write('\t');
+		out.write(Float.toString(getScore(key)));
+		out.write('\n');
+	}
+
+	/**
+	 * Returns a key ordered by concept_id and decreasing score.
+	 */
+	static long key(int conceptID, float score) {
+		int bits = Float.floatToIntBits(score);
+		// Ordered as the scores, including the negative ones
+		int ordered = bits ^ ((bits >> 31) & 0x7fffffff);
+		return ((conceptID & 0xffffffffL) << 32) | ((~ordered ^ 0x80000000) & 0xffffffffL);
+	}
+
+	static long getConceptID(long key) {
+		return key >>> 32;
+	}
+
+	static float getScore(long key) {
+		int ordered = ~((int) key ^ 0x80000000);
+		return Float.intBitsToFloat(ordered ^ ((ordered >> 31) & 0x7fffffff));
+	}
+
+	private static int compare(long key1, int element1, long key2, int element2) {
+		if(key1 != key2){
+			return key1 < key2 ? -1 : 1;
+		}
+		return element1 < element2 ? -1 : (element1 == element2 ? 0 : 1);
+	}
+
+	/**
+	 * Sorts the keys and the elements between the given indexes (inclusive).
+	 */
+	private static void sort(long[] keys, int[] elements, int from, int to) {
+		while(to - from > 16){
+			int middle = (from + to) >>> 1;
+			long pivotKey = keys[middle];
+			int pivotElement = elements[middle];
+			int i = from;
+			int j = to;
+			while(i <= j){
+				while(compare(keys[i], elements[i], pivotKey, pivotElement) < 0){
+					i++;
+				}
+				while(compare(keys[j], elements[j], pivotKey, pivotElement) > 0){
+					j--;
+				}
+				if(i <= j){
+					swap(keys, elements, i++, j--);
+				}
+			}
+			// Recursion on the smallest part
+			if(j - from < to - i){
+				sort(keys, elements, from, j);
+				from = i;
+			}else{
+				sort(keys, elements, i, to);
+				to = j;
+			}
+		}
+		for(int i = from + 1; i <= to; i++){
+			for(int j = i; j > from && compare(keys[j - 1], elements[j - 1], keys[j], elements[j]) > 0; j--){
+				swap(keys, elements, j, j - 1);
+			}
+		}
+	}
+
+	private static void swap(long[] keys, int[] elements, int i, int j) {
+		long key = keys[i];
+		keys[i] = keys[j];
+		keys[j] = key;
+		int element = elements[i];
+		elements[i] = elements[j];
+		elements[j] = element;
+	}
+
+	private static class RunReader implements Comparable<RunReader> {
+
+		private DataInputStream in;
+		private long key;
+		private int element;
+
+		RunReader(File runFile) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), 64 * 1024));
+		}
+
+		boolean next() throws IOException {
+			try{
+				this.key = this.in.readLong();
+			}catch (EOFException e) {
+				return false;
+			}
+			this.element = this.in.readInt();
+			return true;
+		}
+
+		void close() {
+			try{
+				this.in.close();
+			}catch (IOException e) {
+				// Nothing to do
+			}
+		}
+
+		public int compareTo(RunReader other) {
+			return compare(this.key, this.element, other.key, other.element);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package org.ncbo.stanford.obr.util.aggregation;
+
+import java.util.Arrays;
+
+/**
+ * This class accumulates the scores of the concepts annotating one element.
+ * The scores are kept in primitive arrays (open addressing on the concept id) reused from one element
+ * to the next one, so the aggregation of millions of elements does not create objects per annotation.
+ * This class is not synchronized.
+ */
+public class ConceptScoreAccumulator {
+
+	private static final int EMPTY = -1;
+
+	private int[] concepts;
+	private double[] scores;
+	// Slots used, in insertion order
+	private int[] usedSlots;
+	private int size = 0;
+
+	public ConceptScoreAccumulator() {
+		this.allocate(256);
+	}
+
+	/**
+	 * Adds the given score to the score of the given concept.
+	 */
+	public void add(int conceptID, double score) {
+		if((this.size + 1) * 2 > this.concepts.length){
+			this.resize();
+		}
+		int mask = this.concepts.length - 1;
+		int i = hash(conceptID) & mask;
+		while(this.concepts[i] != EMPTY){
+			if(this.concepts[i] == conceptID){
+				this.scores[i] += score;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		this.concepts[i] = conceptID;
+		this.scores[i] = score;
+		this.usedSlots[this.size++] = i;
+	}
+
+	/**
+	 * Returns the number of concepts of the element.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the concept id of the given index (between 0 and size() - 1).
+	 */
+	public int getConceptID(int index) {
+		return this.concepts[this.usedSlots[index]];
+	}
+
+	/**
+	 * Returns the score of the concept of the given index (between 0 and size() - 1).
+	 */
+	public double getScore(int index) {
+		return this.scores[this.usedSlots[index]];
+	}
+
+	/**
+	 * Removes all the concepts, before accumulating the scores of the next element.
+	 */
+	public void clear() {
+		for(int j = 0; j < this.size; j++){
+			this.concepts[this.usedSlots[j]] = EMPTY;
+		}
+		this.size = 0;
+	}
+
+	private void allocate(int capacity) {
+		this.concepts = new int[capacity];
+		this.scores = new double[capacity];
+		this.usedSlots = new int[capacity];
+		Arrays.fill(this.concepts, EMPTY);
+	}
+
+	private void resize() {
+		int[] oldConcepts = this.concepts;
+		double[] oldScores = this.scores;
+		int[] oldUsedSlots = this.usedSlots;
+		int oldSize = this.size;
+		this.allocate(oldConcepts.length << 1);
+		this.size = 0;
+		for(int j = 0; j < oldSize; j++){
+			this.add(oldConcepts[oldUsedSlots[j]], oldScores[oldUsedSlots[j]]);
+		}
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
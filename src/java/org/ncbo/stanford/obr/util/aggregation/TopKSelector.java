@@ -0,0 +1,230 @@
+package org.ncbo.stanford.obr.util.aggregation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * This class selects the K best elements (highest scores) of each concept from aggregated annotations
+ * [element_id, concept_id, score] read in any order.
+ * Each concept has a min-heap bounded to K annotations, kept in primitive arrays: an annotation is only
+ * compared with the worst one of its concept once the heap is full, so the memory used depends on
+ * the number of concepts and K, not on the number of annotations.
+ * Between two annotations with the same score, the one with the lowest element_id is kept.
+ * This class is not synchronized.
+ */
+public class TopKSelector {
+
+	private static final int EMPTY = -1;
+
+	private int k;
+
+	// concept_id -> slot (open addressing)
+	private int[] concepts;
+	private int[] conceptSlots;
+	private int nbConcept = 0;
+
+	// Heap of each slot, the worst annotation at index 0
+	private int[] slotConcepts;
+	private int[] heapSizes;
+	private int[][] heapElements;
+	private float[][] heapScores;
+
+	private long nbAnnotation = 0;
+
+	/**
+	 * @param k maximum number of annotations kept for each concept
+	 */
+	public TopKSelector(int k) {
+		this.k = Math.max(1, k);
+		this.concepts = new int[1024];
+		this.conceptSlots = new int[1024];
+		Arrays.fill(this.concepts, EMPTY);
+		this.slotConcepts = new int[512];
+		this.heapSizes = new int[512];
+		this.heapElements = new int[512][];
+		this.heapScores = new float[512][];
+	}
+
+	public void add(int elementID, int conceptID, float score) {
+		this.nbAnnotation++;
+		int slot = this.getSlot(conceptID);
+		int size = this.heapSizes[slot];
+		int[] elements = this.heapElements[slot];
+		float[] scores = this.heapScores[slot];
+		if(size < this.k){
+			if(size == elements.length){
+				int capacity = Math.min(this.k, elements.length << 1);
+				int[] newElements = new int[capacity];
+				float[] newScores = new float[capacity];
+				System.arraycopy(elements, 0, newElements, 0, size);
+				System.arraycopy(scores, 0, newScores, 0, size);
+				this.heapElements[slot] = elements = newElements;
+				this.heapScores[slot] = scores = newScores;
+			}
+			// Sift up
+			int i = size;
+			while(i > 0){
+				int parent = (i - 1) >>> 1;
+				if(!isWorse(elementID, score, elements[parent], scores[parent])){
+					break;
+				}
+				elements[i] = elements[parent];
+				scores[i] = scores[parent];
+				i = parent;
+			}
+			elements[i] = elementID;
+			scores[i] = score;
+			this.heapSizes[slot] = size + 1;
+		}
+		else if(isWorse(elements[0], scores[0], elementID, score)){
+			// Replaces the worst annotation and sifts down
+			siftDown(elements, scores, size, elementID, score);
+		}
+	}
+
+	/**
+	 * Returns the number of annotations added.
+	 */
+	public long getNumberOfAnnotations() {
+		return this.nbAnnotation;
+	}
+
+	/**
+	 * Returns the number of concepts of the annotations added.
+	 */
+	public int getNumberOfConcepts() {
+		return this.nbConcept;
+	}
+
+	/**
+	 * Writes the selected annotations by concept_id and decreasing score (lines [element_id	concept_id	score]),
+	 * and returns the number of annotations written. The writer is not closed and the heaps are emptied.
+	 */
+	public long writeSorted(Writer out) throws IOException {
+		// Slots ordered by concept_id
+		long[] orderedSlots = new long[this.nbConcept];
+		for(int slot = 0; slot < this.nbConcept; slot++){
+			orderedSlots[slot] = ((this.slotConcepts[slot] & 0xffffffffL) << 32) | slot;
+		}
+		Arrays.sort(orderedSlots);
+		long nbWritten = 0;
+		for(int j = 0; j < orderedSlots.length; j++){
+			int slot = (int) orderedSlots[j];
+			String conceptID = Integer.toString(this.slotConcepts[slot]);
+			int[] elements = this.heapElements[slot];
+			float[] scores = this.heapScores[slot];
+			// Heap sort: the worst annotation is moved at the end of the arrays
+			for(int size = this.heapSizes[slot]; size > 1; size--){
+				int element = elements[0];
+				float score = scores[0];
+				siftDown(elements, scores, size - 1, elements[size - 1], scores[size - 1]);
+				elements[size - 1] = element;
+				scores[size - 1] = score;
+			}
+			for(int i = 0; i < this.heapSizes[slot]; i++){
+				out.write(Integer.toString(elements[i]));
+				out.write('\t');
+				out.write(conceptID);
+				out.write('\t');
+				out.write(Float.toString(scores[i]));
+				out.write('\n');
+			}
+			nbWritten += this.heapSizes[slot];
+			this.heapSizes[slot] = 0;
+		}
+		return nbWritten;
+	}
+
+	/**
+	 * Returns true if the first annotation is worse than the second one (lower score, or same score and higher element_id).
+	 */
+	private static boolean isWorse(int element1, float score1, int element2, float score2) {
+		if(score1 != score2){
+			return score1 < score2;
+		}
+		return element1 > element2;
+	}
+
+	/**
+	 * Puts the given annotation at the root of the heap of the given size and moves it down to its place.
+	 */
+	private static void siftDown(int[] elements, float[] scores, int size, int elementID, float score) {
+		int i = 0;
+		int child;
+		while((child = 2 * i + 1) < size){
+			if(child + 1 < size && isWorse(elements[child + 1], scores[child + 1], elements[child], scores[child])){
+				child++;
+			}
+			if(!isWorse(elements[child], scores[child], elementID, score)){
+				break;
+			}
+			elements[i] = elements[child];
+			scores[i] = scores[child];
+			i = child;
+		}
+		elements[i] = elementID;
+		scores[i] = score;
+	}
+
+	private int getSlot(int conceptID) {
+		int mask = this.concepts.length - 1;
+		int i = hash(conceptID) & mask;
+		while(this.concepts[i] != EMPTY){
+			if(this.concepts[i] == conceptID){
+				return this.conceptSlots[i];
+			}
+			i = (i + 1) & mask;
+		}
+		if((this.nbConcept + 1) * 2 > this.concepts.length){
+			this.resize();
+			return this.getSlot(conceptID);
+		}
+		int slot = this.nbConcept++;
+		this.concepts[i] = conceptID;
+		this.conceptSlots[i] = slot;
+		if(slot == this.slotConcepts.length){
+			int capacity = slot << 1;
+			int[] newSlotConcepts = new int[capacity];
+			int[] newHeapSizes = new int[capacity];
+			int[][] newHeapElements = new int[capacity][];
+			float[][] newHeapScores = new float[capacity][];
+			System.arraycopy(this.slotConcepts, 0, newSlotConcepts, 0, slot);
+			System.arraycopy(this.heapSizes, 0, newHeapSizes, 0, slot);
+			System.arraycopy(this.heapElements, 0, newHeapElements, 0, slot);
+			System.arraycopy(this.heapScores, 0, newHeapScores, 0, slot);
+			this.slotConcepts = newSlotConcepts;
+			this.heapSizes = newHeapSizes;
+			this.heapElements = newHeapElements;
+			this.heapScores = newHeapScores;
+		}
+		this.slotConcepts[slot] = conceptID;
+		this.heapElements[slot] = new int[Math.min(this.k, 4)];
+		this.heapScores[slot] = new float[this.heapElements[slot].length];
+		return slot;
+	}
+
+	private void resize() {
+		int[] oldConcepts = this.concepts;
+		int[] oldConceptSlots = this.conceptSlots;
+		this.concepts = new int[oldConcepts.length << 1];
+		this.conceptSlots = new int[this.concepts.length];
+		Arrays.fill(this.concepts, EMPTY);
+		int mask = this.concepts.length - 1;
+		for(int j = 0; j < oldConcepts.length; j++){
+			if(oldConcepts[j] != EMPTY){
+				int i = hash(oldConcepts[j]) & mask;
+				while(this.concepts[i] != EMPTY){
+					i = (i + 1) & mask;
+				}
+				this.concepts[i] = oldConcepts[j];
+				this.conceptSlots[i] = oldConceptSlots[j];
+			}
+		}
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -1,16 +1,40 @@
 package org.ncbo.stanford.obr.util.mgrep;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.apache.log4j.Logger;
 import org.ncbo.stanford.obr.util.FileResourceParameters;
+import org.ncbo.stanford.obr.util.MessageUtils;
+import org.ncbo.stanford.obr.util.helper.StringHelper;
 
-public class ConceptRecognitionTools {
+public class ConceptRecognitionTools implements StringHelper {
 	
 	// Logger for this class
 	private static Logger logger = Logger.getLogger(ConceptRecognitionTools.class);
+	
+	// Concept recognizer used for direct annotations: mgrep (external process) or java (DictionaryAutomaton)
+	public static final String MGREP_RECOGNIZER = "mgrep";
+	public static final String JAVA_RECOGNIZER = "java";
+	
+	// Number of lines of the resource file processed by each recognition task  
+	private static final int LINES_PER_TASK = 1000;
 	/* cf old version
 	// Mgrep remote version
 	public static File mgrepRemote(File dictionaryFile, File resourceFile) throws Exception {
@@ -23,6 +47,14 @@ public class ConceptRecognitionTools {
 
 	// Mgrep local version 
 	public static File mgrepLocal(File dictionaryFile, File resourceFile) throws Exception {
+		return mgrepLocal(dictionaryFile, resourceFile, false);
+	}
+
+	/**
+	 * Local version of Mgrep. If failOnError is true, an IOException is thrown when the Mgrep process
+	 * exits with an error instead of returning a result file which may be incomplete.
+	 */
+	private static File mgrepLocal(File dictionaryFile, File resourceFile, boolean failOnError) throws Exception {
 		StringBuffer mgrepCmdb = new StringBuffer();
 		File mgrepFile = new File(FileResourceParameters.mgrepOutputFolder() + resourceFile.getName() + ".mgrep");	
 		
@@ -72,9 +104,337 @@ public class ConceptRecognitionTools {
 			while ((s = stdErr.readLine()) != null) {
 				logger.error(s);
 			}
+			if(failOnError){
+				throw new IOException("Mgrep execution on " + resourceFile.getName() + " exited with status " + i + ".");
+			}
 		}
 		
 		return mgrepFile;
 	}
 
+	/**
+	 * Sharded local version of Mgrep. Splits the resource file (lines [elementID	contextID	text]) in nbShards files
+	 * by ranges of element ids between minElementID and maxElementID, executes one Mgrep process per shard in parallel
+	 * with the same dictionary file, then merges the results in one Mgrep result file.
+	 * 
+	 * @return the merged Mgrep result file
+	 */
+	public static File mgrepSharded(final File dictionaryFile, File resourceFile, long minElementID, long maxElementID, int nbShards) throws Exception {
+		logger.info("Local sharded Mgrep execution with " + nbShards + " shards...");
+		List<File> shardFiles = splitResourceFile(resourceFile, minElementID, maxElementID, nbShards);
+		
+		ExecutorService executorService = Executors.newFixedThreadPool(nbShards);
+		List<Future<File>> results = new ArrayList<Future<File>>();
+		File mgrepFile = new File(FileResourceParameters.mgrepOutputFolder() + resourceFile.getName() + ".mgrep");
+		try{
+			for (final File shardFile : shardFiles) {
+				results.add(executorService.submit(new Callable<File>() {
+					public File call() throws Exception {
+						// A shard in error fails the whole execution, otherwise its annotations would be missing from the merged file
+						return mgrepLocal(dictionaryFile, shardFile, true);
+					}
+				}));
+			}
+			// Merges the results of the shards
+			FileOutputStream out = new FileOutputStream(mgrepFile);
+			try{
+				byte[] buffer = new byte[64 * 1024];
+				for (Future<File> result : results) {
+					File shardMgrepFile = result.get();
+					FileInputStream in = new FileInputStream(shardMgrepFile);
+					try{
+						int nbBytes;
+						while((nbBytes = in.read(buffer)) > 0){
+							out.write(buffer, 0, nbBytes);
+						}
+					}finally{
+						in.close();
+					}
+					shardMgrepFile.delete();
+				}
+			}finally{
+				out.close();
+			}
+		}catch (ExecutionException e) {
+			// Removes the partially merged file and the results of the other shards
+			mgrepFile.delete();
+			for (File shardFile : shardFiles) {
+				new File(FileResourceParameters.mgrepOutputFolder() + shardFile.getName() + ".mgrep").delete();
+			}
+			throw new IOException("Problem during the sharded Mgrep execution: " + e.getCause());
+		}finally{
+			executorService.shutdownNow();
+			for (File shardFile : shardFiles) {
+				shardFile.delete();
+			}
+		}
+		return mgrepFile;
+	}
+	
+	/**
+	 * Splits the resource file in nbShards files (resource file name + .shardN) in the Mgrep input folder.
+	 * The shard of a line is given by its element id: the range [minElementID, maxElementID] is divided in nbShards equal ranges.
+	 */
+	private static List<File> splitResourceFile(File resourceFile, long minElementID, long maxElementID, int nbShards) throws IOException {
+		List<File> shardFiles = new ArrayList<File>(nbShards);
+		BufferedWriter[] shardWriters = new BufferedWriter[nbShards];
+		long rangeSize = (maxElementID - minElementID) / nbShards + 1;
+		BufferedReader in = new BufferedReader(new FileReader(resourceFile));
+		try{
+			for (int i = 0; i < nbShards; i++) {
+				File shardFile = new File(FileResourceParameters.mgrepInputFolder() + resourceFile.getName() + ".shard" + (i + 1));
+				shardFiles.add(shardFile);
+				shardWriters[i] = new BufferedWriter(new FileWriter(shardFile));
+			}
+			String line;
+			while((line = in.readLine()) != null){
+				int firstTab = line.indexOf(TAB_STRING);
+				int shard = 0;
+				if(firstTab > 0){
+					try{
+						long elementID = Long.parseLong(line.substring(0, firstTab));
+						shard = (int) Math.min(nbShards - 1, Math.max(0, (elementID - minElementID) / rangeSize));
+					}catch (NumberFormatException e) {
+						// Kept in the first shard, Mgrep ignores it as in the complete file
+					}
+				}
+				shardWriters[shard].write(line);
+				shardWriters[shard].newLine();
+			}
+		}finally{
+			in.close();
+			for (BufferedWriter shardWriter : shardWriters) {
+				if(shardWriter != null){
+					shardWriter.close();
+				}
+			}
+		}
+		return shardFiles;
+	}
+	
+	/**
+	 * Returns the number of Mgrep processes used for BIG resources from property obr.mgrep.shards
+	 * (number of available processors by default). 
+	 */
+	public static int getMgrepShards(){
+		try{
+			return Integer.parseInt(MessageUtils.getMessage("obr.mgrep.shards").trim());
+		}catch (Exception e) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+	}
+
+	/**
+	 * Returns the concept recognizer to use from property obr.concept.recognizer (mgrep by default).
+	 */
+	public static String getConceptRecognizer(){
+		String recognizer = MessageUtils.getMessage("obr.concept.recognizer");
+		if(recognizer == null || recognizer.trim().length() == 0){
+			return MGREP_RECOGNIZER;
+		}
+		return recognizer.trim();
+	}
+	
+	/**
+	 * Returns the number of threads used by the java recognizer from property obr.concept.recognizer.threads
+	 * (number of available processors by default). 
+	 */
+	public static int getRecognitionThreads(){
+		try{
+			return Integer.parseInt(MessageUtils.getMessage("obr.concept.recognizer.threads").trim());
+		}catch (Exception e) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+	}
+
+	/**
+	 * Returns true if the elements must be streamed to the concept recognizer, and the recognized terms
+	 * to the annotation table, without intermediate files (property obr.concept.recognition.streaming, false by default).
+	 */
+	public static boolean isStreamingRecognition(){
+		return Boolean.parseBoolean(MessageUtils.getMessage("obr.concept.recognition.streaming"));
+	}
+	
+	/**
+	 * Starts a Mgrep process reading the resource lines [elementID	contextID	text] on its standard input
+	 * and writing the Mgrep results on its standard output.
+	 * The error output of the process is logged by a daemon thread.
+	 */
+	public static Process startMgrep(File dictionaryFile) throws IOException {
+		List<String> mgrepCommand = new ArrayList<String>();
+		mgrepCommand.add(FileResourceParameters.mgrepFolder() + "mgrep");
+		mgrepCommand.add("-w");
+		mgrepCommand.add("-i");
+		mgrepCommand.add("-f");
+		mgrepCommand.add(FileResourceParameters.dictionaryFolder() + dictionaryFile.getName());
+		logger.info("Local Mgrep process execution...");
+		logger.info("command: " + mgrepCommand);
+		
+		final Process p = new ProcessBuilder(mgrepCommand).start();
+		Thread errorLogger = new Thread("mgrep-stderr"){
+			public void run() {
+				try{
+					BufferedReader stdErr = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+					String s;
+					while ((s = stdErr.readLine()) != null) {
+						logger.error(s);
+					}
+				}catch (IOException e) {
+					// The process has been destroyed
+				}
+			}
+		};
+		errorLogger.setDaemon(true);
+		errorLogger.start();
+		return p;
+	}
+	
+	/**
+	 * Java streaming version of Mgrep. Recognizes the terms of the given dictionary automaton in the blocks of resource lines
+	 * [elementID	contextID	text] taken from the elements queue, and puts the results (lines [termID	from	to	elementID	contextID])
+	 * in the annotations queue. The annotations queue is not closed by this method. 
+	 * 
+	 * @return the number of recognized terms
+	 */
+	public static long javaStream(final DictionaryAutomaton automaton, final LineBlockQueue elements, final LineBlockQueue annotations) throws Exception {
+		logger.info("Local Java recognizer streaming execution...");
+		int nbThreads = getRecognitionThreads();
+		ExecutorService executorService = Executors.newFixedThreadPool(nbThreads);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		long nbAnnotations = 0;
+		try{
+			for (int i = 0; i < nbThreads; i++) {
+				results.add(executorService.submit(new Callable<Long>() {
+					public Long call() throws Exception {
+						long nbMatches = 0;
+						String block;
+						while((block = elements.take()) != null){
+							StringBuilder result = new StringBuilder();
+							for (String line : block.split(NEW_LINE_REGEX)) {
+								nbMatches += recognize(automaton, line, result);
+							}
+							annotations.put(result.toString());
+						}
+						return nbMatches;
+					}
+				}));
+			}
+			for (Future<Long> result : results) {
+				nbAnnotations += result.get();
+			}
+		}catch (ExecutionException e) {
+			throw new IOException("Problem during the streaming recognition: " + e.getCause());
+		}finally{
+			executorService.shutdownNow();
+		}
+		logger.info(nbAnnotations + " terms recognized with " + nbThreads + " threads.");
+		return nbAnnotations;
+	}
+
+	/**
+	 * Java local version of Mgrep. Recognizes the terms of the given dictionary automaton in the given 
+	 * resource file (lines [elementID	contextID	text]).
+	 * Writes the same result file than Mgrep (lines [termID	from	to	elementID	contextID]) in the Mgrep output folder.
+	 * 
+	 * @see DictionaryAutomatonCache#getAutomaton(obs.common.beans.DictionaryBean, File) 
+	 */
+	public static File javaLocal(DictionaryAutomaton automaton, File resourceFile) throws Exception {
+		logger.info("Local Java recognizer execution...");
+		File mgrepFile = new File(FileResourceParameters.mgrepOutputFolder() + resourceFile.getName() + ".mgrep");
+		
+		int nbThreads = getRecognitionThreads();
+		ExecutorService executorService = Executors.newFixedThreadPool(nbThreads);
+		// Bounds the number of blocks of lines in memory
+		Semaphore pendingTasks = new Semaphore(nbThreads * 2);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		
+		BufferedReader in = new BufferedReader(new FileReader(resourceFile));
+		BufferedWriter out = new BufferedWriter(new FileWriter(mgrepFile));
+		long nbAnnotations = 0;
+		try{
+			List<String> lines = new ArrayList<String>(LINES_PER_TASK);
+			String line;
+			while((line = in.readLine()) != null){
+				lines.add(line);
+				if(lines.size() == LINES_PER_TASK){
+					pendingTasks.acquire();
+					results.add(executorService.submit(new RecognitionTask(automaton, lines, out, pendingTasks)));
+					lines = new ArrayList<String>(LINES_PER_TASK);
+				}
+			}
+			if(!lines.isEmpty()){
+				pendingTasks.acquire();
+				results.add(executorService.submit(new RecognitionTask(automaton, lines, out, pendingTasks)));
+			}
+			for (Future<Long> result : results) {
+				nbAnnotations += result.get();
+			}
+		}catch (ExecutionException e) {
+			throw new IOException("Problem during the recognition of " + resourceFile.getName() + ": " + e.getCause());
+		}finally{
+			executorService.shutdownNow();
+			in.close();
+			out.close();
+		}
+		logger.info(nbAnnotations + " terms recognized with " + nbThreads + " threads.");
+		return mgrepFile;
+	}
+	
+	/**
+	 * Recognizes the terms of the automaton in one resource line [elementID	contextID	text]
+	 * and appends the results [termID	from	to	elementID	contextID] to the given buffer.
+	 * 
+	 * @return the number of recognized terms
+	 */
+	private static int recognize(DictionaryAutomaton automaton, String line, final StringBuilder result){
+		int firstTab = line.indexOf(TAB_STRING);
+		int secondTab = firstTab < 0 ? -1 : line.indexOf(TAB_STRING, firstTab + 1);
+		if(secondTab < 0){
+			return 0;
+		}
+		// elementID	contextID reported after each recognized term
+		final String elementContext = line.substring(0, secondTab);
+		return automaton.match(line.substring(secondTab + 1), new DictionaryAutomaton.MatchListener() {
+			public void match(int termID, int from, int to) {
+				result.append(termID).append(TAB_STRING).append(from).append(TAB_STRING)
+					.append(to).append(TAB_STRING).append(elementContext).append(NEW_LINE_REGEX);
+			}
+		});
+	}
+	
+	/**
+	 * Recognizes the terms for a block of lines of the resource file and appends
+	 * the results to the shared output.
+	 */
+	private static class RecognitionTask implements Callable<Long> {
+		
+		private DictionaryAutomaton automaton;
+		private List<String> lines;
+		private Writer out;
+		private Semaphore pendingTasks;
+		
+		public RecognitionTask(DictionaryAutomaton automaton, List<String> lines, Writer out, Semaphore pendingTasks) {
+			this.automaton = automaton;
+			this.lines = lines;
+			this.out = out;
+			this.pendingTasks = pendingTasks;
+		}
+		
+		public Long call() throws Exception {
+			try{
+				StringBuilder result = new StringBuilder();
+				long nbMatches = 0;
+				for (String line : this.lines) {
+					nbMatches += recognize(this.automaton, line, result);
+				}
+				synchronized (this.out) {
+					this.out.write(result.toString());
+				}
+				return nbMatches;
+			}finally{
+				this.pendingTasks.release();
+			}
+		}
+	}
+
 }
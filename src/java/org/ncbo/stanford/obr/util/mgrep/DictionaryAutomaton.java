@@ -0,0 +1,467 @@
+package org.ncbo.stanford.obr.util.mgrep;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.ncbo.stanford.obr.util.helper.StringHelper;
+
+/**
+ * This class is an Aho-Corasick automaton built from a Mgrep dictionary file
+ * (lines [termID	termName]). It is used to recognize the terms of the dictionary
+ * in a text with the same semantic as <code>mgrep -w -i</code>:
+ *
+ * <ul>
+ * <li>matching is case insensitive,
+ * <li>only whole words are matched (a match cannot start or end inside a word),
+ * <li>all the matches are reported, including overlapping ones.
+ * </ul>
+ *
+ * Positions are reported as Mgrep does, 1-based and inclusive.
+ * The automaton is immutable once built and can be shared by several threads.
+ * It can be compiled into a binary file and loaded back by memory-mapping this file read-only
+ * (see {@link #compile(File)} and {@link #load(File)}).
+ */
+public class DictionaryAutomaton implements StringHelper {
+
+	// Logger for this class
+	private static Logger logger = Logger.getLogger(DictionaryAutomaton.class);
+
+	private static final int ROOT = 0;
+	private static final int NO_STATE = -1;
+	
+	// Header of the compiled automaton file: magic number and format version
+	private static final int MAGIC_NUMBER = 0x4F425241;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 4 * 4;
+
+	// Transitions of state s are edgeChars/edgeTargets[edgeFirst[s], edgeFirst[s+1]) sorted by character
+	private IntBuffer edgeFirst;
+	private CharBuffer edgeChars;
+	private IntBuffer edgeTargets;
+	// Failure link of each state
+	private IntBuffer fail;
+	// Nearest state in the failure chain having an output (NO_STATE if none)
+	private IntBuffer outputLink;
+	// Length of the term spelled by each state
+	private IntBuffer depth;
+	// Terms recognized in state s are termIDs[outputFirst[s], outputFirst[s+1])
+	private IntBuffer outputFirst;
+	private IntBuffer termIDs;
+
+	/**
+	 * Receives the terms recognized by the automaton.
+	 */
+	public interface MatchListener {
+
+		/**
+		 * Called for each term recognized.
+		 *
+		 * @param termID the id of the term
+		 * @param from 1-based position of the first character of the term
+		 * @param to 1-based position of the last character of the term
+		 */
+		public void match(int termID, int from, int to);
+	}
+
+	private DictionaryAutomaton() {
+		super();
+	}
+
+	/**
+	 * Builds the automaton for the given Mgrep dictionary file.
+	 *
+	 * @param dictionaryFile file containing [termID	termName] lines.
+	 * @return the automaton
+	 * @throws IOException
+	 */
+	public static DictionaryAutomaton build(File dictionaryFile) throws IOException{
+		List<DictionaryTerm> terms = new ArrayList<DictionaryTerm>();
+		BufferedReader reader = new BufferedReader(new FileReader(dictionaryFile));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				int tabIndex = line.indexOf(TAB_STRING);
+				if(tabIndex <= 0 || tabIndex == line.length() - 1){
+					continue;
+				}
+				try{
+					int termID = Integer.parseInt(line.substring(0, tabIndex));
+					terms.add(new DictionaryTerm(termID, normalize(line.substring(tabIndex + 1))));
+				}catch (NumberFormatException e) {
+					logger.error("** PROBLEM ** Invalid dictionary line: " + line);
+				}
+			}
+		}finally{
+			reader.close();
+		}
+		DictionaryAutomaton automaton = new DictionaryAutomaton();
+		automaton.build(terms);
+		logger.info("\tDictionary automaton built with " + terms.size() + " terms and " + automaton.getNumberOfStates() + " states.");
+		return automaton;
+	}
+
+	/**
+	 * Lower cases the given term character by character, so positions are kept unchanged.
+	 */
+	private static String normalize(String text){
+		char[] chars = text.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(chars[i]);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Builds the trie from the sorted terms, then the failure links in breadth first order.
+	 */
+	private void build(List<DictionaryTerm> terms){
+		Collections.sort(terms);
+
+		// Trie built in lexicographic order: children of each state are created in increasing character order
+		IntArray parents = new IntArray();
+		IntArray labels = new IntArray();
+		IntArray depths = new IntArray();
+		IntArray termStates = new IntArray();
+		parents.add(NO_STATE);
+		labels.add(0);
+		depths.add(0);
+
+		int[] path = new int[16];
+		String previous = EMPTY_STRING;
+		int previousState = ROOT;
+		for (DictionaryTerm term : terms) {
+			String name = term.name;
+			if(path.length < name.length() + 1){
+				path = copyOf(path, Math.max(path.length * 2, name.length() + 1));
+			}
+			int common = 0;
+			int max = Math.min(previous.length(), name.length());
+			while(common < max && previous.charAt(common) == name.charAt(common)){
+				common++;
+			}
+			int state = common == previous.length() ? previousState : path[common];
+			for (int i = common; i < name.length(); i++) {
+				int child = parents.size();
+				parents.add(state);
+				labels.add(name.charAt(i));
+				depths.add(i + 1);
+				state = child;
+				path[i + 1] = state;
+			}
+			path[0] = ROOT;
+			termStates.add(state);
+			previous = name;
+			previousState = state;
+		}
+
+		int nbStates = parents.size();
+		int[] depth = depths.toArray();
+
+		// Transitions
+		int[] edgeFirst = new int[nbStates + 1];
+		for (int s = 1; s < nbStates; s++) {
+			edgeFirst[parents.get(s) + 1]++;
+		}
+		for (int s = 0; s < nbStates; s++) {
+			edgeFirst[s + 1] += edgeFirst[s];
+		}
+		char[] edgeChars = new char[nbStates - 1];
+		int[] edgeTargets = new int[nbStates - 1];
+		int[] fill = copyOf(edgeFirst, nbStates);
+		for (int s = 1; s < nbStates; s++) {
+			int edge = fill[parents.get(s)]++;
+			edgeChars[edge] = (char) labels.get(s);
+			edgeTargets[edge] = s;
+		}
+
+		// Outputs
+		int[] outputFirst = new int[nbStates + 1];
+		for (int i = 0; i < termStates.size(); i++) {
+			outputFirst[termStates.get(i) + 1]++;
+		}
+		for (int s = 0; s < nbStates; s++) {
+			outputFirst[s + 1] += outputFirst[s];
+		}
+		int[] termIDs = new int[termStates.size()];
+		fill = copyOf(outputFirst, nbStates);
+		for (int i = 0; i < termStates.size(); i++) {
+			termIDs[fill[termStates.get(i)]++] = terms.get(i).termID;
+		}
+		
+		this.depth = IntBuffer.wrap(depth);
+		this.edgeFirst = IntBuffer.wrap(edgeFirst);
+		this.edgeChars = CharBuffer.wrap(edgeChars);
+		this.edgeTargets = IntBuffer.wrap(edgeTargets);
+		this.outputFirst = IntBuffer.wrap(outputFirst);
+		this.termIDs = IntBuffer.wrap(termIDs);
+
+		// Failure and output links
+		int[] fail = new int[nbStates];
+		int[] outputLink = new int[nbStates];
+		this.fail = IntBuffer.wrap(fail);
+		this.outputLink = IntBuffer.wrap(outputLink);
+		outputLink[ROOT] = NO_STATE;
+		int[] queue = new int[nbStates];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = ROOT;
+		while(head < tail){
+			int state = queue[head++];
+			for (int edge = edgeFirst[state]; edge < edgeFirst[state + 1]; edge++) {
+				int child = edgeTargets[edge];
+				char c = edgeChars[edge];
+				if(state == ROOT){
+					fail[child] = ROOT;
+				}else{
+					int f = fail[state];
+					int next;
+					while((next = this.transition(f, c)) == NO_STATE && f != ROOT){
+						f = fail[f];
+					}
+					fail[child] = next == NO_STATE ? ROOT : next;
+				}
+				int f = fail[child];
+				outputLink[child] = this.hasOutput(f) ? f : outputLink[f];
+				queue[tail++] = child;
+			}
+		}
+	}
+	
+	/**
+	 * Writes the automaton in the given binary file, to be loaded with {@link #load(File)}.
+	 * The file contains a header [magic number, version, number of states, number of terms]
+	 * followed by the arrays of the automaton.
+	 * 
+	 * @param automatonFile
+	 * @throws IOException
+	 */
+	public void compile(File automatonFile) throws IOException {
+		int nbStates = this.getNumberOfStates();
+		int nbTerms = this.getNumberOfTerms();
+		FileOutputStream fstream = new FileOutputStream(automatonFile);
+		FileChannel channel = fstream.getChannel();
+		try{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC_NUMBER).putInt(FORMAT_VERSION).putInt(nbStates).putInt(nbTerms);
+			header.flip();
+			writeFully(channel, header);
+			writeBuffer(channel, this.edgeFirst);
+			writeBuffer(channel, this.edgeTargets);
+			writeBuffer(channel, this.fail);
+			writeBuffer(channel, this.outputLink);
+			writeBuffer(channel, this.depth);
+			writeBuffer(channel, this.outputFirst);
+			writeBuffer(channel, this.termIDs);
+			ByteBuffer chars = ByteBuffer.allocate(this.edgeChars.capacity() * 2);
+			chars.asCharBuffer().put(this.edgeChars.duplicate());
+			writeFully(channel, chars);
+		}finally{
+			channel.close();
+			fstream.close();
+		}
+	}
+	
+	private static void writeBuffer(FileChannel channel, IntBuffer values) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(values.capacity() * 4);
+		bytes.asIntBuffer().put(values.duplicate());
+		writeFully(channel, bytes);
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+		while(bytes.hasRemaining()){
+			channel.write(bytes);
+		}
+	}
+	
+	/**
+	 * Loads an automaton compiled with {@link #compile(File)} by memory-mapping the given file read-only.
+	 * The arrays of the automaton are not copied in the heap, so loading is almost immediate
+	 * and the pages are shared by all the automata mapping the same file.
+	 * 
+	 * @param automatonFile
+	 * @return the automaton
+	 * @throws IOException if the file is not a valid compiled automaton
+	 */
+	public static DictionaryAutomaton load(File automatonFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(automatonFile, "r");
+		try{
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(header, 0);
+			header.flip();
+			if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC_NUMBER || header.getInt() != FORMAT_VERSION){
+				throw new IOException("Invalid compiled automaton file " + automatonFile.getName());
+			}
+			int nbStates = header.getInt();
+			int nbTerms = header.getInt();
+			long expectedSize = HEADER_SIZE + 4L * ((nbStates + 1) + (nbStates - 1) + 3L * nbStates + (nbStates + 1) + nbTerms) + 2L * (nbStates - 1);
+			if(channel.size() != expectedSize){
+				throw new IOException("Truncated compiled automaton file " + automatonFile.getName());
+			}
+			DictionaryAutomaton automaton = new DictionaryAutomaton();
+			long position = HEADER_SIZE;
+			automaton.edgeFirst = mapInts(channel, position, nbStates + 1);
+			position += 4L * (nbStates + 1);
+			automaton.edgeTargets = mapInts(channel, position, nbStates - 1);
+			position += 4L * (nbStates - 1);
+			automaton.fail = mapInts(channel, position, nbStates);
+			position += 4L * nbStates;
+			automaton.outputLink = mapInts(channel, position, nbStates);
+			position += 4L * nbStates;
+			automaton.depth = mapInts(channel, position, nbStates);
+			position += 4L * nbStates;
+			automaton.outputFirst = mapInts(channel, position, nbStates + 1);
+			position += 4L * (nbStates + 1);
+			automaton.termIDs = mapInts(channel, position, nbTerms);
+			position += 4L * nbTerms;
+			automaton.edgeChars = channel.map(FileChannel.MapMode.READ_ONLY, position, 2L * (nbStates - 1)).asCharBuffer();
+			return automaton;
+		}finally{
+			// The mappings stay valid after closing the file 
+			file.close();
+		}
+	}
+	
+	private static IntBuffer mapInts(FileChannel channel, long position, int size) throws IOException {
+		MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * size);
+		return bytes.asIntBuffer();
+	}
+
+	/**
+	 * Returns the state reached from the given state with the given character, NO_STATE if none.
+	 */
+	private int transition(int state, char c){
+		int low = this.edgeFirst.get(state);
+		int high = this.edgeFirst.get(state + 1) - 1;
+		while(low <= high){
+			int middle = (low + high) >>> 1;
+			char middleChar = this.edgeChars.get(middle);
+			if(middleChar < c){
+				low = middle + 1;
+			}else if(middleChar > c){
+				high = middle - 1;
+			}else{
+				return this.edgeTargets.get(middle);
+			}
+		}
+		return NO_STATE;
+	}
+
+	private boolean hasOutput(int state){
+		return state != NO_STATE && this.outputFirst.get(state + 1) > this.outputFirst.get(state);
+	}
+
+	private static boolean isWordCharacter(char c){
+		return Character.isLetterOrDigit(c);
+	}
+
+	/**
+	 * Recognizes the dictionary terms in the given text and reports the whole word matches
+	 * to the given listener.
+	 *
+	 * @return the number of matches
+	 */
+	public int match(String text, MatchListener listener){
+		int nbMatches = 0;
+		int state = ROOT;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = Character.toLowerCase(text.charAt(i));
+			int next;
+			while((next = this.transition(state, c)) == NO_STATE && state != ROOT){
+				state = this.fail.get(state);
+			}
+			state = next == NO_STATE ? ROOT : next;
+
+			// A whole word must end before a non word character
+			if(i + 1 < length && isWordCharacter(text.charAt(i + 1))){
+				continue;
+			}
+			int outputState = this.hasOutput(state) ? state : this.outputLink.get(state);
+			while(outputState != NO_STATE){
+				int start = i - this.depth.get(outputState) + 1;
+				// A whole word must start after a non word character
+				if(start == 0 || !isWordCharacter(text.charAt(start - 1))){
+					for (int t = this.outputFirst.get(outputState); t < this.outputFirst.get(outputState + 1); t++) {
+						listener.match(this.termIDs.get(t), start + 1, i + 1);
+						nbMatches++;
+					}
+				}
+				outputState = this.outputLink.get(outputState);
+			}
+		}
+		return nbMatches;
+	}
+
+	private static int[] copyOf(int[] values, int length){
+		int[] copy = new int[length];
+		System.arraycopy(values, 0, copy, 0, Math.min(values.length, length));
+		return copy;
+	}
+
+	public int getNumberOfStates(){
+		return this.depth.capacity();
+	}
+
+	public int getNumberOfTerms(){
+		return this.termIDs.capacity();
+	}
+
+	/********************************* HELPER CLASSES *****************************************************/
+
+	private static class DictionaryTerm implements Comparable<DictionaryTerm> {
+
+		private int termID;
+		private String name;
+
+		public DictionaryTerm(int termID, String name) {
+			this.termID = termID;
+			this.name = name;
+		}
+
+		public int compareTo(DictionaryTerm o) {
+			return this.name.compareTo(o.name);
+		}
+	}
+
+	/**
+	 * Growable array of int used while building the automaton.
+	 */
+	private static class IntArray {
+
+		private int[] values = new int[1024];
+		private int size = 0;
+
+		public void add(int value){
+			if(this.size == this.values.length){
+				this.values = copyOf(this.values, this.size * 2);
+			}
+			this.values[this.size++] = value;
+		}
+
+		public int get(int index){
+			return this.values[index];
+		}
+
+		public int size(){
+			return this.size;
+		}
+
+		public int[] toArray(){
+			return copyOf(this.values, this.size);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.ncbo.stanford.obr.util.mgrep;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import obs.common.beans.DictionaryBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class keeps the {@link DictionaryAutomaton} of the latest dictionary.
+ * Each dictionary file is compiled once into a binary automaton file (dictionary file name + .automaton)
+ * stored next to it, and then memory-mapped read-only. The same automaton is shared
+ * by all the resources and all the recognition threads of the workflow.
+ * The cache is cleared as soon as an automaton is requested for another dictionary.
+ */
+public class DictionaryAutomatonCache {
+
+	// Logger for this class
+	private static Logger logger = Logger.getLogger(DictionaryAutomatonCache.class);
+
+	public static final String AUTOMATON_FILE_EXTENSION = ".automaton";
+
+	// Dictionary of the cached automata
+	private static int dictionaryID = -1;
+	// Automata by dictionary file path (complete and delta dictionary files)
+	private static Map<String, DictionaryAutomaton> automata = new HashMap<String, DictionaryAutomaton>();
+
+	private DictionaryAutomatonCache() {
+	}
+
+	/**
+	 * Returns the automaton of the given dictionary file.
+	 * The compiled automaton file is (re)created if it does not exist or if it is older than the dictionary file.
+	 *
+	 * @param dictionary the dictionary used for annotation
+	 * @param dictionaryFile Mgrep dictionary file of this dictionary
+	 * @return the automaton
+	 * @throws IOException
+	 */
+	public static synchronized DictionaryAutomaton getAutomaton(DictionaryBean dictionary, File dictionaryFile) throws IOException {
+		if(dictionary.getDictionaryId() != dictionaryID){
+			if(!automata.isEmpty()){
+				logger.info("\tNew dictionary " + dictionary.getDictionaryId() + ", automata of dictionary " + dictionaryID + " released.");
+			}
+			automata.clear();
+			dictionaryID = dictionary.getDictionaryId();
+		}
+		String dictionaryPath = dictionaryFile.getAbsolutePath();
+		DictionaryAutomaton automaton = automata.get(dictionaryPath);
+		if(automaton == null){
+			File automatonFile = new File(dictionaryPath + AUTOMATON_FILE_EXTENSION);
+			if(!automatonFile.exists() || automatonFile.lastModified() < dictionaryFile.lastModified()){
+				compileAutomaton(dictionaryFile, automatonFile);
+			}
+			try{
+				automaton = DictionaryAutomaton.load(automatonFile);
+			}catch (IOException e) {
+				logger.error("** PROBLEM ** Cannot load " + automatonFile.getName() + ", the automaton is compiled again.", e);
+				compileAutomaton(dictionaryFile, automatonFile);
+				automaton = DictionaryAutomaton.load(automatonFile);
+			}
+			logger.info("\tDictionary automaton " + automatonFile.getName() + " mapped (" + automaton.getNumberOfStates() + " states).");
+			automata.put(dictionaryPath, automaton);
+		}
+		return automaton;
+	}
+
+	/**
+	 * Builds the automaton of the dictionary file and writes it in a temporary file
+	 * renamed at the end, so that an incomplete automaton file is never loaded.
+	 */
+	private static void compileAutomaton(File dictionaryFile, File automatonFile) throws IOException {
+		logger.info("\tCompiling the dictionary automaton " + automatonFile.getName() + "...");
+		File temporaryFile = new File(automatonFile.getAbsolutePath() + ".tmp");
+		DictionaryAutomaton.build(dictionaryFile).compile(temporaryFile);
+		automatonFile.delete();
+		if(!temporaryFile.renameTo(automatonFile)){
+			throw new IOException("Cannot rename " + temporaryFile.getName() + " to " + automatonFile.getName());
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.ncbo.stanford.obr.util.mgrep;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * This class is a bounded queue of blocks of text lines used to stream data between the stages of the
+ * concept recognition (elements export, recognizer, annotation loading) without intermediate files.
+ * Each block contains only complete lines. A producer blocks when the queue is full, so the memory used
+ * by a stream is bounded by the capacity of the queue.
+ *
+ * The producer ends the stream with {@link #close()}, or with {@link #abort()} if it failed:
+ * the consumers then get an {@link IOException} instead of the end of the stream.
+ */
+public class LineBlockQueue {
+
+	// Approximate number of characters of one block
+	public static final int BLOCK_SIZE = 64 * 1024;
+
+	// Markers put in the queue at the end of the stream (compared by reference)
+	private static final String END_OF_STREAM = new String("END_OF_STREAM");
+	private static final String ABORTED = new String("ABORTED");
+
+	private BlockingQueue<String> blocks;
+
+	/**
+	 * @param capacity maximum number of blocks waiting in the queue
+	 */
+	public LineBlockQueue(int capacity) {
+		this.blocks = new ArrayBlockingQueue<String>(capacity);
+	}
+
+	/**
+	 * Adds a block of complete lines, waiting if the queue is full.
+	 */
+	public void put(String block) throws IOException {
+		try{
+			this.blocks.put(block);
+		}catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for the consumer of the stream.");
+		}
+	}
+
+	/**
+	 * Returns the next block of lines, waiting if the queue is empty.
+	 *
+	 * @return the block or null at the end of the stream
+	 * @throws IOException if the producer aborted the stream
+	 */
+	public String take() throws IOException {
+		String block;
+		try{
+			block = this.blocks.take();
+		}catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for the producer of the stream.");
+		}
+		if(block == END_OF_STREAM || block == ABORTED){
+			// Puts back the marker for the other consumers
+			this.blocks.offer(block);
+			if(block == ABORTED){
+				throw new IOException("Stream aborted by its producer.");
+			}
+			return null;
+		}
+		return block;
+	}
+
+	/**
+	 * Ends the stream.
+	 */
+	public void close() throws IOException {
+		this.put(END_OF_STREAM);
+	}
+
+	/**
+	 * Ends the stream with an error. Does not wait, any block still waiting in the queue is discarded.
+	 */
+	public void abort() {
+		do{
+			this.blocks.clear();
+		}while(!this.blocks.offer(ABORTED));
+	}
+
+	/**
+	 * Returns a writer putting the written text in the queue by blocks of complete lines.
+	 * Closing the writer ends the stream.
+	 */
+	public Writer getWriter() {
+		return new BlockWriter();
+	}
+
+	/**
+	 * Returns a reader on the text of the blocks of the queue.
+	 */
+	public Reader getReader() {
+		return new BlockReader();
+	}
+
+	private class BlockWriter extends Writer {
+
+		private StringBuilder buffer = new StringBuilder(BLOCK_SIZE + 1024);
+
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			this.buffer.append(cbuf, off, len);
+			this.putCompleteLines();
+		}
+
+		public void write(String str, int off, int len) throws IOException {
+			this.buffer.append(str, off, off + len);
+			this.putCompleteLines();
+		}
+
+		private void putCompleteLines() throws IOException {
+			if(this.buffer.length() >= BLOCK_SIZE){
+				int endOfLine = this.buffer.lastIndexOf("\n");
+				if(endOfLine >= 0){
+					put(this.buffer.substring(0, endOfLine + 1));
+					this.buffer.delete(0, endOfLine + 1);
+				}
+			}
+		}
+
+		public void flush() throws IOException {
+			// Only complete blocks are sent to the queue
+		}
+
+		public void close() throws IOException {
+			if(this.buffer.length() > 0){
+				put(this.buffer.toString());
+				this.buffer.setLength(0);
+			}
+			LineBlockQueue.this.close();
+		}
+	}
+
+	private class BlockReader extends Reader {
+
+		private String block = "";
+		private int position = 0;
+		private boolean ended = false;
+
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			while(this.position == this.block.length()){
+				if(this.ended){
+					return -1;
+				}
+				String next = take();
+				if(next == null){
+					this.ended = true;
+					return -1;
+				}
+				this.block = next;
+				this.position = 0;
+			}
+			int nbChars = Math.min(len, this.block.length() - this.position);
+			this.block.getChars(this.position, this.position + nbChars, cbuf, off);
+			this.position += nbChars;
+			return nbChars;
+		}
+
+		public void close() throws IOException {
+			// Nothing to release
+		}
+	}
+}